@@ -52,6 +52,12 @@ public class Database
      */
     private DataSourceFactory dataSourceFactory;
 
+    /**
+     * Whether values are passed as prepared statement parameters
+     * instead of sql literals.
+     */
+    private boolean bindValues = false;
+
     /**
      * Creates a new Database with the given name.
      *
@@ -132,6 +138,32 @@ public class Database
         this.dataSourceFactory = aDataSourceFactory;
     }
 
+    /**
+     * Returns whether values in queries, updates and deletes on this
+     * database are passed as prepared statement parameters instead of
+     * being inlined into the sql as literals.  Using bind values allows
+     * the database to reuse the execution plans of statements which
+     * differ only in their values.
+     *
+     * @return true if bind values are used, false otherwise.
+     */
+    public boolean isBindValues()
+    {
+        return bindValues;
+    }
+
+    /**
+     * Sets whether values in queries, updates and deletes on this
+     * database are passed as prepared statement parameters.
+     *
+     * @param bindValues true if bind values should be used,
+     *        false if values should be rendered as sql literals.
+     */
+    public void setBindValues(boolean bindValues)
+    {
+        this.bindValues = bindValues;
+    }
+
     /**
      * Get the IDBroker for this database.
      *
@@ -83,10 +83,82 @@ public class Torque
      * property to determine whether caching is used.
      */
     public static final String CACHE_KEY = "manager.useCache";
+
+    /**
+     * A prefix for the properties configuring the om caches of the managers,
+     * e.g. <code>torque.manager.cache.backend</code>. A property can be
+     * overridden for a single manager by inserting its cache region,
+     * e.g. <code>torque.manager.cache.bookstore_Author.backend</code>.
+     */
+    public static final String MANAGER_CACHE_PREFIX = "manager.cache.";
+
+    /**
+     * The prefix for configuring the distribution of cache invalidations
+     * to other nodes of a cluster, see
+     * {@link org.apache.torque.manager.InvalidationBus}.
+     */
+    public static final String INVALIDATION_KEY = "manager.invalidation";
+
+    /**
+     * property to determine whether the cache statistics of the managers
+     * are registered as JMX MBeans, see
+     * {@link org.apache.torque.manager.CacheStatisticsExporter}.
+     */
+    public static final String MANAGER_JMX_KEY = "manager.jmx";
     
     /** The prefix for configuring the transaction manger. */
     public static final String TRANSACTION_MANAGER_KEY = "transactionManager";
 
+    /**
+     * property to determine whether values are passed to a database
+     * as prepared statement parameters. It is configured per database,
+     * e.g. <code>torque.database.bookstore.bindValues = true</code>.
+     */
+    public static final String BIND_VALUES_KEY = "bindValues";
+
+    /**
+     * property to determine the maximum number of prepared statements
+     * whose sql is cached by the {@link org.apache.torque.util.QueryCache}.
+     * A value of 0 disables the cache.
+     */
+    public static final String QUERY_CACHE_SIZE_KEY = "queryCache.size";
+
+    /**
+     * property to determine the maximum number of threads used by the
+     * {@link org.apache.torque.util.LargeSelectExecutor} to execute the
+     * queries of LargeSelects.
+     */
+    public static final String LARGE_SELECT_THREADS_KEY = "largeSelect.threads";
+
+    /**
+     * property to determine the maximum number of threads of the
+     * {@link org.apache.torque.util.LargeSelectExecutor} which execute
+     * background tasks of LargeSelects, i.e. prefetches and counts.
+     */
+    public static final String LARGE_SELECT_BACKGROUND_THREADS_KEY
+            = "largeSelect.backgroundThreads";
+
+    /**
+     * property to determine within how many pages from the end of its
+     * current block a LargeSelect prefetches the adjacent block.
+     * A value of 0 disables prefetching.
+     */
+    public static final String LARGE_SELECT_PREFETCH_PAGES_KEY
+            = "largeSelect.prefetch.pages";
+
+    /**
+     * property to determine how many blocks a LargeSelect keeps in memory
+     * in addition to its current block.
+     */
+    public static final String LARGE_SELECT_PREFETCH_BLOCKS_KEY
+            = "largeSelect.prefetch.blocks";
+
+    /**
+     * property to determine how a LargeSelect determines the total number
+     * of records in parallel to its first query: none, exact or estimate.
+     */
+    public static final String LARGE_SELECT_COUNT_KEY = "largeSelect.count";
+
     /**
      * The single instance of {@link TorqueInstance} used by the
      * static API presented by this class.
@@ -36,10 +36,15 @@ import org.apache.torque.adapter.DB;
 import org.apache.torque.adapter.DBFactory;
 import org.apache.torque.dsfactory.DataSourceFactory;
 import org.apache.torque.manager.AbstractBaseManager;
+import org.apache.torque.manager.CacheStatisticsExporter;
+import org.apache.torque.manager.InvalidationBus;
 import org.apache.torque.map.DatabaseMap;
 import org.apache.torque.map.MapBuilder;
 import org.apache.torque.oid.IDBroker;
 import org.apache.torque.oid.IDGeneratorFactory;
+import org.apache.torque.util.LargeSelect;
+import org.apache.torque.util.LargeSelectExecutor;
+import org.apache.torque.util.QueryCache;
 import org.apache.torque.util.Transaction;
 import org.apache.torque.util.TransactionManager;
 import org.apache.torque.util.TransactionManagerImpl;
@@ -82,6 +87,12 @@ public class TorqueInstance
     /** A repository of Manager instances. */
     private Map managers;
 
+    /** The bus sending cache invalidations to other nodes, or null. */
+    private InvalidationBus invalidationBus = null;
+
+    /** Registers the cache statistics of the managers as MBeans, or null. */
+    private CacheStatisticsExporter statisticsExporter = null;
+
     /** Torque-specific configuration. */
     private Configuration conf;
 
@@ -156,12 +167,16 @@ public class TorqueInstance
         setConfiguration(subConf);
 
         initTransactionManager(conf);
+        initQueryCache(conf);
+        initLargeSelect(conf);
         initDefaultDbName(conf);
         initAdapters(conf);
         initDataSourceFactories(conf);
 
         // setup manager mappings
+        initStatisticsExporter(conf);
         initManagerMappings(conf);
+        initInvalidationBus(conf);
 
         isInit = true;
 
@@ -248,6 +263,88 @@ public class TorqueInstance
     }
 
 
+    /**
+     * Initializes the size of the cache for prepared statement sql.
+     *
+     * @param conf the configuration representing the torque section.
+     *        of the properties file.
+     */
+    private void initQueryCache(final Configuration conf)
+    {
+        log.debug("initQueryCache(" + conf + ")");
+
+        QueryCache.setMaxSize(conf.getInt(
+                Torque.QUERY_CACHE_SIZE_KEY,
+                QueryCache.DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Initializes the number of threads which execute the queries
+     * of LargeSelects, the prefetching of blocks and the counting of records
+     * by LargeSelects.
+     *
+     * @param conf the configuration representing the torque section.
+     *        of the properties file.
+     */
+    private void initLargeSelect(final Configuration conf)
+    {
+        log.debug("initLargeSelect(" + conf + ")");
+
+        LargeSelectExecutor.setMaxThreads(conf.getInt(
+                Torque.LARGE_SELECT_THREADS_KEY,
+                LargeSelectExecutor.DEFAULT_MAX_THREADS));
+        LargeSelectExecutor.setMaxBackgroundThreads(conf.getInt(
+                Torque.LARGE_SELECT_BACKGROUND_THREADS_KEY,
+                LargeSelectExecutor.DEFAULT_MAX_BACKGROUND_THREADS));
+        LargeSelect.setPrefetchPageDistance(conf.getInt(
+                Torque.LARGE_SELECT_PREFETCH_PAGES_KEY,
+                LargeSelect.DEFAULT_PREFETCH_PAGE_DISTANCE));
+        LargeSelect.setPrefetchBlockLimit(conf.getInt(
+                Torque.LARGE_SELECT_PREFETCH_BLOCKS_KEY,
+                LargeSelect.DEFAULT_PREFETCH_BLOCK_LIMIT));
+        LargeSelect.setCountStrategy(conf.getString(
+                Torque.LARGE_SELECT_COUNT_KEY,
+                LargeSelect.COUNT_NONE));
+    }
+
+    /**
+     * Starts the bus which distributes cache invalidations to the other
+     * nodes of a cluster, if a transport is configured.
+     *
+     * @param conf the configuration representing the torque section.
+     *        of the properties file.
+     * @throws TorqueException if the bus cannot be started.
+     */
+    private void initInvalidationBus(final Configuration conf)
+        throws TorqueException
+    {
+        log.debug("initInvalidationBus(" + conf + ")");
+
+        Configuration busConf = conf.subset(Torque.INVALIDATION_KEY);
+        invalidationBus = InvalidationBus.createBus(busConf);
+        if (invalidationBus != null)
+        {
+            invalidationBus.start(busConf);
+        }
+    }
+
+    /**
+     * Creates the exporter which registers the cache statistics of the
+     * managers as MBeans, if enabled.
+     *
+     * @param conf the configuration representing the torque section.
+     *        of the properties file.
+     */
+    private void initStatisticsExporter(final Configuration conf)
+    {
+        log.debug("initStatisticsExporter(" + conf + ")");
+
+        if (conf.getBoolean(Torque.MANAGER_JMX_KEY, false))
+        {
+            statisticsExporter = CacheStatisticsExporter.create();
+        }
+    }
+
     /**
      * Initializes the name of the default database and
      * associates the database with the name <code>DEFAULT_NAME</code>
@@ -337,6 +434,9 @@ public class TorqueInstance
                     log.debug("Adding " + adapter + " -> "
                             + handle + " as Adapter");
 
+                    database.setBindValues(c.getBoolean(
+                            handle + "." + Torque.BIND_VALUES_KEY, false));
+
                     // add Id generators
 
                     // first make sure that the dtabaseMap exists for the name
@@ -626,6 +726,10 @@ public class TorqueInstance
                     manager = (AbstractBaseManager)
                             Class.forName(className).newInstance();
                     managers.put(name, manager);
+                    if (statisticsExporter != null)
+                    {
+                        statisticsExporter.export(name, manager);
+                    }
                 }
                 catch (Exception e)
                 {
@@ -747,6 +851,26 @@ public class TorqueInstance
             }
         }
         
+        // forget the cached statements
+        QueryCache.clear();
+
+        // let the idle large select threads exit
+        LargeSelectExecutor.shutdown();
+
+        // stop distributing cache invalidations
+        if (invalidationBus != null)
+        {
+            invalidationBus.stop();
+            invalidationBus = null;
+        }
+
+        // unregister the cache statistics
+        if (statisticsExporter != null)
+        {
+            statisticsExporter.unexportAll();
+            statisticsExporter = null;
+        }
+
         // shut down the cache managers
         synchronized (managers)
         {
@@ -264,6 +264,41 @@ public abstract class AbstractDBAdapter implements DB
         return false;
     }
 
+    /**
+     * Whether the database can return column values of the rows changed
+     * by an <code>UPDATE</code> statement, using
+     * <code>UPDATE ... RETURNING column</code>.
+     *
+     * As most databases do not support this, this implementation
+     * returns false. This behaviour may be overwritten in subclasses.
+     *
+     * @return true if <code>UPDATE ... RETURNING</code> is supported,
+     *         false otherwise.
+     */
+    public boolean supportsUpdateReturning()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the number of rows which the database estimates a query
+     * to return.
+     *
+     * As there is no standard way to obtain the estimate, this
+     * implementation returns -1. This behaviour may be overwritten
+     * in subclasses.
+     *
+     * @param con The JDBC connection to use.
+     * @param query The sql of the query.
+     * @return -1.
+     * @throws SQLException if the estimate could not be obtained.
+     */
+    public int getEstimatedRowCount(Connection con, String query)
+            throws SQLException
+    {
+        return -1;
+    }
+
     /**
      * Whether an escape clause in like should be used.
      * Example : select * from AUTHOR where AUTHOR.NAME like '\_%' ESCAPE '\';
@@ -261,6 +261,30 @@ public interface DB extends Serializable, IDMethod
      */
     boolean useIlike();
 
+    /**
+     * Whether the database can return column values of the rows changed
+     * by an <code>UPDATE</code> statement, using
+     * <code>UPDATE ... RETURNING column</code>.
+     *
+     * @return true if <code>UPDATE ... RETURNING</code> is supported,
+     *         false otherwise.
+     */
+    boolean supportsUpdateReturning();
+
+    /**
+     * Returns the number of rows which the database estimates a query
+     * to return, e.g. from the statistics used by its query planner,
+     * without executing the query.
+     *
+     * @param con The JDBC connection to use.
+     * @param query The sql of the query.
+     * @return the estimated number of rows, or -1 if the database
+     *         cannot estimate it.
+     * @throws SQLException if the estimate could not be obtained.
+     */
+    int getEstimatedRowCount(Connection con, String query)
+            throws SQLException;
+
     /**
      * Whether an escape clause in like should be used.
      * Example : select * from AUTHOR where AUTHOR.NAME like '\_%' ESCAPE '\';
@@ -20,7 +20,9 @@ package org.apache.torque.adapter;
  */
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -215,4 +217,77 @@ public class DBPostgres extends AbstractDBAdapter
     {
         return true;
     }
+
+    /**
+     * Whether the database can return column values of the rows changed
+     * by an <code>UPDATE</code> statement.
+     *
+     * PostgreSQL supports <code>UPDATE ... RETURNING</code> since 8.2,
+     * so this implementation returns true.
+     *
+     * @return true.
+     */
+    public boolean supportsUpdateReturning()
+    {
+        return true;
+    }
+
+    /**
+     * Returns the number of rows which the database estimates a query
+     * to return.
+     *
+     * This implementation reads the estimate of the topmost node of the
+     * plan returned by <code>EXPLAIN</code>, e.g. 2550 from
+     * <code>Seq Scan on book  (cost=0.00..35.50 rows=2550 width=4)</code>.
+     *
+     * @param con The JDBC connection to use.
+     * @param query The sql of the query.
+     * @return the estimated number of rows, or -1 if the plan does not
+     *         contain an estimate.
+     * @throws SQLException if the query could not be explained.
+     */
+    public int getEstimatedRowCount(Connection con, String query)
+            throws SQLException
+    {
+        String plan;
+        Statement statement = con.createStatement();
+        try
+        {
+            ResultSet resultSet = statement.executeQuery("EXPLAIN " + query);
+            try
+            {
+                if (!resultSet.next())
+                {
+                    return -1;
+                }
+                plan = resultSet.getString(1);
+            }
+            finally
+            {
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+
+        int start = (plan == null) ? -1 : plan.indexOf(" rows=");
+        if (start == -1)
+        {
+            return -1;
+        }
+        start += " rows=".length();
+        int end = start;
+        while (end < plan.length() && Character.isDigit(plan.charAt(end)))
+        {
+            end++;
+        }
+        if (end == start)
+        {
+            return -1;
+        }
+        long rows = Long.parseLong(plan.substring(start, end));
+        return (int) Math.min(rows, Integer.MAX_VALUE);
+    }
 }
@@ -25,18 +25,23 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.Serializable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 
 import org.apache.commons.collections.FastArrayList;
+import org.apache.commons.configuration.Configuration;
 import org.apache.jcs.JCS;
 import org.apache.jcs.access.GroupCacheAccess;
 import org.apache.jcs.access.exception.CacheException;
 
+import org.apache.torque.NoRowsException;
 import org.apache.torque.Torque;
 import org.apache.torque.TorqueException;
+import org.apache.torque.om.BaseObject;
 import org.apache.torque.om.ObjectKey;
 import org.apache.torque.om.Persistent;
 
@@ -51,17 +56,94 @@ import org.apache.commons.logging.LogFactory;
  * @version $Id$
  */
 public abstract class AbstractBaseManager
-    implements Serializable
+    implements Serializable, TableChangeListener
 {
     /** the log */
     protected static final Log log = LogFactory.getLog(AbstractBaseManager.class);
 
-    /** used to cache the om objects. cache is set by the region property */
+    /**
+     * The name of the property selecting the backend of the om cache,
+     * either <code>jcs</code>, <code>striped</code> or the name
+     * of a class implementing {@link ManagerCache}.
+     */
+    public static final String CACHE_BACKEND = "backend";
+
+    /** The name of the property for the size of a striped om cache. */
+    public static final String CACHE_MAX_SIZE = "maxSize";
+
+    /** The name of the property for the stripe count of a striped cache. */
+    public static final String CACHE_STRIPES = "stripes";
+
+    /**
+     * The name of the property limiting the number of ids passed to one
+     * call of {@link #retrieveStoredOMs(List)}. A value of 0 means
+     * no limit.
+     */
+    public static final String MAX_IN_LIST_SIZE = "maxInListSize";
+
+    /**
+     * The default maximum number of ids passed to one call of
+     * retrieveStoredOMs. Some databases, e.g. Oracle, do not accept
+     * more than 1000 values in an IN clause.
+     */
+    public static final int DEFAULT_MAX_IN_LIST_SIZE = 1000;
+
+    /**
+     * The name of the property for the time to live of cached om objects,
+     * in seconds. A value of 0 means that the objects do not expire.
+     */
+    public static final String CACHE_TIME_TO_LIVE = "ttl";
+
+    /**
+     * The name of the property for how many seconds before their expiry
+     * cached om objects which are read are reloaded in the background.
+     * A value of 0 disables refreshing.
+     */
+    public static final String CACHE_REFRESH_AHEAD = "refreshAhead";
+
+    /**
+     * The name of the property determining whether saved objects are put
+     * into the cache, or removed from it.
+     */
+    public static final String CACHE_WRITE_THROUGH = "writeThrough";
+
+    /**
+     * The name of the property for how many seconds a manager remembers
+     * that no object exists for a primary key. A value of 0 disables
+     * negative caching.
+     */
+    public static final String NEGATIVE_TIME_TO_LIVE = "negativeTtl";
+
+    /** The name of the property for the number of remembered missing keys. */
+    public static final String NEGATIVE_MAX_SIZE = "negativeMaxSize";
+
+    /** The default number of remembered missing keys. */
+    public static final int DEFAULT_NEGATIVE_MAX_SIZE = 1000;
+
+    /** The value of CACHE_BACKEND selecting the JCS backend. */
+    public static final String JCS_BACKEND = "jcs";
+
+    /** The value of CACHE_BACKEND selecting the striped LRU backend. */
+    public static final String STRIPED_BACKEND = "striped";
+
+    /**
+     * the JCS region of the manager, used for the method results and,
+     * by default, for the om objects. cache is set by the region property
+     */
     protected transient GroupCacheAccess cache;
 
+    /** used to cache the om objects. set by the region property */
+    protected transient ManagerCache objectCache;
+
     /** method results cache */
     protected MethodResultCache mrCache;
 
+    /** the keys for which no om exists, or null if not remembered */
+    private transient NegativeResultCache negativeResults;
+
+    /** the statistics of the om cache */
+    private transient CacheStatistics statistics = new ObjectStatistics();
+
     /** the class that the service will instantiate */
     private Class omClass;
 
@@ -71,6 +153,31 @@ public abstract class AbstractBaseManager
 
     private boolean isNew = true;
 
+    /** whether saved objects are put into the cache or removed from it */
+    private boolean writeThrough = true;
+
+    /** the maximum number of ids passed to one call of retrieveStoredOMs */
+    private int maxInListSize = DEFAULT_MAX_IN_LIST_SIZE;
+
+    /**
+     * the objects which are currently being retrieved by getOMs,
+     * keyed by ObjectKey, values are PendingLoads
+     */
+    private transient Map pendingLoads = new HashMap();
+
+    /**
+     * the table for whose changes the manager is registered
+     * at the TableChangeNotifier, or null
+     */
+    private transient String changeTable;
+
+    /**
+     * the method groups whose first argument is the primary key of
+     * the om, as Object[] { instanceOrClass, method }. The list is not
+     * modified after it is published.
+     */
+    private volatile List keyedMethods = new ArrayList();
+
     protected Map validFields;
     protected Map listenersMap = new HashMap();
 
@@ -135,6 +242,7 @@ public abstract class AbstractBaseManager
         {
             throw new TorqueException("Could not load " + getClassName());
         }
+        registerForTableChanges();
     }
 
 
@@ -165,17 +273,56 @@ public abstract class AbstractBaseManager
         throws TorqueException
     {
         Persistent om = null;
+        NegativeResultCache missing = null;
         if (fromCache)
         {
             om = cacheGet(key);
+            missing = negativeResults;
         }
 
         if (om == null)
         {
-            om = retrieveStoredOM(key);
-            if (fromCache)
+            long generation = 0;
+            if (missing != null)
             {
-                putInstanceImpl(om);
+                int result = missing.get(key);
+                if (result == NegativeResultCache.NULL_RESULT)
+                {
+                    return null;
+                }
+                if (result == NegativeResultCache.NO_ROW)
+                {
+                    throw new NoRowsException("Failed to select a row.");
+                }
+                generation = missing.getGeneration();
+            }
+            long start = System.currentTimeMillis();
+            try
+            {
+                om = retrieveStoredOM(key);
+            }
+            catch (NoRowsException e)
+            {
+                if (missing != null)
+                {
+                    missing.put(key, false, generation);
+                }
+                throw e;
+            }
+            finally
+            {
+                statistics.recordLoad(System.currentTimeMillis() - start);
+            }
+            if (om == null)
+            {
+                if (missing != null)
+                {
+                    missing.put(key, true, generation);
+                }
+            }
+            else if (fromCache)
+            {
+                putInstanceImpl(om.getPrimaryKey(), om);
             }
         }
 
@@ -191,12 +338,10 @@ public abstract class AbstractBaseManager
     protected Persistent cacheGet(Serializable key)
     {
         Persistent om = null;
-        if (cache != null)
+        if (objectCache != null)
         {
-            synchronized (this)
-            {
-                om = (Persistent) cache.get(key);
-            }
+            om = (Persistent) objectCache.get(key);
+            statistics.recordLookup(om != null);
         }
         return om;
     }
@@ -210,7 +355,16 @@ public abstract class AbstractBaseManager
     protected void clearImpl()
         throws TorqueException
     {
-        if (cache != null)
+        if (objectCache != null)
+        {
+            objectCache.clear();
+        }
+        if (negativeResults != null)
+        {
+            negativeResults.clear();
+        }
+        // the JCS region also holds the method results
+        if (cache != null && !(objectCache instanceof JCSManagerCache))
         {
             try
             {
@@ -231,6 +385,17 @@ public abstract class AbstractBaseManager
      */
     public void dispose()
     {
+        if (changeTable != null)
+        {
+            TableChangeNotifier.removeListener(changeTable, this);
+            changeTable = null;
+        }
+        if (objectCache != null)
+        {
+            objectCache.dispose();
+            objectCache = null;
+        }
+        negativeResults = null;
         if (cache != null)
         {
             cache.dispose();
@@ -250,28 +415,20 @@ public abstract class AbstractBaseManager
         throws TorqueException
     {
         Persistent oldOm = null;
-        if (cache != null)
+        if (objectCache != null)
         {
-            try
-            {
-                synchronized (this)
-                {
-                    oldOm = (Persistent) cache.get(key);
-                    cache.remove(key);
-                }
-            }
-            catch (CacheException ce)
-            {
-                throw new TorqueException
-                    ("Could not remove from cache due to internal JCS error",
-                     ce);
-            }
+            oldOm = (Persistent) objectCache.remove(key);
         }
         return oldOm;
     }
 
     /**
-     * Put an object into the cache
+     * Put an object into the cache. This method is used by
+     * om objects which are saved. If the write-through policy of the
+     * manager is disabled, i.e.
+     * <code>torque.manager.cache.writeThrough = false</code>,
+     * the object is removed from the cache instead, so that it is
+     * retrieved from persistent storage on the next access.
      *
      * @param om the object
      * @return if an object with the same key already is in the cache
@@ -283,9 +440,45 @@ public abstract class AbstractBaseManager
         throws TorqueException
     {
         ObjectKey key = om.getPrimaryKey();
+        if (negativeResults != null)
+        {
+            // the object may just have been inserted
+            negativeResults.invalidate(key);
+        }
+        if (!writeThrough)
+        {
+            return removeInstanceImpl(key);
+        }
         return putInstanceImpl(key, om);
     }
 
+    /**
+     * Retrieves an object from persistent storage and replaces the cached
+     * instance. Used for refreshing cached objects before they expire.
+     *
+     * @param key the primary key of the object
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    protected void refreshInstanceImpl(ObjectKey key)
+        throws TorqueException
+    {
+        long start = System.currentTimeMillis();
+        Persistent om;
+        try
+        {
+            om = retrieveStoredOM(key);
+        }
+        finally
+        {
+            statistics.recordLoad(System.currentTimeMillis() - start);
+        }
+        if (om != null)
+        {
+            putInstanceImpl(key, om);
+        }
+    }
+
     /**
      * Put an object into the cache
      *
@@ -306,22 +499,14 @@ public abstract class AbstractBaseManager
                 + getOMClass().getName() + " objects");
         }
 
+        if (negativeResults != null)
+        {
+            negativeResults.remove(key);
+        }
         Persistent oldOm = null;
-        if (cache != null)
+        if (objectCache != null)
         {
-            try
-            {
-                synchronized (this)
-                {
-                    oldOm = (Persistent) cache.get(key);
-                    cache.put(key, om);
-                }
-            }
-            catch (CacheException ce)
-            {
-                throw new TorqueException
-                    ("Could not cache due to internal JCS error", ce);
-            }
+            oldOm = (Persistent) objectCache.put(key, om);
         }
         return oldOm;
     }
@@ -367,8 +552,16 @@ public abstract class AbstractBaseManager
 
     /**
      * Gets a list of om's based on id's.
+     * The om's which are not cached are retrieved in chunks of at most
+     * <code>torque.manager.cache.maxInListSize</code> ids. If fromCache
+     * is true and another thread is already retrieving some of them,
+     * the result of that retrieval is used. Ids which are not found
+     * remain in the returned list; if negative caching is enabled,
+     * they are not queried again until the negative entry expires.
      *
      * @param ids a <code>List</code> of <code>ObjectKey</code>'s
+     * @param fromCache true if the om's should be retrieved from cache
+     *        and retrieved om's should be added to the cache
      * @return a <code>List</code> value
      * @throws TorqueException Any exceptions caught during processing will be
      *         rethrown wrapped into a TorqueException.
@@ -382,6 +575,13 @@ public abstract class AbstractBaseManager
             // start a new list where we will replace the id's with om's
             oms = new ArrayList(ids);
             List newIds = new ArrayList(ids.size());
+            Set newIdSet = new HashSet();
+            NegativeResultCache missing = fromCache ? negativeResults : null;
+            long generation = 0;
+            if (missing != null)
+            {
+                generation = missing.getGeneration();
+            }
             for (int i = 0; i < ids.size(); i++)
             {
                 ObjectKey key = (ObjectKey) ids.get(i);
@@ -392,7 +592,15 @@ public abstract class AbstractBaseManager
                 }
                 if (om == null)
                 {
-                    newIds.add(key);
+                    if (missing != null
+                            && missing.get(key) != NegativeResultCache.UNKNOWN)
+                    {
+                        continue;
+                    }
+                    if (newIdSet.add(key))
+                    {
+                        newIds.add(key);
+                    }
                 }
                 else
                 {
@@ -402,26 +610,35 @@ public abstract class AbstractBaseManager
 
             if (newIds.size() > 0)
             {
-                List newOms = retrieveStoredOMs(newIds);
+                Map newOms;
+                if (fromCache)
+                {
+                    newOms = retrieveSharedOMs(newIds);
+                }
+                else
+                {
+                    newOms = retrieveStoredOMsByKey(newIds);
+                }
+                if (missing != null)
+                {
+                    for (Iterator it = newIds.iterator(); it.hasNext();)
+                    {
+                        ObjectKey key = (ObjectKey) it.next();
+                        if (!newOms.containsKey(key))
+                        {
+                            missing.put(key, false, generation);
+                        }
+                    }
+                }
+                // replace the id's with the om's
                 for (int i = 0; i < oms.size(); i++)
                 {
                     if (oms.get(i) instanceof ObjectKey)
                     {
-                        for (int j = newOms.size() - 1; j >= 0; j--)
+                        Persistent om = (Persistent) newOms.get(oms.get(i));
+                        if (om != null)
                         {
-                            Persistent om = (Persistent) newOms.get(j);
-                            if (om.getPrimaryKey().equals(oms.get(i)))
-                            {
-                                // replace the id with the om and add the om
-                                // to the cache
-                                oms.set(i, om);
-                                newOms.remove(j);
-                                if (fromCache)
-                                {
-                                    putInstanceImpl(om);
-                                }
-                                break;
-                            }
+                            oms.set(i, om);
                         }
                     }
                 }
@@ -430,6 +647,142 @@ public abstract class AbstractBaseManager
         return oms;
     }
 
+    /**
+     * Retrieves om's from persistent storage and adds them to the cache.
+     * If another thread is already retrieving some of the om's,
+     * this thread waits for their retrieval instead of querying them again.
+     *
+     * @param ids the <code>ObjectKey</code>'s of the om's, without
+     *        duplicates.
+     * @return the retrieved om's, keyed by their primary key.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    private Map retrieveSharedOMs(List ids)
+        throws TorqueException
+    {
+        List ownIds = new ArrayList(ids.size());
+        Map ownLoads = new HashMap();
+        Map otherLoads = new HashMap();
+        synchronized (pendingLoads)
+        {
+            for (Iterator it = ids.iterator(); it.hasNext();)
+            {
+                Object key = it.next();
+                PendingLoad load = (PendingLoad) pendingLoads.get(key);
+                if (load == null)
+                {
+                    load = new PendingLoad();
+                    pendingLoads.put(key, load);
+                    ownIds.add(key);
+                    ownLoads.put(key, load);
+                }
+                else
+                {
+                    otherLoads.put(key, load);
+                }
+            }
+        }
+
+        Map result = new HashMap();
+        boolean failed = true;
+        try
+        {
+            Map newOms = retrieveStoredOMsByKey(ownIds);
+            for (Iterator it = newOms.values().iterator(); it.hasNext();)
+            {
+                Persistent om = (Persistent) it.next();
+                putInstanceImpl(om.getPrimaryKey(), om);
+            }
+            result.putAll(newOms);
+            failed = false;
+        }
+        finally
+        {
+            synchronized (pendingLoads)
+            {
+                pendingLoads.keySet().removeAll(ownIds);
+            }
+            for (Iterator it = ownLoads.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                ((PendingLoad) entry.getValue()).complete(
+                        (Persistent) result.get(entry.getKey()), failed);
+            }
+        }
+
+        // the own loads are completed before waiting for other threads,
+        // so threads cannot wait for each other
+        List retryIds = new ArrayList();
+        for (Iterator it = otherLoads.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) it.next();
+            PendingLoad load = (PendingLoad) entry.getValue();
+            if (load.await())
+            {
+                if (load.getOM() != null)
+                {
+                    result.put(entry.getKey(), load.getOM());
+                }
+            }
+            else
+            {
+                // the other thread failed, try again ourselves
+                retryIds.add(entry.getKey());
+            }
+        }
+        if (retryIds.size() > 0)
+        {
+            Map newOms = retrieveStoredOMsByKey(retryIds);
+            for (Iterator it = newOms.values().iterator(); it.hasNext();)
+            {
+                Persistent om = (Persistent) it.next();
+                putInstanceImpl(om.getPrimaryKey(), om);
+            }
+            result.putAll(newOms);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves om's from persistent storage. If there are more ids
+     * than the configured maximum IN list size, retrieveStoredOMs
+     * is called several times.
+     *
+     * @param ids the <code>ObjectKey</code>'s of the om's.
+     * @return the retrieved om's, keyed by their primary key.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    private Map retrieveStoredOMsByKey(List ids)
+        throws TorqueException
+    {
+        Map result = new HashMap();
+        int chunkSize = (maxInListSize > 0) ? maxInListSize : ids.size();
+        for (int start = 0; start < ids.size(); start += chunkSize)
+        {
+            List chunk = new ArrayList(ids.subList(
+                    start, Math.min(start + chunkSize, ids.size())));
+            long chunkStart = System.currentTimeMillis();
+            List newOms;
+            try
+            {
+                newOms = retrieveStoredOMs(chunk);
+            }
+            finally
+            {
+                statistics.recordLoad(
+                        System.currentTimeMillis() - chunkStart);
+            }
+            for (Iterator it = newOms.iterator(); it.hasNext();)
+            {
+                Persistent om = (Persistent) it.next();
+                result.put(om.getPrimaryKey(), om);
+            }
+        }
+        return result;
+    }
+
     /**
      * Gets a list of om's based on id's.
      * This method must be implemented in the drived class
@@ -469,6 +822,42 @@ public abstract class AbstractBaseManager
             {
                 cache = JCS.getInstance(getRegion());
                 mrCache = new MethodResultCache(cache);
+                objectCache = createObjectCache();
+                if (objectCache instanceof StripedLRUManagerCache)
+                {
+                    ((StripedLRUManagerCache) objectCache)
+                            .setStatistics(statistics);
+                }
+                int timeToLive = getCacheProperty(CACHE_TIME_TO_LIVE, 0);
+                if (objectCache != null && timeToLive > 0)
+                {
+                    int refreshAhead = Math.min(
+                            getCacheProperty(CACHE_REFRESH_AHEAD, 0),
+                            timeToLive);
+                    objectCache = new ExpiringManagerCache(
+                            objectCache,
+                            timeToLive * 1000L,
+                            refreshAhead * 1000L,
+                            this,
+                            statistics);
+                }
+                int negativeTimeToLive
+                        = getCacheProperty(NEGATIVE_TIME_TO_LIVE, 0);
+                if (negativeTimeToLive > 0)
+                {
+                    negativeResults = new NegativeResultCache(
+                            getCacheProperty(
+                                NEGATIVE_MAX_SIZE,
+                                DEFAULT_NEGATIVE_MAX_SIZE),
+                            getCacheProperty(
+                                CACHE_STRIPES,
+                                StripedLRUManagerCache.DEFAULT_STRIPES),
+                            negativeTimeToLive * 1000L);
+                }
+                else
+                {
+                    negativeResults = null;
+                }
             }
             else
             {
@@ -479,6 +868,10 @@ public abstract class AbstractBaseManager
         {
             throw new TorqueException("Cache could not be initialized", e);
         }
+        maxInListSize = getCacheProperty(
+                MAX_IN_LIST_SIZE, DEFAULT_MAX_IN_LIST_SIZE);
+        writeThrough = getCacheProperty(CACHE_WRITE_THROUGH, true);
+        registerForTableChanges();
 
         if (cache == null)
         {
@@ -486,6 +879,329 @@ public abstract class AbstractBaseManager
         }
     }
 
+    /**
+     * Creates the cache for the om objects, as configured by the
+     * <code>torque.manager.cache.&lt;region&gt;.backend</code> or
+     * <code>torque.manager.cache.backend</code> property.
+     * Subclasses may override this method to use another backend.
+     *
+     * @return the cache for the om objects.
+     * @throws TorqueException if the configured backend
+     *         cannot be created.
+     */
+    protected ManagerCache createObjectCache()
+        throws TorqueException
+    {
+        String backend = getCacheProperty(CACHE_BACKEND);
+        if (backend == null || JCS_BACKEND.equals(backend))
+        {
+            return (cache == null) ? null : new JCSManagerCache(cache);
+        }
+        if (STRIPED_BACKEND.equals(backend))
+        {
+            return new StripedLRUManagerCache(
+                    getCacheProperty(
+                        CACHE_MAX_SIZE,
+                        StripedLRUManagerCache.DEFAULT_MAX_SIZE),
+                    getCacheProperty(
+                        CACHE_STRIPES,
+                        StripedLRUManagerCache.DEFAULT_STRIPES));
+        }
+        try
+        {
+            return (ManagerCache) Class.forName(backend).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new TorqueException("Could not create cache backend "
+                    + backend + " for region " + getRegion(), e);
+        }
+    }
+
+    /**
+     * Evicts changed objects from the cache and removes the cached
+     * method results of this manager. Called by the
+     * {@link TableChangeNotifier} if the table of the om class is changed
+     * through BasePeer.
+     *
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known, in which case all
+     *        cached objects are evicted.
+     */
+    public void tableChanged(String dbName, String tableName, List keys)
+    {
+        try
+        {
+            statistics.recordInvalidations(
+                    (keys == null) ? 1 : keys.size());
+            if (keys == null)
+            {
+                if (objectCache != null)
+                {
+                    objectCache.clear();
+                }
+                if (negativeResults != null)
+                {
+                    negativeResults.clear();
+                }
+            }
+            else
+            {
+                for (Iterator it = keys.iterator(); it.hasNext();)
+                {
+                    Serializable key = (Serializable) it.next();
+                    removeInstanceImpl(key);
+                    if (negativeResults != null)
+                    {
+                        negativeResults.invalidate(key);
+                    }
+                }
+            }
+        }
+        catch (TorqueException e)
+        {
+            log.error("Could not evict changed objects of table "
+                    + tableName + " from the cache", e);
+        }
+        if (mrCache != null)
+        {
+            removeMethodResults(keys);
+        }
+    }
+
+    /**
+     * Removes the method results which may depend on changed rows.
+     * If the changed keys are known and method groups were declared by
+     * {@link #addKeyedMethod(Serializable, String)}, only the results of
+     * these groups whose first argument is a changed key are removed;
+     * the results of all other methods, e.g. lists or aggregates,
+     * are removed completely. If the keys are not known, all method
+     * results of this manager are removed.
+     * Managers may override this method to map the changed keys
+     * to their method results.
+     *
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known.
+     */
+    protected void removeMethodResults(List keys)
+    {
+        List methods = keyedMethods;
+        if (keys == null || methods.isEmpty())
+        {
+            mrCache.removeAll();
+            return;
+        }
+        Set keyedGroups = new HashSet();
+        for (Iterator methodIt = methods.iterator(); methodIt.hasNext();)
+        {
+            Object[] method = (Object[]) methodIt.next();
+            keyedGroups.add(MethodCacheKey.getGroupKey(
+                    (Serializable) method[0], (String) method[1]));
+            for (Iterator it = keys.iterator(); it.hasNext();)
+            {
+                mrCache.removeAll(
+                        (Serializable) method[0],
+                        (String) method[1],
+                        new Serializable[] {(Serializable) it.next()});
+            }
+        }
+        mrCache.removeAllExcept(keyedGroups);
+    }
+
+    /**
+     * Declares that the results of a method depend only on the row whose
+     * primary key is passed as first argument, so that a change of rows
+     * removes only the results for their keys, see
+     * {@link #removeMethodResults(List)}. The results of undeclared
+     * methods are still removed on every change.
+     *
+     * @param instanceOrClass the Object on which the method is invoked.  if
+     * the method is static, a String representing the class name is used.
+     * @param method the method name
+     */
+    protected synchronized void addKeyedMethod(
+            Serializable instanceOrClass,
+            String method)
+    {
+        List methods = new ArrayList(keyedMethods);
+        methods.add(new Object[] {instanceOrClass, method});
+        keyedMethods = methods;
+    }
+
+    /**
+     * Returns the statistics of the om cache of this manager.
+     * Lookups and invalidations are only counted if om's are cached;
+     * retrievals from persistent storage are always counted.
+     * The statistics of the method result cache are available from
+     * {@link MethodResultCache#getStatistics()}.
+     *
+     * @return the statistics, not null.
+     */
+    public CacheStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Returns the number of cached om's, if the backend of the om cache
+     * can determine it.
+     *
+     * @return the number of cached om's, or -1 if it is not known.
+     */
+    private int getObjectCacheSize()
+    {
+        ManagerCache backend = objectCache;
+        if (backend instanceof ExpiringManagerCache)
+        {
+            backend = ((ExpiringManagerCache) backend).getDelegate();
+        }
+        if (backend instanceof StripedLRUManagerCache)
+        {
+            return ((StripedLRUManagerCache) backend).size();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name of the table containing the om's of this manager,
+     * for registering at the {@link TableChangeNotifier}. The default
+     * implementation asks an om instance for its TableMap.
+     *
+     * @return the name of the table, or null if it cannot be determined,
+     *         in which case the manager is not notified about changes.
+     */
+    protected String getTableName()
+    {
+        if (getOMClass() == null
+                || !BaseObject.class.isAssignableFrom(getOMClass()))
+        {
+            return null;
+        }
+        try
+        {
+            return ((BaseObject) getOMInstance()).getTableMap().getName();
+        }
+        catch (Exception e)
+        {
+            log.debug("Could not determine the table of " + getClassName()
+                    + ", changes will not evict cached objects", e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers this manager at the TableChangeNotifier, if caching
+     * is enabled and the table of the om class is known.
+     */
+    private void registerForTableChanges()
+    {
+        if (changeTable != null
+                || (objectCache == null && !isMethodResultCacheEnabled()))
+        {
+            return;
+        }
+        String tableName = getTableName();
+        if (tableName != null)
+        {
+            changeTable = tableName;
+            TableChangeNotifier.addListener(tableName, this);
+        }
+    }
+
+    /**
+     * @return whether method results are really cached.
+     */
+    private boolean isMethodResultCacheEnabled()
+    {
+        return mrCache != null && !(mrCache instanceof NoOpMethodResultCache);
+    }
+
+    /**
+     * Reads a cache property of this manager. A property
+     * <code>torque.manager.cache.&lt;region&gt;.&lt;name&gt;</code>
+     * takes precedence over <code>torque.manager.cache.&lt;name&gt;</code>.
+     *
+     * @param name the name of the property.
+     * @return the value of the property, or null if it is not set.
+     */
+    protected String getCacheProperty(String name)
+    {
+        Configuration conf = Torque.getConfiguration();
+        String value = null;
+        if (getRegion() != null)
+        {
+            value = conf.getString(
+                    Torque.MANAGER_CACHE_PREFIX + getRegion() + "." + name);
+        }
+        if (value == null)
+        {
+            value = conf.getString(Torque.MANAGER_CACHE_PREFIX + name);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an integer cache property of this manager,
+     * see {@link #getCacheProperty(String)}.
+     *
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     * @throws TorqueException if the property is not an integer.
+     */
+    protected int getCacheProperty(String name, int defaultValue)
+        throws TorqueException
+    {
+        String value = getCacheProperty(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new TorqueException("Cache property " + name
+                    + " of region " + getRegion()
+                    + " is not an integer: " + value, e);
+        }
+    }
+
+    /**
+     * Reads a boolean cache property of this manager,
+     * see {@link #getCacheProperty(String)}.
+     *
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     * @throws TorqueException if the property is neither true nor false.
+     */
+    protected boolean getCacheProperty(String name, boolean defaultValue)
+        throws TorqueException
+    {
+        String value = getCacheProperty(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        value = value.trim();
+        if ("true".equalsIgnoreCase(value))
+        {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value))
+        {
+            return false;
+        }
+        throw new TorqueException("Cache property " + name
+                + " of region " + getRegion()
+                + " is not a boolean: " + value);
+    }
+
     /**
      * @return The cache instance.
      */
@@ -646,6 +1362,8 @@ public abstract class AbstractBaseManager
         throws IOException, ClassNotFoundException
     {
         in.defaultReadObject();
+        pendingLoads = new HashMap();
+        statistics = new ObjectStatistics();
         // initialize the cache
         try
         {
@@ -660,4 +1378,97 @@ public abstract class AbstractBaseManager
                       + region + "' after deserialization");
         }
     }
+
+    /**
+     * The statistics of the om cache, named after the region.
+     */
+    private final class ObjectStatistics extends CacheStatistics
+    {
+        /**
+         * Creates the statistics.
+         */
+        ObjectStatistics()
+        {
+            super(null);
+        }
+
+        /**
+         * @see CacheStatisticsMBean#getName()
+         */
+        public String getName()
+        {
+            return getRegion();
+        }
+
+        /**
+         * @see CacheStatisticsMBean#getSize()
+         */
+        public int getSize()
+        {
+            return getObjectCacheSize();
+        }
+    }
+
+    /**
+     * The retrieval of an om by getOMs, which other threads
+     * requesting the same om can wait for.
+     */
+    private static final class PendingLoad
+    {
+        /** whether the retrieval has finished */
+        private boolean done = false;
+
+        /** whether the retrieval has failed */
+        private boolean failed = false;
+
+        /** the retrieved om, or null if it was not found */
+        private Persistent om;
+
+        /**
+         * Marks the retrieval as finished and wakes up waiting threads.
+         *
+         * @param om the retrieved om, or null if it was not found.
+         * @param failed whether the retrieval has failed.
+         */
+        public synchronized void complete(Persistent om, boolean failed)
+        {
+            this.om = om;
+            this.failed = failed;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the retrieval is finished.
+         *
+         * @return true if the retrieval was successful, false if it has
+         *         failed or the waiting thread was interrupted.
+         */
+        public synchronized boolean await()
+        {
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !failed;
+        }
+
+        /**
+         * Returns the retrieved om.
+         *
+         * @return the retrieved om, or null if it was not found.
+         */
+        public synchronized Persistent getOM()
+        {
+            return om;
+        }
+    }
 }
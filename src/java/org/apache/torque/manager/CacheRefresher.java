@@ -0,0 +1,236 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.torque.om.ObjectKey;
+
+/**
+ * Reloads cached objects in the background before they expire,
+ * see {@link ExpiringManagerCache}. All managers share a single daemon
+ * thread, which is started when the first refresh is requested.
+ * Requests for an object which is already waiting for its refresh are
+ * ignored, and at most {@link #MAX_PENDING} requests are queued; further
+ * requests are dropped, and their objects expire as usual.
+ *
+ * @version $Id$
+ */
+final class CacheRefresher
+{
+    /** The maximum number of pending refreshes. */
+    static final int MAX_PENDING = 10000;
+
+    /** The log. */
+    private static Log log = LogFactory.getLog(CacheRefresher.class);
+
+    /** The pending refreshes, in order. Also used as lock. */
+    private static LinkedList queue = new LinkedList();
+
+    /** The pending refreshes, for detecting duplicate requests. */
+    private static Set pending = new HashSet();
+
+    /** The refresh thread, or null if it is not running. */
+    private static Thread thread = null;
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private CacheRefresher()
+    {
+    }
+
+    /**
+     * Requests that a cached object is reloaded in the background.
+     *
+     * @param manager the manager which reloads the object.
+     * @param key the cache key of the object.
+     */
+    static void refresh(AbstractBaseManager manager, Serializable key)
+    {
+        if (!(key instanceof ObjectKey))
+        {
+            return;
+        }
+        Request request = new Request(manager, (ObjectKey) key);
+        synchronized (queue)
+        {
+            if (pending.contains(request))
+            {
+                return;
+            }
+            if (queue.size() >= MAX_PENDING)
+            {
+                log.debug("Too many pending refreshes, not refreshing "
+                        + key + " of " + manager.getClassName());
+                return;
+            }
+            queue.addLast(request);
+            pending.add(request);
+            if (thread == null)
+            {
+                startThread();
+            }
+            queue.notify();
+        }
+    }
+
+    /**
+     * Returns the number of pending refreshes.
+     *
+     * @return the number of refreshes which have not been started yet.
+     */
+    static int getPendingCount()
+    {
+        synchronized (queue)
+        {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Starts the refresh thread. Must be called while holding the lock
+     * on the queue.
+     */
+    private static void startThread()
+    {
+        thread = new Thread(new Worker(), "Torque cache refresher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Processes the pending refreshes.
+     */
+    private static final class Worker implements Runnable
+    {
+        /**
+         * Reloads the requested objects, waiting for requests
+         * if there are none.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                Request request;
+                synchronized (queue)
+                {
+                    while (queue.isEmpty())
+                    {
+                        try
+                        {
+                            queue.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // ignore
+                        }
+                    }
+                    request = (Request) queue.removeFirst();
+                    pending.remove(request);
+                }
+
+                boolean completed = false;
+                try
+                {
+                    request.manager.refreshInstanceImpl(request.key);
+                    completed = true;
+                }
+                catch (Exception e)
+                {
+                    log.warn("Could not refresh cached object " + request.key
+                            + " of " + request.manager.getClassName()
+                            + ", it will expire", e);
+                    completed = true;
+                }
+                finally
+                {
+                    if (!completed)
+                    {
+                        // an Error terminates this thread; replace it
+                        // so that the pending refreshes are not stranded
+                        synchronized (queue)
+                        {
+                            thread = null;
+                            if (!queue.isEmpty())
+                            {
+                                startThread();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A refresh of an object by a manager.
+     */
+    private static final class Request
+    {
+        /** The manager which reloads the object. */
+        private AbstractBaseManager manager;
+
+        /** The primary key of the object. */
+        private ObjectKey key;
+
+        /**
+         * Creates a request.
+         *
+         * @param manager the manager which reloads the object.
+         * @param key the primary key of the object.
+         */
+        Request(AbstractBaseManager manager, ObjectKey key)
+        {
+            this.manager = manager;
+            this.key = key;
+        }
+
+        /**
+         * Requests are equal if the same manager refreshes equal keys.
+         *
+         * @see Object#equals(Object)
+         */
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Request))
+            {
+                return false;
+            }
+            Request request = (Request) other;
+            return manager == request.manager && key.equals(request.key);
+        }
+
+        /**
+         * @see Object#hashCode()
+         */
+        public int hashCode()
+        {
+            return System.identityHashCode(manager) * 31 + key.hashCode();
+        }
+    }
+}
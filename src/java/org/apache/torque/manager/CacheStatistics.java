@@ -0,0 +1,283 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+/**
+ * Counts the hits, misses, retrievals, evictions and invalidations of
+ * a cache. Each manager keeps statistics for its om cache, see
+ * {@link AbstractBaseManager#getStatistics()}, and for its method result
+ * cache, see {@link MethodResultCache#getStatistics()}.
+ *
+ * The counters are updated without a common lock, so the values read
+ * while the cache is used need not be consistent with each other.
+ *
+ * @version $Id$
+ */
+public class CacheStatistics implements CacheStatisticsMBean
+{
+    /**
+     * The upper limits of the ranges of the load time histogram,
+     * in milliseconds. The last range has no upper limit.
+     */
+    private static final long[] LOAD_TIME_LIMITS = {1, 10, 100, 1000};
+
+    /** The name of the cache. */
+    private String name;
+
+    /** Counts the lookups which found an entry. */
+    private final StripedCounter hits = new StripedCounter();
+
+    /** Counts the lookups which found no entry. */
+    private final StripedCounter misses = new StripedCounter();
+
+    /** Counts the retrievals from persistent storage. */
+    private final StripedCounter loads = new StripedCounter();
+
+    /** Sums up the time of the retrievals, in milliseconds. */
+    private final StripedCounter loadTime = new StripedCounter();
+
+    /** Counts the retrievals per range of the load time. */
+    private final StripedCounter[] loadTimeHistogram;
+
+    /** Counts the evicted entries. */
+    private final StripedCounter evictions = new StripedCounter();
+
+    /** Counts the invalidations. */
+    private final StripedCounter invalidations = new StripedCounter();
+
+    /**
+     * Creates statistics with all counters set to 0.
+     *
+     * @param name the name of the cache.
+     */
+    public CacheStatistics(String name)
+    {
+        this.name = name;
+        loadTimeHistogram = new StripedCounter[LOAD_TIME_LIMITS.length + 1];
+        for (int i = 0; i < loadTimeHistogram.length; i++)
+        {
+            loadTimeHistogram[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * Returns the upper limits of the ranges of the load time histogram,
+     * in milliseconds. Range i contains the load times t with
+     * <code>limits[i - 1] &lt;= t &lt; limits[i]</code>; the histogram has
+     * one more range, for the load times above the last limit.
+     *
+     * @return the upper limits of the ranges.
+     */
+    public static long[] getLoadTimeLimits()
+    {
+        return (long[]) LOAD_TIME_LIMITS.clone();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getName()
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns -1. Subclasses which know the size of the cache
+     * override this method.
+     *
+     * @see CacheStatisticsMBean#getSize()
+     */
+    public int getSize()
+    {
+        return -1;
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getHits()
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getMisses()
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getHitRatio()
+     */
+    public double getHitRatio()
+    {
+        long hitCount = getHits();
+        long lookups = hitCount + getMisses();
+        return (lookups == 0) ? 0 : ((double) hitCount) / lookups;
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getLoads()
+     */
+    public long getLoads()
+    {
+        return loads.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getTotalLoadTime()
+     */
+    public long getTotalLoadTime()
+    {
+        return loadTime.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getAverageLoadTime()
+     */
+    public long getAverageLoadTime()
+    {
+        long loadCount = getLoads();
+        return (loadCount == 0) ? 0 : getTotalLoadTime() / loadCount;
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getLoadTimeHistogram()
+     */
+    public long[] getLoadTimeHistogram()
+    {
+        long[] result = new long[loadTimeHistogram.length];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = loadTimeHistogram[i].sum();
+        }
+        return result;
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getEvictions()
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#getInvalidations()
+     */
+    public long getInvalidations()
+    {
+        return invalidations.sum();
+    }
+
+    /**
+     * @see CacheStatisticsMBean#reset()
+     */
+    public void reset()
+    {
+        hits.reset();
+        misses.reset();
+        loads.reset();
+        loadTime.reset();
+        for (int i = 0; i < loadTimeHistogram.length; i++)
+        {
+            loadTimeHistogram[i].reset();
+        }
+        evictions.reset();
+        invalidations.reset();
+    }
+
+    /**
+     * Records a lookup.
+     *
+     * @param hit whether the lookup found an entry.
+     */
+    void recordLookup(boolean hit)
+    {
+        if (hit)
+        {
+            hits.increment();
+        }
+        else
+        {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Records a retrieval from persistent storage.
+     *
+     * @param millis the time the retrieval took, in milliseconds.
+     */
+    void recordLoad(long millis)
+    {
+        loads.increment();
+        loadTime.add(millis);
+        int range = 0;
+        while (range < LOAD_TIME_LIMITS.length
+                && millis >= LOAD_TIME_LIMITS[range])
+        {
+            range++;
+        }
+        loadTimeHistogram[range].increment();
+    }
+
+    /**
+     * Records evicted entries.
+     *
+     * @param count the number of evicted entries.
+     */
+    void recordEvictions(long count)
+    {
+        evictions.add(count);
+    }
+
+    /**
+     * Records invalidations.
+     *
+     * @param count the number of invalidations.
+     */
+    void recordInvalidations(long count)
+    {
+        invalidations.add(count);
+    }
+
+    /**
+     * Returns a short description of the statistics.
+     *
+     * @return the name and the main counters.
+     */
+    public String toString()
+    {
+        StringBuffer result = new StringBuffer();
+        result.append(getName())
+                .append(": size=").append(getSize())
+                .append(", hits=").append(getHits())
+                .append(", misses=").append(getMisses())
+                .append(", loads=").append(getLoads())
+                .append(", averageLoadTime=").append(getAverageLoadTime())
+                .append(", evictions=").append(getEvictions())
+                .append(", invalidations=").append(getInvalidations());
+        return result.toString();
+    }
+}
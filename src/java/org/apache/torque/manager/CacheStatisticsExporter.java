@@ -0,0 +1,209 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registers the {@link CacheStatistics} of managers as MBeans at the
+ * platform MBean server. JMX is accessed by reflection, so that Torque
+ * still runs on JVMs without JMX; on such JVMs, {@link #create()}
+ * returns null.
+ *
+ * The MBeans are named
+ * <code>org.apache.torque:type=ManagerCache,name=&lt;name&gt;,cache=objects</code>
+ * and <code>...,cache=methodResults</code>, where name is the name
+ * the manager is registered with.
+ *
+ * @version $Id$
+ */
+public final class CacheStatisticsExporter
+{
+    /** The domain of the MBean names. */
+    public static final String DOMAIN = "org.apache.torque";
+
+    /** The log. */
+    private static Log log = LogFactory.getLog(CacheStatisticsExporter.class);
+
+    /** The MBean server. */
+    private Object server;
+
+    /** Creates an ObjectName from a String. */
+    private Constructor objectNameConstructor;
+
+    /** MBeanServer.registerMBean(Object, ObjectName). */
+    private Method registerMethod;
+
+    /** MBeanServer.unregisterMBean(ObjectName). */
+    private Method unregisterMethod;
+
+    /** The names of the registered MBeans. */
+    private List registeredNames = new ArrayList();
+
+    /**
+     * Creates an exporter.
+     *
+     * @param server the MBean server.
+     * @param objectNameClass javax.management.ObjectName.
+     * @param serverClass javax.management.MBeanServer.
+     * @throws Exception if the JMX classes do not have the expected methods.
+     */
+    private CacheStatisticsExporter(
+            Object server,
+            Class objectNameClass,
+            Class serverClass)
+        throws Exception
+    {
+        this.server = server;
+        objectNameConstructor = objectNameClass.getConstructor(
+                new Class[] {String.class});
+        registerMethod = serverClass.getMethod(
+                "registerMBean",
+                new Class[] {Object.class, objectNameClass});
+        unregisterMethod = serverClass.getMethod(
+                "unregisterMBean",
+                new Class[] {objectNameClass});
+    }
+
+    /**
+     * Creates an exporter which registers MBeans at the platform
+     * MBean server.
+     *
+     * @return the exporter, or null if JMX is not available.
+     */
+    public static CacheStatisticsExporter create()
+    {
+        try
+        {
+            Class factoryClass
+                    = Class.forName("java.lang.management.ManagementFactory");
+            Object server = factoryClass.getMethod(
+                    "getPlatformMBeanServer", new Class[0])
+                    .invoke(null, new Object[0]);
+            return new CacheStatisticsExporter(
+                    server,
+                    Class.forName("javax.management.ObjectName"),
+                    Class.forName("javax.management.MBeanServer"));
+        }
+        catch (Exception e)
+        {
+            log.warn("JMX is not available, "
+                    + "cache statistics are not exported", e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers the statistics of a manager. Failures are logged.
+     *
+     * @param name the name the manager is registered with.
+     * @param manager the manager.
+     */
+    public synchronized void export(String name, AbstractBaseManager manager)
+    {
+        register(name, "objects", manager.getStatistics());
+        MethodResultCache mrCache = manager.mrCache;
+        if (mrCache != null && !(mrCache instanceof NoOpMethodResultCache))
+        {
+            register(name, "methodResults", mrCache.getStatistics());
+        }
+    }
+
+    /**
+     * Unregisters all MBeans registered by this exporter.
+     */
+    public synchronized void unexportAll()
+    {
+        for (Iterator it = registeredNames.iterator(); it.hasNext();)
+        {
+            Object objectName = it.next();
+            try
+            {
+                unregisterMethod.invoke(server, new Object[] {objectName});
+            }
+            catch (Exception e)
+            {
+                log.warn("Could not unregister MBean " + objectName, e);
+            }
+        }
+        registeredNames.clear();
+    }
+
+    /**
+     * Registers statistics as an MBean.
+     *
+     * @param name the name the manager is registered with.
+     * @param cacheType the type of the cache.
+     * @param statistics the statistics to register.
+     */
+    private void register(
+            String name,
+            String cacheType,
+            CacheStatistics statistics)
+    {
+        String objectNameString = DOMAIN + ":type=ManagerCache,name="
+                + escape(name) + ",cache=" + cacheType;
+        try
+        {
+            Object objectName = objectNameConstructor.newInstance(
+                    new Object[] {objectNameString});
+            registerMethod.invoke(
+                    server, new Object[] {statistics, objectName});
+            registeredNames.add(objectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not register MBean " + objectNameString, e);
+        }
+    }
+
+    /**
+     * Replaces the characters which are not allowed in the value
+     * of an ObjectName key.
+     *
+     * @param value the value.
+     * @return the value, with forbidden characters replaced by '_'.
+     */
+    private static String escape(String value)
+    {
+        StringBuffer result = new StringBuffer(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (",=:*?\"\n".indexOf(c) >= 0)
+            {
+                result.append('_');
+            }
+            else
+            {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+/**
+ * The management interface of {@link CacheStatistics}. Torque registers
+ * the statistics of each manager as MBeans if
+ * <code>torque.manager.jmx = true</code> and JMX is available.
+ *
+ * @version $Id$
+ */
+public interface CacheStatisticsMBean
+{
+    /**
+     * @return the name of the cache, usually the JCS region of the manager.
+     */
+    String getName();
+
+    /**
+     * @return the number of cached entries, or -1 if it is not known.
+     */
+    int getSize();
+
+    /**
+     * @return how often a cached entry was found.
+     */
+    long getHits();
+
+    /**
+     * @return how often no cached entry was found.
+     */
+    long getMisses();
+
+    /**
+     * @return the fraction of the lookups which found a cached entry,
+     *         or 0 if there were no lookups.
+     */
+    double getHitRatio();
+
+    /**
+     * @return how often entries were retrieved from persistent storage.
+     */
+    long getLoads();
+
+    /**
+     * @return the total time spent retrieving entries, in milliseconds.
+     */
+    long getTotalLoadTime();
+
+    /**
+     * @return the average time of a retrieval, in milliseconds.
+     */
+    long getAverageLoadTime();
+
+    /**
+     * @return the number of retrievals in each range of the load time,
+     *         see {@link CacheStatistics#getLoadTimeLimits()}.
+     */
+    long[] getLoadTimeHistogram();
+
+    /**
+     * @return how many entries were dropped because the cache was full
+     *         or they had expired.
+     */
+    long getEvictions();
+
+    /**
+     * @return how many entries or groups of entries were invalidated
+     *         because the underlying data was changed.
+     */
+    long getInvalidations();
+
+    /**
+     * Sets all counters to 0.
+     */
+    void reset();
+}
@@ -0,0 +1,249 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.Serializable;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * A ManagerCache which limits the time an object is kept in another
+ * ManagerCache. Objects older than the time to live are treated as
+ * not cached. If refresh-ahead is enabled, an object which is read
+ * shortly before it expires is reloaded in the background by the manager,
+ * so that frequently read objects do not expire all at once.
+ *
+ * @version $Id$
+ */
+final class ExpiringManagerCache implements ManagerCache
+{
+    /** The cache which holds the entries. */
+    private ManagerCache delegate;
+
+    /** The time to live of an entry, in milliseconds. */
+    private long timeToLive;
+
+    /**
+     * How long before expiry an entry is refreshed, in milliseconds,
+     * or 0 to disable refreshing.
+     */
+    private long refreshAhead;
+
+    /** The manager which reloads entries, not null if refreshAhead > 0. */
+    private AbstractBaseManager manager;
+
+    /** The statistics which count expired entries, or null. */
+    private CacheStatistics statistics;
+
+    /**
+     * Creates an expiring cache.
+     *
+     * @param delegate the cache which holds the entries, not null.
+     * @param timeToLive the time to live of an entry, in milliseconds.
+     * @param refreshAhead how long before expiry an entry is refreshed,
+     *        in milliseconds, or 0 to disable refreshing.
+     * @param manager the manager which reloads entries,
+     *        or null if refreshAhead is 0.
+     * @param statistics the statistics which count expired entries,
+     *        or null.
+     */
+    ExpiringManagerCache(
+            ManagerCache delegate,
+            long timeToLive,
+            long refreshAhead,
+            AbstractBaseManager manager,
+            CacheStatistics statistics)
+    {
+        this.delegate = delegate;
+        this.timeToLive = timeToLive;
+        this.refreshAhead = refreshAhead;
+        this.manager = manager;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the cache which holds the entries.
+     */
+    ManagerCache getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Returns the object cached for a key, if it has not expired.
+     * If the object expires soon, a background refresh is triggered.
+     *
+     * @see ManagerCache#get(Serializable)
+     */
+    public Object get(Serializable key)
+    {
+        Entry entry = (Entry) delegate.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= entry.getExpiryTime())
+        {
+            if (statistics != null && entry.markExpired())
+            {
+                statistics.recordEvictions(1);
+            }
+            return null;
+        }
+        if (refreshAhead > 0
+                && now >= entry.getExpiryTime() - refreshAhead
+                && entry.startRefresh())
+        {
+            CacheRefresher.refresh(manager, key);
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @see ManagerCache#put(Serializable, Object)
+     */
+    public Object put(Serializable key, Object value)
+        throws TorqueException
+    {
+        Entry entry = new Entry(
+                value, System.currentTimeMillis() + timeToLive);
+        return getValue((Entry) delegate.put(key, entry));
+    }
+
+    /**
+     * @see ManagerCache#remove(Serializable)
+     */
+    public Object remove(Serializable key)
+        throws TorqueException
+    {
+        return getValue((Entry) delegate.remove(key));
+    }
+
+    /**
+     * @see ManagerCache#clear()
+     */
+    public void clear()
+        throws TorqueException
+    {
+        delegate.clear();
+    }
+
+    /**
+     * @see ManagerCache#dispose()
+     */
+    public void dispose()
+    {
+        delegate.dispose();
+    }
+
+    /**
+     * Returns the value of an entry.
+     *
+     * @param entry the entry, or null.
+     * @return the value of the entry, or null if the entry is null.
+     */
+    private static Object getValue(Entry entry)
+    {
+        return (entry == null) ? null : entry.getValue();
+    }
+
+    /**
+     * A cached object together with its expiry time.
+     */
+    private static final class Entry implements Serializable
+    {
+        /** Serial version */
+        private static final long serialVersionUID = 1L;
+
+        /** The cached object. */
+        private Object value;
+
+        /** The time when the entry expires. */
+        private long expiryTime;
+
+        /** Whether a refresh of the entry was started. */
+        private transient boolean refreshing = false;
+
+        /** Whether the entry was found to be expired. */
+        private transient boolean expired = false;
+
+        /**
+         * Creates an entry.
+         *
+         * @param value the cached object.
+         * @param expiryTime the time when the entry expires.
+         */
+        Entry(Object value, long expiryTime)
+        {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+
+        /**
+         * @return the cached object.
+         */
+        Object getValue()
+        {
+            return value;
+        }
+
+        /**
+         * @return the time when the entry expires.
+         */
+        long getExpiryTime()
+        {
+            return expiryTime;
+        }
+
+        /**
+         * Marks the entry as being refreshed.
+         *
+         * @return true if the entry was not being refreshed before,
+         *         false otherwise.
+         */
+        synchronized boolean startRefresh()
+        {
+            if (refreshing)
+            {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+
+        /**
+         * Marks the entry as expired.
+         *
+         * @return true if the entry was not marked as expired before,
+         *         false otherwise.
+         */
+        synchronized boolean markExpired()
+        {
+            if (expired)
+            {
+                return false;
+            }
+            expired = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,771 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.torque.TorqueException;
+import org.apache.torque.om.ComboKey;
+import org.apache.torque.om.DateKey;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.SimpleKey;
+import org.apache.torque.om.StringKey;
+
+/**
+ * Sends the table changes made on this node to the other nodes of a
+ * cluster, and applies the changes received from other nodes to the
+ * local manager caches.
+ *
+ * The bus listens to the {@link TableChangeNotifier} for local changes.
+ * Changes are not sent one by one but collected for a short interval,
+ * and changes of the same table are coalesced: the keys of a table are
+ * merged, and if there are more than a maximum number of keys, the other
+ * nodes evict all cached objects of the table instead. Received changes
+ * are passed to the listeners of the changed table, so the managers evict
+ * the changed objects and their method results.
+ *
+ * The bus is configured by the properties
+ * <code>torque.manager.invalidation.*</code> and started by Torque.
+ * The messages are sent by a pluggable {@link InvalidationTransport}.
+ *
+ * As the transport may be unauthenticated, messages do not use Java
+ * serialization but a fixed format: the database and table names, and
+ * each key as a type tag and its string value. Only NumberKey, StringKey,
+ * DateKey and ComboKeys of these are supported; if other keys change,
+ * the other nodes evict all cached objects of the table.
+ *
+ * @version $Id$
+ */
+public class InvalidationBus implements TableChangeListener
+{
+    /**
+     * The key for the transport, either <code>multicast</code>,
+     * <code>loopback</code> or the name of a class implementing
+     * InvalidationTransport.
+     */
+    public static final String TRANSPORT_KEY = "transport";
+
+    /**
+     * The key for the time in milliseconds during which changes
+     * are collected before they are sent.
+     */
+    public static final String FLUSH_INTERVAL_KEY = "flushInterval";
+
+    /**
+     * The key for the maximum number of keys per table in a message.
+     */
+    public static final String MAX_KEYS_KEY = "maxKeys";
+
+    /** The value of TRANSPORT_KEY selecting the multicast transport. */
+    public static final String MULTICAST_TRANSPORT = "multicast";
+
+    /** The value of TRANSPORT_KEY selecting the loopback transport. */
+    public static final String LOOPBACK_TRANSPORT = "loopback";
+
+    /** The default flush interval in milliseconds. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    /** The default maximum number of keys per table in a message. */
+    public static final int DEFAULT_MAX_KEYS = 500;
+
+    /** The version of the message format. */
+    private static final byte FORMAT_VERSION = 1;
+
+    /** The key count of a change whose keys are not known. */
+    private static final int UNKNOWN_KEYS = -1;
+
+    /** The type tag of a NumberKey. */
+    private static final byte NUMBER_KEY = 'N';
+
+    /** The type tag of a StringKey. */
+    private static final byte STRING_KEY = 'S';
+
+    /** The type tag of a DateKey. */
+    private static final byte DATE_KEY = 'D';
+
+    /** The type tag of a ComboKey. */
+    private static final byte COMBO_KEY = 'C';
+
+    /** The log. */
+    private static Log log = LogFactory.getLog(InvalidationBus.class);
+
+    /** The id of this node, to ignore own messages. */
+    private String nodeId;
+
+    /** The transport which sends and receives the messages. */
+    private InvalidationTransport transport;
+
+    /**
+     * The time in milliseconds during which changes are collected,
+     * or 0 to send each change immediately.
+     */
+    private long flushInterval;
+
+    /** The maximum number of keys per table in a message. */
+    private int maxKeys;
+
+    /**
+     * The changes which are not sent yet, keyed by database and table name.
+     * Also the monitor of the flushing thread.
+     */
+    private Map pending = new LinkedHashMap();
+
+    /** Whether the bus is running. Guarded by pending. */
+    private boolean running = false;
+
+    /** The number of sent messages. */
+    private long sentMessages = 0;
+
+    /** The number of received and applied messages. */
+    private long receivedMessages = 0;
+
+    /**
+     * Creates a bus.
+     *
+     * @param transport the transport which sends and receives the messages.
+     * @param flushInterval the time in milliseconds during which changes
+     *        are collected before they are sent, or 0 to send each change
+     *        immediately.
+     * @param maxKeys the maximum number of keys per table in a message.
+     */
+    public InvalidationBus(
+            InvalidationTransport transport,
+            long flushInterval,
+            int maxKeys)
+    {
+        this.transport = transport;
+        this.flushInterval = flushInterval;
+        this.maxKeys = maxKeys;
+        this.nodeId = Long.toHexString(System.currentTimeMillis()) + "-"
+                + Long.toHexString(new Random().nextLong());
+    }
+
+    /**
+     * Creates a bus as described by a configuration.
+     *
+     * @param conf the properties <code>torque.manager.invalidation.*</code>
+     *        without this prefix.
+     * @return the bus, or null if no transport is configured.
+     * @throws TorqueException if the transport cannot be created.
+     */
+    public static InvalidationBus createBus(Configuration conf)
+        throws TorqueException
+    {
+        String transportName = conf.getString(TRANSPORT_KEY);
+        if (transportName == null || transportName.trim().length() == 0)
+        {
+            return null;
+        }
+        transportName = transportName.trim();
+
+        InvalidationTransport transport;
+        if (MULTICAST_TRANSPORT.equals(transportName))
+        {
+            transport = new MulticastInvalidationTransport();
+        }
+        else if (LOOPBACK_TRANSPORT.equals(transportName))
+        {
+            transport = new LoopbackInvalidationTransport();
+        }
+        else
+        {
+            try
+            {
+                transport = (InvalidationTransport)
+                        Class.forName(transportName).newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new TorqueException(
+                        "Could not create invalidation transport "
+                        + transportName, e);
+            }
+        }
+        return new InvalidationBus(
+                transport,
+                conf.getLong(FLUSH_INTERVAL_KEY, DEFAULT_FLUSH_INTERVAL),
+                conf.getInt(MAX_KEYS_KEY, DEFAULT_MAX_KEYS));
+    }
+
+    /**
+     * Starts the transport and begins to send the local changes.
+     *
+     * @param conf the configuration of the transport.
+     * @throws TorqueException if the transport cannot be started.
+     */
+    public void start(Configuration conf)
+        throws TorqueException
+    {
+        transport.start(this, conf);
+        synchronized (pending)
+        {
+            running = true;
+        }
+        if (flushInterval > 0)
+        {
+            Thread flusher = new Thread("Torque invalidation sender")
+            {
+                public void run()
+                {
+                    flushPeriodically();
+                }
+            };
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        TableChangeNotifier.addListener(this);
+    }
+
+    /**
+     * Stops sending local changes, sends the pending changes
+     * and stops the transport.
+     */
+    public void stop()
+    {
+        TableChangeNotifier.removeListener(this);
+        synchronized (pending)
+        {
+            if (!running)
+            {
+                return;
+            }
+            running = false;
+            pending.notifyAll();
+        }
+        flush();
+        transport.stop();
+    }
+
+    /**
+     * Collects a local change for sending it to the other nodes.
+     *
+     * @see TableChangeListener#tableChanged(String, String, List)
+     */
+    public void tableChanged(String dbName, String tableName, List keys)
+    {
+        synchronized (pending)
+        {
+            if (!running)
+            {
+                return;
+            }
+            if (pending.isEmpty())
+            {
+                // starts the flush interval
+                pending.notifyAll();
+            }
+            String pendingKey = dbName + "|" + tableName;
+            TableChange change = (TableChange) pending.get(pendingKey);
+            if (change == null)
+            {
+                change = new TableChange(dbName, tableName);
+                pending.put(pendingKey, change);
+            }
+            change.merge(keys, maxKeys);
+        }
+        if (flushInterval <= 0)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all collected changes to the other nodes.
+     */
+    public void flush()
+    {
+        List changes;
+        synchronized (pending)
+        {
+            if (pending.isEmpty())
+            {
+                return;
+            }
+            changes = new ArrayList(pending.values());
+            pending.clear();
+        }
+
+        try
+        {
+            byte[] message = serialize(changes);
+            int maxSize = transport.getMaxMessageSize();
+            if (maxSize > 0 && message.length > maxSize)
+            {
+                // too many keys, let the other nodes evict whole tables
+                for (Iterator it = changes.iterator(); it.hasNext();)
+                {
+                    ((TableChange) it.next()).keys = null;
+                }
+                message = serialize(changes);
+            }
+            if (maxSize > 0 && message.length > maxSize)
+            {
+                for (Iterator it = changes.iterator(); it.hasNext();)
+                {
+                    send(serialize(Collections.singletonList(it.next())));
+                }
+            }
+            else
+            {
+                send(message);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Could not serialize cache invalidations", e);
+        }
+    }
+
+    /**
+     * Applies a message received from another node to the local caches.
+     * Messages sent by this node are ignored.
+     *
+     * @param message the received message.
+     */
+    public void receive(byte[] message)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(message));
+            if (in.readByte() != FORMAT_VERSION)
+            {
+                throw new IOException("Unknown message format");
+            }
+            String sender = in.readUTF();
+            if (nodeId.equals(sender))
+            {
+                return;
+            }
+            // read the whole message before applying it
+            int size = readCount(in, in.readInt());
+            List changes = new ArrayList();
+            for (int i = 0; i < size; i++)
+            {
+                TableChange change = new TableChange(
+                        readString(in), readString(in));
+                int keyCount = in.readInt();
+                if (keyCount == UNKNOWN_KEYS)
+                {
+                    change.keys = null;
+                }
+                else
+                {
+                    keyCount = readCount(in, keyCount);
+                    for (int j = 0; j < keyCount; j++)
+                    {
+                        change.keys.add(readKey(in, true));
+                    }
+                }
+                changes.add(change);
+            }
+            for (Iterator it = changes.iterator(); it.hasNext();)
+            {
+                TableChange change = (TableChange) it.next();
+                TableChangeNotifier.fireRemoteTableChanged(
+                        change.dbName,
+                        change.tableName,
+                        (change.keys == null)
+                                ? null : new ArrayList(change.keys));
+            }
+            synchronized (this)
+            {
+                receivedMessages++;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not process received cache invalidation", e);
+        }
+    }
+
+    /**
+     * Returns the number of messages sent by this bus.
+     *
+     * @return the number of sent messages.
+     */
+    public synchronized long getSentMessages()
+    {
+        return sentMessages;
+    }
+
+    /**
+     * Returns the number of messages received from other nodes.
+     *
+     * @return the number of received messages.
+     */
+    public synchronized long getReceivedMessages()
+    {
+        return receivedMessages;
+    }
+
+    /**
+     * Sends the collected changes whenever the flush interval
+     * has passed since the first pending change.
+     */
+    private void flushPeriodically()
+    {
+        while (true)
+        {
+            synchronized (pending)
+            {
+                try
+                {
+                    while (running && pending.isEmpty())
+                    {
+                        pending.wait();
+                    }
+                    // collect further changes until the interval is over
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    long remaining = flushInterval;
+                    while (running && remaining > 0)
+                    {
+                        pending.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    if (!running)
+                    {
+                        // stop() sends the pending changes
+                        return;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Sends a message and counts it.
+     *
+     * @param message the message to send.
+     */
+    private void send(byte[] message)
+    {
+        try
+        {
+            transport.send(message);
+            synchronized (this)
+            {
+                sentMessages++;
+            }
+        }
+        catch (TorqueException e)
+        {
+            log.error("Could not send cache invalidation", e);
+        }
+    }
+
+    /**
+     * Creates a message from table changes.
+     *
+     * @param changes the TableChanges to send.
+     * @return the message.
+     * @throws IOException if the message cannot be written.
+     */
+    private byte[] serialize(List changes)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(nodeId);
+        out.writeInt(changes.size());
+        for (Iterator it = changes.iterator(); it.hasNext();)
+        {
+            TableChange change = (TableChange) it.next();
+            writeString(out, change.dbName);
+            writeString(out, change.tableName);
+            if (change.keys == null)
+            {
+                out.writeInt(UNKNOWN_KEYS);
+            }
+            else
+            {
+                out.writeInt(change.keys.size());
+                for (Iterator keyIt = change.keys.iterator(); keyIt.hasNext();)
+                {
+                    writeKey(out, keyIt.next());
+                }
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks whether a key can be sent to other nodes.
+     *
+     * @param key the key.
+     * @param inCombo whether the key is part of a ComboKey.
+     * @return true if the key is a NumberKey, StringKey or DateKey
+     *         with a value, or a ComboKey of such keys.
+     */
+    static boolean isSupportedKey(Object key, boolean inCombo)
+    {
+        if (key == null)
+        {
+            return false;
+        }
+        Class keyClass = key.getClass();
+        if (keyClass == NumberKey.class
+                || keyClass == StringKey.class
+                || keyClass == DateKey.class)
+        {
+            return ((SimpleKey) key).getValue() != null;
+        }
+        if (keyClass == ComboKey.class && !inCombo)
+        {
+            SimpleKey[] parts = (SimpleKey[]) ((ComboKey) key).getValue();
+            if (parts == null)
+            {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++)
+            {
+                if (!isSupportedKey(parts[i], true))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a key as its type tag and its value,
+     * see {@link #isSupportedKey(Object, boolean)}.
+     *
+     * @param out the stream to write to.
+     * @param key the key, must be supported.
+     * @throws IOException if the key cannot be written.
+     */
+    private static void writeKey(DataOutputStream out, Object key)
+        throws IOException
+    {
+        if (key instanceof ComboKey)
+        {
+            SimpleKey[] parts = (SimpleKey[]) ((ComboKey) key).getValue();
+            out.writeByte(COMBO_KEY);
+            out.writeInt(parts.length);
+            for (int i = 0; i < parts.length; i++)
+            {
+                writeKey(out, parts[i]);
+            }
+            return;
+        }
+        if (key instanceof NumberKey)
+        {
+            out.writeByte(NUMBER_KEY);
+        }
+        else if (key instanceof DateKey)
+        {
+            out.writeByte(DATE_KEY);
+        }
+        else
+        {
+            out.writeByte(STRING_KEY);
+        }
+        out.writeUTF(key.toString());
+    }
+
+    /**
+     * Reads a key written by {@link #writeKey(DataOutputStream, Object)}.
+     *
+     * @param in the stream to read from.
+     * @param comboAllowed whether the key may be a ComboKey.
+     * @return the key.
+     * @throws IOException if the key cannot be read or has an
+     *         unsupported type.
+     */
+    private static Object readKey(DataInputStream in, boolean comboAllowed)
+        throws IOException
+    {
+        byte type = in.readByte();
+        try
+        {
+            switch (type)
+            {
+                case NUMBER_KEY:
+                    return new NumberKey(in.readUTF());
+                case STRING_KEY:
+                    return new StringKey(in.readUTF());
+                case DATE_KEY:
+                    return new DateKey(in.readUTF());
+                case COMBO_KEY:
+                    if (!comboAllowed)
+                    {
+                        break;
+                    }
+                    SimpleKey[] parts = new SimpleKey[
+                            readCount(in, in.readInt())];
+                    for (int i = 0; i < parts.length; i++)
+                    {
+                        parts[i] = (SimpleKey) readKey(in, false);
+                    }
+                    return new ComboKey(parts);
+                default:
+                    break;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid key value: " + e.getMessage());
+        }
+        throw new IOException("Unsupported key type " + type);
+    }
+
+    /**
+     * Writes a string which may be null.
+     *
+     * @param out the stream to write to.
+     * @param value the string, may be null.
+     * @throws IOException if the string cannot be written.
+     */
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by
+     * {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in the stream to read from.
+     * @return the string, may be null.
+     * @throws IOException if the string cannot be read.
+     */
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        if (!in.readBoolean())
+        {
+            return null;
+        }
+        return in.readUTF();
+    }
+
+    /**
+     * Checks a count read from a message. As each counted item takes
+     * at least one byte, the count cannot exceed the remaining bytes.
+     *
+     * @param in the stream the count was read from.
+     * @param count the count.
+     * @return the count.
+     * @throws IOException if the count is invalid.
+     */
+    private static int readCount(DataInputStream in, int count)
+        throws IOException
+    {
+        if (count < 0 || count > in.available())
+        {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * The collected changes of a table.
+     */
+    private static final class TableChange
+    {
+        /** The name of the database. */
+        private String dbName;
+
+        /** The name of the table. */
+        private String tableName;
+
+        /** The keys of the changed rows, or null if they are not known. */
+        private Set keys = new LinkedHashSet();
+
+        /**
+         * Creates an empty change.
+         *
+         * @param dbName the name of the database.
+         * @param tableName the name of the table.
+         */
+        TableChange(String dbName, String tableName)
+        {
+            this.dbName = dbName;
+            this.tableName = tableName;
+        }
+
+        /**
+         * Merges a further change into this change.
+         *
+         * @param changedKeys the keys of the changed rows, or null
+         *        if they are not known.
+         * @param maxKeys the maximum number of keys to keep.
+         */
+        void merge(List changedKeys, int maxKeys)
+        {
+            if (keys == null)
+            {
+                return;
+            }
+            if (changedKeys == null)
+            {
+                keys = null;
+                return;
+            }
+            for (Iterator it = changedKeys.iterator(); it.hasNext();)
+            {
+                if (!isSupportedKey(it.next(), false))
+                {
+                    // cannot be sent, evict the whole table
+                    keys = null;
+                    return;
+                }
+            }
+            keys.addAll(changedKeys);
+            if (keys.size() > maxKeys)
+            {
+                keys = null;
+            }
+        }
+    }
+}
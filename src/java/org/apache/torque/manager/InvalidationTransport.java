@@ -0,0 +1,74 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import org.apache.commons.configuration.Configuration;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * Transports the messages of an {@link InvalidationBus} to the
+ * other nodes of a cluster. Messages are opaque byte arrays; a transport
+ * must deliver each received message by calling
+ * {@link InvalidationBus#receive(byte[])}. Delivery may be unreliable,
+ * and messages sent by the node itself may be delivered back to it.
+ *
+ * Implementations must have a public no-argument constructor.
+ *
+ * @version $Id$
+ * @see LoopbackInvalidationTransport
+ * @see MulticastInvalidationTransport
+ */
+public interface InvalidationTransport
+{
+    /**
+     * Starts the transport.
+     *
+     * @param bus the bus to deliver received messages to.
+     * @param conf the configuration of the transport, i.e. the properties
+     *        <code>torque.manager.invalidation.*</code> without this prefix.
+     * @throws TorqueException if the transport cannot be started.
+     */
+    void start(InvalidationBus bus, Configuration conf)
+        throws TorqueException;
+
+    /**
+     * Sends a message to the other nodes.
+     *
+     * @param message the message to send, not null.
+     * @throws TorqueException if the message cannot be sent.
+     */
+    void send(byte[] message)
+        throws TorqueException;
+
+    /**
+     * Returns the maximum size of a message.
+     *
+     * @return the maximum number of bytes in a message,
+     *         or 0 if the size is not limited.
+     */
+    int getMaxMessageSize();
+
+    /**
+     * Stops the transport and releases its resources.
+     */
+    void stop();
+}
@@ -0,0 +1,157 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.Serializable;
+
+import org.apache.jcs.access.GroupCacheAccess;
+import org.apache.jcs.access.exception.CacheException;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * A ManagerCache which stores the objects in a JCS region.
+ * This is the default backend; its size and eviction are configured
+ * in the JCS configuration of the region.
+ *
+ * JCS is thread safe for single operations, so reads do not lock.
+ * To keep put and remove atomic, modifications are serialized
+ * by a lock chosen by the hash code of the key, so that modifications
+ * of different keys usually do not block each other.
+ *
+ * @version $Id$
+ */
+public class JCSManagerCache implements ManagerCache
+{
+    /** The number of locks used to serialize modifications. */
+    private static final int LOCK_COUNT = 32;
+
+    /** The JCS region. */
+    private GroupCacheAccess jcsCache;
+
+    /** The locks used to serialize modifications of a key. */
+    private Object[] locks = new Object[LOCK_COUNT];
+
+    /**
+     * Creates a cache which stores the objects in a JCS region.
+     *
+     * @param jcsCache the JCS region, not null.
+     */
+    public JCSManagerCache(GroupCacheAccess jcsCache)
+    {
+        this.jcsCache = jcsCache;
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @see ManagerCache#get(Serializable)
+     */
+    public Object get(Serializable key)
+    {
+        return jcsCache.get(key);
+    }
+
+    /**
+     * @see ManagerCache#put(Serializable, Object)
+     */
+    public Object put(Serializable key, Object value)
+        throws TorqueException
+    {
+        try
+        {
+            synchronized (getLock(key))
+            {
+                Object old = jcsCache.get(key);
+                jcsCache.put(key, value);
+                return old;
+            }
+        }
+        catch (CacheException ce)
+        {
+            throw new TorqueException
+                ("Could not cache due to internal JCS error", ce);
+        }
+    }
+
+    /**
+     * @see ManagerCache#remove(Serializable)
+     */
+    public Object remove(Serializable key)
+        throws TorqueException
+    {
+        try
+        {
+            synchronized (getLock(key))
+            {
+                Object old = jcsCache.get(key);
+                jcsCache.remove(key);
+                return old;
+            }
+        }
+        catch (CacheException ce)
+        {
+            throw new TorqueException
+                ("Could not remove from cache due to internal JCS error",
+                 ce);
+        }
+    }
+
+    /**
+     * @see ManagerCache#clear()
+     */
+    public void clear()
+        throws TorqueException
+    {
+        try
+        {
+            jcsCache.clear();
+        }
+        catch (CacheException ce)
+        {
+            throw new TorqueException(
+                    "Could not clear cache due to internal JCS error.", ce);
+        }
+    }
+
+    /**
+     * Does nothing, the JCS region is disposed by the manager
+     * which owns it.
+     */
+    public void dispose()
+    {
+    }
+
+    /**
+     * Returns the lock guarding modifications of a key.
+     *
+     * @param key the cache key.
+     * @return the lock for the key.
+     */
+    private Object getLock(Object key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[(hash & 0x7fffffff) % locks.length];
+    }
+}
@@ -0,0 +1,99 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * An InvalidationTransport which delivers the messages to all other
+ * started loopback transports in the same virtual machine. Messages are
+ * delivered synchronously by the sending thread. Intended for tests,
+ * where several buses in one virtual machine simulate a cluster.
+ *
+ * @version $Id$
+ */
+public class LoopbackInvalidationTransport implements InvalidationTransport
+{
+    /** The started transports. */
+    private static List transports = new ArrayList();
+
+    /** The bus which receives the messages of this transport. */
+    private InvalidationBus bus;
+
+    /**
+     * @see InvalidationTransport#start(InvalidationBus, Configuration)
+     */
+    public void start(InvalidationBus bus, Configuration conf)
+    {
+        this.bus = bus;
+        synchronized (transports)
+        {
+            transports.add(this);
+        }
+    }
+
+    /**
+     * Delivers a message to the buses of all other started
+     * loopback transports.
+     *
+     * @see InvalidationTransport#send(byte[])
+     */
+    public void send(byte[] message)
+    {
+        List receivers;
+        synchronized (transports)
+        {
+            receivers = new ArrayList(transports);
+        }
+        for (Iterator it = receivers.iterator(); it.hasNext();)
+        {
+            LoopbackInvalidationTransport transport
+                    = (LoopbackInvalidationTransport) it.next();
+            if (transport != this)
+            {
+                transport.bus.receive((byte[]) message.clone());
+            }
+        }
+    }
+
+    /**
+     * @return 0, the size of messages is not limited.
+     */
+    public int getMaxMessageSize()
+    {
+        return 0;
+    }
+
+    /**
+     * @see InvalidationTransport#stop()
+     */
+    public void stop()
+    {
+        synchronized (transports)
+        {
+            transports.remove(this);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Serializable;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * The storage used by a manager to cache its om instances.
+ * Implementations must be thread safe. put and remove must return
+ * the previous value atomically with respect to other modifications
+ * of the same key.
+ *
+ * The implementation used by a manager is configured by the key
+ * <code>torque.manager.cache.backend</code>, which can be overridden
+ * for a single manager by
+ * <code>torque.manager.cache.&lt;region&gt;.backend</code>.
+ *
+ * @version $Id$
+ * @see JCSManagerCache
+ * @see StripedLRUManagerCache
+ */
+public interface ManagerCache
+{
+    /**
+     * Returns the object cached for a key.
+     *
+     * @param key the cache key.
+     * @return the cached object, or null if no object is cached for the key.
+     */
+    Object get(Serializable key);
+
+    /**
+     * Caches an object.
+     *
+     * @param key the cache key.
+     * @param value the object to cache, not null.
+     * @return the object previously cached for the key, or null.
+     * @throws TorqueException if the object cannot be cached.
+     */
+    Object put(Serializable key, Object value)
+        throws TorqueException;
+
+    /**
+     * Removes an object from the cache.
+     *
+     * @param key the cache key.
+     * @return the object previously cached for the key, or null.
+     * @throws TorqueException if the object cannot be removed.
+     */
+    Object remove(Serializable key)
+        throws TorqueException;
+
+    /**
+     * Removes all objects from the cache.
+     *
+     * @throws TorqueException if the cache cannot be cleared.
+     */
+    void clear()
+        throws TorqueException;
+
+    /**
+     * Releases the resources held by the cache. The cache
+     * must not be used after this call.
+     */
+    void dispose();
+}
@@ -20,6 +20,9 @@ package org.apache.torque.manager;
  */
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.torque.TorqueException;
@@ -34,6 +37,14 @@ public class MethodCacheKey implements Serializable
      */
     private static final long serialVersionUID = -1831486431185021200L;
 
+    /**
+     * The group keys of static methods, i.e. of keys whose instanceOrClass
+     * is a class name or a Class. Maps instanceOrClass to a Map from
+     * the method name to the group key. The maps are never modified
+     * after they are published, so they can be read without locking.
+     */
+    private static volatile Map staticGroupKeys = new HashMap();
+
     int n;
     private Serializable instanceOrClass;
     private String method;
@@ -43,6 +54,13 @@ public class MethodCacheKey implements Serializable
     private Serializable[] moreThanThree;
     private String groupKey;
 
+    /**
+     * The hash code of the key, or 0 if it is not computed yet.
+     * Not serialized because the hash codes of the components
+     * may differ between virtual machines.
+     */
+    private transient int hash;
+
     public MethodCacheKey()
     {
     }
@@ -88,7 +106,8 @@ public class MethodCacheKey implements Serializable
         n = 0;
         this.instanceOrClass = instanceOrClass;
         this.method = method;
-        groupKey = instanceOrClass.toString() + method;
+        groupKey = getGroupKey(instanceOrClass, method);
+        hash = 0;
     }
 
     /**
@@ -182,63 +201,110 @@ public class MethodCacheKey implements Serializable
         return groupKey;
     }
 
-    public boolean equals(Object obj)
+    /**
+     * Returns the group key for a method. The group keys of static methods
+     * are computed once and reused, so that looking up the result
+     * of a static method does not create a new String.
+     *
+     * @param instanceOrClass the Object on which the method is invoked.  if
+     * the method is static, a String representing the class name is used.
+     * @param method the method name
+     * @return the group key, i.e. instanceOrClass.toString() + method
+     */
+    static String getGroupKey(Serializable instanceOrClass, String method)
     {
-        boolean equal = false;
-        if (obj instanceof MethodCacheKey)
+        if (!(instanceOrClass instanceof String
+                || instanceOrClass instanceof Class))
+        {
+            return instanceOrClass.toString() + method;
+        }
+        Map methods = (Map) staticGroupKeys.get(instanceOrClass);
+        if (methods != null)
         {
-            MethodCacheKey sck = (MethodCacheKey) obj;
-            equal = (sck.n == n);
-            equal &= ObjectUtils.equals(sck.method, method);
-            equal &= ObjectUtils.equals(sck.instanceOrClass, instanceOrClass);
-            if (equal && n > 0)
+            String groupKey = (String) methods.get(method);
+            if (groupKey != null)
             {
-                equal &= ObjectUtils.equals(sck.arg1, arg1);
-                if (equal && n > 1)
-                {
-                    equal &= ObjectUtils.equals(sck.arg2, arg2);
-                    if (equal && n > 2)
-                    {
-                        equal &= ObjectUtils.equals(sck.arg3, arg3);
-                        if (equal && n > 3)
-                        {
-                            for (int i = 5; i < n + 2; i++)
-                            {
-                                equal &= ObjectUtils.equals(
-                                        sck.moreThanThree[i], moreThanThree[i]);
-                            }
-                        }
-                    }
-                }
+                return groupKey;
             }
         }
+        return addStaticGroupKey(instanceOrClass, method);
+    }
 
-        return equal;
+    /**
+     * Computes the group key of a static method and adds it to the
+     * known group keys. The maps are copied, so that readers
+     * never see a map which is being modified.
+     *
+     * @param instanceOrClass a class name or a Class.
+     * @param method the method name
+     * @return the group key
+     */
+    private static synchronized String addStaticGroupKey(
+            Serializable instanceOrClass, String method)
+    {
+        Map methods = (Map) staticGroupKeys.get(instanceOrClass);
+        String groupKey = (methods == null)
+                ? null : (String) methods.get(method);
+        if (groupKey == null)
+        {
+            groupKey = instanceOrClass.toString() + method;
+            methods = (methods == null)
+                    ? new HashMap() : new HashMap(methods);
+            methods.put(method, groupKey);
+            Map newGroupKeys = new HashMap(staticGroupKeys);
+            newGroupKeys.put(instanceOrClass, methods);
+            staticGroupKeys = newGroupKeys;
+        }
+        return groupKey;
     }
 
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+        {
+            return true;
+        }
+        if (!(obj instanceof MethodCacheKey))
+        {
+            return false;
+        }
+        MethodCacheKey sck = (MethodCacheKey) obj;
+        if (sck.n != n
+                || (hash != 0 && sck.hash != 0 && hash != sck.hash)
+                || !ObjectUtils.equals(sck.method, method)
+                || !ObjectUtils.equals(sck.instanceOrClass, instanceOrClass))
+        {
+            return false;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            if (!ObjectUtils.equals(sck.getArg(i), getArg(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a hash code which depends on the order of the arguments,
+     * so that keys whose arguments are permutations of each other
+     * usually have different hash codes. The hash code is computed once.
+     *
+     * @return the hash code of the key.
+     */
     public int hashCode()
     {
-        int h = instanceOrClass.hashCode();
-        h += method.hashCode();
-        if (n > 0)
+        int h = hash;
+        if (h == 0)
         {
-            h += (arg1 == null ? 0 : arg1.hashCode());
-            if (n > 1)
+            h = ObjectUtils.hashCode(instanceOrClass);
+            h = 31 * h + ObjectUtils.hashCode(method);
+            for (int i = 0; i < n; i++)
             {
-                h += (arg2 == null ? 0 : arg2.hashCode());
-                if (n > 2)
-                {
-                    h += (arg3 == null ? 0 : arg3.hashCode());
-                    if (n > 3)
-                    {
-                        for (int i = 5; i < n + 2; i++)
-                        {
-                            h += (moreThanThree[i] == null ? 0
-                                    : moreThanThree[i].hashCode());
-                        }
-                    }
-                }
+                h = 31 * h + ObjectUtils.hashCode(getArg(i));
             }
+            hash = h;
         }
         return h;
     }
@@ -249,31 +315,74 @@ public class MethodCacheKey implements Serializable
         sb.append(instanceOrClass);
         sb.append("::");
         sb.append(method).append('(');
-        if (n > 0)
+        for (int i = 0; i < n; i++)
         {
-           sb.append(arg1);
-           if (n > 1)
-           {
-               sb.append(", ").append(arg2);
-               if (n > 2)
-               {
-                   sb.append(", ").append(arg3);
-                   if (n > 3)
-                   {
-                       for (int i = 5; i < n + 2; i++)
-                       {
-                           sb.append(", ").append(moreThanThree[i]);
-                       }
-                   }
-               }
-           }
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(getArg(i));
         }
         sb.append(')');
         return sb.toString();
     }
 
+    /**
+     * Returns whether the leading method arguments of this key
+     * equal the given values.
+     *
+     * @param argPrefix the values of the leading arguments.
+     * @return true if the key has at least as many arguments as
+     *         argPrefix and its leading arguments are equal
+     *         to argPrefix, false otherwise.
+     */
+    boolean hasArgPrefix(Serializable[] argPrefix)
+    {
+        if (argPrefix.length > n)
+        {
+            return false;
+        }
+        for (int i = 0; i < argPrefix.length; i++)
+        {
+            if (!ObjectUtils.equals(argPrefix[i], getArg(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a method argument of the key.
+     *
+     * @param i the index of the argument, starting with 0.
+     *        Must be smaller than the number of arguments.
+     * @return the argument, may be null.
+     */
+    private Serializable getArg(int i)
+    {
+        switch (i)
+        {
+        case 0:
+            return arg1;
+        case 1:
+            return arg2;
+        case 2:
+            return arg3;
+        default:
+            // moreThanThree contains instanceOrClass and method
+            // before the arguments
+            return moreThanThree[i + 2];
+        }
+    }
+
     // ************* PoolableObjectFactory implementation *******************
 
+    /**
+     * @deprecated MethodResultCache does not pool its keys any more,
+     *             creating a key is cheaper than borrowing it from a pool.
+     *             Will be removed in a future version of Torque.
+     */
     public static class Factory
         extends BasePoolableObjectFactory
     {
@@ -307,6 +416,7 @@ public class MethodCacheKey implements Serializable
             key.arg3 = null;
             key.moreThanThree = null;
             key.groupKey = null;
+            key.hash = 0;
         }
     }
 }
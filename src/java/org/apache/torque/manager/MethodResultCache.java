@@ -20,11 +20,14 @@ package org.apache.torque.manager;
  */
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.StackObjectPool;
+import java.util.Set;
 
 import org.apache.jcs.access.GroupCacheAccess;
 import org.apache.jcs.access.exception.CacheException;
@@ -38,15 +41,26 @@ import org.apache.torque.TorqueException;
  * This class provides a cache for convenient storage of method
  * results.
  *
+ * The results of each method, i.e. each combination of instanceOrClass
+ * and method name, form a group. Besides the JCS group, the cache keeps an
+ * index of the keys in each group, which allows to invalidate the results
+ * for given leading arguments, e.g. all results for a foreign key value,
+ * see {@link #removeAll(Serializable, String, Serializable[])}.
+ * Modifications lock only the group they affect.
+ *
  * @author <a href="mailto:jmcnally@collab.net">John McNally</a>
  * @version $Id$
  */
 public class MethodResultCache
 {
-    private ObjectPool pool;
     private GroupCacheAccess jcsCache;
+
+    /** The index of the groups, keyed by the group key. */
     private Map groups;
 
+    /** The statistics of the cache. */
+    private CacheStatistics statistics;
+
     /** Logging */
     private static Log log = LogFactory.getLog(MethodResultCache.class);
 
@@ -55,7 +69,9 @@ public class MethodResultCache
     {
         this.jcsCache = cache;
         groups = new HashMap();
-        pool = new StackObjectPool(new MethodCacheKey.Factory(), 10000);
+        statistics = new Statistics(
+                (cache == null) ? null
+                        : cache.getCacheAttributes().getCacheName());
     }
 
     /**
@@ -65,6 +81,18 @@ public class MethodResultCache
      */
     protected MethodResultCache()
     {
+        statistics = new CacheStatistics(null);
+    }
+
+    /**
+     * Returns the statistics of the cache. Loads are not counted,
+     * as the method results are computed by the callers.
+     *
+     * @return the statistics, not null.
+     */
+    public CacheStatistics getStatistics()
+    {
+        return statistics;
     }
 
     public void clear()
@@ -74,7 +102,20 @@ public class MethodResultCache
             try
             {
                 jcsCache.clear();
-                groups.clear();
+                List removed;
+                synchronized (groups)
+                {
+                    removed = new ArrayList(groups.values());
+                    groups.clear();
+                }
+                for (Iterator it = removed.iterator(); it.hasNext();)
+                {
+                    Group group = (Group) it.next();
+                    synchronized (group)
+                    {
+                        group.invalidate();
+                    }
+                }
             }
             catch (CacheException ce)
             {
@@ -89,10 +130,8 @@ public class MethodResultCache
         Object result = null;
         if (jcsCache != null)
         {
-            synchronized (this)
-            {
-                result = jcsCache.getFromGroup(key, key.getGroupKey());
-            }
+            result = jcsCache.getFromGroup(key, key.getGroupKey());
+            statistics.recordLookup(result != null);
         }
 
         if (result != null)
@@ -109,22 +148,26 @@ public class MethodResultCache
     protected Object putImpl(MethodCacheKey key, Object value)
         throws TorqueException
     {
-        //register the group, if this is the first occurrence
-        String group = key.getGroupKey();
-        if (!groups.containsKey(group))
-        {
-            groups.put(group, null);
-        }
-
         Object old = null;
         if (jcsCache != null)
         {
+            String groupKey = key.getGroupKey();
             try
             {
-                synchronized (this)
+                while (true)
                 {
-                    old = jcsCache.getFromGroup(key, group);
-                    jcsCache.putInGroup(key, group, value);
+                    Group group = getGroup(groupKey, true);
+                    synchronized (group)
+                    {
+                        // retry if the group was invalidated meanwhile
+                        if (group.isValid())
+                        {
+                            old = jcsCache.getFromGroup(key, groupKey);
+                            jcsCache.putInGroup(key, groupKey, value);
+                            group.add(key);
+                            break;
+                        }
+                    }
                 }
             }
             catch (CacheException ce)
@@ -142,15 +185,46 @@ public class MethodResultCache
         Object old = null;
         if (jcsCache != null)
         {
-            synchronized (this)
+            String groupKey = key.getGroupKey();
+            Group group = getGroup(groupKey, false);
+            if (group == null)
+            {
+                old = jcsCache.getFromGroup(key, groupKey);
+                jcsCache.remove(key, groupKey);
+            }
+            else
             {
-                old = jcsCache.getFromGroup(key, key.getGroupKey());
-                jcsCache.remove(key, key.getGroupKey());
+                synchronized (group)
+                {
+                    old = jcsCache.getFromGroup(key, groupKey);
+                    jcsCache.remove(key, groupKey);
+                    group.remove(key);
+                }
             }
         }
         return old;
     }
 
+    /**
+     * Returns the index of a group.
+     *
+     * @param groupKey the key of the group.
+     * @param create whether the group should be created if it does not exist.
+     * @return the group, or null if it does not exist and create is false.
+     */
+    private Group getGroup(String groupKey, boolean create)
+    {
+        synchronized (groups)
+        {
+            Group group = (Group) groups.get(groupKey);
+            if (group == null && create)
+            {
+                group = new Group(groupKey);
+                groups.put(groupKey, group);
+            }
+            return group;
+        }
+    }
 
     public Object get(Serializable instanceOrClass, String method)
     {
@@ -159,18 +233,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method);
                 result = getImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -188,18 +253,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1);
                 result = getImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -217,18 +273,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1, arg2);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1, arg2);
                 result = getImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -247,18 +294,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1, arg2, arg3);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1, arg2, arg3);
                 result = getImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -275,18 +313,8 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(keys);
+                MethodCacheKey key = new MethodCacheKey(keys);
                 result = getImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -300,8 +328,7 @@ public class MethodResultCache
     {
         try
         {
-            MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-            key.init(instanceOrClass, method);
+            MethodCacheKey key = new MethodCacheKey(instanceOrClass, method);
             putImpl(key, value);
         }
         catch (Exception e)
@@ -315,8 +342,8 @@ public class MethodResultCache
     {
         try
         {
-            MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-            key.init(instanceOrClass, method, arg1);
+            MethodCacheKey key = new MethodCacheKey(
+                    instanceOrClass, method, arg1);
             putImpl(key, value);
         }
         catch (Exception e)
@@ -330,8 +357,8 @@ public class MethodResultCache
     {
         try
         {
-            MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-            key.init(instanceOrClass, method, arg1, arg2);
+            MethodCacheKey key = new MethodCacheKey(
+                    instanceOrClass, method, arg1, arg2);
             putImpl(key, value);
         }
         catch (Exception e)
@@ -345,8 +372,8 @@ public class MethodResultCache
     {
         try
         {
-            MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-            key.init(instanceOrClass, method, arg1, arg2, arg3);
+            MethodCacheKey key = new MethodCacheKey(
+                    instanceOrClass, method, arg1, arg2, arg3);
             putImpl(key, value);
         }
         catch (Exception e)
@@ -359,8 +386,7 @@ public class MethodResultCache
     {
         try
         {
-            MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-            key.init(keys);
+            MethodCacheKey key = new MethodCacheKey(keys);
             putImpl(key, value);
         }
         catch (Exception e)
@@ -370,26 +396,78 @@ public class MethodResultCache
     }
 
 
+    /**
+     * Removes all cached method results. Unlike {@link #clear()}, this
+     * keeps other objects in the JCS region, e.g. the om's cached
+     * by the manager.
+     */
+    public void removeAll()
+    {
+        removeAllExcept(Collections.EMPTY_SET);
+    }
+
+    /**
+     * Removes the cached results of all methods except the given ones.
+     *
+     * @param groupKeys the group keys of the methods whose results are
+     *        kept, see {@link MethodCacheKey#getGroupKey()}.
+     */
+    public void removeAllExcept(Set groupKeys)
+    {
+        if (jcsCache != null)
+        {
+            List removed = new ArrayList();
+            synchronized (groups)
+            {
+                for (Iterator it = groups.values().iterator(); it.hasNext();)
+                {
+                    Group group = (Group) it.next();
+                    if (!groupKeys.contains(group.groupKey))
+                    {
+                        removed.add(group);
+                        it.remove();
+                    }
+                }
+            }
+            for (Iterator it = removed.iterator(); it.hasNext();)
+            {
+                Group group = (Group) it.next();
+                synchronized (group)
+                {
+                    jcsCache.invalidateGroup(group.groupKey);
+                    group.invalidate();
+                }
+            }
+            statistics.recordInvalidations(removed.size());
+        }
+    }
+
     public void removeAll(Serializable instanceOrClass, String method)
     {
         if (jcsCache != null)
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method);
-                String groupName = key.getGroupKey();
-                jcsCache.invalidateGroup(groupName);
-                groups.remove(groupName);
-                try
+                String groupKey = MethodCacheKey.getGroupKey(
+                        instanceOrClass, method);
+                Group group;
+                synchronized (groups)
+                {
+                    group = (Group) groups.remove(groupKey);
+                }
+                if (group == null)
                 {
-                    pool.returnObject(key);
+                    jcsCache.invalidateGroup(groupKey);
                 }
-                catch (Exception e)
+                else
                 {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
+                    synchronized (group)
+                    {
+                        jcsCache.invalidateGroup(groupKey);
+                        group.invalidate();
+                    }
                 }
+                statistics.recordInvalidations(1);
             }
             catch (Exception e)
             {
@@ -398,6 +476,61 @@ public class MethodResultCache
         }
     }
 
+    /**
+     * Removes the cached results of a method whose first argument
+     * equals the given value, e.g. all results for a foreign key value.
+     *
+     * @param instanceOrClass the Object on which the method is invoked.  if
+     * the method is static, a String representing the class name is used.
+     * @param method the method name
+     * @param arg1 the value of the first argument, may be null
+     */
+    public void removeAll(Serializable instanceOrClass, String method,
+                          Serializable arg1)
+    {
+        removeAll(instanceOrClass, method, new Serializable[] {arg1});
+    }
+
+    /**
+     * Removes the cached results of a method whose leading arguments
+     * equal the given values. Results of the method with other arguments
+     * remain cached.
+     *
+     * @param instanceOrClass the Object on which the method is invoked.  if
+     * the method is static, a String representing the class name is used.
+     * @param method the method name
+     * @param argPrefix the values of the leading arguments, elements
+     *        may be null
+     */
+    public void removeAll(Serializable instanceOrClass, String method,
+                          Serializable[] argPrefix)
+    {
+        if (jcsCache != null)
+        {
+            String groupKey = MethodCacheKey.getGroupKey(
+                    instanceOrClass, method);
+            Group group = getGroup(groupKey, false);
+            if (group == null)
+            {
+                return;
+            }
+            int removed = 0;
+            synchronized (group)
+            {
+                for (Iterator it = group.iterator(); it.hasNext();)
+                {
+                    MethodCacheKey key = (MethodCacheKey) it.next();
+                    if (key.hasArgPrefix(argPrefix))
+                    {
+                        jcsCache.remove(key, groupKey);
+                        it.remove();
+                        removed++;
+                    }
+                }
+            }
+            statistics.recordInvalidations(removed);
+        }
+    }
 
     public Object remove(Serializable instanceOrClass, String method)
     {
@@ -406,18 +539,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method);
                 result = removeImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -435,18 +559,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1);
                 result = removeImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -464,18 +579,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1, arg2);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1, arg2);
                 result = removeImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error: Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -494,18 +600,9 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(instanceOrClass, method, arg1, arg2, arg3);
+                MethodCacheKey key = new MethodCacheKey(
+                        instanceOrClass, method, arg1, arg2, arg3);
                 result = removeImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error.  Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -522,18 +619,8 @@ public class MethodResultCache
         {
             try
             {
-                MethodCacheKey key = (MethodCacheKey) pool.borrowObject();
-                key.init(keys);
+                MethodCacheKey key = new MethodCacheKey(keys);
                 result = removeImpl(key);
-                try
-                {
-                    pool.returnObject(key);
-                }
-                catch (Exception e)
-                {
-                    log.warn(
-                        "Nonfatal error: Could not return key to pool", e);
-                }
             }
             catch (Exception e)
             {
@@ -542,4 +629,142 @@ public class MethodResultCache
         }
         return result;
     }
+
+    /**
+     * The index of the keys in a group. Guarded by its own monitor.
+     */
+    private final class Group
+    {
+        /** The minimum number of keys before stale keys are pruned. */
+        private static final int MIN_PRUNE_SIZE = 64;
+
+        /** The key of the group. */
+        private String groupKey;
+
+        /** The keys of the cached results in the group. */
+        private Set keys = new HashSet();
+
+        /** The number of keys at which stale keys are pruned next. */
+        private int pruneSize = MIN_PRUNE_SIZE;
+
+        /** Whether the group is still registered in the index. */
+        private boolean valid = true;
+
+        /**
+         * Creates a group.
+         *
+         * @param groupKey the key of the group.
+         */
+        Group(String groupKey)
+        {
+            this.groupKey = groupKey;
+        }
+
+        /**
+         * @return whether the group is still registered in the index.
+         */
+        boolean isValid()
+        {
+            return valid;
+        }
+
+        /**
+         * Marks the group as removed from the index.
+         */
+        void invalidate()
+        {
+            valid = false;
+            keys.clear();
+        }
+
+        /**
+         * Adds a key to the group. If the group has grown
+         * considerably, keys whose results were evicted by JCS
+         * are removed. The cached keys are determined from the
+         * key set of the JCS group, as getting the results would
+         * change their position in the LRU order of JCS.
+         *
+         * @param key the key to add.
+         */
+        void add(MethodCacheKey key)
+        {
+            keys.add(key);
+            if (keys.size() >= pruneSize)
+            {
+                int size = keys.size();
+                keys.retainAll(jcsCache.getGroupKeys(groupKey));
+                statistics.recordEvictions(size - keys.size());
+                pruneSize = Math.max(MIN_PRUNE_SIZE, 2 * keys.size());
+            }
+        }
+
+        /**
+         * @return the number of keys in the group.
+         */
+        int size()
+        {
+            return keys.size();
+        }
+
+        /**
+         * Removes a key from the group.
+         *
+         * @param key the key to remove.
+         */
+        void remove(MethodCacheKey key)
+        {
+            keys.remove(key);
+        }
+
+        /**
+         * @return an iterator over the keys of the group, which supports
+         *         removal.
+         */
+        Iterator iterator()
+        {
+            return keys.iterator();
+        }
+    }
+
+    /**
+     * The statistics of the cache, which determine the size from
+     * the index of the groups.
+     */
+    private final class Statistics extends CacheStatistics
+    {
+        /**
+         * Creates the statistics.
+         *
+         * @param name the name of the JCS region.
+         */
+        Statistics(String name)
+        {
+            super(name);
+        }
+
+        /**
+         * Returns the number of indexed keys. Results which JCS has
+         * evicted are counted until their group is pruned.
+         *
+         * @see CacheStatisticsMBean#getSize()
+         */
+        public int getSize()
+        {
+            List groupList;
+            synchronized (groups)
+            {
+                groupList = new ArrayList(groups.values());
+            }
+            int size = 0;
+            for (Iterator it = groupList.iterator(); it.hasNext();)
+            {
+                Group group = (Group) it.next();
+                synchronized (group)
+                {
+                    size += group.size();
+                }
+            }
+            return size;
+        }
+    }
 }
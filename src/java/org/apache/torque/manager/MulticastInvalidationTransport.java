@@ -0,0 +1,197 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * An InvalidationTransport which sends the messages as UDP multicast
+ * datagrams. All nodes of a cluster must use the same group address
+ * and port. Delivery is unreliable; a lost message leaves stale entries
+ * on a node until they expire, so caches which are shared by a cluster
+ * should also have a time to live.
+ *
+ * The transport is configured by the properties
+ * <code>torque.manager.invalidation.multicast.address</code>,
+ * <code>.port</code> and <code>.ttl</code>.
+ *
+ * @version $Id$
+ */
+public class MulticastInvalidationTransport implements InvalidationTransport
+{
+    /** The key for the multicast group address. */
+    public static final String ADDRESS_KEY = "multicast.address";
+
+    /** The key for the port. */
+    public static final String PORT_KEY = "multicast.port";
+
+    /** The key for the time to live of the datagrams. */
+    public static final String TTL_KEY = "multicast.ttl";
+
+    /** The default multicast group address. */
+    public static final String DEFAULT_ADDRESS = "230.0.0.1";
+
+    /** The default port. */
+    public static final int DEFAULT_PORT = 4446;
+
+    /** The default time to live, i.e. the datagrams stay in the subnet. */
+    public static final int DEFAULT_TTL = 1;
+
+    /** The maximum size of a datagram, slightly below the UDP limit. */
+    public static final int MAX_MESSAGE_SIZE = 65000;
+
+    /** The log. */
+    private static Log log
+            = LogFactory.getLog(MulticastInvalidationTransport.class);
+
+    /** The socket, or null if the transport is not started. */
+    private MulticastSocket socket;
+
+    /** The multicast group. */
+    private InetAddress group;
+
+    /** The port. */
+    private int port;
+
+    /** Whether the transport is running. */
+    private volatile boolean running = false;
+
+    /**
+     * Joins the multicast group and starts a daemon thread
+     * which receives the messages.
+     *
+     * @see InvalidationTransport#start(InvalidationBus, Configuration)
+     */
+    public void start(final InvalidationBus bus, Configuration conf)
+        throws TorqueException
+    {
+        String address = conf.getString(ADDRESS_KEY, DEFAULT_ADDRESS);
+        port = conf.getInt(PORT_KEY, DEFAULT_PORT);
+        try
+        {
+            group = InetAddress.getByName(address);
+            socket = new MulticastSocket(port);
+            socket.setTimeToLive(conf.getInt(TTL_KEY, DEFAULT_TTL));
+            socket.joinGroup(group);
+        }
+        catch (IOException e)
+        {
+            throw new TorqueException("Could not join multicast group "
+                    + address + ":" + port, e);
+        }
+        running = true;
+
+        Thread receiver = new Thread("Torque invalidation receiver")
+        {
+            public void run()
+            {
+                byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+                while (running)
+                {
+                    DatagramPacket packet
+                            = new DatagramPacket(buffer, buffer.length);
+                    try
+                    {
+                        socket.receive(packet);
+                    }
+                    catch (IOException e)
+                    {
+                        if (running)
+                        {
+                            log.warn("Could not receive invalidation", e);
+                        }
+                        continue;
+                    }
+                    byte[] message = new byte[packet.getLength()];
+                    System.arraycopy(
+                            packet.getData(),
+                            packet.getOffset(),
+                            message,
+                            0,
+                            message.length);
+                    bus.receive(message);
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        log.info("Sending cache invalidations to " + address + ":" + port);
+    }
+
+    /**
+     * @see InvalidationTransport#send(byte[])
+     */
+    public void send(byte[] message)
+        throws TorqueException
+    {
+        try
+        {
+            socket.send(new DatagramPacket(
+                    message, message.length, group, port));
+        }
+        catch (IOException e)
+        {
+            throw new TorqueException("Could not send invalidation", e);
+        }
+    }
+
+    /**
+     * @return the maximum size of a datagram.
+     */
+    public int getMaxMessageSize()
+    {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Leaves the multicast group and closes the socket,
+     * which also ends the receiving thread.
+     *
+     * @see InvalidationTransport#stop()
+     */
+    public void stop()
+    {
+        if (socket == null)
+        {
+            return;
+        }
+        running = false;
+        try
+        {
+            socket.leaveGroup(group);
+        }
+        catch (IOException e)
+        {
+            log.debug("Could not leave multicast group", e);
+        }
+        socket.close();
+        socket = null;
+    }
+}
@@ -0,0 +1,198 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.Serializable;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * Remembers the primary keys for which a manager found no row in
+ * persistent storage, so that repeated lookups of missing objects do not
+ * hit the database. The keys are forgotten after a short time to live,
+ * if the cache is full, or if an object with the key is cached.
+ *
+ * A key is only remembered if no key of the manager was invalidated
+ * while it was looked up, so that a lookup which overlaps with an insert
+ * cannot hide the inserted row.
+ *
+ * @version $Id$
+ */
+final class NegativeResultCache
+{
+    /** The result of a lookup of a key which is not known to be missing. */
+    static final int UNKNOWN = 0;
+
+    /** The result of a lookup of a key for which no row was found. */
+    static final int NO_ROW = 1;
+
+    /**
+     * The result of a lookup of a key for which retrieveStoredOM
+     * returned null.
+     */
+    static final int NULL_RESULT = 2;
+
+    /** The cache which holds the entries. */
+    private ManagerCache delegate;
+
+    /** The time to live of an entry, in milliseconds. */
+    private long timeToLive;
+
+    /** Counts how often keys were invalidated. */
+    private long generation = 0;
+
+    /**
+     * Creates a negative result cache.
+     *
+     * @param maxSize the maximum number of remembered keys.
+     * @param stripeCount the number of independently locked stripes.
+     * @param timeToLive the time to live of an entry, in milliseconds.
+     */
+    NegativeResultCache(int maxSize, int stripeCount, long timeToLive)
+    {
+        this.delegate = new StripedLRUManagerCache(maxSize, stripeCount);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the current generation, which must be passed to
+     * {@link #put(Serializable, boolean, long)} for a key which was
+     * looked up afterwards.
+     *
+     * @return the current generation.
+     */
+    synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Checks whether a key is known to be missing.
+     *
+     * @param key the primary key.
+     * @return UNKNOWN, NO_ROW or NULL_RESULT.
+     * @throws TorqueException if an expired entry cannot be removed.
+     */
+    int get(Serializable key)
+        throws TorqueException
+    {
+        Entry entry = (Entry) delegate.get(key);
+        if (entry == null)
+        {
+            return UNKNOWN;
+        }
+        if (System.currentTimeMillis() >= entry.expiryTime)
+        {
+            delegate.remove(key);
+            return UNKNOWN;
+        }
+        return entry.nullResult ? NULL_RESULT : NO_ROW;
+    }
+
+    /**
+     * Remembers that a key is missing, unless a key was invalidated
+     * since the given generation.
+     *
+     * @param key the primary key.
+     * @param nullResult true if retrieveStoredOM returned null,
+     *        false if it found no row.
+     * @param lookupGeneration the generation before the lookup started.
+     * @throws TorqueException if the key cannot be stored.
+     */
+    synchronized void put(
+            Serializable key,
+            boolean nullResult,
+            long lookupGeneration)
+        throws TorqueException
+    {
+        if (lookupGeneration == generation)
+        {
+            delegate.put(key, new Entry(
+                    nullResult, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * Forgets that a key is missing because its object was found.
+     * Lookups of other keys are not affected.
+     *
+     * @param key the primary key.
+     * @throws TorqueException if the key cannot be removed.
+     */
+    void remove(Serializable key)
+        throws TorqueException
+    {
+        delegate.remove(key);
+    }
+
+    /**
+     * Forgets that a key is missing because its row may have been
+     * inserted. Keys which are currently looked up are not remembered.
+     *
+     * @param key the primary key.
+     * @throws TorqueException if the key cannot be removed.
+     */
+    synchronized void invalidate(Serializable key)
+        throws TorqueException
+    {
+        generation++;
+        delegate.remove(key);
+    }
+
+    /**
+     * Forgets all missing keys.
+     *
+     * @throws TorqueException if the keys cannot be removed.
+     */
+    synchronized void clear()
+        throws TorqueException
+    {
+        generation++;
+        delegate.clear();
+    }
+
+    /**
+     * A missing key together with its expiry time.
+     */
+    private static final class Entry implements Serializable
+    {
+        /** Serial version */
+        private static final long serialVersionUID = 1L;
+
+        /** Whether retrieveStoredOM returned null for the key. */
+        private final boolean nullResult;
+
+        /** The time when the entry expires. */
+        private final long expiryTime;
+
+        /**
+         * Creates an entry.
+         *
+         * @param nullResult whether retrieveStoredOM returned null.
+         * @param expiryTime the time when the entry expires.
+         */
+        Entry(boolean nullResult, long expiryTime)
+        {
+            this.nullResult = nullResult;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
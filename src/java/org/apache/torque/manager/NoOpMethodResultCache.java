@@ -20,6 +20,8 @@ package org.apache.torque.manager;
  */
 
 import java.io.Serializable;
+import java.util.Set;
+
 import org.apache.jcs.access.GroupCacheAccess;
 import org.apache.torque.TorqueException;
 
@@ -114,10 +116,28 @@ public class NoOpMethodResultCache
     }
 
 
+    public void removeAll()
+    {
+    }
+
+    public void removeAllExcept(Set groupKeys)
+    {
+    }
+
     public void removeAll(Serializable instanceOrClass, String method)
     {
     }
 
+    public void removeAll(Serializable instanceOrClass, String method,
+                          Serializable arg1)
+    {
+    }
+
+    public void removeAll(Serializable instanceOrClass, String method,
+                          Serializable[] argPrefix)
+    {
+    }
+
 
     public Object remove(Serializable instanceOrClass, String method)
     {
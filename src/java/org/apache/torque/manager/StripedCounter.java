@@ -0,0 +1,116 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+/**
+ * A counter which can be incremented by many threads with little
+ * contention. The count is split into cells, each guarded by its own
+ * monitor; a thread adds to the cell selected by its identity, and the
+ * value of the counter is the sum of all cells.
+ *
+ * @version $Id$
+ */
+final class StripedCounter
+{
+    /** The number of cells, must be a power of two. */
+    private static final int CELLS = 16;
+
+    /** The cells. */
+    private final Cell[] cells;
+
+    /**
+     * Creates a counter with the value 0.
+     */
+    StripedCounter()
+    {
+        cells = new Cell[CELLS];
+        for (int i = 0; i < CELLS; i++)
+        {
+            cells[i] = new Cell();
+        }
+    }
+
+    /**
+     * Adds 1 to the counter.
+     */
+    void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * Adds a value to the counter.
+     *
+     * @param x the value to add.
+     */
+    void add(long x)
+    {
+        int hash = System.identityHashCode(Thread.currentThread());
+        hash ^= (hash >>> 16);
+        Cell cell = cells[hash & (CELLS - 1)];
+        synchronized (cell)
+        {
+            cell.value += x;
+        }
+    }
+
+    /**
+     * Returns the value of the counter. Additions which happen
+     * concurrently may or may not be included.
+     *
+     * @return the sum of all cells.
+     */
+    long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++)
+        {
+            synchronized (cells[i])
+            {
+                sum += cells[i].value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the counter to 0.
+     */
+    void reset()
+    {
+        for (int i = 0; i < CELLS; i++)
+        {
+            synchronized (cells[i])
+            {
+                cells[i].value = 0;
+            }
+        }
+    }
+
+    /**
+     * A part of the count.
+     */
+    private static final class Cell
+    {
+        /** The value of the cell. */
+        private long value;
+    }
+}
@@ -0,0 +1,249 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.Serializable;
+
+import org.apache.commons.collections.map.LRUMap;
+
+/**
+ * A bounded in-memory ManagerCache which is split into stripes.
+ * Each key belongs to one stripe, chosen by its hash code, and each stripe
+ * is a least recently used map guarded by its own lock. Accesses to
+ * keys in different stripes therefore do not contend, and put and remove
+ * are atomic per key. If a stripe is full, its least recently used
+ * entry is evicted.
+ *
+ * This backend is selected by setting
+ * <code>torque.manager.cache.backend = striped</code>. The total number
+ * of entries and the number of stripes are configured by
+ * <code>torque.manager.cache.maxSize</code> and
+ * <code>torque.manager.cache.stripes</code>.
+ *
+ * @version $Id$
+ */
+public class StripedLRUManagerCache implements ManagerCache
+{
+    /** The default maximum number of cached objects. */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** The default number of stripes. */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /** The stripes, each guarded by its own monitor. */
+    private LRUMap[] stripes;
+
+    /** The statistics which count evictions, or null. */
+    private CacheStatistics statistics;
+
+    /**
+     * Creates a cache with the default size and number of stripes.
+     */
+    public StripedLRUManagerCache()
+    {
+        this(DEFAULT_MAX_SIZE, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum number of cached objects, must be positive.
+     * @param stripeCount the number of stripes, must be positive.
+     *        It is reduced to maxSize if it is larger.
+     */
+    public StripedLRUManagerCache(int maxSize, int stripeCount)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "maxSize must be positive, but is " + maxSize);
+        }
+        if (stripeCount <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "stripeCount must be positive, but is " + stripeCount);
+        }
+        stripeCount = Math.min(stripeCount, maxSize);
+        stripes = new LRUMap[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+        {
+            // distribute the remainder over the first stripes
+            int stripeSize = maxSize / stripeCount
+                    + (i < maxSize % stripeCount ? 1 : 0);
+            stripes[i] = new Stripe(stripeSize);
+        }
+    }
+
+    /**
+     * @see ManagerCache#get(Serializable)
+     */
+    public Object get(Serializable key)
+    {
+        LRUMap stripe = getStripe(key);
+        synchronized (stripe)
+        {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * @see ManagerCache#put(Serializable, Object)
+     */
+    public Object put(Serializable key, Object value)
+    {
+        LRUMap stripe = getStripe(key);
+        synchronized (stripe)
+        {
+            return stripe.put(key, value);
+        }
+    }
+
+    /**
+     * @see ManagerCache#remove(Serializable)
+     */
+    public Object remove(Serializable key)
+    {
+        LRUMap stripe = getStripe(key);
+        synchronized (stripe)
+        {
+            return stripe.remove(key);
+        }
+    }
+
+    /**
+     * Removes all objects from the cache. The stripes are cleared
+     * one after the other, so concurrent puts into already cleared stripes
+     * are retained.
+     *
+     * @see ManagerCache#clear()
+     */
+    public void clear()
+    {
+        for (int i = 0; i < stripes.length; i++)
+        {
+            synchronized (stripes[i])
+            {
+                stripes[i].clear();
+            }
+        }
+    }
+
+    /**
+     * @see ManagerCache#dispose()
+     */
+    public void dispose()
+    {
+        clear();
+    }
+
+    /**
+     * Returns the number of cached objects.
+     *
+     * @return the number of cached objects.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++)
+        {
+            synchronized (stripes[i])
+            {
+                size += stripes[i].size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of cached objects.
+     *
+     * @return the maximum number of cached objects.
+     */
+    public int getMaxSize()
+    {
+        int maxSize = 0;
+        for (int i = 0; i < stripes.length; i++)
+        {
+            maxSize += stripes[i].maxSize();
+        }
+        return maxSize;
+    }
+
+    /**
+     * Sets the statistics which count the objects evicted because
+     * the cache is full.
+     *
+     * @param statistics the statistics, or null.
+     */
+    void setStatistics(CacheStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the stripe a key belongs to.
+     *
+     * @param key the cache key.
+     * @return the stripe of the key.
+     */
+    private LRUMap getStripe(Object key)
+    {
+        int hash = key.hashCode();
+        // spread the high bits, hash codes of keys often differ only there
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * A stripe, which reports evictions to the statistics.
+     */
+    private final class Stripe extends LRUMap
+    {
+        /** Serial version. */
+        private static final long serialVersionUID = 3298756329183743615L;
+
+        /**
+         * Creates a stripe.
+         *
+         * @param maxSize the maximum number of objects in the stripe.
+         */
+        Stripe(int maxSize)
+        {
+            super(maxSize);
+        }
+
+        /**
+         * Counts the eviction of the least recently used entry.
+         *
+         * @param entry the entry to evict.
+         * @return true, the entry is always evicted.
+         */
+        protected boolean removeLRU(LinkEntry entry)
+        {
+            CacheStatistics stats = statistics;
+            if (stats != null)
+            {
+                stats.recordEvictions(1);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.util.List;
+
+/**
+ * Is notified by the {@link TableChangeNotifier} if rows of a table
+ * are inserted, updated or deleted through BasePeer.
+ *
+ * @version $Id$
+ */
+public interface TableChangeListener
+{
+    /**
+     * Called after rows of a table were changed.
+     *
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known. An empty list means that
+     *        no existing rows were changed, e.g. if rows were inserted.
+     */
+    void tableChanged(String dbName, String tableName, List keys);
+}
@@ -0,0 +1,415 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.map.ReferenceIdentityMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Distributes notifications about changed tables to the registered
+ * {@link TableChangeListener}s. BasePeer publishes the inserts, updates
+ * and deletes it executes, and the managers use the notifications
+ * to evict the changed objects and their method results from their caches.
+ *
+ * Listeners are called synchronously by the thread which changed the
+ * table. Changes made through an autocommit connection are published
+ * right after the statement was executed. Changes made within a
+ * transaction are collected per connection and published by
+ * {@link #commit(Connection)}, or dropped by {@link #rollback(Connection)},
+ * so that other threads cannot reload the old rows into the caches
+ * before the transaction is committed. TransactionManager implementations
+ * must call these methods when they end a transaction.
+ *
+ * @version $Id$
+ */
+public final class TableChangeNotifier
+{
+    /** The log. */
+    private static Log log = LogFactory.getLog(TableChangeNotifier.class);
+
+    /**
+     * The listeners, keyed by table name. The values are Lists of
+     * TableChangeListeners. Neither the map nor the lists are modified
+     * after they are published, so they can be read without locking.
+     */
+    private static volatile Map listeners = new HashMap();
+
+    /**
+     * The listeners for changes of all tables. The list is not modified
+     * after it is published.
+     */
+    private static volatile List globalListeners = new ArrayList();
+
+    /**
+     * The changes of uncommitted transactions, keyed by Connection
+     * with identity semantics. The keys are weak, so that the changes of
+     * connections which are never committed or rolled back are dropped.
+     * The values are PendingChanges. Guarded by its own monitor.
+     */
+    private static final Map pendingChanges = new ReferenceIdentityMap(
+            ReferenceIdentityMap.WEAK, ReferenceIdentityMap.HARD);
+
+    /**
+     * Private constructor to prevent instantiation.
+     *
+     * Class contains only static method ans should therefore not be
+     * instantiated.
+     */
+    private TableChangeNotifier()
+    {
+    }
+
+    /**
+     * Registers a listener for changes of a table.
+     *
+     * @param tableName the name of the table.
+     * @param listener the listener to register.
+     */
+    public static synchronized void addListener(
+            String tableName,
+            TableChangeListener listener)
+    {
+        List tableListeners = (List) listeners.get(tableName);
+        tableListeners = (tableListeners == null)
+                ? new ArrayList() : new ArrayList(tableListeners);
+        if (!tableListeners.contains(listener))
+        {
+            tableListeners.add(listener);
+            Map newListeners = new HashMap(listeners);
+            newListeners.put(tableName, tableListeners);
+            listeners = newListeners;
+        }
+    }
+
+    /**
+     * Unregisters a listener for changes of a table.
+     *
+     * @param tableName the name of the table.
+     * @param listener the listener to unregister.
+     */
+    public static synchronized void removeListener(
+            String tableName,
+            TableChangeListener listener)
+    {
+        List tableListeners = (List) listeners.get(tableName);
+        if (tableListeners == null || !tableListeners.contains(listener))
+        {
+            return;
+        }
+        tableListeners = new ArrayList(tableListeners);
+        tableListeners.remove(listener);
+        Map newListeners = new HashMap(listeners);
+        if (tableListeners.isEmpty())
+        {
+            newListeners.remove(tableName);
+        }
+        else
+        {
+            newListeners.put(tableName, tableListeners);
+        }
+        listeners = newListeners;
+    }
+
+    /**
+     * Registers a listener for changes of all tables. Such listeners
+     * are only notified about changes made in this virtual machine,
+     * not about changes received from other nodes.
+     *
+     * @param listener the listener to register.
+     * @see InvalidationBus
+     */
+    public static synchronized void addListener(TableChangeListener listener)
+    {
+        if (!globalListeners.contains(listener))
+        {
+            List newListeners = new ArrayList(globalListeners);
+            newListeners.add(listener);
+            globalListeners = newListeners;
+        }
+    }
+
+    /**
+     * Unregisters a listener for changes of all tables.
+     *
+     * @param listener the listener to unregister.
+     */
+    public static synchronized void removeListener(
+            TableChangeListener listener)
+    {
+        if (globalListeners.contains(listener))
+        {
+            List newListeners = new ArrayList(globalListeners);
+            newListeners.remove(listener);
+            globalListeners = newListeners;
+        }
+    }
+
+    /**
+     * Unregisters all listeners.
+     */
+    public static synchronized void clear()
+    {
+        listeners = new HashMap();
+        globalListeners = new ArrayList();
+    }
+
+    /**
+     * Notifies the listeners of a table and the listeners for all tables
+     * that rows were changed.
+     * Exceptions thrown by listeners are logged and do not prevent
+     * the notification of the other listeners.
+     *
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known.
+     */
+    public static void fireTableChanged(
+            String dbName,
+            String tableName,
+            List keys)
+    {
+        notifyListeners(
+                (List) listeners.get(tableName), dbName, tableName, keys);
+        notifyListeners(globalListeners, dbName, tableName, keys);
+    }
+
+    /**
+     * Notifies the listeners that rows were changed through a connection.
+     * If the connection takes part in a transaction, the listeners are
+     * notified when the transaction is committed, otherwise immediately.
+     *
+     * @param con the connection which executed the change, or null
+     *        if the change is already committed.
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known.
+     */
+    public static void fireTableChanged(
+            Connection con,
+            String dbName,
+            String tableName,
+            List keys)
+    {
+        if (con != null && !isAutoCommit(con))
+        {
+            synchronized (pendingChanges)
+            {
+                PendingChanges changes
+                        = (PendingChanges) pendingChanges.get(con);
+                if (changes == null)
+                {
+                    changes = new PendingChanges();
+                    pendingChanges.put(con, changes);
+                }
+                changes.add(dbName, tableName, keys);
+            }
+            return;
+        }
+        fireTableChanged(dbName, tableName, keys);
+    }
+
+    /**
+     * Notifies the listeners about the changes made through a connection
+     * whose transaction was committed.
+     *
+     * @param con the connection whose transaction was committed.
+     */
+    public static void commit(Connection con)
+    {
+        PendingChanges changes;
+        synchronized (pendingChanges)
+        {
+            changes = (PendingChanges) pendingChanges.remove(con);
+        }
+        if (changes != null)
+        {
+            changes.fire();
+        }
+    }
+
+    /**
+     * Drops the changes made through a connection whose transaction
+     * was rolled back.
+     *
+     * @param con the connection whose transaction was rolled back.
+     */
+    public static void rollback(Connection con)
+    {
+        synchronized (pendingChanges)
+        {
+            pendingChanges.remove(con);
+        }
+    }
+
+    /**
+     * Checks whether changes made through a connection are committed
+     * immediately.
+     *
+     * @param con the connection.
+     * @return true if the connection is in autocommit mode or if its
+     *         state cannot be determined.
+     */
+    private static boolean isAutoCommit(Connection con)
+    {
+        try
+        {
+            return con.getAutoCommit();
+        }
+        catch (SQLException e)
+        {
+            log.debug("Could not determine the autocommit mode of "
+                    + con + ", publishing changes immediately", e);
+            return true;
+        }
+    }
+
+    /**
+     * Notifies the listeners of a table about a change which was made
+     * on another node. The listeners for all tables are not notified,
+     * so that the change is not sent back to the other nodes.
+     *
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known.
+     */
+    static void fireRemoteTableChanged(
+            String dbName,
+            String tableName,
+            List keys)
+    {
+        notifyListeners(
+                (List) listeners.get(tableName), dbName, tableName, keys);
+    }
+
+    /**
+     * Notifies listeners about a change of a table.
+     *
+     * @param tableListeners the listeners to notify, or null.
+     * @param dbName the name of the database containing the table.
+     * @param tableName the name of the changed table.
+     * @param keys the <code>ObjectKey</code>'s of the changed rows,
+     *        or null if they are not known.
+     */
+    private static void notifyListeners(
+            List tableListeners,
+            String dbName,
+            String tableName,
+            List keys)
+    {
+        if (tableListeners == null || tableListeners.isEmpty())
+        {
+            return;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Table " + tableName + " in database " + dbName
+                    + " changed, keys: " + keys);
+        }
+        for (Iterator it = tableListeners.iterator(); it.hasNext();)
+        {
+            TableChangeListener listener = (TableChangeListener) it.next();
+            try
+            {
+                listener.tableChanged(dbName, tableName, keys);
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Listener " + listener
+                        + " failed to process change of table " + tableName,
+                        e);
+            }
+        }
+    }
+
+    /**
+     * The changes made within a transaction, merged per table.
+     */
+    private static final class PendingChanges
+    {
+        /**
+         * The changes in the order of the first change of each table,
+         * keyed by database and table name. The values are
+         * Object[] { dbName, tableName, keys }, where keys is null
+         * if the changed rows are not known.
+         */
+        private Map changes = new LinkedHashMap();
+
+        /**
+         * Adds a change.
+         *
+         * @param dbName the name of the database containing the table.
+         * @param tableName the name of the changed table.
+         * @param keys the <code>ObjectKey</code>'s of the changed rows,
+         *        or null if they are not known.
+         */
+        void add(String dbName, String tableName, List keys)
+        {
+            String key = dbName + "|" + tableName;
+            Object[] change = (Object[]) changes.get(key);
+            if (change == null)
+            {
+                changes.put(key, new Object[] {
+                        dbName,
+                        tableName,
+                        (keys == null) ? null : new ArrayList(keys)});
+            }
+            else if (change[2] != null)
+            {
+                if (keys == null)
+                {
+                    change[2] = null;
+                }
+                else
+                {
+                    ((List) change[2]).addAll(keys);
+                }
+            }
+        }
+
+        /**
+         * Notifies the listeners about the changes.
+         */
+        void fire()
+        {
+            for (Iterator it = changes.values().iterator(); it.hasNext();)
+            {
+                Object[] change = (Object[]) it.next();
+                fireTableChanged(
+                        (String) change[0],
+                        (String) change[1],
+                        (List) change[2]);
+            }
+        }
+    }
+}
@@ -21,8 +21,8 @@ package org.apache.torque.oid;
 
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -106,6 +106,32 @@ public class IDBroker implements Runnable, IdGenerator
     /** Fully qualified Quantity column name */
     public static final String QUANTITY = ID_TABLE + "." + COL_QUANTITY;
 
+    /** SQL to read the row of a table in the ID_TABLE. */
+    private static final String SELECT_ROW_SQL = "SELECT " + COL_NEXT_ID
+            + ", " + COL_QUANTITY
+            + " FROM " + ID_TABLE
+            + " WHERE " + COL_TABLE_NAME + " = ?";
+
+    /**
+     * SQL to reserve a block of ids by increasing the NEXT_ID of a table
+     * in the ID_TABLE. This also obtains a write lock on the row.
+     */
+    private static final String INCREASE_NEXT_ID_SQL = "UPDATE " + ID_TABLE
+            + " SET " + COL_NEXT_ID + " = " + COL_NEXT_ID + " + ?"
+            + " WHERE " + COL_TABLE_NAME + " = ?";
+
+    /**
+     * SQL to reserve a block of ids and read the new NEXT_ID
+     * in a single statement.
+     */
+    private static final String INCREASE_NEXT_ID_RETURNING_SQL
+            = INCREASE_NEXT_ID_SQL + " RETURNING " + COL_NEXT_ID;
+
+    /** SQL to check whether a table has a row in the ID_TABLE. */
+    private static final String EXISTS_SQL = "SELECT " + COL_TABLE_NAME
+            + " FROM " + ID_TABLE
+            + " WHERE " + COL_TABLE_NAME + " = ?";
+
     /** the name of the database in which this IdBroker is running. */
     private String databaseName;
 
@@ -119,35 +145,38 @@ public class IDBroker implements Runnable, IdGenerator
      * The cached IDs for each table.
      *
      * Key: String table name.
-     * Value: List of Integer IDs.
+     * Value: TableIds containing the available ids.
      */
     private Hashtable ids = new Hashtable(DEFAULT_SIZE);
 
     /**
-     * The quantity of ids to grab for each table.
-     *
-     * Key: String table name.
-     * Value: Integer quantity.
+     * Amount of time for the thread to sleep
      */
-    private Hashtable quantityStore = new Hashtable(DEFAULT_SIZE);
+    private static final int SLEEP_PERIOD = 60000;
 
     /**
-     * The last time this IDBroker queried the database for ids.
-     *
-     * Key: String table name.
-     * Value: Date of last id request.
+     * The safety Margin
      */
-    private Hashtable lastQueryTime = new Hashtable(DEFAULT_SIZE);
+    private static final float SAFETY_MARGIN = 1.2f;
 
     /**
-     * Amount of time for the thread to sleep
+     * The time constant in milliseconds of the moving average of the id
+     * rate. A sample covering this time has a weight of 1 - 1/e, shorter
+     * samples have less weight.
      */
-    private static final int SLEEP_PERIOD = 60000;
+    private static final double RATE_TIME_CONSTANT = SLEEP_PERIOD;
 
     /**
-     * The safety Margin
+     * The minimum time in milliseconds covered by a sample of the id rate.
+     * Ids taken within a shorter time are counted in the next sample,
+     * so that a burst of ids does not look like a high rate.
      */
-    private static final float SAFETY_MARGIN = 1.2f;
+    private static final long MIN_SAMPLE_INTERVAL = 1000;
+
+    /**
+     * The default maximum quantity if clever quantity is switched on.
+     */
+    private static final int DEFAULT_MAX_QUANTITY = 10000;
 
     /**
      * The houseKeeperThread thread
@@ -159,11 +188,6 @@ public class IDBroker implements Runnable, IdGenerator
      */
     private boolean transactionsSupported = false;
 
-    /**
-     * The value of ONE!
-     */
-    private static final BigDecimal ONE = new BigDecimal("1");
-
     /** the configuration */
     private Configuration configuration;
 
@@ -175,10 +199,38 @@ public class IDBroker implements Runnable, IdGenerator
     private static final String DB_IDBROKER_PREFETCH =
         "idbroker.prefetch";
 
+    /** property name */
+    private static final String DB_IDBROKER_MINQUANTITY =
+        "idbroker.clever.quantity.min";
+
+    /** property name */
+    private static final String DB_IDBROKER_MAXQUANTITY =
+        "idbroker.clever.quantity.max";
+
     /** property name */
     private static final String DB_IDBROKER_USENEWCONNECTION =
         "idbroker.usenewconnection";
 
+    /** property name */
+    private static final String DB_IDBROKER_SINGLEROUNDTRIP =
+        "idbroker.singleroundtrip";
+
+    /** property name */
+    private static final String DB_IDBROKER_LOWWATERMARK =
+        "idbroker.prefetch.lowwatermark";
+
+    /**
+     * The default fraction of the quantity below which the next block
+     * of ids is fetched in the background.
+     */
+    private static final float DEFAULT_LOWWATERMARK = 0.25f;
+
+    /**
+     * The names of the tables for which the houseKeeperThread should
+     * fetch the next block of ids.
+     */
+    private List prefetchTables = new ArrayList();
+
     /** the log */
     private Log log = LogFactory.getLog(IDBroker.class);
 
@@ -301,7 +353,7 @@ public class IDBroker implements Runnable, IdGenerator
     public int getIdAsInt(Connection connection, Object tableName)
         throws Exception
     {
-        return getIdAsBigDecimal(connection, tableName).intValue();
+        return (int) getNextIdsAsLong((String) tableName, 1, connection)[0];
     }
 
 
@@ -320,7 +372,7 @@ public class IDBroker implements Runnable, IdGenerator
     public long getIdAsLong(Connection connection, Object tableName)
         throws Exception
     {
-        return getIdAsBigDecimal(connection, tableName).longValue();
+        return getNextIdsAsLong((String) tableName, 1, connection)[0];
     }
 
     /**
@@ -339,8 +391,8 @@ public class IDBroker implements Runnable, IdGenerator
                                         Object tableName)
         throws Exception
     {
-        BigDecimal[] id = getNextIds((String) tableName, 1, connection);
-        return id[0];
+        return BigDecimal.valueOf(
+                getNextIdsAsLong((String) tableName, 1, connection)[0]);
     }
 
     /**
@@ -358,7 +410,8 @@ public class IDBroker implements Runnable, IdGenerator
     public String getIdAsString(Connection connection, Object tableName)
         throws Exception
     {
-        return getIdAsBigDecimal(connection, tableName).toString();
+        return String.valueOf(
+                getNextIdsAsLong((String) tableName, 1, connection)[0]);
     }
 
 
@@ -400,8 +453,8 @@ public class IDBroker implements Runnable, IdGenerator
      * @return A BigDecimal.
      * @exception Exception Database error.
      */
-    public synchronized BigDecimal[] getNextIds(String tableName,
-                                                int numOfIdsToReturn)
+    public BigDecimal[] getNextIds(String tableName,
+                                   int numOfIdsToReturn)
         throws Exception
     {
         return getNextIds(tableName, numOfIdsToReturn, null);
@@ -420,9 +473,41 @@ public class IDBroker implements Runnable, IdGenerator
      * @return A BigDecimal.
      * @exception Exception Database error.
      */
-    public synchronized BigDecimal[] getNextIds(String tableName,
-                                                int numOfIdsToReturn,
-                                                Connection connection)
+    public BigDecimal[] getNextIds(String tableName,
+                                   int numOfIdsToReturn,
+                                   Connection connection)
+        throws Exception
+    {
+        long[] nextIds = getNextIdsAsLong(
+                tableName, numOfIdsToReturn, connection);
+        BigDecimal[] results = new BigDecimal[nextIds.length];
+        for (int i = 0; i < nextIds.length; i++)
+        {
+            results[i] = BigDecimal.valueOf(nextIds[i]);
+        }
+        return results;
+    }
+
+    /**
+     * This method returns x number of ids for the given table as
+     * primitive longs, in ascending order.
+     * Only the requested table is locked while the ids are retrieved,
+     * so other tables are not blocked if the database must be accessed.
+     * Note this method does not require a Connection.
+     * If a Connection is needed one will be requested.
+     * To force the use of the passed in connection set the configuration
+     * property torque.idbroker.usenewconnection = false
+     *
+     * @param tableName The name of the table for which we want an id.
+     * @param numOfIdsToReturn The desired number of ids.
+     * @param connection A Connection.
+     * @return the ids. The array may contain less than numOfIdsToReturn
+     *         ids if the quantity of the table is too small.
+     * @exception Exception Database error.
+     */
+    public long[] getNextIdsAsLong(String tableName,
+                                   int numOfIdsToReturn,
+                                   Connection connection)
         throws Exception
     {
         if (tableName == null)
@@ -430,49 +515,95 @@ public class IDBroker implements Runnable, IdGenerator
             throw new Exception("getNextIds(): tableName == null");
         }
 
-        // A note about the synchronization:  I (jmcnally) looked at
-        // the synchronized blocks to avoid thread issues that were
-        // being used in this and the storeId method.  I do not think
-        // they were being effective, so I synchronized the method.
-        // I have left the blocks that did exist commented in the code
-        // to make it easier for others to take a look, because it
-        // would be preferrable to avoid the synchronization on the
-        // method
-
-        List availableIds = (List) ids.get(tableName);
-
-        if (availableIds == null || availableIds.size() < numOfIdsToReturn)
+        TableIds tableIds = getTableIds(tableName);
+        synchronized (tableIds)
         {
-            if (availableIds == null)
+            // if the next block is already being fetched in the background,
+            // wait for it instead of fetching another one
+            long waitUntil = System.currentTimeMillis() + SLEEP_PERIOD;
+            while (tableIds.available() < numOfIdsToReturn
+                    && tableIds.isFetching()
+                    && System.currentTimeMillis() < waitUntil)
             {
-                log.debug("Forced id retrieval - no available list");
+                tableIds.wait(SLEEP_PERIOD);
             }
-            else
+
+            int available = tableIds.available();
+            if (available < numOfIdsToReturn)
             {
-                log.debug("Forced id retrieval - " + availableIds.size());
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Forced id retrieval - " + available);
+                }
+                storeIDs(tableName, tableIds, connection);
             }
-            storeIDs(tableName, true, connection);
-            availableIds = (List) ids.get(tableName);
-        }
 
-        int size = availableIds.size() < numOfIdsToReturn
-                ? availableIds.size() : numOfIdsToReturn;
+            int size = Math.min(tableIds.available(), numOfIdsToReturn);
+            long[] results = new long[size];
+            for (int i = 0; i < size; i++)
+            {
+                results[i] = tableIds.take();
+            }
+
+            checkLowWatermark(tableName, tableIds);
+            return results;
+        }
+    }
 
-        BigDecimal[] results = new BigDecimal[size];
+    /**
+     * Asks the houseKeeperThread to fetch the next block of ids for a table
+     * if the number of available ids has dropped below the low watermark,
+     * i.e. the configured fraction of the quantity.
+     *
+     * @param tableName The name of the table.
+     * @param tableIds the ids of the table.
+     */
+    private void checkLowWatermark(String tableName, TableIds tableIds)
+    {
+        if (houseKeeperThread == null)
+        {
+            return;
+        }
 
-        // We assume that availableIds will always come from the ids
-        // Hashtable and would therefore always be the same object for
-        // a specific table.
-        //        synchronized (availableIds)
-        //        {
-        for (int i = size - 1; i >= 0; i--)
+        float lowWatermark = configuration.getFloat(
+                DB_IDBROKER_LOWWATERMARK,
+                DEFAULT_LOWWATERMARK);
+        int quantity = getQuantity(tableName, null);
+        if (tableIds.available() < quantity * lowWatermark
+                && tableIds.startFetching())
         {
-            results[i] = (BigDecimal) availableIds.get(i);
-            availableIds.remove(i);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Requesting prefetch of ids for table "
+                        + tableName);
+            }
+            synchronized (prefetchTables)
+            {
+                prefetchTables.add(tableName);
+                prefetchTables.notify();
+            }
         }
-        //        }
+    }
 
-        return results;
+    /**
+     * Returns the ids cached for a table, creating an empty entry
+     * if no ids have been retrieved for the table yet.
+     *
+     * @param tableName The name of the table.
+     * @return the ids of the table, not null.
+     */
+    private TableIds getTableIds(String tableName)
+    {
+        synchronized (ids)
+        {
+            TableIds tableIds = (TableIds) ids.get(tableName);
+            if (tableIds == null)
+            {
+                tableIds = new TableIds();
+                ids.put(tableName, tableIds);
+            }
+            return tableIds;
+        }
     }
 
     /**
@@ -485,22 +616,22 @@ public class IDBroker implements Runnable, IdGenerator
     public boolean exists(String tableName)
         throws Exception
     {
-        String query = new StringBuffer(100)
-            .append("select ")
-            .append(TABLE_NAME)
-            .append(" where ")
-            .append(TABLE_NAME).append("='").append(tableName).append('\'')
-            .toString();
-
         boolean exists = false;
         Connection dbCon = null;
         try
         {
             dbCon = Transaction.begin(databaseName);
-            Statement statement = dbCon.createStatement();
-            ResultSet rs = statement.executeQuery(query);
-            exists = rs.next();
-            statement.close();
+            PreparedStatement statement = dbCon.prepareStatement(EXISTS_SQL);
+            try
+            {
+                statement.setString(1, tableName);
+                ResultSet rs = statement.executeQuery();
+                exists = rs.next();
+            }
+            finally
+            {
+                statement.close();
+            }
             Transaction.commit(dbCon);
             dbCon = null;
         }
@@ -526,51 +657,119 @@ public class IDBroker implements Runnable, IdGenerator
         Thread thisThread = Thread.currentThread();
         while (houseKeeperThread == thisThread)
         {
-            try
+            List tablesToFetch;
+            synchronized (prefetchTables)
             {
-                Thread.sleep(SLEEP_PERIOD);
+                if (prefetchTables.isEmpty())
+                {
+                    try
+                    {
+                        prefetchTables.wait(SLEEP_PERIOD);
+                    }
+                    catch (InterruptedException exc)
+                    {
+                        // ignored
+                    }
+                }
+                tablesToFetch = new ArrayList(prefetchTables);
+                prefetchTables.clear();
             }
-            catch (InterruptedException exc)
+
+            if (houseKeeperThread != thisThread)
             {
-                // ignored
+                // stopped while waiting
+                cancelFetching(tablesToFetch);
+                break;
             }
 
-            // logger.info("IDBroker thread checking for more keys.");
-            Iterator it = ids.keySet().iterator();
-            while (it.hasNext())
+            if (tablesToFetch.isEmpty())
             {
-                String tableName = (String) it.next();
-                if (log.isDebugEnabled())
+                // periodic check of all tables
+                List tableNames;
+                synchronized (ids)
                 {
-                    log.debug("IDBroker thread checking for more keys "
-                            + "on table: " + tableName);
+                    tableNames = new ArrayList(ids.keySet());
                 }
-                List availableIds = (List) ids.get(tableName);
-                int quantity = getQuantity(tableName, null).intValue();
-                if (quantity > availableIds.size())
+                Iterator it = tableNames.iterator();
+                while (it.hasNext())
                 {
-                    try
+                    String tableName = (String) it.next();
+                    if (log.isDebugEnabled())
                     {
-                        // Second parameter is false because we don't
-                        // want the quantity to be adjusted for thread
-                        // calls.
-                        storeIDs(tableName, false, null);
-                        if (log.isDebugEnabled())
-                        {
-                            log.debug("Retrieved more ids for table: " + tableName);
-                        }
+                        log.debug("IDBroker thread checking for more keys "
+                                + "on table: " + tableName);
                     }
-                    catch (Exception exc)
+                    TableIds tableIds = getTableIds(tableName);
+                    // let the quantity decay if no ids were used
+                    adjustQuantity(tableName, tableIds);
+                    int quantity = getQuantity(tableName, null);
+                    if (quantity > tableIds.available()
+                            && tableIds.startFetching())
                     {
-                        log.error("There was a problem getting new IDs "
-                                     + "for table: " + tableName, exc);
+                        prefetchIDs(tableName, tableIds);
                     }
                 }
             }
+            else
+            {
+                Iterator it = tablesToFetch.iterator();
+                while (it.hasNext())
+                {
+                    String tableName = (String) it.next();
+                    prefetchIDs(tableName, getTableIds(tableName));
+                }
+            }
         }
         log.debug("IDBroker thread finished.");
     }
 
+    /**
+     * Grabs the next block of ids for a table from the id_table without
+     * holding the lock on the ids of the table, so that the available ids
+     * can be used while the block is retrieved. The block is added to the
+     * available ids afterwards. The caller must have marked the table
+     * as fetching.
+     *
+     * @param tableName The name of the table.
+     * @param tableIds the ids of the table.
+     */
+    private void prefetchIDs(String tableName, TableIds tableIds)
+    {
+        try
+        {
+            long[] block = fetchIDs(tableName, null);
+            tableIds.add(block[0], block[1]);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Retrieved more ids for table: " + tableName);
+            }
+        }
+        catch (Exception exc)
+        {
+            log.error("There was a problem getting new IDs "
+                         + "for table: " + tableName, exc);
+        }
+        finally
+        {
+            tableIds.stopFetching();
+        }
+    }
+
+    /**
+     * Resets the fetching state of tables whose ids will not be
+     * fetched in the background.
+     *
+     * @param tableNames the names of the tables.
+     */
+    private void cancelFetching(List tableNames)
+    {
+        Iterator it = tableNames.iterator();
+        while (it.hasNext())
+        {
+            getTableIds((String) it.next()).stopFetching();
+        }
+    }
+
     /**
      * Shuts down the IDBroker thread.
      *
@@ -581,18 +780,30 @@ public class IDBroker implements Runnable, IdGenerator
     public void stop()
     {
         houseKeeperThread = null;
+        List tablesToCancel;
+        synchronized (prefetchTables)
+        {
+            tablesToCancel = new ArrayList(prefetchTables);
+            prefetchTables.clear();
+            prefetchTables.notify();
+        }
+        cancelFetching(tablesToCancel);
     }
 
     /**
-     * Check the frequency of retrieving new ids from the database.
-     * If the frequency is high then we increase the amount (i.e.
-     * quantity column) of ids retrieved on each access.  Tries to
-     * alter number of keys grabbed so that IDBroker retrieves a new
-     * set of ID's prior to their being needed.
+     * Adjusts the number of ids retrieved from the database for a table
+     * to the rate at which the ids are used. The rate is estimated as
+     * moving average, and the quantity is chosen such that the ids last
+     * for the sleep period of the houseKeeperThread, within the
+     * configured minimum and maximum quantity. The quantity is only
+     * kept in memory and not written to the QUANTITY column of the
+     * ID_TABLE, which is only used as initial quantity and as
+     * default minimum.
      *
      * @param tableName The name of the table for which we want an id.
+     * @param tableIds the ids of the table.
      */
-    private void checkTiming(String tableName)
+    private void adjustQuantity(String tableName, TableIds tableIds)
     {
         // Check if quantity changing is switched on.
         // If prefetch is turned off, changing quantity does not make sense
@@ -602,60 +813,67 @@ public class IDBroker implements Runnable, IdGenerator
             return;
         }
 
-        // Get the last id request for this table.
-        java.util.Date lastTime = (java.util.Date) lastQueryTime.get(tableName);
-        java.util.Date now = new java.util.Date();
+        int initialQuantity = tableIds.getInitialQuantity();
+        if (initialQuantity <= 0)
+        {
+            // not enough information yet
+            return;
+        }
 
-        if (lastTime != null)
+        int minQuantity = configuration.getInt(
+                DB_IDBROKER_MINQUANTITY,
+                initialQuantity);
+        int maxQuantity = configuration.getInt(
+                DB_IDBROKER_MAXQUANTITY,
+                Math.max(DEFAULT_MAX_QUANTITY, minQuantity));
+        int oldQuantity = tableIds.getQuantity();
+        int quantity = tableIds.adjustQuantity(
+                System.currentTimeMillis(),
+                minQuantity,
+                maxQuantity);
+        if (quantity != oldQuantity && log.isDebugEnabled())
         {
-            long thenLong = lastTime.getTime();
-            long nowLong = now.getTime();
-            int timeLapse = (int) (nowLong - thenLong);
-            if (timeLapse < SLEEP_PERIOD && timeLapse > 0)
-            {
-                if (log.isDebugEnabled())
-                {
-                    log.debug("Unscheduled retrieval of more ids for table: "
-                            + tableName);
-                }
-                // Increase quantity, so that hopefully this does not
-                // happen again.
-                float rate = getQuantity(tableName, null).floatValue()
-                    / (float) timeLapse;
-                quantityStore.put(tableName, new BigDecimal(
-                    Math.ceil(SLEEP_PERIOD * rate * SAFETY_MARGIN)));
-            }
+            log.debug("Changing quantity for table " + tableName
+                    + " from " + oldQuantity + " to " + quantity);
         }
-        lastQueryTime.put(tableName, now);
     }
 
     /**
-     * Grabs more ids from the id_table and stores it in the ids
-     * Hashtable.  If adjustQuantity is set to true the amount of id's
-     * retrieved for each call to storeIDs will be adjusted.
+     * Grabs more ids from the id_table and adds them to the ids
+     * of the table. The caller must hold the lock on tableIds.
      *
      * @param tableName The name of the table for which we want an id.
-     * @param adjustQuantity True if amount should be adjusted.
+     * @param tableIds the ids of the table.
      * @param connection a Connection
      * @exception Exception a generic exception.
      */
-    private synchronized void storeIDs(String tableName,
-                          boolean adjustQuantity,
+    private void storeIDs(String tableName,
+                          TableIds tableIds,
                           Connection connection)
         throws Exception
     {
-        BigDecimal nextId = null;
-        BigDecimal quantity = null;
+        long[] block = fetchIDs(tableName, connection);
+        tableIds.add(block[0], block[1]);
+    }
 
-        // Block on the table.  Multiple tables are allowed to ask for
-        // ids simultaneously.
-        //        TableMap tMap = dbMap.getTable(tableName);
-        //        synchronized(tMap)  see comment in the getNextIds method
-        //        {
-        if (adjustQuantity)
-        {
-            checkTiming(tableName);
-        }
+    /**
+     * Grabs the next block of ids from the id_table.
+     * The amount of id's retrieved is adjusted to the rate
+     * at which the ids of the table are used.
+     *
+     * @param tableName The name of the table for which we want an id.
+     * @param connection a Connection
+     * @return the first id of the block and the number of ids in the block.
+     * @exception Exception a generic exception.
+     */
+    private long[] fetchIDs(String tableName,
+                            Connection connection)
+        throws Exception
+    {
+        long nextId;
+        int quantity;
+
+        adjustQuantity(tableName, getTableIds(tableName));
 
         boolean useNewConnection = (connection == null) || (configuration
                 .getBoolean(DB_IDBROKER_USENEWCONNECTION, true));
@@ -666,22 +884,24 @@ public class IDBroker implements Runnable, IdGenerator
                 connection = Transaction.begin(databaseName);
             }
 
-            // Write the current value of quantity of keys to grab
-            // to the database, primarily to obtain a write lock
-            // on the table/row, but this value will also be used
-            // as the starting value when an IDBroker is
-            // instantiated.
+            // Reserve the block by increasing NEXT_ID, which also
+            // obtains a write lock on the table/row, and read the
+            // increased value. The quantity is not written,
+            // it only applies to this IDBroker.
             quantity = getQuantity(tableName, connection);
-            updateQuantity(connection, tableName, quantity);
-
-            // Read the next starting ID from the ID_TABLE.
-            BigDecimal[] results = selectRow(connection, tableName);
-            nextId = results[0]; // NEXT_ID column
-
-            // Update the row based on the quantity in the
-            // ID_TABLE.
-            BigDecimal newNextId = nextId.add(quantity);
-            updateNextId(connection, tableName, newNextId.toString());
+            long newNextId;
+            if (isSingleRoundTrip())
+            {
+                newNextId = increaseNextIdReturning(
+                        connection, tableName, quantity);
+            }
+            else
+            {
+                increaseNextId(connection, tableName, quantity);
+                BigDecimal[] results = selectRow(connection, tableName);
+                newNextId = results[0].longValue(); // NEXT_ID column
+            }
+            nextId = newNextId - quantity;
 
             if (useNewConnection)
             {
@@ -697,82 +917,68 @@ public class IDBroker implements Runnable, IdGenerator
             throw e;
         }
 
-        List availableIds = (List) ids.get(tableName);
-        if (availableIds == null)
-        {
-            availableIds = new ArrayList();
-            ids.put(tableName, availableIds);
-        }
-
-        // Create the ids and store them in the list of available ids.
-        int numId = quantity.intValue();
-        for (int i = 0; i < numId; i++)
-        {
-            availableIds.add(nextId);
-            nextId = nextId.add(ONE);
-        }
-        //        }
+        return new long[] {nextId, quantity};
     }
 
     /**
      * This method allows you to get the number of ids that are to be
-     * cached in memory.  This is either stored in quantityStore or
-     * read from the db. (ie the value in ID_TABLE.QUANTITY).
-     *
-     * Though this method returns a BigDecimal for the quantity, it is
-     * unlikey the system could withstand whatever conditions would lead
-     * to really needing a large quantity, it is retrieved as a BigDecimal
-     * only because it is going to be added to another BigDecimal.
+     * cached in memory.  This is either the quantity determined by
+     * this IDBroker or read from the db. (ie the value in
+     * ID_TABLE.QUANTITY).
      *
      * @param tableName The name of the table we want to query.
      * @param connection a Connection
      * @return An int with the number of ids cached in memory.
      */
-    private BigDecimal getQuantity(String tableName, Connection connection)
+    private int getQuantity(String tableName, Connection connection)
     {
-        BigDecimal quantity = null;
-
         // If prefetch is turned off we simply return 1
         if (!configuration.getBoolean(DB_IDBROKER_PREFETCH, true))
         {
-            quantity = new BigDecimal((double)1);
+            return 1;
         }
-        // Initialize quantity, if necessary.
-        else if (quantityStore.containsKey(tableName))
+
+        TableIds tableIds = getTableIds(tableName);
+        int quantity = tableIds.getQuantity();
+        if (quantity > 0)
         {
-            quantity = (BigDecimal) quantityStore.get(tableName);
+            return quantity;
         }
-        else
+
+        // Initialize quantity.
+        Connection dbCon = null;
+        try
         {
-            Connection dbCon = null;
-            try
+            if (connection == null || configuration
+                .getBoolean(DB_IDBROKER_USENEWCONNECTION, true))
             {
-                if (connection == null || configuration
-                    .getBoolean(DB_IDBROKER_USENEWCONNECTION, true))
-                {
-                    // Get a connection to the db
-                    dbCon = Transaction.begin(databaseName);
-                }
+                // Get a connection to the db
+                dbCon = Transaction.begin(databaseName);
+            }
 
-                // Read the row from the ID_TABLE.
-                BigDecimal[] results = selectRow(dbCon, tableName);
+            // Read the row from the ID_TABLE.
+            BigDecimal[] results = selectRow(
+                    dbCon == null ? connection : dbCon,
+                    tableName);
 
-                // QUANTITY column.
-                quantity = results[1];
-                quantityStore.put(tableName, quantity);
+            // QUANTITY column.
+            quantity = results[1].intValue();
+            tableIds.setInitialQuantity(quantity);
+            if (dbCon != null)
+            {
                 Transaction.commit(dbCon);
                 dbCon = null;
             }
-            catch (Exception e)
-            {
-                quantity = new BigDecimal((double)10);
-            }
-            finally
+        }
+        catch (Exception e)
+        {
+            quantity = 10;
+        }
+        finally
+        {
+            if (dbCon != null)
             {
-            	if (dbCon != null)
-                {
-                    Transaction.safeRollback(dbCon);
-                }
+                Transaction.safeRollback(dbCon);
             }
         }
         return quantity;
@@ -790,26 +996,14 @@ public class IDBroker implements Runnable, IdGenerator
     private BigDecimal[] selectRow(Connection con, String tableName)
         throws Exception
     {
-        StringBuffer stmt = new StringBuffer();
-        stmt.append("SELECT ")
-            .append(COL_NEXT_ID)
-            .append(", ")
-            .append(COL_QUANTITY)
-            .append(" FROM ")
-            .append(ID_TABLE)
-            .append(" WHERE ")
-            .append(COL_TABLE_NAME)
-            .append(" = '")
-            .append(tableName)
-            .append('\'');
-
-        Statement statement = null;
+        PreparedStatement statement = null;
 
         BigDecimal[] results = new BigDecimal[2];
         try
         {
-            statement = con.createStatement();
-            ResultSet rs = statement.executeQuery(stmt.toString());
+            statement = con.prepareStatement(SELECT_ROW_SQL);
+            statement.setString(1, tableName);
+            ResultSet rs = statement.executeQuery();
 
             if (rs.next())
             {
@@ -837,43 +1031,34 @@ public class IDBroker implements Runnable, IdGenerator
     }
 
     /**
-     * Helper method to update a row in the ID_TABLE.
+     * Helper method to reserve a block of ids by increasing the NEXT_ID
+     * of a row in the ID_TABLE.
      *
      * @param con A Connection.
-     * @param tableName The properly escaped name of the table to identify the
-     * row.
-     * @param id An int with the value to set for the id.
+     * @param tableName The name of the table to identify the row.
+     * @param quantity the number of ids to reserve.
      * @exception Exception Database error.
      */
-    private void updateNextId(Connection con, String tableName, String id)
+    private void increaseNextId(Connection con, String tableName,
+                                int quantity)
         throws Exception
     {
-
-
-        StringBuffer stmt = new StringBuffer(id.length()
-                                             + tableName.length() + 50);
-        stmt.append("UPDATE " + ID_TABLE)
-            .append(" SET ")
-            .append(COL_NEXT_ID)
-            .append(" = ")
-            .append(id)
-            .append(" WHERE ")
-            .append(COL_TABLE_NAME)
-            .append(" = '")
-            .append(tableName)
-            .append('\'');
-
-        Statement statement = null;
-
         if (log.isDebugEnabled())
         {
-            log.debug("updateNextId: " + stmt.toString());
+            log.debug("increaseNextId: " + tableName + " by " + quantity);
         }
 
+        PreparedStatement statement = null;
         try
         {
-            statement = con.createStatement();
-            statement.executeUpdate(stmt.toString());
+            statement = con.prepareStatement(INCREASE_NEXT_ID_SQL);
+            statement.setInt(1, quantity);
+            statement.setString(2, tableName);
+            if (statement.executeUpdate() == 0)
+            {
+                throw new TorqueException("The table " + tableName
+                        + " does not have a proper entry in the " + ID_TABLE);
+            }
         }
         finally
         {
@@ -885,43 +1070,39 @@ public class IDBroker implements Runnable, IdGenerator
     }
 
     /**
-     * Helper method to update a row in the ID_TABLE.
+     * Helper method to reserve a block of ids by increasing the NEXT_ID
+     * of a row in the ID_TABLE, and to read the increased NEXT_ID
+     * in the same statement.
      *
      * @param con A Connection.
-     * @param tableName The properly escaped name of the table to identify the
-     * row.
-     * @param quantity An int with the value of the quantity.
+     * @param tableName The name of the table to identify the row.
+     * @param quantity the number of ids to reserve.
+     * @return the increased NEXT_ID.
      * @exception Exception Database error.
      */
-    private void updateQuantity(Connection con, String tableName,
-                                BigDecimal quantity)
+    private long increaseNextIdReturning(Connection con, String tableName,
+                                         int quantity)
         throws Exception
     {
-        StringBuffer stmt = new StringBuffer(quantity.toString().length()
-                                             + tableName.length() + 50);
-        stmt.append("UPDATE ")
-            .append(ID_TABLE)
-            .append(" SET ")
-            .append(COL_QUANTITY)
-            .append(" = ")
-            .append(quantity)
-            .append(" WHERE ")
-            .append(COL_TABLE_NAME)
-            .append(" = '")
-            .append(tableName)
-            .append('\'');
-
-        Statement statement = null;
-
         if (log.isDebugEnabled())
         {
-            log.debug("updateQuantity: " + stmt.toString());
+            log.debug("increaseNextIdReturning: " + tableName
+                    + " by " + quantity);
         }
 
+        PreparedStatement statement = null;
         try
         {
-            statement = con.createStatement();
-            statement.executeUpdate(stmt.toString());
+            statement = con.prepareStatement(INCREASE_NEXT_ID_RETURNING_SQL);
+            statement.setInt(1, quantity);
+            statement.setString(2, tableName);
+            ResultSet rs = statement.executeQuery();
+            if (!rs.next())
+            {
+                throw new TorqueException("The table " + tableName
+                        + " does not have a proper entry in the " + ID_TABLE);
+            }
+            return rs.getLong(1);
         }
         finally
         {
@@ -931,4 +1112,260 @@ public class IDBroker implements Runnable, IdGenerator
             }
         }
     }
+
+    /**
+     * Checks whether the NEXT_ID should be increased and read in a single
+     * statement. This is the case if it is switched on by the property
+     * torque.idbroker.singleroundtrip and the database supports
+     * <code>UPDATE ... RETURNING</code>.
+     *
+     * @return true if a single statement should be used.
+     * @exception TorqueException if the database adapter cannot be found.
+     */
+    private boolean isSingleRoundTrip() throws TorqueException
+    {
+        return configuration.getBoolean(DB_IDBROKER_SINGLEROUNDTRIP, false)
+                && Torque.getDB(databaseName).supportsUpdateReturning();
+    }
+
+    /**
+     * The ids which are available for a table, stored as ranges
+     * of primitive longs. Usually there is only one range, a second
+     * range exists if a new block of ids was retrieved before the
+     * current one was used up.
+     */
+    static class TableIds
+    {
+        /**
+         * The available id ranges as long[] { next, end },
+         * where end is exclusive.
+         */
+        private List ranges = new ArrayList(2);
+
+        /** Whether the next block of ids is being fetched. */
+        private boolean fetching = false;
+
+        /** The number of ids to fetch per block, or 0 if unknown. */
+        private int quantity = 0;
+
+        /** The quantity in the ID_TABLE, or 0 if unknown. */
+        private int initialQuantity = 0;
+
+        /**
+         * The moving average of the ids used per millisecond,
+         * or -1 if unknown.
+         */
+        private double rate = -1;
+
+        /** The number of ids taken since the last rate sample. */
+        private long takenSinceSample = 0;
+
+        /** The time of the last rate sample, or 0 if there was none. */
+        private long sampleTime = 0;
+
+        /**
+         * Returns the number of ids to fetch per block.
+         *
+         * @return the quantity, or 0 if unknown.
+         */
+        public synchronized int getQuantity()
+        {
+            return quantity;
+        }
+
+        /**
+         * Sets the number of ids to fetch per block.
+         *
+         * @param quantity the quantity.
+         */
+        public synchronized void setQuantity(int quantity)
+        {
+            this.quantity = quantity;
+        }
+
+        /**
+         * Returns the quantity read from the ID_TABLE.
+         *
+         * @return the initial quantity, or 0 if unknown.
+         */
+        public synchronized int getInitialQuantity()
+        {
+            return initialQuantity;
+        }
+
+        /**
+         * Sets the quantity read from the ID_TABLE, which is also
+         * used as quantity if none is set yet.
+         *
+         * @param initialQuantity the quantity in the ID_TABLE.
+         */
+        public synchronized void setInitialQuantity(int initialQuantity)
+        {
+            this.initialQuantity = initialQuantity;
+            if (quantity <= 0)
+            {
+                quantity = initialQuantity;
+            }
+        }
+
+        /**
+         * Updates the moving average of the id rate with the number
+         * of ids taken since the last sample. The weight of the sample
+         * grows with the time it covers, and samples covering less than
+         * MIN_SAMPLE_INTERVAL are not taken, so that the average does
+         * not depend on how often it is sampled.
+         *
+         * @param now the current time in milliseconds.
+         * @return the moving average of the ids used per millisecond,
+         *         or -1 if it is not known yet.
+         */
+        public synchronized double sampleRate(long now)
+        {
+            if (sampleTime == 0)
+            {
+                // first sample only starts the measurement
+                sampleTime = now;
+                takenSinceSample = 0;
+                return rate;
+            }
+            long elapsed = now - sampleTime;
+            if (elapsed < MIN_SAMPLE_INTERVAL)
+            {
+                return rate;
+            }
+
+            double sample = (double) takenSinceSample / elapsed;
+            double weight = 1 - Math.exp(-elapsed / RATE_TIME_CONSTANT);
+            // an unknown rate counts as 0, so that a first burst
+            // only has the weight of the time it covers
+            double previous = (rate < 0) ? 0 : rate;
+            rate = previous + weight * (sample - previous);
+            takenSinceSample = 0;
+            sampleTime = now;
+            return rate;
+        }
+
+        /**
+         * Samples the id rate and sets the quantity such that the ids
+         * last for the sleep period of the houseKeeperThread.
+         *
+         * @param now the current time in milliseconds.
+         * @param minQuantity the minimum quantity.
+         * @param maxQuantity the maximum quantity.
+         * @return the new quantity.
+         */
+        public synchronized int adjustQuantity(
+                long now,
+                int minQuantity,
+                int maxQuantity)
+        {
+            double currentRate = sampleRate(now);
+            if (currentRate < 0)
+            {
+                return quantity;
+            }
+            double wanted = Math.ceil(currentRate * SLEEP_PERIOD * SAFETY_MARGIN);
+            quantity = (int) Math.max(minQuantity,
+                    Math.min(maxQuantity, wanted));
+            return quantity;
+        }
+
+        /**
+         * Marks that the next block of ids is being fetched.
+         *
+         * @return true if the mark was set, false if the next block
+         *         is already being fetched.
+         */
+        public synchronized boolean startFetching()
+        {
+            if (fetching)
+            {
+                return false;
+            }
+            fetching = true;
+            return true;
+        }
+
+        /**
+         * Marks that fetching the next block of ids has finished,
+         * and wakes up the threads waiting for it.
+         */
+        public synchronized void stopFetching()
+        {
+            fetching = false;
+            notifyAll();
+        }
+
+        /**
+         * Returns whether the next block of ids is being fetched.
+         *
+         * @return true if the next block is being fetched.
+         */
+        public synchronized boolean isFetching()
+        {
+            return fetching;
+        }
+
+        /**
+         * Returns the number of available ids.
+         *
+         * @return the number of available ids.
+         */
+        public synchronized int available()
+        {
+            long available = 0;
+            for (int i = 0; i < ranges.size(); i++)
+            {
+                long[] range = (long[]) ranges.get(i);
+                available += range[1] - range[0];
+            }
+            return (int) Math.min(available, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Removes the next available id.
+         *
+         * @return the next id.
+         * @throws IllegalStateException if no id is available.
+         */
+        public synchronized long take()
+        {
+            if (ranges.isEmpty())
+            {
+                throw new IllegalStateException("No ids available");
+            }
+            long[] range = (long[]) ranges.get(0);
+            long id = range[0]++;
+            takenSinceSample++;
+            if (range[0] >= range[1])
+            {
+                ranges.remove(0);
+            }
+            return id;
+        }
+
+        /**
+         * Adds a block of ids.
+         *
+         * @param start the first id of the block.
+         * @param quantity the number of ids in the block.
+         */
+        public synchronized void add(long start, long quantity)
+        {
+            if (quantity <= 0)
+            {
+                return;
+            }
+            if (!ranges.isEmpty())
+            {
+                long[] last = (long[]) ranges.get(ranges.size() - 1);
+                if (last[1] == start)
+                {
+                    last[1] += quantity;
+                    return;
+                }
+            }
+            ranges.add(new long[] {start, start + quantity});
+        }
+    }
 }
@@ -20,14 +20,19 @@ package org.apache.torque.util;
  */
 
 import java.io.Serializable;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,10 +44,12 @@ import org.apache.torque.Database;
 import org.apache.torque.Torque;
 import org.apache.torque.TorqueException;
 import org.apache.torque.adapter.DB;
+import org.apache.torque.manager.TableChangeNotifier;
 import org.apache.torque.map.ColumnMap;
 import org.apache.torque.map.DatabaseMap;
 import org.apache.torque.map.MapBuilder;
 import org.apache.torque.map.TableMap;
+import org.apache.torque.oid.IDBroker;
 import org.apache.torque.oid.IdGenerator;
 import org.apache.torque.om.NumberKey;
 import org.apache.torque.om.ObjectKey;
@@ -90,6 +97,9 @@ public abstract class BasePeer
     /** Classes that implement this class should override this value. */
     public static final String TABLE_NAME = "TABLE_NAME";
 
+    /** The fetch size used by streaming selects if none is given. */
+    public static final int DEFAULT_STREAMING_FETCH_SIZE = 100;
+
     /** the log */
     protected static final Log log = LogFactory.getLog(BasePeer.class);
 
@@ -383,6 +393,32 @@ public abstract class BasePeer
      */
     public static void doDelete(Criteria criteria, String tableName, Connection con)
         throws TorqueException
+    {
+        executeDelete(criteria, tableName, con);
+    }
+
+    /**
+     * Method to perform deletes based on values and keys in a Criteria.
+     * <p>
+     * If neither cascading nor a single record check is requested in the
+     * criteria, the rows are removed by issuing a single
+     * <code>DELETE FROM ... WHERE ...</code> statement per table.
+     * Otherwise, the matching records are read and deleted one by one.
+     *
+     * @param criteria The criteria to use.
+     * @param tableName the name of the table to delete records from.
+     *         If set to null, the name of the table(s) can be extracted from
+     *         the criteria, but this can cause unexpected results.
+     * @param con A Connection.
+     * @return the number of deleted rows.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static int executeDelete(
+            Criteria criteria,
+            String tableName,
+            Connection con)
+        throws TorqueException
     {
         String dbName = criteria.getDbName();
         final DatabaseMap dbMap = Torque.getDatabaseMap(dbName);
@@ -432,9 +468,39 @@ public abstract class BasePeer
             tables.add(tableName);
         }
 
+        if (!criteria.isCascade() && !criteria.isSingleRecord())
+        {
+            int rowCount = 0;
+            DB db = Torque.getDB(dbName);
+            boolean bindValues = isBindValues(dbName);
+            for (Iterator it = tables.iterator(); it.hasNext();)
+            {
+                String table = (String) it.next();
+                StringBuffer sql = new StringBuffer("DELETE FROM ")
+                        .append(SQLBuilder.getFullTableName(table, dbName));
+                if (bindValues)
+                {
+                    List params = new ArrayList();
+                    appendWhereClause(
+                            criteria, dbMap.getTable(table), db, sql, params);
+                    rowCount += executeStatement(sql.toString(), params, con);
+                }
+                else
+                {
+                    appendWhereClause(
+                            criteria, dbMap.getTable(table), db, sql, null);
+                    rowCount += executeStatement(sql.toString(), con);
+                }
+            }
+            fireTableChanged(criteria, tables, con);
+            return rowCount;
+        }
+
+        int rowCount = 0;
         try
         {
-            processTables(criteria, tables, con, new ProcessCallback() {
+            rowCount = processTables(criteria, tables, con,
+                new ProcessCallback() {
                     public void process(String table, String dbName, Record rec)
                         throws Exception
                     {
@@ -447,6 +513,8 @@ public abstract class BasePeer
         {
             throwTorqueException(e);
         }
+        fireTableChanged(criteria, tables, con);
+        return rowCount;
     }
 
     /**
@@ -597,9 +665,473 @@ public abstract class BasePeer
             id = getId(pk, keyGen, con, keyInfo);
         }
 
+        ObjectKey insertedKey = getInsertedKey(id, pk, criteria);
+        TableChangeNotifier.fireTableChanged(
+                con,
+                dbName,
+                table,
+                (insertedKey == null)
+                        ? null
+                        : Collections.singletonList(insertedKey));
+
         return id;
     }
 
+    /**
+     * Inserts a list of rows using JDBC batches.
+     * The Criteria objects in the list are grouped by table and by the
+     * set of columns they contain, and each group is inserted using
+     * one parameterized INSERT statement.  The statements are executed
+     * in batches of at most batchSize rows.
+     * <p>
+     * For tables whose ids are generated prior to the insert, the missing
+     * primary keys are retrieved in bulk from the id generator.
+     * For auto increment tables, the generated keys are read back via
+     * Statement.getGeneratedKeys() if the driver supports this for batches.
+     *
+     * @param criteriaList a List of Criteria objects containing the values
+     *        to insert, one for each row.
+     * @param con A Connection.
+     * @param batchSize the maximum number of rows sent to the database
+     *        in one batch, must be greater than zero.
+     * @return a List containing for each inserted row the generated id,
+     *         or null if no id was generated or it could not be
+     *         retrieved.  The order is the same as in criteriaList.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static List doInsertBatch(
+            List criteriaList,
+            Connection con,
+            int batchSize)
+        throws TorqueException
+    {
+        if (batchSize < 1)
+        {
+            throw new TorqueException("batchSize must be greater than 0, is "
+                    + batchSize);
+        }
+
+        ObjectKey[] ids = new ObjectKey[criteriaList.size()];
+
+        // Get the missing ids for all tables which need them prior
+        // to the insert, one request per table
+        Map missingIds = new LinkedHashMap();
+        for (int i = 0; i < criteriaList.size(); i++)
+        {
+            Criteria criteria = (Criteria) criteriaList.get(i);
+            TableMap tableMap = getInsertTableMap(criteria);
+            correctBooleans(criteria, tableMap);
+
+            IdGenerator keyGen = Torque.getDatabase(criteria.getDbName())
+                    .getIdGenerator(tableMap.getPrimaryKeyMethod());
+            ColumnMap pk = getPrimaryKey(criteria);
+            if (keyGen != null && keyGen.isPriorToInsert()
+                    && pk != null
+                    && !criteria.containsKey(pk.getFullyQualifiedName()))
+            {
+                String key = criteria.getDbName() + ":" + tableMap.getName();
+                List indices = (List) missingIds.get(key);
+                if (indices == null)
+                {
+                    indices = new ArrayList();
+                    missingIds.put(key, indices);
+                }
+                indices.add(new Integer(i));
+            }
+        }
+
+        for (Iterator it = missingIds.values().iterator(); it.hasNext();)
+        {
+            List indices = (List) it.next();
+            Criteria first = (Criteria) criteriaList.get(
+                    ((Integer) indices.get(0)).intValue());
+            TableMap tableMap = getInsertTableMap(first);
+            ColumnMap pk = getPrimaryKey(first);
+            SimpleKey[] newIds = getIds(
+                    pk,
+                    Torque.getDatabase(first.getDbName())
+                            .getIdGenerator(tableMap.getPrimaryKeyMethod()),
+                    con,
+                    tableMap.getPrimaryKeyMethodInfo(),
+                    indices.size());
+            for (int j = 0; j < indices.size(); j++)
+            {
+                int index = ((Integer) indices.get(j)).intValue();
+                Criteria criteria = (Criteria) criteriaList.get(index);
+                criteria.add(pk.getFullyQualifiedName(), newIds[j]);
+                ids[index] = newIds[j];
+            }
+        }
+
+        // group the rows by table and column set
+        Map batches = new LinkedHashMap();
+        for (int i = 0; i < criteriaList.size(); i++)
+        {
+            Criteria criteria = (Criteria) criteriaList.get(i);
+            TableMap tableMap = getInsertTableMap(criteria);
+            ColumnMap[] columnMaps = tableMap.getColumns();
+            List columns = new ArrayList(columnMaps.length);
+            StringBuffer shape = new StringBuffer(criteria.getDbName())
+                    .append(':')
+                    .append(tableMap.getName());
+            for (int j = 0; j < columnMaps.length; j++)
+            {
+                if (criteria.containsKey(columnMaps[j].getFullyQualifiedName()))
+                {
+                    columns.add(columnMaps[j]);
+                    shape.append(',').append(columnMaps[j].getColumnName());
+                }
+            }
+            if (columns.isEmpty())
+            {
+                throw new TorqueException("Database insert attempted without "
+                        + "anything specified to insert");
+            }
+
+            InsertBatch batch = (InsertBatch) batches.get(shape.toString());
+            if (batch == null)
+            {
+                batch = new InsertBatch(criteria.getDbName(), tableMap, columns);
+                batches.put(shape.toString(), batch);
+            }
+            batch.indices.add(new Integer(i));
+        }
+
+        for (Iterator it = batches.values().iterator(); it.hasNext();)
+        {
+            InsertBatch batch = (InsertBatch) it.next();
+            executeInsertBatch(batch, criteriaList, ids, con, batchSize);
+        }
+
+        for (Iterator it = batches.values().iterator(); it.hasNext();)
+        {
+            InsertBatch batch = (InsertBatch) it.next();
+            List insertedKeys = new ArrayList(batch.indices.size());
+            for (Iterator indexIt = batch.indices.iterator();
+                    indexIt.hasNext();)
+            {
+                int index = ((Integer) indexIt.next()).intValue();
+                Criteria criteria = (Criteria) criteriaList.get(index);
+                ObjectKey key = getInsertedKey(
+                        ids[index], getPrimaryKey(criteria), criteria);
+                if (key == null)
+                {
+                    // the managers must assume that any row may be new
+                    insertedKeys = null;
+                    break;
+                }
+                insertedKeys.add(key);
+            }
+            TableChangeNotifier.fireTableChanged(
+                    con,
+                    batch.dbName,
+                    batch.tableMap.getName(),
+                    insertedKeys);
+        }
+
+        return new ArrayList(Arrays.asList(ids));
+    }
+
+    /**
+     * Inserts a list of rows using JDBC batches.  A connection is taken
+     * from the database of the first Criteria in the list and committed
+     * after all rows are inserted.
+     *
+     * @param criteriaList a List of Criteria objects containing the values
+     *        to insert, one for each row.
+     * @param batchSize the maximum number of rows sent to the database
+     *        in one batch, must be greater than zero.
+     * @return a List containing for each inserted row the generated id,
+     *         or null if no id was generated or it could not be
+     *         retrieved.  The order is the same as in criteriaList.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     * @see #doInsertBatch(List, Connection, int)
+     */
+    public static List doInsertBatch(List criteriaList, int batchSize)
+        throws TorqueException
+    {
+        if (criteriaList.isEmpty())
+        {
+            return new ArrayList();
+        }
+
+        Connection con = null;
+        try
+        {
+            con = Transaction.begin(
+                    ((Criteria) criteriaList.get(0)).getDbName());
+            List ids = doInsertBatch(criteriaList, con, batchSize);
+            Transaction.commit(con);
+            con = null;
+            return ids;
+        }
+        finally
+        {
+            if (con != null)
+            {
+                Transaction.safeRollback(con);
+            }
+        }
+    }
+
+    /**
+     * Executes the inserts for a group of rows with the same table
+     * and column set.
+     *
+     * @param batch the group of rows to insert.
+     * @param criteriaList the list containing the values of all rows.
+     * @param ids the array in which the generated ids are stored.
+     * @param con A Connection.
+     * @param batchSize the maximum number of rows in one JDBC batch.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    private static void executeInsertBatch(
+            InsertBatch batch,
+            List criteriaList,
+            ObjectKey[] ids,
+            Connection con,
+            int batchSize)
+        throws TorqueException
+    {
+        TableMap tableMap = batch.tableMap;
+        int columnCount = batch.columns.size();
+        StringBuffer sql = new StringBuffer("INSERT INTO ")
+                .append(SQLBuilder.getFullTableName(
+                        tableMap.getName(), batch.dbName))
+                .append(" (");
+        int[] sqlTypes = new int[columnCount];
+        ColumnMap pk = null;
+        boolean pkContained = false;
+        for (int j = 0; j < columnCount; j++)
+        {
+            ColumnMap colMap = (ColumnMap) batch.columns.get(j);
+            if (j > 0)
+            {
+                sql.append(", ");
+            }
+            sql.append(colMap.getColumnName());
+            sqlTypes[j] = StatementUtils.getSqlType(colMap);
+            pkContained |= colMap.isPrimaryKey();
+        }
+        sql.append(") VALUES (");
+        for (int j = 0; j < columnCount; j++)
+        {
+            sql.append(j > 0 ? ", ?" : "?");
+        }
+        sql.append(')');
+
+        ColumnMap[] allColumns = tableMap.getColumns();
+        for (int j = 0; j < allColumns.length; j++)
+        {
+            if (allColumns[j].isPrimaryKey())
+            {
+                pk = allColumns[j];
+                break;
+            }
+        }
+        IdGenerator keyGen = Torque.getDatabase(batch.dbName)
+                .getIdGenerator(tableMap.getPrimaryKeyMethod());
+        boolean readGeneratedKeys = keyGen != null
+                && keyGen.isPostInsert()
+                && pk != null
+                && !pkContained;
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("BasePeer.doInsertBatch: " + sql
+                    + " (" + batch.indices.size() + " rows)");
+        }
+
+        PreparedStatement statement = null;
+        try
+        {
+            if (readGeneratedKeys)
+            {
+                statement = con.prepareStatement(
+                        sql.toString(), Statement.RETURN_GENERATED_KEYS);
+            }
+            else
+            {
+                statement = con.prepareStatement(sql.toString());
+            }
+
+            int batchStart = 0;
+            for (int i = 0; i < batch.indices.size(); i++)
+            {
+                Criteria criteria = (Criteria) criteriaList.get(
+                        ((Integer) batch.indices.get(i)).intValue());
+                for (int j = 0; j < columnCount; j++)
+                {
+                    ColumnMap colMap = (ColumnMap) batch.columns.get(j);
+                    StatementUtils.setValue(
+                            statement,
+                            j + 1,
+                            criteria.getValue(colMap.getFullyQualifiedName()),
+                            sqlTypes[j]);
+                }
+                statement.addBatch();
+
+                if (i - batchStart + 1 == batchSize
+                        || i == batch.indices.size() - 1)
+                {
+                    statement.executeBatch();
+                    if (readGeneratedKeys)
+                    {
+                        readGeneratedKeys(statement, pk, batch.indices,
+                                batchStart, i + 1, ids);
+                    }
+                    batchStart = i + 1;
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throwTorqueException(e);
+        }
+        finally
+        {
+            StatementUtils.close(statement);
+        }
+    }
+
+    /**
+     * Reads the keys generated by the last executed batch and stores
+     * them in the ids array.  Drivers which do not return generated keys
+     * for batches leave the ids untouched.
+     *
+     * @param statement the statement which executed the batch.
+     * @param pk the primary key column of the table.
+     * @param indices the positions of the rows in the original list.
+     * @param from the first entry in indices which belongs to the batch.
+     * @param to the entry after the last entry in indices which belongs
+     *        to the batch.
+     * @param ids the array in which the generated ids are stored.
+     * @throws SQLException if the generated keys cannot be read.
+     */
+    private static void readGeneratedKeys(
+            Statement statement,
+            ColumnMap pk,
+            List indices,
+            int from,
+            int to,
+            ObjectKey[] ids)
+        throws SQLException
+    {
+        ResultSet keys = statement.getGeneratedKeys();
+        if (keys == null)
+        {
+            return;
+        }
+        try
+        {
+            for (int i = from; i < to && keys.next(); i++)
+            {
+                int index = ((Integer) indices.get(i)).intValue();
+                if (pk.getType() instanceof Number)
+                {
+                    ids[index] = new NumberKey(keys.getBigDecimal(1));
+                }
+                else
+                {
+                    ids[index] = new StringKey(keys.getString(1));
+                }
+            }
+        }
+        finally
+        {
+            keys.close();
+        }
+    }
+
+    /**
+     * Returns the TableMap of the table into which the values in the
+     * criteria should be inserted.
+     *
+     * @param criteria the Criteria containing the values to insert.
+     * @return the TableMap, not null.
+     * @throws TorqueException if the criteria is empty or the table
+     *         is not known.
+     */
+    private static TableMap getInsertTableMap(Criteria criteria)
+        throws TorqueException
+    {
+        Iterator keys = criteria.keySet().iterator();
+        if (!keys.hasNext())
+        {
+            throw new TorqueException("Database insert attempted without "
+                    + "anything specified to insert");
+        }
+        String table = criteria.getTableName((String) keys.next());
+        TableMap tableMap = Torque.getDatabaseMap(criteria.getDbName())
+                .getTable(table);
+        if (tableMap == null)
+        {
+            throw new TorqueException("Unknown table " + table
+                    + " in database " + criteria.getDbName());
+        }
+        return tableMap;
+    }
+
+    /**
+     * Creates a number of Ids for insertion in Criteria objects.
+     * If the id generator is an IDBroker, the ids are retrieved in bulk.
+     *
+     * @param pk ColumnMap for the Primary key
+     * @param keyGen The Id Generator object
+     * @param con The SQL Connection to run the id generation under
+     * @param keyInfo KeyInfo Parameter from the Table map
+     * @param count the number of ids to create
+     *
+     * @return An array of simple Keys representing the new Id values
+     * @throws TorqueException Possible errors get wrapped in here.
+     */
+    private static SimpleKey[] getIds(
+            ColumnMap pk,
+            IdGenerator keyGen,
+            Connection con,
+            Object keyInfo,
+            int count)
+        throws TorqueException
+    {
+        SimpleKey[] result = new SimpleKey[count];
+        if (keyGen instanceof IDBroker && pk.getType() instanceof Number)
+        {
+            int filled = 0;
+            try
+            {
+                while (filled < count)
+                {
+                    BigDecimal[] newIds = ((IDBroker) keyGen).getNextIds(
+                            (String) keyInfo, count - filled, con);
+                    if (newIds.length == 0)
+                    {
+                        throw new TorqueException("IDBroker returned no ids "
+                                + "for table " + keyInfo);
+                    }
+                    for (int i = 0; i < newIds.length; i++)
+                    {
+                        result[filled++] = new NumberKey(newIds[i]);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                throwTorqueException(e);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                result[i] = getId(pk, keyGen, con, keyInfo);
+            }
+        }
+        return result;
+    }
+
     /**
      * Create an Id for insertion in the Criteria
      *
@@ -789,6 +1321,11 @@ public abstract class BasePeer
     public static List doSelect(Criteria criteria, Connection con)
         throws TorqueException
     {
+        if (isBindValues(criteria.getDbName()))
+        {
+            return doPSSelect(criteria, con);
+        }
+
         Query query = createQuery(criteria);
         DB dbadapter = Torque.getDB(criteria.getDbName());
 
@@ -970,26 +1507,83 @@ public abstract class BasePeer
     }
 
     /**
-     * Returns all records in a QueryDataSet as a List of Record
-     * objects.  Used for functionality like util.LargeSelect.
+     * Method for performing a SELECT using a PreparedStatement.
      *
-     * @see #getSelectResults(QueryDataSet, int, int, boolean)
-     * @param qds the QueryDataSet
-     * @return a List of Record objects
+     * @param queryString A String with the sql statement to execute,
+     *        containing placeholders for the parameters.
+     * @param params the values to bind to the placeholders, in order.
+     * @param start The first row to return.
+     * @param numberOfResults The number of rows to return.
+     * @param singleRecord Whether or not we want to select only a
+     * single record.
+     * @param con A Connection.
+     * @return List of Record objects.
      * @throws TorqueException Any exceptions caught during processing will be
      *         rethrown wrapped into a TorqueException.
      */
-    public static List getSelectResults(QueryDataSet qds)
+    public static List executeQuery(
+        String queryString,
+        List params,
+        int start,
+        int numberOfResults,
+        boolean singleRecord,
+        Connection con)
         throws TorqueException
     {
-        return getSelectResults(qds, 0, -1, false);
-    }
-
-    /**
-     * Returns all records in a QueryDataSet as a List of Record
-     * objects.  Used for functionality like util.LargeSelect.
-     *
-     * @see #getSelectResults(QueryDataSet, int, int, boolean)
+        List results = Collections.EMPTY_LIST;
+        PreparedStatement statement = null;
+        QueryDataSet qds = null;
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            statement = con.prepareStatement(queryString);
+            setParameters(statement, params);
+            qds = new QueryDataSet(statement.executeQuery());
+            if (log.isDebugEnabled())
+            {
+                log.debug("Elapsed time="
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+            results = getSelectResults(
+                    qds, start, numberOfResults, singleRecord);
+        }
+        catch (DataSetException e)
+        {
+            throwTorqueException(e);
+        }
+        catch (SQLException e)
+        {
+            throwTorqueException(e);
+        }
+        finally
+        {
+            VillageUtils.close(qds);
+            StatementUtils.close(statement);
+        }
+        return results;
+    }
+
+    /**
+     * Returns all records in a QueryDataSet as a List of Record
+     * objects.  Used for functionality like util.LargeSelect.
+     *
+     * @see #getSelectResults(QueryDataSet, int, int, boolean)
+     * @param qds the QueryDataSet
+     * @return a List of Record objects
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static List getSelectResults(QueryDataSet qds)
+        throws TorqueException
+    {
+        return getSelectResults(qds, 0, -1, false);
+    }
+
+    /**
+     * Returns all records in a QueryDataSet as a List of Record
+     * objects.  Used for functionality like util.LargeSelect.
+     *
+     * @see #getSelectResults(QueryDataSet, int, int, boolean)
      * @param qds the QueryDataSet
      * @param singleRecord
      * @return a List of Record objects
@@ -1093,6 +1687,163 @@ public abstract class BasePeer
         return results;
     }
 
+    /**
+     * Notifies the {@link TableChangeNotifier} that rows of tables were
+     * changed by a statement whose where clause was built from a criteria.
+     *
+     * @param criteria the criteria which selected the changed rows.
+     * @param tables the names of the changed tables.
+     * @param con the connection which executed the statement.
+     * @throws TorqueException if the database map cannot be retrieved.
+     */
+    private static void fireTableChanged(
+            Criteria criteria,
+            Set tables,
+            Connection con)
+        throws TorqueException
+    {
+        String dbName = criteria.getDbName();
+        DatabaseMap dbMap = Torque.getDatabaseMap(dbName);
+        for (Iterator it = tables.iterator(); it.hasNext();)
+        {
+            String table = (String) it.next();
+            TableChangeNotifier.fireTableChanged(
+                    con,
+                    dbName,
+                    table,
+                    getChangedKeys(criteria, dbMap.getTable(table)));
+        }
+    }
+
+    /**
+     * Determines the primary keys of the rows of a table selected by
+     * a criteria. The keys can only be determined if the table has a
+     * single primary key column which the criteria restricts to one
+     * or several values by an EQUAL or IN comparison.
+     *
+     * @param criteria the criteria which selects the rows.
+     * @param tableMap the table, or null.
+     * @return a List of the ObjectKeys of the selected rows, or null
+     *         if they cannot be determined.
+     */
+    private static List getChangedKeys(Criteria criteria, TableMap tableMap)
+    {
+        if (tableMap == null)
+        {
+            return null;
+        }
+        ColumnMap pk = null;
+        ColumnMap[] columns = tableMap.getColumns();
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (columns[i].isPrimaryKey())
+            {
+                if (pk != null)
+                {
+                    // composite primary key
+                    return null;
+                }
+                pk = columns[i];
+            }
+        }
+        if (pk == null)
+        {
+            return null;
+        }
+
+        Criteria.Criterion criterion
+                = criteria.getCriterion(pk.getFullyQualifiedName());
+        if (criterion == null || criterion.getAttachedCriterion().length != 1)
+        {
+            return null;
+        }
+        Object value = criterion.getValue();
+        Collection values;
+        if (Criteria.EQUAL.equals(criterion.getComparison()))
+        {
+            values = Collections.singletonList(value);
+        }
+        else if (Criteria.IN.equals(criterion.getComparison())
+                && value instanceof Collection)
+        {
+            values = (Collection) value;
+        }
+        else if (Criteria.IN.equals(criterion.getComparison())
+                && value instanceof Object[])
+        {
+            values = Arrays.asList((Object[]) value);
+        }
+        else
+        {
+            return null;
+        }
+
+        List keys = new ArrayList(values.size());
+        for (Iterator it = values.iterator(); it.hasNext();)
+        {
+            ObjectKey key = toObjectKey(it.next());
+            if (key == null)
+            {
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Determines the primary key of an inserted row, which is either
+     * the generated id or the value of the primary key in the Criteria.
+     *
+     * @param id the generated id, or null if none was generated or
+     *        it could not be retrieved.
+     * @param pk the primary key column, or null if the table has none.
+     * @param criteria the values of the inserted row.
+     * @return the ObjectKey of the row, or null if it is not known.
+     */
+    private static ObjectKey getInsertedKey(
+            ObjectKey id,
+            ColumnMap pk,
+            Criteria criteria)
+    {
+        if (id != null)
+        {
+            return id;
+        }
+        if (pk != null && criteria.containsKey(pk.getFullyQualifiedName()))
+        {
+            return toObjectKey(criteria.getValue(pk.getFullyQualifiedName()));
+        }
+        return null;
+    }
+
+    /**
+     * Converts a primary key value to the ObjectKey used by the managers.
+     *
+     * @param value the value of a primary key column.
+     * @return the ObjectKey, or null if the value cannot be converted.
+     */
+    private static ObjectKey toObjectKey(Object value)
+    {
+        if (value instanceof ObjectKey)
+        {
+            return (ObjectKey) value;
+        }
+        if (value instanceof Number)
+        {
+            return SimpleKey.keyFor((Number) value);
+        }
+        if (value instanceof String)
+        {
+            return SimpleKey.keyFor((String) value);
+        }
+        if (value instanceof java.util.Date)
+        {
+            return SimpleKey.keyFor((java.util.Date) value);
+        }
+        return null;
+    }
+
     /**
      * Helper method which returns the primary key contained
      * in the given Criteria object.
@@ -1272,12 +2023,115 @@ public abstract class BasePeer
         final Criteria updateValues,
         Connection con)
         throws TorqueException
+    {
+        executeUpdate(criteria, updateValues, con);
+    }
+
+    /**
+     * Method used to update rows in the DB.  Rows are selected based
+     * on criteria and updated using values in updateValues.
+     * <p>
+     * If no single record check is requested in the criteria, the rows
+     * are updated by issuing a single
+     * <code>UPDATE ... SET ... WHERE ...</code> statement per table.
+     * Update values which cannot be expressed as sql literals without
+     * loss, e.g. dates or binary values, are bound as parameters.
+     * Otherwise, the matching records are read and saved one by one.
+     *
+     * @param criteria A Criteria object containing values used in where
+     *        clause.
+     * @param updateValues A Criteria object containing values used in set
+     *        clause.
+     * @param con A Connection.
+     * @return the number of updated rows.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static int executeUpdate(
+        Criteria criteria,
+        final Criteria updateValues,
+        Connection con)
+        throws TorqueException
     {
         Set tables = SQLBuilder.getTableSet(criteria, null);
 
+        String dbName = criteria.getDbName();
+        boolean bindValues = isBindValues(dbName);
+        if (!criteria.isSingleRecord())
+        {
+            DB db = Torque.getDB(dbName);
+            DatabaseMap dbMap = Torque.getDatabaseMap(dbName);
+
+            int rowCount = 0;
+            for (Iterator it = tables.iterator(); it.hasNext();)
+            {
+                String table = (String) it.next();
+                List params = new ArrayList();
+                StringBuffer sql = new StringBuffer("UPDATE ")
+                        .append(SQLBuilder.getFullTableName(table, dbName))
+                        .append(" SET ");
+                ColumnMap[] columnMaps = dbMap.getTable(table).getColumns();
+                boolean first = true;
+                for (int j = 0; j < columnMaps.length; j++)
+                {
+                    ColumnMap colMap = columnMaps[j];
+                    String key = new StringBuffer(colMap.getTableName())
+                            .append('.')
+                            .append(colMap.getColumnName())
+                            .toString();
+                    if (updateValues.containsKey(key))
+                    {
+                        if (!first)
+                        {
+                            sql.append(", ");
+                        }
+                        Object value = updateValues.getValue(key);
+                        if (bindValues || !SqlExpression.isLiteral(value))
+                        {
+                            sql.append(colMap.getColumnName()).append("=?");
+                            params.add(new BindValue(
+                                    value,
+                                    StatementUtils.getSqlType(colMap)));
+                        }
+                        else
+                        {
+                            SqlExpression.buildAssignment(
+                                    colMap.getColumnName(),
+                                    value,
+                                    db,
+                                    sql);
+                        }
+                        first = false;
+                    }
+                }
+                if (first)
+                {
+                    throw new TorqueException("No changes to save");
+                }
+                appendWhereClause(
+                        criteria,
+                        dbMap.getTable(table),
+                        db,
+                        sql,
+                        bindValues ? params : null);
+                if (params.isEmpty())
+                {
+                    rowCount += executeStatement(sql.toString(), con);
+                }
+                else
+                {
+                    rowCount += executeStatement(sql.toString(), params, con);
+                }
+            }
+            fireTableChanged(criteria, tables, con);
+            return rowCount;
+        }
+
+        int rowCount = 0;
         try
         {
-            processTables(criteria, tables, con, new ProcessCallback() {
+            rowCount = processTables(criteria, tables, con,
+                new ProcessCallback() {
                     public void process (String table, String dbName, Record rec)
                         throws Exception
                     {
@@ -1290,6 +2144,8 @@ public abstract class BasePeer
         {
             throwTorqueException(e);
         }
+        fireTableChanged(criteria, tables, con);
+        return rowCount;
     }
 
     /**
@@ -1381,6 +2237,94 @@ public abstract class BasePeer
         return rowCount;
     }
 
+    /**
+     * Utility method which executes a given sql statement using a
+     * PreparedStatement.  This method should be used for update, insert,
+     * and delete statements.  Use executeQuery() for selects.
+     *
+     * @param statementString A String with the sql statement to execute,
+     *        containing placeholders for the parameters.
+     * @param params the values to bind to the placeholders, in order.
+     * @param con A Connection.
+     * @return The number of rows affected.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static int executeStatement(
+            String statementString,
+            List params,
+            Connection con)
+        throws TorqueException
+    {
+        int rowCount = -1;
+        PreparedStatement statement = null;
+        try
+        {
+            statement = con.prepareStatement(statementString);
+            setParameters(statement, params);
+            rowCount = statement.executeUpdate();
+        }
+        catch (SQLException e)
+        {
+            throw new TorqueException(e);
+        }
+        finally
+        {
+            StatementUtils.close(statement);
+        }
+        return rowCount;
+    }
+
+    /**
+     * Binds a list of parameters to the placeholders of a
+     * prepared statement.
+     *
+     * @param statement the statement to bind the values to.
+     * @param params the values to bind, in order. A value may be a
+     *        {@link BindValue} to specify the sql type of a null value.
+     * @throws TorqueException if a value cannot be bound.
+     */
+    private static void setParameters(PreparedStatement statement, List params)
+        throws TorqueException
+    {
+        for (int i = 0; i < params.size(); i++)
+        {
+            Object param = params.get(i);
+            if (param instanceof BindValue)
+            {
+                BindValue bindValue = (BindValue) param;
+                StatementUtils.setValue(statement, i + 1,
+                        bindValue.value, bindValue.sqlType);
+            }
+            else
+            {
+                StatementUtils.setValue(statement, i + 1,
+                        param, java.sql.Types.OTHER);
+            }
+        }
+    }
+
+    /**
+     * Checks whether values should be passed as prepared statement
+     * parameters instead of sql literals for a database.
+     *
+     * @param dbName the name of the database, or null for the default
+     *        database.
+     * @return true if bind values should be used, false otherwise.
+     * @throws TorqueException if Torque is not initialized.
+     * @see Database#isBindValues()
+     */
+    static boolean isBindValues(String dbName)
+        throws TorqueException
+    {
+        if (dbName == null)
+        {
+            dbName = Torque.getDefaultDB();
+        }
+        Database database = Torque.getDatabase(dbName);
+        return database != null && database.isBindValues();
+    }
+
     /**
      * If the user specified that (s)he only wants to retrieve a
      * single record and multiple records are retrieved, this method
@@ -1417,7 +2361,8 @@ public abstract class BasePeer
 
     /**
      * Performs a SQL <code>select</code> using a PreparedStatement.
-     * Note: this method does not handle null criteria values.
+     * All values in the criteria are passed to the database as
+     * prepared statement parameters.
      *
      * @param criteria
      * @param con
@@ -1427,101 +2372,274 @@ public abstract class BasePeer
     public static List doPSSelect(Criteria criteria, Connection con)
         throws TorqueException
     {
-        List v = null;
-
         StringBuffer qry = new StringBuffer();
         List params = new ArrayList(criteria.size());
 
         createPreparedStatement(criteria, qry, params);
 
-        PreparedStatement statement = null;
-        try
-        {
-            statement = con.prepareStatement(qry.toString());
+        DB dbadapter = Torque.getDB(criteria.getDbName());
+        return executeQuery(qry.toString(),
+                params,
+                dbadapter.supportsNativeOffset() ? 0 : criteria.getOffset(),
+                dbadapter.supportsNativeLimit() ? -1 : criteria.getLimit(),
+                criteria.isSingleRecord(),
+                con);
+    }
 
-            for (int i = 0; i < params.size(); i++)
-            {
-                Object param = params.get(i);
-                if (param instanceof java.sql.Date)
-                {
-                    statement.setDate(i + 1, (java.sql.Date) param);
-                }
-                else if (param instanceof NumberKey)
-                {
-                    statement.setBigDecimal(i + 1,
-                        ((NumberKey) param).getBigDecimal());
-                }
-                else if (param instanceof Integer)
-                {
-                    statement.setInt(i + 1, ((Integer) param).intValue());
-                }
-                else
-                {
-                    statement.setString(i + 1, param.toString());
-                }
-            }
+    /**
+     * Do a Prepared Statement select according to the given criteria
+     *
+     * @param criteria
+     * @return a List of Record objects.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static List doPSSelect(Criteria criteria) throws TorqueException
+    {
+        Connection con = Transaction.begin(criteria.getDbName());
+        List v = null;
 
-            QueryDataSet qds = null;
-            try
-            {
-                qds = new QueryDataSet(statement.executeQuery());
-                v = getSelectResults(qds);
-            }
-            finally
-            {
-                VillageUtils.close(qds);
-            }
+        try
+        {
+            v = doPSSelect(criteria, con);
         }
-        catch (DataSetException e)
+        finally
         {
-            throwTorqueException(e);
+        	if (con != null)
+            {
+                Transaction.safeRollback(con);
+            }
         }
-        catch (SQLException e)
+        return v;
+    }
+
+    /**
+     * Performs a SQL <code>select</code> and maps the selected rows
+     * directly from the result set, without creating Village Records.
+     * The connection is obtained from the database of the criteria
+     * and is released after the select.
+     *
+     * @param criteria the Criteria describing the select.
+     * @param mapper the mapper which creates an object from each row.
+     * @return a List of the objects created by the mapper.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static List doSelectRows(Criteria criteria, RowMapper mapper)
+        throws TorqueException
+    {
+        Connection con = null;
+        List results = null;
+
+        try
         {
-            throwTorqueException(e);
+            con = Transaction.begin(criteria.getDbName());
+            results = doSelectRows(criteria, mapper, con);
+            Transaction.commit(con);
+            con = null;
         }
         finally
         {
-            if (statement != null)
+            if (con != null)
             {
-                try
-                {
-                    statement.close();
-                }
-                catch (SQLException e)
-                {
-                    throw new TorqueException(e);
-                }
+                Transaction.safeRollback(con);
             }
         }
-        return v;
+        return results;
     }
 
     /**
-     * Do a Prepared Statement select according to the given criteria
+     * Performs a SQL <code>select</code> and maps the selected rows
+     * directly from the result set, without creating Village Records.
      *
-     * @param criteria
-     * @return a List of Record objects.
+     * @param criteria the Criteria describing the select.
+     * @param mapper the mapper which creates an object from each row.
+     * @param con the connection to use.
+     * @return a List of the objects created by the mapper.
      * @throws TorqueException Any exceptions caught during processing will be
      *         rethrown wrapped into a TorqueException.
      */
-    public static List doPSSelect(Criteria criteria) throws TorqueException
+    public static List doSelectRows(
+            Criteria criteria,
+            final RowMapper mapper,
+            Connection con)
+        throws TorqueException
     {
-        Connection con = Transaction.begin(criteria.getDbName());
-        List v = null;
+        final List results = new ArrayList();
+        doSelectStreaming(criteria, con, new RowHandler()
+            {
+                public boolean handleRow(ResultSet resultSet, int rowNumber)
+                    throws TorqueException
+                {
+                    results.add(mapper.processRow(resultSet));
+                    return true;
+                }
+            });
+        return results;
+    }
+
+    /**
+     * Performs a SQL <code>select</code> and passes the selected rows
+     * to a handler one at a time, using the default fetch size.
+     * The connection is obtained from the database of the criteria
+     * and is released after the select.
+     *
+     * @param criteria the Criteria describing the select.
+     * @param handler the handler which processes the rows.
+     * @return the number of processed rows.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     * @see #doSelectStreaming(Criteria, Connection, RowHandler, int)
+     */
+    public static int doSelectStreaming(Criteria criteria, RowHandler handler)
+        throws TorqueException
+    {
+        Connection con = null;
+        int rowCount = 0;
 
         try
         {
-            v = doPSSelect(criteria, con);
+            con = Transaction.begin(criteria.getDbName());
+            rowCount = doSelectStreaming(criteria, con, handler);
+            Transaction.commit(con);
+            con = null;
         }
         finally
         {
-        	if (con != null)
+            if (con != null)
             {
                 Transaction.safeRollback(con);
             }
         }
-        return v;
+        return rowCount;
+    }
+
+    /**
+     * Performs a SQL <code>select</code> and passes the selected rows
+     * to a handler one at a time, using the default fetch size.
+     *
+     * @param criteria the Criteria describing the select.
+     * @param con the connection to use.
+     * @param handler the handler which processes the rows.
+     * @return the number of processed rows.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     * @see #doSelectStreaming(Criteria, Connection, RowHandler, int)
+     */
+    public static int doSelectStreaming(
+            Criteria criteria,
+            Connection con,
+            RowHandler handler)
+        throws TorqueException
+    {
+        return doSelectStreaming(
+                criteria, con, handler, DEFAULT_STREAMING_FETCH_SIZE);
+    }
+
+    /**
+     * Performs a SQL <code>select</code> and passes the selected rows
+     * to a handler one at a time. In contrast to doSelect(), the rows are
+     * not collected in a list, and the statement uses a forward-only,
+     * read-only cursor with the given fetch size, so that the driver
+     * only needs to hold <code>fetchSize</code> rows in memory
+     * regardless of the size of the result.
+     * <p>
+     * Note that some drivers ignore the fetch size under certain
+     * conditions, e.g. PostgreSQL only uses a cursor if autocommit is off,
+     * and the MySQL driver only streams rows if the fetch size is
+     * <code>Integer.MIN_VALUE</code>.
+     *
+     * @param criteria the Criteria describing the select.
+     * @param con the connection to use.
+     * @param handler the handler which processes the rows.
+     * @param fetchSize the number of rows the driver should fetch
+     *        from the database at once.
+     * @return the number of processed rows.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static int doSelectStreaming(
+            Criteria criteria,
+            Connection con,
+            RowHandler handler,
+            int fetchSize)
+        throws TorqueException
+    {
+        String dbName = criteria.getDbName();
+        String queryString;
+        List params = null;
+        if (isBindValues(dbName))
+        {
+            StringBuffer qry = new StringBuffer();
+            params = new ArrayList(criteria.size());
+            createPreparedStatement(criteria, qry, params);
+            queryString = qry.toString();
+        }
+        else
+        {
+            queryString = createQuery(criteria).toString();
+        }
+
+        DB dbadapter = Torque.getDB(dbName);
+        int start = dbadapter.supportsNativeOffset() ? 0 : criteria.getOffset();
+        int numberOfResults
+                = dbadapter.supportsNativeLimit() ? -1 : criteria.getLimit();
+
+        int rowCount = 0;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            statement = con.prepareStatement(
+                    queryString,
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            if (params != null)
+            {
+                setParameters(statement, params);
+            }
+            resultSet = statement.executeQuery();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Elapsed time="
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+
+            // skip the offset if the database cannot do it
+            int skipped = 0;
+            while (skipped < start && resultSet.next())
+            {
+                skipped++;
+            }
+
+            while ((numberOfResults < 0 || rowCount < numberOfResults)
+                    && resultSet.next())
+            {
+                if (rowCount > 0 && criteria.isSingleRecord())
+                {
+                    throw new TorqueException("Criteria expected single "
+                            + "Record and Multiple Records were selected");
+                }
+                boolean proceed = handler.handleRow(resultSet, rowCount);
+                rowCount++;
+                if (!proceed)
+                {
+                    break;
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throwTorqueException(e);
+        }
+        finally
+        {
+            StatementUtils.close(resultSet);
+            StatementUtils.close(statement);
+        }
+        return rowCount;
     }
 
     /**
@@ -1540,8 +2658,9 @@ public abstract class BasePeer
         List params)
         throws TorqueException
     {
-        Query query = SQLBuilder.buildQueryClause(criteria, params, new SQLBuilder.QueryCallback() {
+        String sql = QueryCache.getSql(criteria, params, new SQLBuilder.QueryCallback() {
                 public String process(Criteria.Criterion criterion, List params)
+                    throws TorqueException
                 {
                     StringBuffer sb = new StringBuffer();
                     criterion.appendPsTo(sb, params);
@@ -1549,7 +2668,6 @@ public abstract class BasePeer
                 }
             });
 
-        String sql = query.toString();
         log.debug(sql);
 
         queryString.append(sql);
@@ -1683,22 +2801,23 @@ public abstract class BasePeer
      * @param tables A set of Tables to run on
      * @param con The SQL Connection to run the statements on
      * @param pc A ProcessCallback object
+     * @return the number of processed records
      *
      * @throws Exception An Error occured (should be wrapped into TorqueException)
      */
-    private static void processTables(Criteria crit, Set tables, Connection con, ProcessCallback pc)
+    private static int processTables(Criteria crit, Set tables, Connection con, ProcessCallback pc)
             throws Exception
     {
         String dbName = crit.getDbName();
         DB db = Torque.getDB(dbName);
         DatabaseMap dbMap = Torque.getDatabaseMap(dbName);
+        int rowCount = 0;
 
         // create the statements for the tables
         for (Iterator it = tables.iterator(); it.hasNext();)
         {
             String table = (String) it.next();
             KeyDef kd = new KeyDef();
-            Set whereClause = new HashSet();
 
             ColumnMap[] columnMaps = dbMap.getTable(table).getColumns();
 
@@ -1709,32 +2828,9 @@ public abstract class BasePeer
                 {
                     kd.addAttrib(colMap.getColumnName());
                 }
-
-                String key = new StringBuffer(colMap.getTableName())
-                        .append('.')
-                        .append(colMap.getColumnName())
-                        .toString();
-
-                if (crit.containsKey(key))
-                {
-                    if (crit
-                            .getComparison(key)
-                            .equals(Criteria.CUSTOM))
-                    {
-                        whereClause.add(crit.getString(key));
-                    }
-                    else
-                    {
-                        whereClause.add(
-                                SqlExpression.build(
-                                        colMap.getColumnName(),
-                                        crit.getValue(key),
-                                        crit.getComparison(key),
-                                        crit.isIgnoreCase(),
-                                        db));
-                    }
-                }
             }
+            List whereClause
+                    = getWhereClause(crit, dbMap.getTable(table), db, null);
 
             // Execute the statement for each table
             TableDataSet tds = null;
@@ -1769,12 +2865,116 @@ public abstract class BasePeer
                         pc.process(table, dbName, rec);
                     }
                 }
+                rowCount += tds.size();
             }
             finally
             {
                 VillageUtils.close(tds);
             }
         }
+        return rowCount;
+    }
+
+    /**
+     * Collects the conditions of a criteria which apply to the columns
+     * of a single table. The conditions are rendered with unqualified
+     * column names.
+     *
+     * @param crit The criteria
+     * @param tableMap The table to collect the conditions for
+     * @param db The database adapter
+     * @param params a list to which the prepared statement parameters
+     *        are added, or null if the values should be rendered as
+     *        sql literals.
+     * @return a List of sql snippets which are to be joined by AND
+     * @throws TorqueException if a condition cannot be rendered
+     */
+    private static List getWhereClause(
+            Criteria crit,
+            TableMap tableMap,
+            DB db,
+            List params)
+        throws TorqueException
+    {
+        List whereClause = new ArrayList();
+        ColumnMap[] columnMaps = tableMap.getColumns();
+
+        for (int j = 0; j < columnMaps.length; j++)
+        {
+            ColumnMap colMap = columnMaps[j];
+            String key = new StringBuffer(colMap.getTableName())
+                    .append('.')
+                    .append(colMap.getColumnName())
+                    .toString();
+
+            if (crit.containsKey(key))
+            {
+                if (crit
+                        .getComparison(key)
+                        .equals(Criteria.CUSTOM))
+                {
+                    whereClause.add(crit.getString(key));
+                }
+                else if (params != null)
+                {
+                    StringBuffer sb = new StringBuffer();
+                    SqlExpression.buildPs(
+                            colMap.getColumnName(),
+                            crit.getValue(key),
+                            crit.getComparison(key),
+                            crit.isIgnoreCase(),
+                            db,
+                            sb,
+                            params);
+                    whereClause.add(sb.toString());
+                }
+                else
+                {
+                    whereClause.add(
+                            SqlExpression.build(
+                                    colMap.getColumnName(),
+                                    crit.getValue(key),
+                                    crit.getComparison(key),
+                                    crit.isIgnoreCase(),
+                                    db));
+                }
+            }
+        }
+        return whereClause;
+    }
+
+    /**
+     * Appends the WHERE clause for a set based update or delete
+     * on a single table to a sql statement.  Nothing is appended if
+     * the criteria contains no conditions for the table.
+     *
+     * @param crit The criteria
+     * @param tableMap The table which is updated or deleted from
+     * @param db The database adapter
+     * @param sql The statement to which the where clause is appended
+     * @param params a list to which the prepared statement parameters
+     *        are added, or null if the values should be rendered as
+     *        sql literals.
+     * @throws TorqueException if a condition cannot be rendered
+     */
+    private static void appendWhereClause(
+            Criteria crit,
+            TableMap tableMap,
+            DB db,
+            StringBuffer sql,
+            List params)
+        throws TorqueException
+    {
+        List whereClause = getWhereClause(crit, tableMap, db, params);
+        if (!whereClause.isEmpty())
+        {
+            sql.append(" WHERE ")
+                    .append(StringUtils.join(whereClause.iterator(), " AND "));
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("BasePeer: statement=" + sql);
+        }
     }
 
     /**
@@ -1786,4 +2986,62 @@ public abstract class BasePeer
         void process (String table, String dbName, Record rec)
                 throws Exception;
     }
+
+    /**
+     * A prepared statement parameter together with the sql type
+     * which is used if the value is null.
+     */
+    private static class BindValue
+    {
+        /** The value to bind, may be null. */
+        private Object value;
+
+        /** The sql type from java.sql.Types. */
+        private int sqlType;
+
+        /**
+         * Constructor.
+         *
+         * @param value the value to bind, may be null.
+         * @param sqlType the sql type from java.sql.Types.
+         */
+        BindValue(Object value, int sqlType)
+        {
+            this.value = value;
+            this.sqlType = sqlType;
+        }
+    }
+
+    /**
+     * Holds a group of rows which are inserted into the same table
+     * with the same set of columns.
+     */
+    private static class InsertBatch
+    {
+        /** The name of the database. */
+        private String dbName;
+
+        /** The table to insert into. */
+        private TableMap tableMap;
+
+        /** The ColumnMaps of the columns to insert, in table order. */
+        private List columns;
+
+        /** The positions of the rows in the list of all rows. */
+        private List indices = new ArrayList();
+
+        /**
+         * Constructor.
+         *
+         * @param dbName the name of the database.
+         * @param tableMap the table to insert into.
+         * @param columns the ColumnMaps of the columns to insert.
+         */
+        InsertBatch(String dbName, TableMap tableMap, List columns)
+        {
+            this.dbName = dbName;
+            this.tableMap = tableMap;
+            this.columns = columns;
+        }
+    }
 }
@@ -37,13 +37,11 @@ import java.util.Map;
 import org.apache.commons.collections.OrderedMap;
 import org.apache.commons.collections.map.ListOrderedMap;
 import org.apache.commons.lang.ObjectUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.torque.Torque;
 import org.apache.torque.TorqueException;
 import org.apache.torque.adapter.DB;
-import org.apache.torque.om.DateKey;
 import org.apache.torque.om.ObjectKey;
 
 /**
@@ -3448,28 +3446,30 @@ public class Criteria extends Hashtable
 
         /**
          * Appends a Prepared Statement representation of the Criterion
-         * onto the buffer.
+         * onto the buffer.  All values except custom sql are replaced
+         * by placeholders, see
+         * {@link SqlExpression#buildPs(String, Object, SqlEnum, boolean, DB, StringBuffer, List)}.
          *
          * @param sb The stringbuffer that will receive the Prepared Statement
          * @param params A list to which Prepared Statement parameters
          * will be appended
+         * @throws TorqueException if a subquery cannot be built.
          */
         public void appendPsTo(StringBuffer sb, List params)
+            throws TorqueException
         {
-            if (column == null || value == null)
+            if (column == null)
             {
                 return;
             }
 
-            DB db = getDb();
-
             for (int j = 0; j < this.clauses.size(); j++)
             {
                 sb.append('(');
             }
             if (CUSTOM == comparison)
             {
-                if (!"".equals(value))
+                if (value != null && !"".equals(value))
                 {
                     sb.append((String) value);
                 }
@@ -3488,77 +3488,119 @@ public class Criteria extends Hashtable
                             .append(table).append('.').append(column)
                             .toString();
                 }
+                SqlExpression.buildPs(field, value, comparison,
+                        ignoreStringCase || ignoreCase, getDb(), sb, params);
+            }
 
-                if (comparison.equals(Criteria.IN)
-                        || comparison.equals(Criteria.NOT_IN))
-                {
-                    sb.append(field)
-                            .append(comparison);
-
-                    UniqueList inClause = new UniqueList();
-
-                    if (value instanceof List)
-                    {
-                        value = ((List) value).toArray (new Object[0]);
-                    }
-
-                    for (int i = 0; i < Array.getLength(value); i++)
-                    {
-                        Object item = Array.get(value, i);
+            for (int i = 0; i < this.clauses.size(); i++)
+            {
+                sb.append(this.conjunctions.get(i));
+                Criterion clause = (Criterion) (this.clauses.get(i));
+                clause.appendPsTo(sb, params);
+                sb.append(')');
+            }
+        }
 
-                        inClause.add(SqlExpression.processInValue(item,
-                                             ignoreStringCase || ignoreCase,
-                                             db));
-                    }
+        /**
+         * Appends the structure of the Criterion onto the buffer, i.e.
+         * everything which influences the sql created by
+         * {@link #appendPsTo(StringBuffer, List)}, but not the values
+         * which are passed as Prepared Statement parameters.
+         * The parameters are appended to the list instead, in the same
+         * order and form as by appendPsTo, but without rendering any sql.
+         *
+         * @param sb The stringbuffer that will receive the structure.
+         * @param params A list to which Prepared Statement parameters
+         * will be appended
+         * @throws TorqueException if the structure of a subquery
+         *         cannot be determined.
+         * @see QueryCache#getKey(Criteria, List)
+         */
+        void appendStructureTo(StringBuffer sb, List params)
+            throws TorqueException
+        {
+            Object structureValue = value;
+            if (structureValue instanceof ObjectKey)
+            {
+                structureValue = ((ObjectKey) structureValue).getValue();
+            }
 
-                    StringBuffer inString = new StringBuffer();
-                    inString.append('(').append(StringUtils.join(
-                                                        inClause.iterator(), (","))).append(')');
-                    sb.append(inString.toString());
+            sb.append('{')
+                    .append(table)
+                    .append('.')
+                    .append(column)
+                    .append(comparison)
+                    .append(ignoreStringCase || ignoreCase ? 'I' : 'C');
+            if (structureValue == null)
+            {
+                sb.append("null");
+            }
+            else if (ISNULL.equals(comparison)
+                    || ISNOTNULL.equals(comparison))
+            {
+                // the value is neither rendered nor bound
+            }
+            else if (structureValue instanceof Criteria)
+            {
+                sb.append(QueryCache.getKey(
+                        (Criteria) structureValue, params));
+            }
+            else if (CUSTOM == comparison)
+            {
+                // custom sql is rendered as is
+                String text = structureValue.toString();
+                sb.append(text.length()).append(':').append(text);
+            }
+            else if (LIKE.equals(comparison)
+                    || NOT_LIKE.equals(comparison)
+                    || ILIKE.equals(comparison)
+                    || NOT_ILIKE.equals(comparison))
+            {
+                // the pattern is bound, but whether the like is
+                // turned into an equals depends on it
+                boolean equals = SqlExpression.addLikeParameter(
+                        structureValue.toString(), params);
+                sb.append(equals ? 'E' : 'L');
+            }
+            else if (IN.equals(comparison) || NOT_IN.equals(comparison))
+            {
+                // one placeholder per non-null list element,
+                // nulls are rendered as literal or dropped
+                if (structureValue instanceof List)
+                {
+                    structureValue = ((List) structureValue).toArray();
                 }
-                else
+                int length = Array.getLength(structureValue);
+                for (int i = 0; i < length; i++)
                 {
-                    if (ignoreStringCase || ignoreCase)
+                    Object element = Array.get(structureValue, i);
+                    if (element instanceof ObjectKey)
                     {
-                        sb.append(db.ignoreCase(field))
-                                .append(comparison)
-                                .append(db.ignoreCase("?"));
+                        element = ((ObjectKey) element).getValue();
                     }
-                    else
+                    if (element == null)
                     {
-                        sb.append(field)
-                                .append(comparison)
-                                .append(" ? ");
-                    }
-
-                    if (value instanceof java.util.Date)
-                    {
-                        params.add(new java.sql.Date(
-                                           ((java.util.Date) value).getTime()));
-                    }
-                    else if (value instanceof DateKey)
-                    {
-                        params.add(new java.sql.Date(
-                                           ((DateKey) value).getDate().getTime()));
-                    }
-                    else if (value instanceof Integer)
-                    {
-                        params.add(value);
+                        sb.append('n');
                     }
                     else
                     {
-                        params.add(value.toString());
+                        sb.append('?');
+                        params.add(element);
                     }
                 }
             }
+            else
+            {
+                params.add(structureValue);
+            }
 
             for (int i = 0; i < this.clauses.size(); i++)
             {
                 sb.append(this.conjunctions.get(i));
-                Criterion clause = (Criterion) (this.clauses.get(i));
-                clause.appendPsTo(sb, params);
-                sb.append(')');
+                ((Criterion) (this.clauses.get(i)))
+                        .appendStructureTo(sb, params);
             }
+            sb.append('}');
         }
 
         /**
@@ -21,23 +21,37 @@ package org.apache.torque.util;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import org.apache.commons.lang.SerializationUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.torque.Torque;
 import org.apache.torque.TorqueException;
+import org.apache.torque.adapter.DB;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.TableMap;
 
 import com.workingdogs.village.DataSetException;
 import com.workingdogs.village.QueryDataSet;
+import com.workingdogs.village.Record;
 
 /**
  * This class can be used to retrieve a large result set from a database query.
@@ -58,7 +72,11 @@ import com.workingdogs.village.QueryDataSet;
  * limit) is loaded and retrieved a page at a time.  If a request occurs for
  * data that falls outside the currently loaded window of data then a new query
  * is executed to fetch the required data.  Performance is optimized by
- * starting a thread to execute the database query and fetch the results.  This
+ * executing the database query and fetching the results in the background,
+ * using a thread of the {@link LargeSelectExecutor} which is shared by all
+ * instances; a caller waiting for rows is woken as soon as they have been
+ * retrieved, and a query which is no longer needed is cancelled using
+ * <code>Statement.cancel()</code>.  This
  * will perform best when paging forwards through the data, but a minor
  * optimization where the window is moved backwards by two rather than one page
  * is included for when a user pages past the beginning of the window.
@@ -84,6 +102,61 @@ import com.workingdogs.village.QueryDataSet;
  * execute the entire query before filtering down to the offset and limit either
  * internally or via Village.
  *
+ * <p>Deep pages are expensive with offsets, as the DBMS must still read
+ * all preceding rows.  If <code>LargeSelect</code> is created with
+ * <code>keysetPagination</code> set to <code>true</code>, it remembers the
+ * sort values of the last row of each page it has retrieved and starts the
+ * query for a later block with a seek condition such as
+ * <code>(A &gt; ?) OR (A = ? AND ID &gt; ?)</code> instead, so that paging
+ * forwards or backwards costs the same regardless of the depth.  This
+ * requires the criteria to be ordered by plain columns; the primary key of
+ * the table of the first order by column is appended to the order by
+ * columns as a tie breaker, and columns which are not selected are added to
+ * the select columns.  Blocks for which no seek position is known, e.g.
+ * when jumping to a distant page, are retrieved with offsets from the
+ * nearest known position.
+ *
+ * <p>If users page back and forth across block boundaries, the adjacent
+ * blocks can be prefetched.  When the requested page is within
+ * <code>LargeSelect.setPrefetchPageDistance()</code> pages of either end of
+ * the current block, and the current block has been retrieved completely,
+ * the following or preceding block is retrieved as a background task of the
+ * {@link LargeSelectExecutor}, which yields to waiting queries.  Up to
+ * <code>LargeSelect.setPrefetchBlockLimit()</code> blocks are kept in
+ * addition to the current block, including the previous current block, so
+ * that at most that many times the memory limit of additional rows are held
+ * in memory; if there are more, the blocks farthest from the current
+ * position are discarded.  Paging into a prefetched block makes it the
+ * current block without executing a query.  Prefetching is disabled by
+ * default and can be configured using the keys
+ * <code>torque.largeSelect.prefetch.pages</code> and
+ * <code>torque.largeSelect.prefetch.blocks</code>.
+ *
+ * <p>As the total number of records is only known when the query has
+ * reached the last row, <code>LargeSelect</code> can determine it in
+ * parallel to the query for the first block, using a background task of the
+ * {@link LargeSelectExecutor} and a separate connection.  With the count
+ * strategy <code>COUNT_EXACT</code>, a <code>COUNT(*)</code> query is
+ * executed using {@link CountHelper} and its result is published as the
+ * final total.  With <code>COUNT_ESTIMATE</code>, the number of rows
+ * estimated by the database adapter (see
+ * {@link org.apache.torque.adapter.DB#getEstimatedRowCount(Connection, String)})
+ * is published as a provisional total, which is returned by
+ * <code>getTotalRecords()</code> and <code>getTotalPages()</code> until it
+ * is exceeded or the totals are finalized; <code>getTotalsEstimated()</code>
+ * tells whether this is the case.  The strategy is set using
+ * <code>LargeSelect.setCountStrategy()</code> or the key
+ * <code>torque.largeSelect.count</code> and defaults to
+ * <code>COUNT_NONE</code>.
+ *
+ * <p>A <code>LargeSelect</code> which is serialized, e.g. when an http
+ * session is replicated, does not contain its rows.  After deserialization,
+ * the query for the current block is executed again when the next page is
+ * requested.  If the <code>LargeSelect</code> should not be stored at all,
+ * <code>getState()</code> returns a compact {@link LargeSelectState}, from
+ * which an equivalent <code>LargeSelect</code> is created using the same
+ * criteria and {@link #LargeSelect(Criteria, LargeSelectState)}.
+ *
  * <p>The memory limit defaults to 5 times the page size you specify, but
  * alternative constructors and the class method <code>setMemoryPageLimit()
  * </code> allow you to override this for a specific instance of
@@ -146,39 +219,55 @@ public class LargeSelect implements Runnable, Serializable
     private int memoryLimit;
 
     /** The record number of the first record in memory. */
-    private transient int blockBegin = 0;
+    private int blockBegin = 0;
     /** The record number of the last record in memory. */
-    private transient int blockEnd;
+    private int blockEnd;
     /** How much of the memory block is currently occupied with result data. */
     private volatile int currentlyFilledTo = -1;
 
     /** The SQL query that this <code>LargeSelect</code> represents. */
-    private String query;
+    private transient String query;
     /** The database name to get from Torque. */
     private String dbName;
 
     /** The memory store of records. */
     private transient List results = null;
 
-    /** The thread that executes the query. */
-    private transient Thread thread = null;
     /**
-     * A flag used to kill the thread when the currently executing query is no
-     * longer required.
+     * The lock used to signal the progress of the query to waiting readers.
+     */
+    private transient Object progressLock = new Object();
+    /** The statement of the currently executing query, or null. */
+    private transient Statement statement = null;
+    /**
+     * A flag used to stop retrieving rows when the currently executing query
+     * is no longer required.
      */
     private transient volatile boolean killThread = false;
-    /** A flag that indicates whether or not the query thread is running. */
+    /**
+     * A flag that indicates whether or not the query is queued or running.
+     */
     private transient volatile boolean threadRunning = false;
     /**
      * An indication of whether or not the current query has completed
      * processing.
      */
     private transient volatile boolean queryCompleted = false;
+    /**
+     * An indication of whether or not the current block contains the last
+     * row of the result, valid if the query has completed.
+     */
+    private transient volatile boolean lastBlock = false;
     /**
      * An indication of whether or not the totals (records and pages) are at
      * their final values.
      */
     private transient boolean totalsFinalized = false;
+    /**
+     * The blocks which have been prefetched or are being prefetched,
+     * guarded by the progress lock.
+     */
+    private transient List prefetchedBlocks = new LinkedList();
 
     /** The cursor position in the result set. */
     private int position;
@@ -186,6 +275,18 @@ public class LargeSelect implements Runnable, Serializable
     private int totalPages = -1;
     /** The total number of records known to exist. */
     private int totalRecords = 0;
+    /**
+     * The total number of records estimated by the database, or 0 if
+     * no estimate is known.
+     */
+    private transient int estimatedRecords = 0;
+    /** Whether the total number of records is being determined. */
+    private transient boolean countStarted = false;
+    /**
+     * Incremented when the result is invalidated, so that the total
+     * of an outdated count is not published.  Guarded by the progress lock.
+     */
+    private transient int countGeneration = 0;
 
     /** The criteria used for the query. */
     private Criteria criteria = null;
@@ -216,6 +317,43 @@ public class LargeSelect implements Runnable, Serializable
      */
     private static String moreIndicator = DEFAULT_MORE_INDICATOR;
 
+    /**
+     * The default value ("~") used to indicate that the total number of
+     * records or pages is estimated.
+     */
+    public static final String DEFAULT_ESTIMATE_INDICATOR = "~";
+
+    /**
+     * The value used to indicate that the total number of records or pages is
+     * estimated (default: "~"). You can use <code>setEstimateIndicator()</code>
+     * to change this to whatever value you like (e.g. "about").
+     */
+    private static String estimateIndicator = DEFAULT_ESTIMATE_INDICATOR;
+
+    /**
+     * The count strategy which does not determine the total number of
+     * records in advance.
+     */
+    public static final String COUNT_NONE = "none";
+
+    /**
+     * The count strategy which determines the total number of records
+     * using a <code>COUNT(*)</code> query in parallel to the first query.
+     */
+    public static final String COUNT_EXACT = "exact";
+
+    /**
+     * The count strategy which asks the database for an estimate of
+     * the total number of records in parallel to the first query.
+     */
+    public static final String COUNT_ESTIMATE = "estimate";
+
+    /**
+     * How the total number of records is determined in advance.  Use
+     * <code>setCountStrategy()</code> to provide your own value.
+     */
+    private static String countStrategy = COUNT_NONE;
+
     /**
      * The default value for the maximum number of pages of data to be retained
      * in memory.
@@ -229,19 +367,72 @@ public class LargeSelect implements Runnable, Serializable
     private static int memoryPageLimit = DEFAULT_MEMORY_LIMIT_PAGES;
 
     /**
-     * The number of milliseconds to sleep when the result of a query
-     * is not yet available.
+     * The default number of pages from the end of the current block within
+     * which the adjacent block is prefetched (0, prefetching is disabled).
+     */
+    public static final int DEFAULT_PREFETCH_PAGE_DISTANCE = 0;
+
+    /**
+     * The number of pages from the end of the current block within which
+     * the adjacent block is prefetched, or 0 if prefetching is disabled.
+     * Use <code>setPrefetchPageDistance()</code> to provide your own value.
+     */
+    private static int prefetchPageDistance = DEFAULT_PREFETCH_PAGE_DISTANCE;
+
+    /**
+     * The default maximum number of blocks kept in memory in addition to
+     * the current block.
+     */
+    public static final int DEFAULT_PREFETCH_BLOCK_LIMIT = 2;
+
+    /**
+     * The maximum number of blocks kept in memory in addition to the
+     * current block.  Use <code>setPrefetchBlockLimit()</code> to provide
+     * your own value.
      */
-    private static final int QUERY_NOT_COMPLETED_SLEEP_TIME = 500;
+    private static int prefetchBlockLimit = DEFAULT_PREFETCH_BLOCK_LIMIT;
 
     /**
-     * The number of milliseconds to sleep before retrying to stop a query.
+     * The maximum number of seek positions remembered for keyset
+     * pagination.
      */
-    private static final int QUERY_STOP_SLEEP_TIME = 100;
+    private static final int MAX_KEYSET_ANCHORS = 1000;
 
     /** A place to store search parameters that relate to this query. */
     private Hashtable params = null;
 
+    /** Whether later blocks are retrieved by keyset pagination. */
+    private boolean keysetPagination = false;
+    /**
+     * The columns the query is ordered by for keyset pagination,
+     * ending with the primary key columns.
+     */
+    private String[] keysetColumns = null;
+    /** Whether the keyset columns are ordered descending. */
+    private boolean[] keysetDescending = null;
+    /** The positions of the keyset columns in the records, starting at 1. */
+    private int[] keysetIndices = null;
+    /**
+     * The values of the keyset columns of the last row of each retrieved
+     * page, keyed by the record number of the row.  Guarded by its own
+     * monitor, as the query thread adds rows while getResults() holds
+     * the monitor of the LargeSelect.
+     */
+    private transient SortedMap keysetAnchors = new TreeMap();
+    /**
+     * The record number of the row before the current block whose keyset
+     * values are serialized, or -1.  Only set while serializing.
+     */
+    private int resumeKeysetAnchor = -1;
+    /** The serialized keyset values of the row, or null. */
+    private Object[] resumeKeysetAnchorValues = null;
+    /**
+     * Whether the query for the current block must be executed again
+     * when the next page is requested, as this LargeSelect has been
+     * resumed from a serialized state.
+     */
+    private transient boolean resumePending = false;
+
     /** Logging */
     private static Log log = LogFactory.getLog(LargeSelect.class);
 
@@ -283,7 +474,8 @@ public class LargeSelect implements Runnable, Serializable
      */
     public LargeSelect(Criteria criteria, int pageSize, int memoryPageLimit)
     {
-        init(criteria, pageSize, memoryPageLimit);
+        init(criteria, pageSize, memoryPageLimit, false);
+        startQuery(pageSize);
     }
 
     /**
@@ -355,29 +547,135 @@ public class LargeSelect implements Runnable, Serializable
             int memoryPageLimit,
             String returnBuilderClassName)
     {
-        try
-        {
-            this.returnBuilderClass = Class.forName(returnBuilderClassName);
+        this(criteria, pageSize, memoryPageLimit, returnBuilderClassName,
+                false);
+    }
 
-            // Add the select columns if necessary.
-            if (criteria.getSelectColumns().size() == 0)
-            {
-                Class[] argTypes = { Criteria.class };
-                Method selectColumnAdder =
-                    returnBuilderClass.getMethod("addSelectColumns", argTypes);
-                Object[] theArgs = { criteria };
-                selectColumnAdder.invoke(returnBuilderClass.newInstance(),
-                        theArgs);
-            }
+    /**
+     * Creates a LargeSelect whose results are returned as a <code>List</code>
+     * containing a maximum of <code>pageSize</code> objects at a time,
+     * maintaining a maximum of <code>memoryPageLimit</code> pages of
+     * results in memory, and optionally retrieving later blocks of results
+     * by keyset pagination.
+     *
+     * @param criteria object used by BasePeer to build the query.  In order to
+     * allow this class to utilise database server implemented offsets and
+     * limits (when available), the provided criteria must not have any limit or
+     * offset defined.  If the criteria does not include the definition of any
+     * select columns the <code>addSelectColumns(Criteria)</code> method of
+     * the class named as <code>returnBuilderClassName</code> will be used to
+     * add them.
+     * @param pageSize number of rows to return in one block.
+     * @param memoryPageLimit maximum number of pages worth of rows to be held
+     * in memory at one time.
+     * @param returnBuilderClassName The name of the class that will be used to
+     * build the result records (may implement <code>addSelectColumns(Criteria)
+     * </code> and must implement <code>populateObjects(List)</code>), or
+     * <code>null</code> to return Village <code>Record</code> objects.
+     * @param keysetPagination whether blocks following a retrieved page are
+     * retrieved by seeking past the sort values of its last row instead of
+     * using an offset.  The criteria must be ordered by plain columns, see
+     * above.
+     * @throws IllegalArgumentException if <code>criteria</code> uses one or
+     * both of offset and limit, if <code>pageSize</code> or <code>
+     * memoryLimitPages</code> are less than 1, if problems are experienced
+     * locating and invoking either one or both of <code>
+     * addSelectColumns(Criteria)</code> and <code> populateObjects(List)</code>
+     * in the class named <code>returnBuilderClassName</code>, or if keyset
+     * pagination is requested and the order by columns or the primary key
+     * cannot be determined.
+     */
+    public LargeSelect(
+            Criteria criteria,
+            int pageSize,
+            int memoryPageLimit,
+            String returnBuilderClassName,
+            boolean keysetPagination)
+    {
+        initReturnBuilder(criteria, returnBuilderClassName);
+        init(criteria, pageSize, memoryPageLimit, keysetPagination);
+        startQuery(pageSize);
+    }
+
+    /**
+     * Resumes a LargeSelect from its state, e.g. after the http session
+     * containing the state has been moved to another node.  The result is
+     * not retrieved until a page is requested; then, only the query for the
+     * block containing the page is executed.
+     *
+     * @param criteria object used by BasePeer to build the query, which
+     * must be equal to the criteria the LargeSelect was originally created
+     * with.
+     * @param state the state of the original LargeSelect, see
+     * <code>getState()</code>.
+     * @throws TorqueException if the criteria does not match the state.
+     * @throws IllegalArgumentException if <code>criteria</code> uses one or
+     * both of offset and limit, or if the return builder class or the keyset
+     * columns cannot be determined.
+     */
+    public LargeSelect(Criteria criteria, LargeSelectState state)
+            throws TorqueException
+    {
+        initReturnBuilder(criteria, state.getReturnBuilderClassName());
+        init(criteria, state.getPageSize(), state.getMemoryPageLimit(),
+                state.isKeysetPagination());
+        if (!getCriteriaFingerprint().equals(state.getCriteriaFingerprint()))
+        {
+            throw new TorqueException("The criteria does not match the "
+                    + "criteria of the LargeSelect state");
         }
-        catch (Exception e)
+        position = state.getPosition();
+        blockBegin = state.getBlockBegin();
+        blockEnd = blockBegin + memoryLimit - 1;
+        totalRecords = state.getTotalRecords();
+        totalsFinalized = state.getTotalsFinalized();
+        if (keysetPagination && state.getKeysetAnchorValues() != null)
         {
-            throw new IllegalArgumentException(
-                    "The class named as returnBuilderClassName does not "
-                    + "provide the necessary facilities - see javadoc.");
+            keysetAnchors.put(
+                    new Integer(state.getKeysetAnchor()),
+                    state.getKeysetAnchorValues());
         }
+        resumePending = true;
+    }
+
+    /**
+     * Loads the class which builds the results, and adds its select columns
+     * to the criteria if it has none.
+     *
+     * @param criteria the criteria used to build the query.
+     * @param returnBuilderClassName the name of the class, or null.
+     * @throws IllegalArgumentException if the class does not provide the
+     *         necessary methods.
+     */
+    private void initReturnBuilder(
+            Criteria criteria,
+            String returnBuilderClassName)
+    {
+        if (returnBuilderClassName != null)
+        {
+            try
+            {
+                this.returnBuilderClass
+                        = Class.forName(returnBuilderClassName);
 
-        init(criteria, pageSize, memoryPageLimit);
+                // Add the select columns if necessary.
+                if (criteria.getSelectColumns().size() == 0)
+                {
+                    Class[] argTypes = { Criteria.class };
+                    Method selectColumnAdder = returnBuilderClass.getMethod(
+                            "addSelectColumns", argTypes);
+                    Object[] theArgs = { criteria };
+                    selectColumnAdder.invoke(returnBuilderClass.newInstance(),
+                            theArgs);
+                }
+            }
+            catch (Exception e)
+            {
+                throw new IllegalArgumentException(
+                        "The class named as returnBuilderClassName does not "
+                        + "provide the necessary facilities - see javadoc.");
+            }
+        }
     }
 
     /**
@@ -401,7 +699,7 @@ public class LargeSelect implements Runnable, Serializable
     }
 
     /**
-     * Called by the constructors to start the query.
+     * Called by the constructors to set up the query.
      *
      * @param criteria Object used by <code>BasePeer</code> to build the query.
      * In order to allow this class to utilise database server implemented
@@ -410,11 +708,18 @@ public class LargeSelect implements Runnable, Serializable
      * @param pageSize number of rows to return in one block.
      * @param memoryLimitPages maximum number of pages worth of rows to be held
      * in memory at one time.
+     * @param keysetPagination whether later blocks are retrieved by keyset
+     * pagination.
      * @throws IllegalArgumentException if <code>criteria</code> uses one or
      * both of offset and limit and if <code>pageSize</code> or
-     * <code>memoryLimitPages</code> are less than 1;
+     * <code>memoryLimitPages</code> are less than 1, or if the keyset
+     * columns cannot be determined;
      */
-    private void init(Criteria criteria, int pageSize, int memoryLimitPages)
+    private void init(
+            Criteria criteria,
+            int pageSize,
+            int memoryLimitPages,
+            boolean keysetPagination)
     {
         if (criteria.getOffset() != 0 || criteria.getLimit() != -1)
         {
@@ -438,8 +743,126 @@ public class LargeSelect implements Runnable, Serializable
         this.memoryLimit = pageSize * memoryLimitPages;
         this.criteria = criteria;
         dbName = criteria.getDbName();
+        if (keysetPagination)
+        {
+            initKeyset();
+        }
         blockEnd = blockBegin + memoryLimit - 1;
-        startQuery(pageSize);
+    }
+
+    /**
+     * Determines the columns used for keyset pagination, i.e. the order by
+     * columns of the criteria followed by the primary key columns of the
+     * table of the first order by column (or of the first select column, if
+     * the criteria is not ordered).  Missing primary key columns are added
+     * to the order by columns, and keyset columns which are not selected
+     * are added to the select columns.
+     *
+     * @throws IllegalArgumentException if an order by column is not a plain
+     * column or the primary key cannot be determined.
+     */
+    private void initKeyset()
+    {
+        List columns = new ArrayList();
+        List descending = new ArrayList();
+        List orderBy = criteria.getOrderByColumns();
+        for (int i = 0; i < orderBy.size(); i++)
+        {
+            String orderByColumn = ((String) orderBy.get(i)).trim();
+            Boolean desc = Boolean.FALSE;
+            int spacePos = orderByColumn.lastIndexOf(' ');
+            if (spacePos != -1)
+            {
+                String direction = orderByColumn.substring(spacePos + 1);
+                if (SqlEnum.DESC.toString().equalsIgnoreCase(direction))
+                {
+                    desc = Boolean.TRUE;
+                    orderByColumn = orderByColumn.substring(0, spacePos).trim();
+                }
+                else if (SqlEnum.ASC.toString().equalsIgnoreCase(direction))
+                {
+                    orderByColumn = orderByColumn.substring(0, spacePos).trim();
+                }
+            }
+            if (orderByColumn.indexOf('(') != -1
+                    || orderByColumn.indexOf(' ') != -1
+                    || orderByColumn.indexOf('.') == -1)
+            {
+                throw new IllegalArgumentException("Keyset pagination "
+                        + "requires order by columns of the form "
+                        + "TABLE.COLUMN, but the criteria is ordered by "
+                        + orderBy.get(i));
+            }
+            columns.add(orderByColumn);
+            descending.add(desc);
+        }
+
+        String firstColumn = columns.isEmpty()
+                ? (String) criteria.getSelectColumns().get(0)
+                : (String) columns.get(0);
+        String tableName
+                = firstColumn.substring(0, firstColumn.lastIndexOf('.'));
+        String realTableName = criteria.getTableForAlias(tableName);
+        if (realTableName == null)
+        {
+            realTableName = tableName;
+        }
+        TableMap tableMap;
+        try
+        {
+            tableMap = Torque.getDatabaseMap(dbName).getTable(realTableName);
+        }
+        catch (TorqueException e)
+        {
+            throw new IllegalArgumentException("Keyset pagination: "
+                    + "the database map of " + dbName
+                    + " is not available: " + e.getMessage());
+        }
+        boolean hasPrimaryKey = false;
+        if (tableMap != null)
+        {
+            ColumnMap[] columnMaps = tableMap.getColumns();
+            for (int i = 0; i < columnMaps.length; i++)
+            {
+                if (columnMaps[i].isPrimaryKey())
+                {
+                    hasPrimaryKey = true;
+                    String pkColumn
+                            = tableName + '.' + columnMaps[i].getColumnName();
+                    if (!columns.contains(pkColumn))
+                    {
+                        columns.add(pkColumn);
+                        descending.add(Boolean.FALSE);
+                        criteria.addAscendingOrderByColumn(pkColumn);
+                    }
+                }
+            }
+        }
+        if (!hasPrimaryKey)
+        {
+            throw new IllegalArgumentException("Keyset pagination requires "
+                    + "a primary key, but none is known for table "
+                    + realTableName);
+        }
+
+        keysetColumns = new String[columns.size()];
+        keysetDescending = new boolean[columns.size()];
+        keysetIndices = new int[columns.size()];
+        List selectColumns = criteria.getSelectColumns();
+        for (int i = 0; i < keysetColumns.length; i++)
+        {
+            keysetColumns[i] = (String) columns.get(i);
+            keysetDescending[i] = ((Boolean) descending.get(i)).booleanValue();
+            int index = selectColumns.indexOf(keysetColumns[i]);
+            if (index == -1)
+            {
+                criteria.addSelectColumn(keysetColumns[i]);
+                index = selectColumns.size() - 1;
+            }
+            // village records start with column 1
+            keysetIndices[i] = index + 1;
+        }
+        keysetPagination = true;
     }
 
     /**
@@ -453,7 +876,7 @@ public class LargeSelect implements Runnable, Serializable
      * @throws IllegalArgumentException when <code>pageNo</code> is not
      * greater than zero.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public List getPage(int pageNumber) throws TorqueException
     {
@@ -471,7 +894,7 @@ public class LargeSelect implements Runnable, Serializable
      * @return a <code>List</code> of query results containing a maximum of
      * <code>pageSize</code> reslts.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public List getNextResults() throws TorqueException
     {
@@ -488,12 +911,12 @@ public class LargeSelect implements Runnable, Serializable
      * @return a <code>List</code> of query results containing a maximum of
      * <code>pageSize</code> reslts.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public List getCurrentPageResults() throws TorqueException
     {
         return null == lastResults && position > 0
-                ? getResults(position) : lastResults;
+                ? getResults(Math.max(0, position - pageSize)) : lastResults;
     }
 
     /**
@@ -502,7 +925,7 @@ public class LargeSelect implements Runnable, Serializable
      * @return a <code>List</code> of query results containing a maximum of
      * <code>pageSize</code> reslts.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public List getPreviousResults() throws TorqueException
     {
@@ -530,7 +953,7 @@ public class LargeSelect implements Runnable, Serializable
      * @return a <code>List</code> of query results containing a maximum of
      * <code>pageSize</code> reslts.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     private List getResults(int start) throws TorqueException
     {
@@ -549,7 +972,7 @@ public class LargeSelect implements Runnable, Serializable
      * <code>start</code> and <code>size</code> result in a situation that is
      * not catered for.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     private synchronized List getResults(int start, int size)
             throws TorqueException
@@ -566,27 +989,40 @@ public class LargeSelect implements Runnable, Serializable
                     + ") exceeds memory limit (" + memoryLimit + ").");
         }
 
+        boolean resume = resumePending;
+        resumePending = false;
+
         // Request was for a block of rows which should be in progess.
         // If the rows have not yet been returned, wait for them to be
         // retrieved.
         if (start >= blockBegin && (start + size - 1) <= blockEnd)
         {
+            if (resume)
+            {
+                // retrieve the current block again after deserialization
+                startQuery(size);
+            }
             if (log.isDebugEnabled())
             {
-                log.debug("getResults(): Sleeping until "
+                log.debug("getResults(): Waiting until "
                         + "start+size-1 (" + (start + size - 1)
                         + ") > currentlyFilledTo (" + currentlyFilledTo
                         + ") && !queryCompleted (!" + queryCompleted + ")");
             }
-            while (((start + size - 1) > currentlyFilledTo) && !queryCompleted)
+            synchronized (progressLock)
             {
-                try
+                while (((start + size - 1) > currentlyFilledTo)
+                        && !queryCompleted
+                        && threadRunning)
                 {
-                    Thread.sleep(QUERY_NOT_COMPLETED_SLEEP_TIME);
-                }
-                catch (InterruptedException e)
-                {
-                    throw new TorqueException("Unexpected interruption", e);
+                    try
+                    {
+                        progressLock.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new TorqueException("Unexpected interruption", e);
+                    }
                 }
             }
         }
@@ -600,6 +1036,10 @@ public class LargeSelect implements Runnable, Serializable
                 log.debug("getResults(): Paging backwards as start (" + start
                         + ") < blockBegin (" + blockBegin + ") && start >= 0");
             }
+            if (switchToPrefetchedBlock(start, size))
+            {
+                return getResults(start, size);
+            }
             stopQuery();
             if (memoryLimit >= 2 * size)
             {
@@ -628,6 +1068,10 @@ public class LargeSelect implements Runnable, Serializable
                         + "start+size-1 (" + (start + size - 1)
                         + ") > blockEnd (" + blockEnd + ")");
             }
+            if (switchToPrefetchedBlock(start, size))
+            {
+                return getResults(start, size);
+            }
             stopQuery();
             blockBegin = start;
             blockEnd = blockBegin + memoryLimit - 1;
@@ -676,80 +1120,297 @@ public class LargeSelect implements Runnable, Serializable
         }
         position = start + size;
         lastResults = returnResults;
+        prefetchAdjacentBlocks(start, size);
         return returnResults;
     }
 
     /**
-     * A background thread that retrieves the rows.
+     * Makes a prefetched block containing the requested rows the current
+     * block, waiting for it if it is still being retrieved.  A block whose
+     * retrieval has not been started yet is discarded, so that the rows are
+     * queried in the foreground.  The previous current block is kept as a
+     * prefetched block if it is complete.
+     *
+     * @param start the starting row.
+     * @param size the number of rows.
+     * @return true if a prefetched block has been made the current block,
+     *         false if no prefetched block contains the requested rows.
+     * @throws TorqueException if a wait is interrupted.
      */
-    public void run()
+    private synchronized boolean switchToPrefetchedBlock(int start, int size)
+            throws TorqueException
     {
-        boolean dbSupportsNativeLimit;
-        boolean dbSupportsNativeOffset;
-        try
+        Prefetch block = null;
+        synchronized (progressLock)
         {
-            dbSupportsNativeLimit
-                    = (Torque.getDB(dbName).supportsNativeLimit());
-            dbSupportsNativeOffset
-                    = (Torque.getDB(dbName).supportsNativeOffset());
+            for (Iterator it = prefetchedBlocks.iterator(); it.hasNext();)
+            {
+                Prefetch candidate = (Prefetch) it.next();
+                if (candidate.contains(start, size))
+                {
+                    block = candidate;
+                    break;
+                }
+            }
+            if (block == null)
+            {
+                return false;
+            }
+            if (!block.done && LargeSelectExecutor.remove(block))
+            {
+                // not started yet, query the rows in the foreground
+                // instead of waiting behind other background tasks
+                prefetchedBlocks.remove(block);
+                return false;
+            }
+            while (!block.done)
+            {
+                try
+                {
+                    progressLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new TorqueException("Unexpected interruption", e);
+                }
+            }
+            prefetchedBlocks.remove(block);
         }
-        catch (TorqueException e)
+        if (block.rows == null)
         {
-            log.error("run() : Exiting :", e);
-            // we cannot execute further because Torque is not initialized
-            // correctly
-            return;
+            // retrieving the block failed
+            return false;
         }
 
-        int size;
-        if (dbSupportsNativeLimit && dbSupportsNativeOffset)
+        if (log.isDebugEnabled())
         {
-            // retrieve one page at a time
-            size = pageSize;
+            log.debug("switchToPrefetchedBlock(): Using prefetched block "
+                    + "starting at " + block.begin);
         }
-        else
+        stopQuery();
+        Prefetch previous = null;
+        if (queryCompleted && results != null)
         {
-            // retrieve the whole block at once and add the offset,
-            // and add one record to check if we have reached the end of the
-            // data
-            size = blockBegin + memoryLimit + 1;
+            previous = new Prefetch(blockBegin, results, lastBlock);
         }
-        /* The connection to the database. */
-        Connection conn = null;
-        /** Used to retrieve query results from Village. */
-        QueryDataSet qds = null;
 
-        try
+        blockBegin = block.begin;
+        blockEnd = blockBegin + memoryLimit - 1;
+        results = block.rows;
+        currentlyFilledTo = results.size() - 1;
+        queryCompleted = true;
+        lastBlock = block.lastBlock;
+        synchronized (progressLock)
         {
-            // Add 1 to memory limit to check if the query ends on a page break.
-            results = new ArrayList(memoryLimit + 1);
+            if (blockBegin + currentlyFilledTo >= totalRecords)
+            {
+                totalRecords = blockBegin + currentlyFilledTo + 1;
+            }
+        }
+        if (lastBlock && results.size() > 0)
+        {
+            totalsFinalized = true;
+        }
 
-            // Use the criteria to limit the rows that are retrieved to the
-            // block of records that fit in the predefined memoryLimit.
-            if (dbSupportsNativeLimit)
+        if (previous != null)
+        {
+            synchronized (progressLock)
             {
-                if (dbSupportsNativeOffset)
-                {
-                    criteria.setOffset(blockBegin);
-                    // Add 1 to memory limit to check if the query ends on a
-                    // page break.
-                    criteria.setLimit(memoryLimit + 1);
-                }
-                else
-                {
-                    criteria.setLimit(blockBegin + memoryLimit + 1);
-                }
+                prefetchedBlocks.add(previous);
+                trimPrefetchedBlocks(start);
             }
+        }
+        return true;
+    }
 
-            /* 
-             * Fix criterions relating to booleanint or booleanchar columns
-             * The defaultTableMap parameter in this call is null because we have
-             * no default peer class inside LargeSelect. This means that all
-             * columns not fully qualified will not be modified.
-             */
-            BasePeer.correctBooleans(criteria, null);
-            
-            query = BasePeer.createQueryString(criteria);
+    /**
+     * Starts retrieving the blocks adjacent to the current block if the
+     * requested rows are near one of its ends and prefetching is enabled.
+     *
+     * @param start the starting row of the requested rows.
+     * @param size the number of requested rows.
+     */
+    private void prefetchAdjacentBlocks(int start, int size)
+    {
+        int distance = prefetchPageDistance * size;
+        if (distance <= 0 || prefetchBlockLimit <= 0)
+        {
+            return;
+        }
+        synchronized (progressLock)
+        {
+            // prefetch only when the current block is complete, so that
+            // the keyset positions at its ends are known
+            if (threadRunning || !queryCompleted)
+            {
+                return;
+            }
+            if (!lastBlock && start + size - 1 + distance > blockEnd)
+            {
+                prefetch(blockEnd + 1, start);
+            }
+            if (blockBegin > 0 && start - distance < blockBegin)
+            {
+                prefetch(Math.max(0, blockBegin - memoryLimit), start);
+            }
+        }
+    }
+
+    /**
+     * Starts retrieving a block in the background unless it has already been
+     * prefetched. Must be called while holding the progress lock.
+     *
+     * @param begin the record number of the first row of the block.
+     * @param start the starting row of the requested rows.
+     */
+    private void prefetch(int begin, int start)
+    {
+        for (Iterator it = prefetchedBlocks.iterator(); it.hasNext();)
+        {
+            if (((Prefetch) it.next()).begin == begin)
+            {
+                return;
+            }
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("prefetch(): Prefetching block starting at " + begin);
+        }
+        Prefetch block = new Prefetch(begin);
+        prefetchedBlocks.add(block);
+        trimPrefetchedBlocks(start);
+        if (prefetchedBlocks.contains(block))
+        {
+            LargeSelectExecutor.executeBackground(block);
+        }
+    }
+
+    /**
+     * Discards the prefetched blocks farthest from the requested rows
+     * until no more than the allowed number of blocks are left.
+     * Must be called while holding the progress lock.
+     *
+     * @param start the starting row of the requested rows.
+     */
+    private void trimPrefetchedBlocks(int start)
+    {
+        while (prefetchedBlocks.size() > prefetchBlockLimit)
+        {
+            Prefetch farthest = null;
+            for (Iterator it = prefetchedBlocks.iterator(); it.hasNext();)
+            {
+                Prefetch block = (Prefetch) it.next();
+                if (farthest == null
+                        || Math.abs(block.begin - start)
+                            > Math.abs(farthest.begin - start))
+                {
+                    farthest = block;
+                }
+            }
+            prefetchedBlocks.remove(farthest);
+            farthest.cancel();
+        }
+    }
+
+    /**
+     * Discards all prefetched blocks.
+     */
+    private void clearPrefetchedBlocks()
+    {
+        synchronized (progressLock)
+        {
+            for (Iterator it = prefetchedBlocks.iterator(); it.hasNext();)
+            {
+                ((Prefetch) it.next()).cancel();
+            }
+            prefetchedBlocks.clear();
+        }
+    }
+
+    /**
+     * Retrieves the rows in the background. Readers waiting for rows
+     * are notified when the query ends.
+     */
+    public void run()
+    {
+        try
+        {
+            runQuery();
+        }
+        finally
+        {
+            synchronized (progressLock)
+            {
+                threadRunning = false;
+                statement = null;
+                progressLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Executes the query and retrieves the rows of the current block,
+     * notifying waiting readers after each page.
+     */
+    private void runQuery()
+    {
+        boolean dbSupportsNativeLimit;
+        boolean dbSupportsNativeOffset;
+        try
+        {
+            dbSupportsNativeLimit
+                    = (Torque.getDB(dbName).supportsNativeLimit());
+            dbSupportsNativeOffset
+                    = (Torque.getDB(dbName).supportsNativeOffset());
+        }
+        catch (TorqueException e)
+        {
+            log.error("run() : Exiting :", e);
+            // we cannot execute further because Torque is not initialized
+            // correctly
+            return;
+        }
+
+        BlockQuery blockQuery;
+        try
+        {
+            blockQuery = createBlockQuery(
+                    blockBegin,
+                    dbSupportsNativeLimit,
+                    dbSupportsNativeOffset);
+        }
+        catch (TorqueException e)
+        {
+            log.error("run() : Exiting :", e);
+            return;
+        }
+        int skip = blockQuery.skip;
+
+        int size;
+        if (dbSupportsNativeLimit && dbSupportsNativeOffset)
+        {
+            // retrieve one page at a time
+            size = pageSize;
+        }
+        else
+        {
+            // retrieve the whole block at once and add the offset,
+            // and add one record to check if we have reached the end of the
+            // data
+            size = skip + memoryLimit + 1;
+        }
+        /* The connection to the database. */
+        Connection conn = null;
+        /* The statement executing the query. */
+        PreparedStatement stmt = null;
+        /** Used to retrieve query results from Village. */
+        QueryDataSet qds = null;
+
+        try
+        {
+            // Add 1 to memory limit to check if the query ends on a page break.
+            results = new ArrayList(memoryLimit + 1);
+            query = blockQuery.sql;
 
             // Get a connection to the db.
             conn = Transaction.begin(dbName);
@@ -762,7 +1423,17 @@ public class LargeSelect implements Runnable, Serializable
                 log.debug("run(): blockBegin = " + blockBegin);
                 log.debug("run(): blockEnd = " + blockEnd);
             }
-            qds = new QueryDataSet(conn, query);
+            stmt = blockQuery.prepare(conn);
+            synchronized (progressLock)
+            {
+                statement = stmt;
+            }
+            if (killThread)
+            {
+                // stopQuery() was called before the statement was known
+                return;
+            }
+            qds = new QueryDataSet(stmt.executeQuery());
 
             // Continue getting rows one page at a time until the memory limit
             // is reached, all results have been retrieved, or the rest
@@ -791,13 +1462,18 @@ public class LargeSelect implements Runnable, Serializable
                 List tempResults
                         = BasePeer.getSelectResults(qds, size, false);
 
-                int startIndex = dbSupportsNativeOffset ? 0 : blockBegin;
+                int startIndex = dbSupportsNativeOffset ? 0 : skip;
 
                 synchronized (results)
                 {
                     for (int i = startIndex, n = tempResults.size(); i < n; i++)
                     {
                         results.add(tempResults.get(i));
+                        if (keysetPagination)
+                        {
+                            addKeysetAnchor(blockBegin + results.size() - 1,
+                                    (Record) tempResults.get(i));
+                        }
                     }
                 }
 
@@ -807,7 +1483,7 @@ public class LargeSelect implements Runnable, Serializable
                 }
                 else
                 {
-                    currentlyFilledTo = tempResults.size() - 1 - blockBegin;
+                    currentlyFilledTo = tempResults.size() - 1 - skip;
                 }
 
                 boolean perhapsLastPage = true;
@@ -826,11 +1502,14 @@ public class LargeSelect implements Runnable, Serializable
                     perhapsLastPage = false;
                 }
 
-                if (results.size() > 0
-                    && blockBegin + currentlyFilledTo >= totalRecords)
+                synchronized (progressLock)
                 {
-                    // Add 1 because index starts at 0
-                    totalRecords = blockBegin + currentlyFilledTo + 1;
+                    if (results.size() > 0
+                        && blockBegin + currentlyFilledTo >= totalRecords)
+                    {
+                        // Add 1 because index starts at 0
+                        totalRecords = blockBegin + currentlyFilledTo + 1;
+                    }
                 }
 
                 // if the db has limited the datasets, we must retrieve all
@@ -839,17 +1518,31 @@ public class LargeSelect implements Runnable, Serializable
                 if (qds.allRecordsRetrieved()
                         || !dbSupportsNativeLimit)
                 {
+                    lastBlock = perhapsLastPage;
                     queryCompleted = true;
                     // The following ugly condition ensures that the totals are
                     // not finalized when a user does something like requesting
                     // a page greater than what exists in the database.
                     if (perhapsLastPage
-                        && getCurrentPageNumber() <= getTotalPages())
+                        && getCurrentPageNumber() <= getKnownTotalPages())
                     {
                         totalsFinalized = true;
                     }
                 }
                 qds.clearRecords();
+
+                synchronized (progressLock)
+                {
+                    progressLock.notifyAll();
+                }
+            }
+
+            if (!killThread && !queryCompleted)
+            {
+                // The block is full and more rows follow.  Without native
+                // limit, the query has already been completed above.
+                lastBlock = false;
+                queryCompleted = true;
             }
 
             if (log.isDebugEnabled())
@@ -875,78 +1568,813 @@ public class LargeSelect implements Runnable, Serializable
         }
         catch (SQLException e)
         {
-            log.error(e);
+            if (killThread)
+            {
+                log.debug("run(): Query was cancelled: " + e.getMessage());
+            }
+            else
+            {
+                log.error(e);
+            }
+        }
+        catch (DataSetException e)
+        {
+            log.error(e);
+        }
+        finally
+        {
+            try
+            {
+                if (qds != null)
+                {
+                    qds.close();
+                }
+                if (stmt != null)
+                {
+                    stmt.close();
+                }
+            }
+            catch (SQLException e)
+            {
+                log.error(e);
+            }
+            catch (DataSetException e)
+            {
+                log.error(e);
+            }
+            if (conn != null)
+            {
+                Transaction.safeRollback(conn);
+            }
+        }
+    }
+
+    /**
+     * Builds the sql which retrieves a block of rows.  With keyset
+     * pagination, the query starts after the nearest known row before the
+     * block, so only the rows between that row and the block must be
+     * skipped.
+     *
+     * @param begin the record number of the first row of the block.
+     * @param dbSupportsNativeLimit whether the database limits the rows.
+     * @param dbSupportsNativeOffset whether the database skips the rows.
+     * @return the query for the block.
+     * @throws TorqueException if the query cannot be built.
+     */
+    private BlockQuery createBlockQuery(
+            int begin,
+            boolean dbSupportsNativeLimit,
+            boolean dbSupportsNativeOffset)
+            throws TorqueException
+    {
+        int skip = begin;
+        String seekCondition = null;
+        List params = new ArrayList();
+        if (keysetPagination)
+        {
+            Integer anchor;
+            Object[] anchorValues = null;
+            synchronized (keysetAnchors)
+            {
+                anchor = getKeysetAnchor(begin);
+                if (anchor != null)
+                {
+                    anchorValues = (Object[]) keysetAnchors.get(anchor);
+                }
+            }
+            if (anchor != null)
+            {
+                seekCondition = buildSeekCondition(
+                        criteria,
+                        keysetColumns,
+                        keysetDescending,
+                        anchorValues,
+                        Torque.getDB(dbName),
+                        params);
+                skip = begin - anchor.intValue() - 1;
+            }
+        }
+
+        // The criteria is shared by the queries for the current and the
+        // prefetched blocks.
+        synchronized (criteria)
+        {
+            // Use the criteria to limit the rows that are retrieved to the
+            // block of records that fit in the predefined memoryLimit.
+            if (dbSupportsNativeLimit)
+            {
+                if (dbSupportsNativeOffset)
+                {
+                    criteria.setOffset(skip);
+                    // Add 1 to memory limit to check if the query ends on a
+                    // page break.
+                    criteria.setLimit(memoryLimit + 1);
+                }
+                else
+                {
+                    criteria.setLimit(skip + memoryLimit + 1);
+                }
+            }
+
+            /*
+             * Fix criterions relating to booleanint or booleanchar columns
+             * The defaultTableMap parameter in this call is null because we have
+             * no default peer class inside LargeSelect. This means that all
+             * columns not fully qualified will not be modified.
+             */
+            BasePeer.correctBooleans(criteria, null);
+
+            Query sqlQuery = BasePeer.createQuery(criteria);
+            if (seekCondition != null)
+            {
+                sqlQuery.getWhereClause().add(seekCondition);
+            }
+            return new BlockQuery(sqlQuery.toString(), params, skip);
+        }
+    }
+
+    /**
+     * The sql retrieving a block of rows, the values of its seek
+     * condition, and the number of rows to skip before the first row of
+     * the block.
+     */
+    private static final class BlockQuery
+    {
+        /** The sql of the query. */
+        private final String sql;
+
+        /** The values of the placeholders in the sql. */
+        private final List params;
+
+        /** The number of rows to skip. */
+        private final int skip;
+
+        /**
+         * Constructor.
+         *
+         * @param sql the sql of the query.
+         * @param params the values of the placeholders in the sql.
+         * @param skip the number of rows to skip.
+         */
+        private BlockQuery(String sql, List params, int skip)
+        {
+            this.sql = sql;
+            this.params = params;
+            this.skip = skip;
+        }
+
+        /**
+         * Prepares the query and binds the values of the placeholders.
+         *
+         * @param conn the connection to prepare the query on.
+         * @return the prepared statement.
+         * @throws SQLException if the query cannot be prepared.
+         * @throws TorqueException if a value cannot be bound.
+         */
+        private PreparedStatement prepare(Connection conn)
+                throws SQLException, TorqueException
+        {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try
+            {
+                for (int i = 0; i < params.size(); i++)
+                {
+                    // the keyset values are never null
+                    StatementUtils.setValue(
+                            stmt, i + 1, params.get(i), Types.OTHER);
+                }
+            }
+            catch (TorqueException e)
+            {
+                StatementUtils.close(stmt);
+                throw e;
+            }
+            return stmt;
+        }
+    }
+
+    /**
+     * A block of rows which is retrieved in the background, in addition to
+     * the current block.  The block is retrieved at once rather than page
+     * by page.
+     */
+    private final class Prefetch implements Runnable
+    {
+        /** The record number of the first row of the block. */
+        private final int begin;
+
+        /** The rows of the block, or null if they are not retrieved. */
+        private volatile List rows = null;
+
+        /** Whether the block contains the last row of the result. */
+        private volatile boolean lastBlock = false;
+
+        /**
+         * Whether retrieving the block has ended, guarded by the
+         * progress lock.
+         */
+        private boolean done = false;
+
+        /** Whether the block has been discarded. */
+        private volatile boolean cancelled = false;
+
+        /**
+         * The statement retrieving the rows, or null, guarded by the
+         * progress lock.
+         */
+        private Statement statement = null;
+
+        /**
+         * Creates a block which still has to be retrieved.
+         *
+         * @param begin the record number of the first row of the block.
+         */
+        private Prefetch(int begin)
+        {
+            this.begin = begin;
+        }
+
+        /**
+         * Creates a block from rows which have already been retrieved.
+         *
+         * @param begin the record number of the first row of the block.
+         * @param rows the rows of the block.
+         * @param lastBlock whether the block contains the last row of the
+         *        result.
+         */
+        private Prefetch(int begin, List rows, boolean lastBlock)
+        {
+            this.begin = begin;
+            this.rows = rows;
+            this.lastBlock = lastBlock;
+            this.done = true;
+        }
+
+        /**
+         * Returns whether the block contains a range of rows.  A block
+         * containing the last row of the result contains all rows after it.
+         *
+         * @param start the starting row.
+         * @param size the number of rows.
+         * @return true if the rows are contained in this block.
+         */
+        private boolean contains(int start, int size)
+        {
+            return start >= begin
+                    && (start + size <= begin + memoryLimit
+                        || (lastBlock && rows != null));
+        }
+
+        /**
+         * Stops retrieving the block, if it is still retrieved.
+         * Must be called while holding the progress lock.
+         */
+        private void cancel()
+        {
+            cancelled = true;
+            LargeSelectExecutor.remove(this);
+            if (statement != null)
+            {
+                try
+                {
+                    statement.cancel();
+                }
+                catch (SQLException e)
+                {
+                    log.debug("cancel(): Could not cancel prefetch: "
+                            + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Retrieves the rows of the block and notifies readers waiting
+         * for it.
+         */
+        public void run()
+        {
+            try
+            {
+                if (!cancelled)
+                {
+                    retrieve();
+                }
+            }
+            finally
+            {
+                synchronized (progressLock)
+                {
+                    done = true;
+                    statement = null;
+                    progressLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Executes the query for the block and retrieves its rows.
+         */
+        private void retrieve()
+        {
+            Connection conn = null;
+            PreparedStatement stmt = null;
+            QueryDataSet qds = null;
+            try
+            {
+                DB db = Torque.getDB(dbName);
+                boolean dbSupportsNativeLimit = db.supportsNativeLimit();
+                boolean dbSupportsNativeOffset = db.supportsNativeOffset();
+                BlockQuery blockQuery = createBlockQuery(
+                        begin,
+                        dbSupportsNativeLimit,
+                        dbSupportsNativeOffset);
+                int skip = blockQuery.skip;
+
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Prefetch.run(): query = " + blockQuery.sql);
+                }
+                conn = Transaction.begin(dbName);
+                stmt = blockQuery.prepare(conn);
+                synchronized (progressLock)
+                {
+                    if (cancelled)
+                    {
+                        return;
+                    }
+                    statement = stmt;
+                }
+                qds = new QueryDataSet(stmt.executeQuery());
+
+                // Add 1 to check if the block ends on the last row.
+                boolean dbSkipsRows
+                        = dbSupportsNativeLimit && dbSupportsNativeOffset;
+                int size = dbSkipsRows
+                        ? memoryLimit + 1
+                        : skip + memoryLimit + 1;
+                List tempResults = BasePeer.getSelectResults(qds, size, false);
+                int startIndex = dbSkipsRows ? 0 : skip;
+                List blockRows = new ArrayList(memoryLimit + 1);
+                for (int i = startIndex, n = tempResults.size(); i < n; i++)
+                {
+                    blockRows.add(tempResults.get(i));
+                }
+                boolean last = true;
+                if (blockRows.size() > memoryLimit)
+                {
+                    blockRows.remove(memoryLimit);
+                    last = false;
+                }
+
+                if (keysetPagination)
+                {
+                    synchronized (keysetAnchors)
+                    {
+                        // after invalidateResult(), the rows are outdated
+                        for (int i = 0; i < blockRows.size() && !cancelled; i++)
+                        {
+                            addKeysetAnchor(begin + i,
+                                    (Record) blockRows.get(i));
+                        }
+                    }
+                }
+
+                Transaction.commit(conn);
+                conn = null;
+                lastBlock = last;
+                rows = blockRows;
+            }
+            catch (TorqueException e)
+            {
+                logFailure(e);
+            }
+            catch (SQLException e)
+            {
+                logFailure(e);
+            }
+            catch (DataSetException e)
+            {
+                logFailure(e);
+            }
+            finally
+            {
+                try
+                {
+                    if (qds != null)
+                    {
+                        qds.close();
+                    }
+                    if (stmt != null)
+                    {
+                        stmt.close();
+                    }
+                }
+                catch (SQLException e)
+                {
+                    log.error(e);
+                }
+                catch (DataSetException e)
+                {
+                    log.error(e);
+                }
+                if (conn != null)
+                {
+                    Transaction.safeRollback(conn);
+                }
+            }
+        }
+
+        /**
+         * Logs a failure to retrieve the block, unless the block
+         * has been discarded.
+         *
+         * @param e the cause of the failure.
+         */
+        private void logFailure(Exception e)
+        {
+            if (cancelled)
+            {
+                log.debug("Prefetch of block starting at " + begin
+                        + " was cancelled: " + e.getMessage());
+            }
+            else
+            {
+                log.error("Could not prefetch block starting at " + begin, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the record number of the nearest row before a block whose
+     * keyset values are known.
+     *
+     * @param begin the record number of the first row of the block.
+     * @return the record number of the row, or null if no row before the
+     *         block is known.
+     */
+    private Integer getKeysetAnchor(int begin)
+    {
+        SortedMap before = keysetAnchors.headMap(new Integer(begin));
+        return before.isEmpty() ? null : (Integer) before.lastKey();
+    }
+
+    /**
+     * Remembers the keyset values of a row, if it is the last row of a page
+     * and none of its keyset values is null.
+     *
+     * @param recordNumber the record number of the row.
+     * @param record the row.
+     * @throws DataSetException if the values cannot be read.
+     */
+    private void addKeysetAnchor(int recordNumber, Record record)
+            throws DataSetException
+    {
+        if ((recordNumber + 1) % pageSize != 0)
+        {
+            return;
         }
-        catch (DataSetException e)
+        Object[] values = new Object[keysetIndices.length];
+        for (int i = 0; i < keysetIndices.length; i++)
         {
-            log.error(e);
+            values[i] = VillageUtils.getObject(
+                    record.getValue(keysetIndices[i]));
+            if (values[i] == null)
+            {
+                // the position of nulls in the order is db specific
+                return;
+            }
         }
-        finally
+        synchronized (keysetAnchors)
         {
-            try
+            keysetAnchors.put(new Integer(recordNumber), values);
+            if (keysetAnchors.size() > MAX_KEYSET_ANCHORS)
             {
-                if (qds != null)
+                // forget the position farthest from the current block
+                Integer first = (Integer) keysetAnchors.firstKey();
+                Integer last = (Integer) keysetAnchors.lastKey();
+                if (recordNumber - first.intValue()
+                        > last.intValue() - recordNumber)
                 {
-                    qds.close();
+                    keysetAnchors.remove(first);
                 }
-                if (conn != null)
+                else
                 {
-                    Transaction.safeRollback(conn);
+                    keysetAnchors.remove(last);
                 }
             }
-            catch (SQLException e)
-            {
-                log.error(e);
-            }
-            catch (DataSetException e)
+        }
+    }
+
+    /**
+     * Builds the condition selecting the rows which follow a row in the
+     * order of the keyset columns, e.g.
+     * <code>(A &gt; ? OR (A = ? AND ID &gt; ?))</code>.  The values
+     * are passed as prepared statement parameters, because sql literals
+     * may lose precision, e.g. the fractional seconds of timestamps.
+     *
+     * @param criteria the criteria of the query.
+     * @param columns the keyset columns.
+     * @param descending whether the keyset columns are ordered descending.
+     * @param values the keyset values of the row.
+     * @param db the database adapter.
+     * @param params the list to which the values of the placeholders
+     *        are appended.
+     * @return the sql of the condition.
+     * @throws TorqueException if the condition cannot be built.
+     */
+    static String buildSeekCondition(
+            Criteria criteria,
+            String[] columns,
+            boolean[] descending,
+            Object[] values,
+            DB db,
+            List params)
+            throws TorqueException
+    {
+        Criteria.Criterion condition = null;
+        for (int i = 0; i < columns.length; i++)
+        {
+            Criteria.Criterion term = null;
+            for (int j = 0; j < i; j++)
             {
-                log.error(e);
+                term = and(term, newKeysetCriterion(
+                        criteria, columns[j], values[j], Criteria.EQUAL));
             }
-            threadRunning = false;
+            term = and(term, newKeysetCriterion(
+                    criteria,
+                    columns[i],
+                    values[i],
+                    descending[i]
+                            ? Criteria.LESS_THAN
+                            : Criteria.GREATER_THAN));
+            condition = (condition == null) ? term : condition.or(term);
         }
+        condition.setDB(db);
+        StringBuffer sql = new StringBuffer();
+        condition.appendPsTo(sql, params);
+        return sql.toString();
+    }
+
+    /**
+     * Creates a comparison of a keyset column, which ignores the case
+     * of strings if the order of the criteria does.
+     *
+     * @param criteria the criteria of the query.
+     * @param column the keyset column.
+     * @param value the value to compare with.
+     * @param comparison the comparison.
+     * @return the criterion.
+     */
+    private static Criteria.Criterion newKeysetCriterion(
+            Criteria criteria,
+            String column,
+            Object value,
+            SqlEnum comparison)
+    {
+        Criteria.Criterion criterion = criteria.getNewCriterion(
+                column, value, comparison);
+        criterion.setIgnoreCase(criteria.isIgnoreCase());
+        return criterion;
+    }
+
+    /**
+     * Combines two criterions with AND.
+     *
+     * @param left the left criterion, or null.
+     * @param right the right criterion.
+     * @return right if left is null, otherwise left with right appended.
+     */
+    private static Criteria.Criterion and(
+            Criteria.Criterion left,
+            Criteria.Criterion right)
+    {
+        return (left == null) ? right : left.and(right);
     }
 
     /**
-     * Starts a new thread to retrieve the result set.
+     * Schedules the retrieval of the result set by the
+     * {@link LargeSelectExecutor}.
      *
      * @param initialSize the initial size for each block.
      */
     private synchronized void startQuery(int initialSize)
     {
-        if (!threadRunning)
+        synchronized (progressLock)
         {
+            if (threadRunning)
+            {
+                return;
+            }
             pageSize = initialSize;
             currentlyFilledTo = -1;
             queryCompleted = false;
-            thread = new Thread(this);
-            thread.start();
             threadRunning = true;
         }
+        LargeSelectExecutor.execute(this);
+        startCount();
+    }
+
+    /**
+     * Starts determining the total number of records in the background,
+     * if a count strategy is set and the total is not being determined yet.
+     */
+    private synchronized void startCount()
+    {
+        if (countStarted || COUNT_NONE.equals(countStrategy))
+        {
+            return;
+        }
+        countStarted = true;
+        int generation;
+        synchronized (progressLock)
+        {
+            generation = countGeneration;
+        }
+        LargeSelectExecutor.executeBackground(
+                new TotalCount(countStrategy, generation));
+    }
+
+    /**
+     * Publishes the total number of records determined in the background,
+     * unless the result has been invalidated in the meantime.
+     *
+     * @param count the number of records.
+     * @param exact whether the count is exact or an estimate.
+     * @param generation the count generation when the count was started.
+     */
+    private void publishCount(int count, boolean exact, int generation)
+    {
+        synchronized (progressLock)
+        {
+            if (generation != countGeneration)
+            {
+                return;
+            }
+            if (!exact)
+            {
+                estimatedRecords = count;
+            }
+            else if (count >= totalRecords)
+            {
+                totalRecords = count;
+                totalsFinalized = true;
+            }
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("publishCount(): " + (exact ? "Counted " : "Estimated ")
+                    + count + " records");
+        }
+    }
+
+    /**
+     * Determines the total number of records of the query, using a copy
+     * of the criteria and a separate connection.
+     */
+    private final class TotalCount implements Runnable
+    {
+        /** The count strategy, COUNT_EXACT or COUNT_ESTIMATE. */
+        private final String strategy;
+
+        /** The count generation when the count was started. */
+        private final int generation;
+
+        /**
+         * Constructor.
+         *
+         * @param strategy the count strategy.
+         * @param generation the current count generation.
+         */
+        private TotalCount(String strategy, int generation)
+        {
+            this.strategy = strategy;
+            this.generation = generation;
+        }
+
+        /**
+         * Counts or estimates the records and publishes the result.
+         */
+        public void run()
+        {
+            Connection conn = null;
+            try
+            {
+                Criteria countCriteria;
+                synchronized (criteria)
+                {
+                    countCriteria
+                            = (Criteria) SerializationUtils.clone(criteria);
+                }
+                countCriteria.setOffset(0);
+                countCriteria.setLimit(-1);
+                countCriteria.getOrderByColumns().clear();
+
+                if (COUNT_EXACT.equals(strategy))
+                {
+                    // COUNT(*) would count the ungrouped rows, and
+                    // COUNT(DISTINCT *) is not valid
+                    if (!countCriteria.getGroupByColumns().isEmpty()
+                        || countCriteria.getHaving() != null
+                        || countCriteria.getSelectModifiers().contains(
+                                SqlEnum.DISTINCT.toString()))
+                    {
+                        log.debug("TotalCount.run(): Cannot count records "
+                                + "of grouped or distinct query");
+                        return;
+                    }
+                    conn = Transaction.begin(dbName);
+                    int count = new CountHelper().count(countCriteria, conn);
+                    Transaction.commit(conn);
+                    conn = null;
+                    publishCount(count, true, generation);
+                }
+                else
+                {
+                    BasePeer.correctBooleans(countCriteria, null);
+                    String sql = BasePeer.createQuery(countCriteria).toString();
+                    conn = Transaction.begin(dbName);
+                    int estimate = Torque.getDB(dbName)
+                            .getEstimatedRowCount(conn, sql);
+                    Transaction.commit(conn);
+                    conn = null;
+                    if (estimate >= 0)
+                    {
+                        publishCount(estimate, false, generation);
+                    }
+                }
+            }
+            catch (TorqueException e)
+            {
+                log.error("Could not determine the total number of records",
+                        e);
+            }
+            catch (SQLException e)
+            {
+                log.error("Could not determine the total number of records",
+                        e);
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    Transaction.safeRollback(conn);
+                }
+            }
+        }
     }
 
     /**
      * Used to stop filling the memory with the current block of results, if it
-     * has been determined that they are no longer relevant.
+     * has been determined that they are no longer relevant.  A query which has
+     * not been started yet is removed from the queue of the executor, a
+     * running query is cancelled using <code>Statement.cancel()</code>.
      *
-     * @throws TorqueException if a sleep is interrupted.
+     * @throws TorqueException if a wait is interrupted.
      */
     private synchronized void stopQuery() throws TorqueException
     {
-        if (threadRunning)
+        synchronized (progressLock)
         {
+            if (!threadRunning)
+            {
+                return;
+            }
+            if (LargeSelectExecutor.remove(this))
+            {
+                threadRunning = false;
+                return;
+            }
             killThread = true;
-            while (thread.isAlive())
+            try
             {
-                try
+                if (statement != null)
                 {
-                    Thread.sleep(QUERY_STOP_SLEEP_TIME);
+                    try
+                    {
+                        statement.cancel();
+                    }
+                    catch (SQLException e)
+                    {
+                        log.debug("stopQuery(): Could not cancel query: "
+                                + e.getMessage());
+                    }
                 }
-                catch (InterruptedException e)
+                while (threadRunning)
                 {
-                    throw new TorqueException("Unexpected interruption", e);
+                    try
+                    {
+                        progressLock.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new TorqueException("Unexpected interruption", e);
+                    }
                 }
             }
-            killThread = false;
+            finally
+            {
+                killThread = false;
+            }
         }
     }
 
@@ -967,14 +2395,33 @@ public class LargeSelect implements Runnable, Serializable
      * <code>getRecordProgressText()</code> may be more useful for presenting to
      * users.
      *
+     * If the database has estimated a larger total, the estimate is returned
+     * until the totals are finalized (see <code>getTotalsEstimated()</code>).
+     *
      * @return the number of result records known to exist (not accurate until
      * <code>getTotalsFinalized()</code> returns <code>true</code>).
      */
     public int getTotalRecords()
     {
+        if (getTotalsEstimated())
+        {
+            return estimatedRecords;
+        }
         return totalRecords;
     }
 
+    /**
+     * Provide an indication of whether or not the total values for the number
+     * of records and pages are estimates of the database rather than known
+     * lower limits.
+     *
+     * @return <code>true</code> when the totals are estimated.
+     */
+    public boolean getTotalsEstimated()
+    {
+        return !totalsFinalized && estimatedRecords > totalRecords;
+    }
+
     /**
      * Provide an indication of whether or not paging of results will be
      * required.
@@ -1019,6 +2466,17 @@ public class LargeSelect implements Runnable, Serializable
         return tempPageCount;
     }
 
+    /**
+     * Computes the number of pages of search results which are known to exist,
+     * ignoring estimates.
+     *
+     * @return the number of pages of results known to exist.
+     */
+    private int getKnownTotalPages()
+    {
+        return totalRecords / pageSize + (totalRecords % pageSize > 0 ? 1 : 0);
+    }
+
     /**
      * Retrieve the page size.
      *
@@ -1061,6 +2519,54 @@ public class LargeSelect implements Runnable, Serializable
         return LargeSelect.moreIndicator;
     }
 
+    /**
+     * Provide a way of changing the estimated pages/records indicator.
+     *
+     * @param estimateIndicator the indicator to use in place of the default
+     * ("~").
+     */
+    public static void setEstimateIndicator(String estimateIndicator)
+    {
+        LargeSelect.estimateIndicator = estimateIndicator;
+    }
+
+    /**
+     * Retrieve the estimated pages/records indicator.
+     */
+    public static String getEstimateIndicator()
+    {
+        return LargeSelect.estimateIndicator;
+    }
+
+    /**
+     * Sets how the total number of records is determined in parallel to the
+     * first query of future instances.
+     *
+     * @param countStrategy one of <code>COUNT_NONE</code>,
+     * <code>COUNT_EXACT</code> and <code>COUNT_ESTIMATE</code>.
+     * @throws IllegalArgumentException if the strategy is unknown.
+     */
+    public static void setCountStrategy(String countStrategy)
+    {
+        if (!COUNT_NONE.equals(countStrategy)
+                && !COUNT_EXACT.equals(countStrategy)
+                && !COUNT_ESTIMATE.equals(countStrategy))
+        {
+            throw new IllegalArgumentException(
+                    "Unknown count strategy " + countStrategy);
+        }
+        LargeSelect.countStrategy = countStrategy;
+    }
+
+    /**
+     * Retrieves how the total number of records is determined in parallel to
+     * the first query.
+     */
+    public static String getCountStrategy()
+    {
+        return LargeSelect.countStrategy;
+    }
+
     /**
      * Sets the multiplier that will be used to compute the memory limit when a
      * constructor with no memory page limit is used - the memory limit will be
@@ -1084,6 +2590,48 @@ public class LargeSelect implements Runnable, Serializable
         return LargeSelect.memoryPageLimit;
     }
 
+    /**
+     * Sets the number of pages from either end of the current block within
+     * which the adjacent block is retrieved in the background.
+     *
+     * @param prefetchPageDistance the number of pages, or 0 to disable
+     * prefetching.
+     */
+    public static void setPrefetchPageDistance(int prefetchPageDistance)
+    {
+        LargeSelect.prefetchPageDistance = prefetchPageDistance;
+    }
+
+    /**
+     * Retrieves the number of pages from either end of the current block
+     * within which the adjacent block is retrieved in the background.
+     */
+    public static int getPrefetchPageDistance()
+    {
+        return LargeSelect.prefetchPageDistance;
+    }
+
+    /**
+     * Sets the maximum number of blocks which are kept in memory in addition
+     * to the current block, so that at most this number multiplied by the
+     * memory limit of additional rows is held in memory.
+     *
+     * @param prefetchBlockLimit the maximum number of additional blocks.
+     */
+    public static void setPrefetchBlockLimit(int prefetchBlockLimit)
+    {
+        LargeSelect.prefetchBlockLimit = prefetchBlockLimit;
+    }
+
+    /**
+     * Retrieves the maximum number of blocks which are kept in memory in
+     * addition to the current block.
+     */
+    public static int getPrefetchBlockLimit()
+    {
+        return LargeSelect.prefetchBlockLimit;
+    }
+
     /**
      * A convenience method that provides text showing progress through the
      * selected rows on a page basis.
@@ -1096,7 +2644,12 @@ public class LargeSelect implements Runnable, Serializable
         StringBuffer result = new StringBuffer();
         result.append(getCurrentPageNumber());
         result.append(" of ");
-        if (!totalsFinalized)
+        if (getTotalsEstimated())
+        {
+            result.append(estimateIndicator);
+            result.append(" ");
+        }
+        else if (!totalsFinalized)
         {
             result.append(moreIndicator);
             result.append(" ");
@@ -1112,7 +2665,7 @@ public class LargeSelect implements Runnable, Serializable
      * @return the number of records that are included on the current page of
      * results.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public int getCurrentPageSize() throws TorqueException
     {
@@ -1142,7 +2695,7 @@ public class LargeSelect implements Runnable, Serializable
      *
      * @return the record number of the last row of the current page.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public int getLastRecordNoForPage() throws TorqueException
     {
@@ -1161,7 +2714,7 @@ public class LargeSelect implements Runnable, Serializable
      * @return progress text in the form of "26 - 50 of &gt; 250" where "&gt;"
      * can be configured using <code>setMoreIndicator()</code>.
      * @throws TorqueException if invoking the <code>populateObjects()<code>
-     * method runs into problems or a sleep is unexpectedly interrupted.
+     * method runs into problems or a wait is unexpectedly interrupted.
      */
     public String getRecordProgressText() throws TorqueException
     {
@@ -1170,7 +2723,12 @@ public class LargeSelect implements Runnable, Serializable
         result.append(" - ");
         result.append(getLastRecordNoForPage());
         result.append(" of ");
-        if (!totalsFinalized)
+        if (getTotalsEstimated())
+        {
+            result.append(estimateIndicator);
+            result.append(" ");
+        }
+        else if (!totalsFinalized)
         {
             result.append(moreIndicator);
             result.append(" ");
@@ -1214,7 +2772,7 @@ public class LargeSelect implements Runnable, Serializable
      */
     public boolean hasResultsAvailable()
     {
-        return getTotalRecords() > 0;
+        return totalRecords > 0;
     }
 
     /**
@@ -1222,11 +2780,12 @@ public class LargeSelect implements Runnable, Serializable
      * is retrieved.  You may want to invoke this method if you are returning to
      * a page after performing an operation on an item in the result set.
      *
-     * @throws TorqueException if a sleep is interrupted.
+     * @throws TorqueException if a wait is interrupted.
      */
     public synchronized void invalidateResult() throws TorqueException
     {
         stopQuery();
+        clearPrefetchedBlocks();
         blockBegin = 0;
         blockEnd = 0;
         currentlyFilledTo = -1;
@@ -1238,8 +2797,19 @@ public class LargeSelect implements Runnable, Serializable
         totalPages = -1;
         totalRecords = 0;
         queryCompleted = false;
+        lastBlock = false;
         totalsFinalized = false;
         lastResults = null;
+        countStarted = false;
+        synchronized (progressLock)
+        {
+            countGeneration++;
+            estimatedRecords = 0;
+        }
+        synchronized (keysetAnchors)
+        {
+            keysetAnchors.clear();
+        }
     }
 
     /**
@@ -1317,6 +2887,126 @@ public class LargeSelect implements Runnable, Serializable
         }
     }
 
+    /**
+     * Returns the position of this LargeSelect in its result in a compact,
+     * serializable form, from which an equivalent LargeSelect can be
+     * created using {@link #LargeSelect(Criteria, LargeSelectState)}.
+     *
+     * @return the state of this LargeSelect.
+     * @throws TorqueException if the fingerprint of the criteria cannot
+     *         be computed.
+     */
+    public synchronized LargeSelectState getState() throws TorqueException
+    {
+        int anchor = -1;
+        Object[] anchorValues = null;
+        if (keysetPagination)
+        {
+            synchronized (keysetAnchors)
+            {
+                Integer anchorKey = getKeysetAnchor(blockBegin);
+                if (anchorKey != null)
+                {
+                    anchor = anchorKey.intValue();
+                    anchorValues = (Object[]) keysetAnchors.get(anchorKey);
+                }
+            }
+        }
+        return new LargeSelectState(
+                getCriteriaFingerprint(),
+                (returnBuilderClass == null)
+                        ? null
+                        : returnBuilderClass.getName(),
+                keysetPagination,
+                pageSize,
+                memoryLimit / pageSize,
+                position,
+                blockBegin,
+                totalRecords,
+                totalsFinalized,
+                anchor,
+                anchorValues);
+    }
+
+    /**
+     * Computes a fingerprint of the query, i.e. a digest of its sql
+     * without offset and limit.
+     *
+     * @return the fingerprint as hex string.
+     * @throws TorqueException if the sql cannot be built.
+     */
+    private String getCriteriaFingerprint() throws TorqueException
+    {
+        String sql;
+        synchronized (criteria)
+        {
+            int offset = criteria.getOffset();
+            int limit = criteria.getLimit();
+            criteria.setOffset(0);
+            criteria.setLimit(-1);
+            try
+            {
+                BasePeer.correctBooleans(criteria, null);
+                sql = BasePeer.createQuery(criteria).toString();
+            }
+            finally
+            {
+                criteria.setOffset(offset);
+                criteria.setLimit(limit);
+            }
+        }
+
+        byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5").digest(
+                    (dbName + '|' + sql).getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new TorqueException(e);
+        }
+        catch (IOException e)
+        {
+            throw new TorqueException(e);
+        }
+        StringBuffer result = new StringBuffer(2 * digest.length);
+        for (int i = 0; i < digest.length; i++)
+        {
+            result.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Serialize this LargeSelect instance.  The rows are not serialized,
+     * but the keyset values needed to retrieve the current block again.
+     *
+     * @param outputStream The serialization output stream.
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream outputStream)
+            throws IOException
+    {
+        resumeKeysetAnchor = -1;
+        resumeKeysetAnchorValues = null;
+        if (keysetPagination)
+        {
+            synchronized (keysetAnchors)
+            {
+                Integer anchor = getKeysetAnchor(blockBegin);
+                if (anchor != null)
+                {
+                    resumeKeysetAnchor = anchor.intValue();
+                    resumeKeysetAnchorValues
+                            = (Object[]) keysetAnchors.get(anchor);
+                }
+            }
+        }
+        outputStream.defaultWriteObject();
+    }
+
     /**
      * Deserialize this LargeSelect instance.
      *
@@ -1328,12 +3018,23 @@ public class LargeSelect implements Runnable, Serializable
             throws IOException, ClassNotFoundException
     {
         inputStream.defaultReadObject();
-
-        // avoid NPE because of Tomcat de-serialization of sessions
-        if (Torque.isInit())
+        keysetAnchors = new TreeMap();
+        if (resumeKeysetAnchorValues != null)
         {
-            startQuery(pageSize);
+            keysetAnchors.put(
+                    new Integer(resumeKeysetAnchor),
+                    resumeKeysetAnchorValues);
+            resumeKeysetAnchorValues = null;
         }
+        progressLock = new Object();
+        prefetchedBlocks = new LinkedList();
+
+        // The rows are not serialized. The query for the current block is
+        // executed again when a page is requested, which also avoids an NPE
+        // because of Tomcat de-serialization of sessions before Torque is
+        // initialized.
+        currentlyFilledTo = -1;
+        resumePending = true;
     }
 
     /**
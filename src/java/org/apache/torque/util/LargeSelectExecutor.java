@@ -0,0 +1,395 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of daemon threads which execute the queries of all
+ * {@link LargeSelect} instances. Threads are started on demand up to the
+ * maximum, and exit after they have been idle for a while; further queries
+ * wait in a queue until a thread becomes free. The maximum number of threads
+ * can be configured using the key <code>torque.largeSelect.threads</code>.
+ *
+ * <p>Background tasks, i.e. prefetched blocks and counts, wait in a separate
+ * queue. They are only started if no foreground query is waiting, and at most
+ * <code>torque.largeSelect.backgroundThreads</code> threads execute them at
+ * the same time, so that they cannot occupy all threads. If the pool has more
+ * than one thread, at least one thread is always left for foreground
+ * queries.
+ *
+ * @version $Id$
+ */
+public final class LargeSelectExecutor
+{
+    /** The default maximum number of query threads. */
+    public static final int DEFAULT_MAX_THREADS = 10;
+
+    /** The default maximum number of threads executing background tasks. */
+    public static final int DEFAULT_MAX_BACKGROUND_THREADS = 2;
+
+    /** The number of milliseconds after which an idle thread exits. */
+    private static final long IDLE_TIMEOUT = 60000L;
+
+    /** The log. */
+    private static Log log = LogFactory.getLog(LargeSelectExecutor.class);
+
+    /** The foreground queries waiting for a thread. Also used as lock. */
+    private static LinkedList queue = new LinkedList();
+
+    /** The background tasks waiting for a thread. */
+    private static LinkedList backgroundQueue = new LinkedList();
+
+    /** The maximum number of query threads. */
+    private static int maxThreads = DEFAULT_MAX_THREADS;
+
+    /** The maximum number of threads executing background tasks. */
+    private static int maxBackgroundThreads = DEFAULT_MAX_BACKGROUND_THREADS;
+
+    /** The number of running query threads. */
+    private static int threads = 0;
+
+    /** The number of query threads waiting for work. */
+    private static int idleThreads = 0;
+
+    /** The number of query threads executing a background task. */
+    private static int backgroundThreads = 0;
+
+    /** Whether idle threads should exit immediately. */
+    private static boolean shutdown = false;
+
+    /** The number of the next thread, used for naming threads. */
+    private static int threadNumber = 0;
+
+    /**
+     * Private constructor to prevent instantiation.
+     *
+     * Class contains only static methods and should therefore not be
+     * instantiated.
+     */
+    private LargeSelectExecutor()
+    {
+    }
+
+    /**
+     * Sets the maximum number of query threads. Running threads are not
+     * stopped if the new maximum is lower than the number of running threads,
+     * but no new threads are started until enough threads have exited.
+     *
+     * @param max the maximum number of query threads, must be positive.
+     */
+    public static void setMaxThreads(int max)
+    {
+        if (max < 1)
+        {
+            throw new IllegalArgumentException(
+                    "max must be positive, but is " + max);
+        }
+        synchronized (queue)
+        {
+            maxThreads = max;
+            queue.notifyAll();
+            startThreads();
+        }
+        log.debug("Maximum number of large select threads set to " + max);
+    }
+
+    /**
+     * Returns the maximum number of query threads.
+     *
+     * @return the maximum number of query threads.
+     */
+    public static int getMaxThreads()
+    {
+        synchronized (queue)
+        {
+            return maxThreads;
+        }
+    }
+
+    /**
+     * Sets the maximum number of threads which execute background tasks at
+     * the same time. Running background tasks are not stopped if the new
+     * maximum is lower than their number.
+     *
+     * @param max the maximum number of background threads, must be positive.
+     */
+    public static void setMaxBackgroundThreads(int max)
+    {
+        if (max < 1)
+        {
+            throw new IllegalArgumentException(
+                    "max must be positive, but is " + max);
+        }
+        synchronized (queue)
+        {
+            maxBackgroundThreads = max;
+            queue.notifyAll();
+            startThreads();
+        }
+        log.debug("Maximum number of large select background threads set to "
+                + max);
+    }
+
+    /**
+     * Returns the maximum number of threads which execute background tasks
+     * at the same time.
+     *
+     * @return the maximum number of background threads.
+     */
+    public static int getMaxBackgroundThreads()
+    {
+        synchronized (queue)
+        {
+            return maxBackgroundThreads;
+        }
+    }
+
+    /**
+     * Returns the number of queries and background tasks waiting for a
+     * free thread.
+     *
+     * @return the number of waiting queries and background tasks.
+     */
+    public static int getQueueSize()
+    {
+        synchronized (queue)
+        {
+            return queue.size() + backgroundQueue.size();
+        }
+    }
+
+    /**
+     * Lets the idle threads exit. Queued queries are still executed,
+     * and later queries start new threads.
+     */
+    public static void shutdown()
+    {
+        synchronized (queue)
+        {
+            shutdown = true;
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Schedules a query for execution by a query thread.
+     *
+     * @param query the query to execute.
+     */
+    static void execute(Runnable query)
+    {
+        synchronized (queue)
+        {
+            queue.addLast(query);
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules a background task for execution by a query thread once
+     * no foreground query is waiting and the number of threads executing
+     * background tasks is below its maximum.
+     *
+     * @param task the task to execute.
+     */
+    static void executeBackground(Runnable task)
+    {
+        synchronized (queue)
+        {
+            backgroundQueue.addLast(task);
+            schedule();
+        }
+    }
+
+    /**
+     * Removes a query or background task from its queue if no thread has
+     * started it yet.
+     *
+     * @param query the query to remove.
+     *
+     * @return true if the query was removed and will not be executed,
+     *         false if it has already been started.
+     */
+    static boolean remove(Runnable query)
+    {
+        synchronized (queue)
+        {
+            return queue.remove(query) || backgroundQueue.remove(query);
+        }
+    }
+
+    /**
+     * Wakes an idle thread or starts a new one for a newly queued query.
+     * Must be called while holding the lock on the queue.
+     */
+    private static void schedule()
+    {
+        shutdown = false;
+        if (idleThreads >= startableQueries())
+        {
+            queue.notify();
+        }
+        else
+        {
+            startThreads();
+        }
+    }
+
+    /**
+     * Starts threads for the waiting queries, as far as the maximum number
+     * of threads allows. Must be called while holding the lock on the queue.
+     */
+    private static void startThreads()
+    {
+        while (threads < maxThreads && idleThreads < startableQueries())
+        {
+            Thread thread = new Thread(
+                    new Worker(),
+                    "Torque large select " + (++threadNumber));
+            thread.setDaemon(true);
+            threads++;
+            idleThreads++;
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the number of waiting queries which a thread could start now,
+     * i.e. the foreground queries and as many background tasks as the
+     * limit for background threads allows. Must be called while holding
+     * the lock on the queue.
+     *
+     * @return the number of startable queries.
+     */
+    private static int startableQueries()
+    {
+        int freeBackgroundThreads
+                = Math.max(0, backgroundThreadLimit() - backgroundThreads);
+        return queue.size()
+                + Math.min(backgroundQueue.size(), freeBackgroundThreads);
+    }
+
+    /**
+     * Returns the number of threads which may execute background tasks at
+     * the same time. Unless the pool has only one thread, one thread is
+     * reserved for foreground queries. Must be called while holding the
+     * lock on the queue.
+     *
+     * @return the maximum number of threads for background tasks.
+     */
+    private static int backgroundThreadLimit()
+    {
+        return Math.max(1, Math.min(maxBackgroundThreads, maxThreads - 1));
+    }
+
+    /**
+     * Executes queued queries until it has been idle for too long.
+     */
+    private static final class Worker implements Runnable
+    {
+        /**
+         * Takes queries from the queues and executes them, preferring
+         * foreground queries over background tasks.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                Runnable query;
+                boolean background = false;
+                synchronized (queue)
+                {
+                    long idleSince = System.currentTimeMillis();
+                    while (true)
+                    {
+                        if (!queue.isEmpty())
+                        {
+                            query = (Runnable) queue.removeFirst();
+                            break;
+                        }
+                        if (!backgroundQueue.isEmpty()
+                                && backgroundThreads < backgroundThreadLimit())
+                        {
+                            query = (Runnable) backgroundQueue.removeFirst();
+                            background = true;
+                            backgroundThreads++;
+                            break;
+                        }
+                        long remaining = idleSince + IDLE_TIMEOUT
+                                - System.currentTimeMillis();
+                        if (shutdown || remaining <= 0
+                                || threads > maxThreads)
+                        {
+                            threads--;
+                            idleThreads--;
+                            return;
+                        }
+                        try
+                        {
+                            queue.wait(remaining);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // ignore
+                        }
+                    }
+                    idleThreads--;
+                }
+
+                boolean completed = false;
+                try
+                {
+                    query.run();
+                    completed = true;
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Large select query failed", e);
+                    completed = true;
+                }
+                finally
+                {
+                    synchronized (queue)
+                    {
+                        if (background)
+                        {
+                            backgroundThreads--;
+                        }
+                        if (completed)
+                        {
+                            idleThreads++;
+                        }
+                        else
+                        {
+                            // an Error terminates this thread; replace it
+                            // so that the queued queries are not stranded
+                            threads--;
+                            startThreads();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
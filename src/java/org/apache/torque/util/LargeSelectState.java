@@ -0,0 +1,330 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The position of a {@link LargeSelect} in its result, in a compact form
+ * which is cheap to serialize, e.g. for replicating http sessions.
+ * It contains a fingerprint of the criteria instead of the criteria itself,
+ * the page size, the position, the bounds of the current block, the sort
+ * values of the row before the current block if keyset pagination is used,
+ * and the totals; the rows are not contained.
+ *
+ * A LargeSelect is resumed from its state using
+ * {@link LargeSelect#LargeSelect(Criteria, LargeSelectState)} and a criteria
+ * equal to the one it was created with.  Only the query for the current
+ * block is executed again, when the next page is requested.
+ *
+ * @version $Id$
+ */
+public class LargeSelectState implements Externalizable
+{
+    /** Serial version. */
+    private static final long serialVersionUID = 4718340977232465271L;
+
+    /** The version of the external form. */
+    private static final int VERSION = 1;
+
+    /** The fingerprint of the criteria. */
+    private String criteriaFingerprint;
+
+    /** The name of the class building the results, or null. */
+    private String returnBuilderClassName;
+
+    /** Whether keyset pagination is used. */
+    private boolean keysetPagination;
+
+    /** The number of records that a page consists of. */
+    private int pageSize;
+
+    /** The maximum number of pages to maintain in memory. */
+    private int memoryPageLimit;
+
+    /** The cursor position in the result. */
+    private int position;
+
+    /** The record number of the first record of the current block. */
+    private int blockBegin;
+
+    /** The total number of records known to exist. */
+    private int totalRecords;
+
+    /** Whether the total number of records is final. */
+    private boolean totalsFinalized;
+
+    /**
+     * The record number of the row whose keyset values are known,
+     * or -1 if none is known.
+     */
+    private int keysetAnchor = -1;
+
+    /** The keyset values of the row, or null. */
+    private Object[] keysetAnchorValues;
+
+    /**
+     * Creates an empty state, used for deserialization.
+     */
+    public LargeSelectState()
+    {
+    }
+
+    /**
+     * Creates the state of a LargeSelect.
+     *
+     * @param criteriaFingerprint the fingerprint of the criteria.
+     * @param returnBuilderClassName the name of the class building the
+     *        results, or null.
+     * @param keysetPagination whether keyset pagination is used.
+     * @param pageSize the number of records that a page consists of.
+     * @param memoryPageLimit the maximum number of pages in memory.
+     * @param position the cursor position in the result.
+     * @param blockBegin the record number of the first record of the
+     *        current block.
+     * @param totalRecords the total number of records known to exist.
+     * @param totalsFinalized whether the total number of records is final.
+     * @param keysetAnchor the record number of the row whose keyset values
+     *        are known, or -1.
+     * @param keysetAnchorValues the keyset values of the row, or null.
+     */
+    LargeSelectState(
+            String criteriaFingerprint,
+            String returnBuilderClassName,
+            boolean keysetPagination,
+            int pageSize,
+            int memoryPageLimit,
+            int position,
+            int blockBegin,
+            int totalRecords,
+            boolean totalsFinalized,
+            int keysetAnchor,
+            Object[] keysetAnchorValues)
+    {
+        this.criteriaFingerprint = criteriaFingerprint;
+        this.returnBuilderClassName = returnBuilderClassName;
+        this.keysetPagination = keysetPagination;
+        this.pageSize = pageSize;
+        this.memoryPageLimit = memoryPageLimit;
+        this.position = position;
+        this.blockBegin = blockBegin;
+        this.totalRecords = totalRecords;
+        this.totalsFinalized = totalsFinalized;
+        this.keysetAnchor = keysetAnchor;
+        this.keysetAnchorValues = keysetAnchorValues;
+    }
+
+    /**
+     * Returns the fingerprint of the criteria.
+     *
+     * @return the fingerprint of the criteria.
+     */
+    public String getCriteriaFingerprint()
+    {
+        return criteriaFingerprint;
+    }
+
+    /**
+     * Returns the name of the class building the results.
+     *
+     * @return the class name, or null if Village Records are returned.
+     */
+    public String getReturnBuilderClassName()
+    {
+        return returnBuilderClassName;
+    }
+
+    /**
+     * Returns whether keyset pagination is used.
+     *
+     * @return true if keyset pagination is used, false otherwise.
+     */
+    public boolean isKeysetPagination()
+    {
+        return keysetPagination;
+    }
+
+    /**
+     * Returns the number of records that a page consists of.
+     *
+     * @return the page size.
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Returns the maximum number of pages to maintain in memory.
+     *
+     * @return the memory page limit.
+     */
+    public int getMemoryPageLimit()
+    {
+        return memoryPageLimit;
+    }
+
+    /**
+     * Returns the cursor position in the result.
+     *
+     * @return the record number following the last returned page.
+     */
+    public int getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Returns the record number of the first record of the current block.
+     *
+     * @return the record number of the first record of the current block.
+     */
+    public int getBlockBegin()
+    {
+        return blockBegin;
+    }
+
+    /**
+     * Returns the total number of records known to exist.
+     *
+     * @return the total number of records known to exist.
+     */
+    public int getTotalRecords()
+    {
+        return totalRecords;
+    }
+
+    /**
+     * Returns whether the total number of records is final.
+     *
+     * @return true if the total number of records is final.
+     */
+    public boolean getTotalsFinalized()
+    {
+        return totalsFinalized;
+    }
+
+    /**
+     * Returns the record number of the row before the current block
+     * whose keyset values are known.
+     *
+     * @return the record number, or -1 if no such row is known.
+     */
+    public int getKeysetAnchor()
+    {
+        return keysetAnchor;
+    }
+
+    /**
+     * Returns the keyset values of the row before the current block.
+     *
+     * @return the keyset values, or null if no such row is known.
+     */
+    public Object[] getKeysetAnchorValues()
+    {
+        return keysetAnchorValues;
+    }
+
+    /**
+     * Writes the state.
+     *
+     * @param out the stream to write to.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeInt(VERSION);
+        out.writeUTF(criteriaFingerprint);
+        out.writeBoolean(returnBuilderClassName != null);
+        if (returnBuilderClassName != null)
+        {
+            out.writeUTF(returnBuilderClassName);
+        }
+        out.writeBoolean(keysetPagination);
+        out.writeInt(pageSize);
+        out.writeInt(memoryPageLimit);
+        out.writeInt(position);
+        out.writeInt(blockBegin);
+        out.writeInt(totalRecords);
+        out.writeBoolean(totalsFinalized);
+        out.writeInt(keysetAnchor);
+        if (keysetAnchor >= 0)
+        {
+            out.writeObject(keysetAnchorValues);
+        }
+    }
+
+    /**
+     * Reads the state.
+     *
+     * @param in the stream to read from.
+     *
+     * @throws IOException if reading fails or the state was written
+     *         by an incompatible version.
+     * @throws ClassNotFoundException if the class of a keyset value
+     *         cannot be found.
+     */
+    public void readExternal(ObjectInput in)
+        throws IOException, ClassNotFoundException
+    {
+        int version = in.readInt();
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported LargeSelectState version "
+                    + version);
+        }
+        criteriaFingerprint = in.readUTF();
+        returnBuilderClassName = in.readBoolean() ? in.readUTF() : null;
+        keysetPagination = in.readBoolean();
+        pageSize = in.readInt();
+        memoryPageLimit = in.readInt();
+        position = in.readInt();
+        blockBegin = in.readInt();
+        totalRecords = in.readInt();
+        totalsFinalized = in.readBoolean();
+        keysetAnchor = in.readInt();
+        keysetAnchorValues = (keysetAnchor >= 0)
+                ? (Object[]) in.readObject()
+                : null;
+    }
+
+    /**
+     * Provide something useful for debugging purposes.
+     *
+     * @return the position and totals of this state.
+     */
+    public String toString()
+    {
+        StringBuffer result = new StringBuffer();
+        result.append("LargeSelectState - Position: ")
+                .append(position)
+                .append(" BlockBegin: ")
+                .append(blockBegin)
+                .append(" TotalRecords: ")
+                .append(totalRecords)
+                .append(" TotalsFinalised: ")
+                .append(totalsFinalized);
+        return result.toString();
+    }
+}
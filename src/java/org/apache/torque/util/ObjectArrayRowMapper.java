@@ -0,0 +1,110 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.torque.TorqueException;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.TableMap;
+
+/**
+ * A RowMapper which reads all columns of a row by index into an
+ * Object array. If the columns are described by ColumnMaps,
+ * the values are converted to the java type of the column,
+ * see {@link StatementUtils#getValue(ResultSet, int, ColumnMap)};
+ * otherwise, the values are read using getObject().
+ *
+ * @version $Id$
+ */
+public class ObjectArrayRowMapper implements RowMapper
+{
+    /** The descriptions of the selected columns, or null. */
+    private ColumnMap[] columns;
+
+    /**
+     * Creates a mapper which reads all columns using getObject().
+     */
+    public ObjectArrayRowMapper()
+    {
+        this.columns = null;
+    }
+
+    /**
+     * Creates a mapper for rows containing the given columns
+     * in the given order.
+     *
+     * @param columns the descriptions of the selected columns.
+     *        Entries may be null, these columns are read using getObject().
+     */
+    public ObjectArrayRowMapper(ColumnMap[] columns)
+    {
+        this.columns = columns;
+    }
+
+    /**
+     * Creates a mapper for rows containing all columns of a table,
+     * in the order in which they are defined in the table map.
+     *
+     * @param tableMap the table whose columns are selected.
+     */
+    public ObjectArrayRowMapper(TableMap tableMap)
+    {
+        this.columns = tableMap.getColumns();
+    }
+
+    /**
+     * Reads the current row of the result set into an Object array.
+     *
+     * @param resultSet the result set, positioned on the row to map.
+     *
+     * @return an Object[] containing the values of the columns.
+     *
+     * @throws TorqueException if the row cannot be read.
+     */
+    public Object processRow(ResultSet resultSet) throws TorqueException
+    {
+        int columnCount;
+        if (columns == null)
+        {
+            try
+            {
+                columnCount = resultSet.getMetaData().getColumnCount();
+            }
+            catch (SQLException e)
+            {
+                throw new TorqueException(e);
+            }
+        }
+        else
+        {
+            columnCount = columns.length;
+        }
+
+        Object[] row = new Object[columnCount];
+        for (int i = 0; i < columnCount; i++)
+        {
+            ColumnMap columnMap = (columns == null) ? null : columns[i];
+            row[i] = StatementUtils.getValue(resultSet, i + 1, columnMap);
+        }
+        return row;
+    }
+}
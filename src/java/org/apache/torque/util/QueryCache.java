@@ -0,0 +1,292 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.torque.Torque;
+import org.apache.torque.TorqueException;
+import org.apache.torque.adapter.DB;
+
+/**
+ * A cache for the sql of prepared statements created from Criteria objects.
+ * The sql is keyed by the structure of the Criteria, i.e. by everything
+ * except the values which are passed to the database as prepared statement
+ * parameters. Criteria which only differ in their parameter values
+ * can thus share the sql, and building the query is reduced to collecting
+ * the parameters.
+ *
+ * The cache is bounded, the least recently used entries are discarded
+ * if it is full. Its size can be configured using the key
+ * <code>torque.queryCache.size</code>; a size of 0 disables the cache.
+ *
+ * @version $Id$
+ */
+public final class QueryCache
+{
+    /** The default maximum number of cached statements. */
+    public static final int DEFAULT_MAX_SIZE = 500;
+
+    /** The log. */
+    private static Log log = LogFactory.getLog(QueryCache.class);
+
+    /** The cached sql, keyed by the structure of the Criteria. */
+    private static LRUMap cache = new LRUMap(DEFAULT_MAX_SIZE);
+
+    /** Whether the cache is used at all. */
+    private static boolean enabled = true;
+
+    /** The number of lookups which found a cached statement. */
+    private static long hits = 0;
+
+    /** The number of lookups which did not find a cached statement. */
+    private static long misses = 0;
+
+    /**
+     * Private constructor to prevent instantiation.
+     *
+     * Class contains only static method ans should therefore not be
+     * instantiated.
+     */
+    private QueryCache()
+    {
+    }
+
+    /**
+     * Sets the maximum number of cached statements.
+     * The cache is emptied by this operation.
+     *
+     * @param maxSize the maximum number of cached statements,
+     *        or 0 to disable the cache.
+     */
+    public static synchronized void setMaxSize(int maxSize)
+    {
+        if (maxSize < 0)
+        {
+            throw new IllegalArgumentException(
+                    "maxSize must not be negative, but is " + maxSize);
+        }
+        enabled = (maxSize > 0);
+        cache = new LRUMap(enabled ? maxSize : 1);
+        log.debug("Query cache size set to " + maxSize);
+    }
+
+    /**
+     * Returns the maximum number of cached statements.
+     *
+     * @return the maximum number of cached statements,
+     *         or 0 if the cache is disabled.
+     */
+    public static synchronized int getMaxSize()
+    {
+        return enabled ? cache.maxSize() : 0;
+    }
+
+    /**
+     * Returns the number of statements currently in the cache.
+     *
+     * @return the number of cached statements.
+     */
+    public static synchronized int getSize()
+    {
+        return cache.size();
+    }
+
+    /**
+     * Returns how often a cached statement was found.
+     *
+     * @return the number of cache hits.
+     */
+    public static synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns how often no cached statement was found.
+     *
+     * @return the number of cache misses.
+     */
+    public static synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Removes all statements from the cache and resets the
+     * hit and miss counts.
+     */
+    public static synchronized void clear()
+    {
+        cache.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Builds the sql of a prepared statement for the criteria and
+     * collects the parameters of the statement.
+     * If a statement with the same structure was built before,
+     * the sql is taken from the cache.
+     *
+     * @param criteria the criteria to build the statement for.
+     * @param params the list to which the statement parameters
+     *        are appended.
+     * @param qc the callback used to build a criterion of the where clause.
+     *
+     * @return the sql of the statement.
+     * @throws TorqueException if the statement cannot be built.
+     */
+    public static String getSql(
+            Criteria criteria,
+            List params,
+            SQLBuilder.QueryCallback qc)
+        throws TorqueException
+    {
+        if (!isEnabled())
+        {
+            return SQLBuilder.buildQueryClause(criteria, params, qc).toString();
+        }
+
+        List keyParams = new ArrayList();
+        String key = getKey(criteria, keyParams);
+        String sql = get(key);
+        if (sql != null)
+        {
+            params.addAll(keyParams);
+            return sql;
+        }
+
+        sql = SQLBuilder.buildQueryClause(criteria, params, qc).toString();
+        put(key, sql);
+        return sql;
+    }
+
+    /**
+     * Creates the key of a criteria, which contains all information used
+     * for building the sql of a prepared statement, i.e. the database
+     * adapter, the select, from, where, order by, group by and having
+     * clauses and, if the adapter renders them into the sql, the limits.
+     * Prepared statement parameters are not part of the key; they are
+     * appended to the list instead, in the same order as they are
+     * collected by
+     * {@link SQLBuilder#buildQueryClause(Criteria, List, SQLBuilder.QueryCallback)}.
+     *
+     * @param criteria the criteria to create the key for.
+     * @param params the list to which the statement parameters
+     *        are appended.
+     *
+     * @return the key of the criteria.
+     * @throws TorqueException if the database adapter cannot be obtained.
+     */
+    static String getKey(Criteria criteria, List params)
+        throws TorqueException
+    {
+        StringBuffer key = new StringBuffer();
+        String dbName = criteria.getDbName();
+        DB db = Torque.getDB(dbName);
+
+        key.append(dbName)
+                .append('|')
+                .append(db == null ? null : db.getClass().getName())
+                .append('|')
+                .append(criteria.getSelectModifiers())
+                .append(criteria.getSelectColumns())
+                .append(criteria.getAsColumns())
+                .append(criteria.getAliases())
+                .append(criteria.getJoins())
+                .append('|')
+                .append(criteria.isIgnoreCase());
+
+        for (Iterator it = criteria.keySet().iterator(); it.hasNext();)
+        {
+            String column = (String) it.next();
+            criteria.getCriterion(column).appendStructureTo(key, params);
+        }
+
+        key.append('|')
+                .append(criteria.getGroupByColumns())
+                .append(criteria.getHaving())
+                .append(criteria.getOrderByColumns());
+
+        // adapters without native limit support apply the limits
+        // while reading the result, so all pages share one statement
+        if (db != null
+                && (db.supportsNativeLimit() || db.supportsNativeOffset()))
+        {
+            key.append('|')
+                    .append(criteria.getOffset())
+                    .append(',')
+                    .append(criteria.getLimit());
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns whether the cache is enabled.
+     *
+     * @return true if statements are cached, false otherwise.
+     */
+    private static synchronized boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Looks up a statement in the cache and updates the hit and miss counts.
+     *
+     * @param key the key of the statement.
+     *
+     * @return the cached sql, or null if the statement is not cached.
+     */
+    private static synchronized String get(String key)
+    {
+        String sql = (String) cache.get(key);
+        if (sql == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return sql;
+    }
+
+    /**
+     * Puts a statement into the cache.
+     *
+     * @param key the key of the statement.
+     * @param sql the sql of the statement.
+     */
+    private static synchronized void put(String key, String sql)
+    {
+        if (enabled)
+        {
+            cache.put(key, sql);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.sql.ResultSet;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * Callback which receives the rows of a streaming select one at a time,
+ * see {@link BasePeer#doSelectStreaming(Criteria, java.sql.Connection, RowHandler)}.
+ * The rows are not kept in memory by Torque, so a handler can process
+ * results of any size.
+ *
+ * @version $Id$
+ */
+public interface RowHandler
+{
+    /**
+     * Processes the current row of a result set.
+     * The handler must only read the current row and must not move the
+     * cursor of the result set or close it.
+     *
+     * @param resultSet the result set, positioned on the row to process.
+     * @param rowNumber the number of the row in the result,
+     *        starting with 0.
+     *
+     * @return true if the next row should be processed, false if the
+     *         select should be stopped.
+     *
+     * @throws TorqueException if the row cannot be processed.
+     *         The select is stopped in this case.
+     */
+    boolean handleRow(ResultSet resultSet, int rowNumber)
+        throws TorqueException;
+}
@@ -0,0 +1,48 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.sql.ResultSet;
+
+import org.apache.torque.TorqueException;
+
+/**
+ * Maps a row of a result set directly to an object, without creating
+ * Village Records, see
+ * {@link BasePeer#doSelectRows(Criteria, RowMapper, java.sql.Connection)}.
+ *
+ * @version $Id$
+ * @see ObjectArrayRowMapper
+ */
+public interface RowMapper
+{
+    /**
+     * Creates an object from the current row of a result set.
+     * The mapper must only read the current row and must not move the
+     * cursor of the result set or close it.
+     *
+     * @param resultSet the result set, positioned on the row to map.
+     *
+     * @return the object created from the row.
+     *
+     * @throws TorqueException if the row cannot be mapped.
+     */
+    Object processRow(ResultSet resultSet) throws TorqueException;
+}
@@ -780,8 +780,10 @@ public final class SQLBuilder
          * @param criterion The current criterion
          * @param params The parameter list passed to buildQueryString()
          * @return WHERE SQL fragment for this criterion
+         * @throws TorqueException if the fragment cannot be built.
          */
-        String process(Criterion criterion, List params);
+        String process(Criterion criterion, List params)
+            throws TorqueException;
     }
 
 }
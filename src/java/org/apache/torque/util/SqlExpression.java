@@ -332,6 +332,233 @@ public final class SqlExpression
         }
     }
 
+    /**
+     * Builds a simple SQL expression for use in a prepared statement.
+     * All values are replaced by placeholders and added to the params
+     * list in the order of their placeholders.  This covers IN and NOT IN
+     * lists, LIKE patterns, subqueries and null values; ObjectKeys are
+     * unwrapped.
+     *
+     * @param columnName A column.
+     * @param criteria The value to compare the column against.
+     * @param comparison One of =, &lt;, &gt;, ^lt;=, &gt;=, &lt;&gt;,
+     *        !=, LIKE, etc.
+     * @param ignoreCase If true and columns represent Strings, the appropriate
+     *        function defined for the database will be used to ignore
+     *        differences in case.
+     * @param db Represents the database in use, for vendor specific functions.
+     * @param whereClause A StringBuffer to which the sql expression will be
+     *        appended.
+     * @param params A list to which the prepared statement parameters
+     *        will be appended.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static void buildPs(String columnName,
+                               Object criteria,
+                               SqlEnum comparison,
+                               boolean ignoreCase,
+                               DB db,
+                               StringBuffer whereClause,
+                               List params)
+            throws TorqueException
+    {
+        if (criteria instanceof ObjectKey)
+        {
+            criteria = ((ObjectKey) criteria).getValue();
+        }
+
+        if (criteria == null
+                || comparison.equals(Criteria.ISNULL)
+                || comparison.equals(Criteria.ISNOTNULL))
+        {
+            if (comparison.equals(Criteria.EQUAL))
+            {
+                comparison = Criteria.ISNULL;
+            }
+            else if (comparison.equals(Criteria.NOT_EQUAL)
+                    || comparison.equals(Criteria.ALT_NOT_EQUAL))
+            {
+                comparison = Criteria.ISNOTNULL;
+            }
+            whereClause.append(columnName).append(comparison);
+            if (!comparison.equals(Criteria.ISNULL)
+                    && !comparison.equals(Criteria.ISNOTNULL))
+            {
+                whereClause.append("null");
+            }
+        }
+        else if (criteria instanceof Criteria)
+        {
+            Query subquery = SQLBuilder.buildQueryClause(
+                    (Criteria) criteria,
+                    params,
+                    new SQLBuilder.QueryCallback() {
+                        public String process(
+                                Criteria.Criterion criterion,
+                                List params)
+                            throws TorqueException
+                        {
+                            StringBuffer sb = new StringBuffer();
+                            criterion.appendPsTo(sb, params);
+                            return sb.toString();
+                        }
+                    });
+            whereClause.append(columnName)
+                    .append(comparison)
+                    .append('(')
+                    .append(subquery.toString())
+                    .append(')');
+        }
+        else if (comparison.equals(Criteria.LIKE)
+                || comparison.equals(Criteria.NOT_LIKE)
+                || comparison.equals(Criteria.ILIKE)
+                || comparison.equals(Criteria.NOT_ILIKE))
+        {
+            buildLike(columnName, criteria.toString(), comparison,
+                    ignoreCase, db, whereClause, params);
+        }
+        else if (comparison.equals(Criteria.IN)
+                || comparison.equals(Criteria.NOT_IN))
+        {
+            if (criteria instanceof List)
+            {
+                criteria = ((List) criteria).toArray();
+            }
+            String placeholder = ignoreCase ? db.ignoreCase("?") : "?";
+            whereClause.append(ignoreCase ? db.ignoreCase(columnName)
+                                          : columnName)
+                    .append(comparison)
+                    .append('(');
+            // Nulls are not bound, as an untyped null is not accepted by
+            // all drivers. A null never matches in IN, so it is dropped;
+            // in NOT IN it makes the condition unknown for all rows,
+            // so it is kept as literal.
+            boolean first = true;
+            boolean containsNull = false;
+            int length = Array.getLength(criteria);
+            for (int i = 0; i < length; i++)
+            {
+                Object value = Array.get(criteria, i);
+                if (value instanceof ObjectKey)
+                {
+                    value = ((ObjectKey) value).getValue();
+                }
+                if (value == null)
+                {
+                    containsNull = true;
+                    continue;
+                }
+                if (!first)
+                {
+                    whereClause.append(',');
+                }
+                whereClause.append(placeholder);
+                params.add(value);
+                first = false;
+            }
+            if (containsNull
+                    && (first || comparison.equals(Criteria.NOT_IN)))
+            {
+                if (!first)
+                {
+                    whereClause.append(',');
+                }
+                whereClause.append("NULL");
+            }
+            whereClause.append(')');
+        }
+        else
+        {
+            if (ignoreCase && db != null)
+            {
+                whereClause.append(db.ignoreCase(columnName))
+                        .append(comparison)
+                        .append(db.ignoreCase("?"));
+            }
+            else
+            {
+                whereClause.append(columnName)
+                        .append(comparison)
+                        .append('?');
+            }
+            params.add(criteria);
+        }
+    }
+
+    /**
+     * Builds the assignment of a value to a column, as used in the
+     * <code>SET</code> section of an <code>UPDATE</code> statement, e.g.
+     * <code>column_a='abc'</code> or <code>column_b=NULL</code>.
+     *
+     * @param columnName The unqualified name of the column to assign to.
+     * @param value The value to assign. May be null or an ObjectKey
+     *        containing null, which results in an assignment of NULL.
+     * @param db Represents the database in use, for vendor specific functions.
+     * @param setClause A StringBuffer to which the assignment will be
+     *        appended.
+     * @throws TorqueException if the value cannot be represented
+     *         as a sql literal.
+     */
+    public static void buildAssignment(String columnName,
+                                       Object value,
+                                       DB db,
+                                       StringBuffer setClause)
+            throws TorqueException
+    {
+        if (!isLiteral(value))
+        {
+            throw new TorqueException("Value of type "
+                    + value.getClass().getName() + " for column "
+                    + columnName + " cannot be represented as sql literal");
+        }
+        if (value instanceof ObjectKey)
+        {
+            value = ((ObjectKey) value).getValue();
+        }
+
+        setClause.append(columnName).append('=');
+        if (value == null)
+        {
+            setClause.append("NULL");
+        }
+        else if (value instanceof String)
+        {
+            setClause.append(quoteAndEscapeText((String) value, db));
+        }
+        else if (value instanceof Boolean)
+        {
+            setClause.append(db.getBooleanString((Boolean) value));
+        }
+        else
+        {
+            setClause.append(value);
+        }
+    }
+
+    /**
+     * Checks whether a value can be rendered as a sql literal by
+     * {@link #buildAssignment(String, Object, DB, StringBuffer)}.
+     * Binary values, e.g. byte arrays or serialized Hashtables,
+     * cannot be rendered. Dates are not rendered either, as the date
+     * formats of some adapters drop the fractional seconds.
+     *
+     * @param value the value to check, may be null.
+     * @return true if the value can be rendered as a literal,
+     *         false otherwise.
+     */
+    static boolean isLiteral(Object value)
+    {
+        if (value instanceof ObjectKey)
+        {
+            value = ((ObjectKey) value).getValue();
+        }
+        return value == null
+                || value instanceof String
+                || value instanceof Number
+                || value instanceof Boolean;
+    }
+
     /**
      * Takes a columnName and criteria and builds an SQL phrase based
      * on whether wildcards are present and the state of the
@@ -392,6 +619,40 @@ public final class SqlExpression
                            DB db,
                            StringBuffer whereClause)
     {
+        buildLike(columnName, criteria, comparison, ignoreCase, db,
+                whereClause, null);
+    }
+
+    /**
+     * Takes a columnName and criteria and builds an SQL phrase based
+     * on whether wildcards are present and the state of the
+     * ignoreCase flag.  If params is not null, the criteria is expected
+     * to be neither quoted nor escaped, and the resulting pattern is
+     * added to params and replaced by a placeholder in the SQL phrase.
+     *
+     * @param columnName A column name.
+     * @param criteria The value to compare the column against.
+     * @param comparison Whether to do a LIKE or a NOT LIKE
+     * @param ignoreCase If true and columns represent Strings, the
+     * appropriate function defined for the database will be used to
+     * ignore differences in case.
+     * @param db Represents the database in use, for vendor specific functions.
+     * @param whereClause A StringBuffer to which the sql expression
+     * will be appended.
+     * @param params A list to which the prepared statement parameter is
+     * added, or null to render the criteria as literal.
+     */
+    private static void buildLike(String columnName,
+                                  String criteria,
+                                  SqlEnum comparison,
+                                  boolean ignoreCase,
+                                  DB db,
+                                  StringBuffer whereClause,
+                                  List params)
+    {
+        // Bound values are not escaped for the database.
+        boolean escapeText = params == null && db.escapeText();
+
         // If selection criteria contains wildcards use LIKE otherwise
         // use = (equals).  Wildcards can be escaped by prepending
         // them with \ (backslash). However, if we switch from
@@ -400,8 +661,91 @@ public final class SqlExpression
         // So we need two passes: The first replaces * and ? by % and _,
         // and checks whether we switch to equals,
         // the second removes escapes if we have switched to equals.
-        int position = 0;
         StringBuffer sb = new StringBuffer();
+        boolean replaceWithEquals
+                = replaceWildcards(criteria, escapeText, sb);
+        criteria = sb.toString();
+
+        if (ignoreCase)
+        {
+            if (db.useIlike() && !replaceWithEquals)
+            {
+                if (SqlEnum.LIKE.equals(comparison))
+                {
+                    comparison = SqlEnum.ILIKE;
+                }
+                else if (SqlEnum.NOT_LIKE.equals(comparison))
+                {
+                    comparison = SqlEnum.NOT_ILIKE;
+                }
+            }
+            else
+            {
+                // no native case insensitive like is offered by the DB,
+                // or the LIKE was replaced with equals.
+                // need to ignore case manually.
+                columnName = db.ignoreCase(columnName);
+            }
+        }
+        whereClause.append(columnName);
+
+        if (replaceWithEquals)
+        {
+            if (comparison.equals(Criteria.NOT_LIKE)
+                    || comparison.equals(Criteria.NOT_ILIKE))
+            {
+                whereClause.append(" ").append(Criteria.NOT_EQUAL).append(" ");
+            }
+            else
+            {
+                whereClause.append(" ").append(Criteria.EQUAL).append(" ");
+            }
+
+            criteria = removeEscapes(criteria, escapeText);
+       }
+        else
+        {
+            whereClause.append(comparison);
+        }
+
+        if (params != null)
+        {
+            params.add(criteria);
+            criteria = "?";
+        }
+
+        // If selection is case insensitive use SQL UPPER() function
+        // on criteria.
+        if (ignoreCase && (!(db.useIlike()) || replaceWithEquals))
+        {
+            criteria = db.ignoreCase(criteria);
+        }
+        whereClause.append(criteria);
+
+        if (!replaceWithEquals && db.useEscapeClauseForLike())
+        {
+            whereClause.append(SqlEnum.ESCAPE)
+                       .append("'\\'");
+        }
+    }
+
+    /**
+     * Replaces the wildcards * and ? of a like pattern by % and _,
+     * and checks whether the pattern contains any unescaped wildcard.
+     *
+     * @param criteria the like pattern.
+     * @param escapeText whether backslashes in the pattern are escaped
+     *        for the database.
+     * @param sb the StringBuffer which receives the converted pattern.
+     *
+     * @return true if the pattern contains no wildcard, so that the
+     *         like can be replaced by an equals, false otherwise.
+     */
+    private static boolean replaceWildcards(String criteria,
+                                            boolean escapeText,
+                                            StringBuffer sb)
+    {
+        int position = 0;
         boolean replaceWithEquals = true;
         while (position < criteria.length())
         {
@@ -413,13 +757,13 @@ public final class SqlExpression
                 // if text is escaped, all backslashes are already escaped,
                 // so the next character after the backslash is the doubled
                 // backslash from escaping.
-                int charsToProceed = db.escapeText() ? 2 : 1;
+                int charsToProceed = escapeText ? 2 : 1;
                 if (position + charsToProceed >= criteria.length())
                 {
                     charsToProceed = criteria.length() - position - 1;
                 }
                 else if (criteria.charAt(position + charsToProceed) == BACKSLASH
-                        && db.escapeText())
+                        && escapeText)
                 {
                     // the escaped backslash is also escaped,
                     // so we need to proceed another character
@@ -449,98 +793,82 @@ public final class SqlExpression
             sb.append(checkWildcard);
             position++;
         }
-        criteria = sb.toString();
+        return replaceWithEquals;
+    }
 
-        if (ignoreCase)
+    /**
+     * Removes the backslashes which escape wildcards from a like pattern
+     * which is compared using equals.
+     *
+     * @param criteria the like pattern, with wildcards already replaced.
+     * @param escapeText whether backslashes in the pattern are escaped
+     *        for the database.
+     *
+     * @return the pattern without escape backslashes.
+     */
+    private static String removeEscapes(String criteria, boolean escapeText)
+    {
+        int position = 0;
+        StringBuffer sb = new StringBuffer();
+        while (position < criteria.length())
         {
-            if (db.useIlike() && !replaceWithEquals)
+            char checkWildcard = criteria.charAt(position);
+
+            if (checkWildcard == BACKSLASH)
             {
-                if (SqlEnum.LIKE.equals(comparison))
+                // if text is escaped, all backslashes are already escaped,
+                // so the next character after the backslash is the doubled
+                // backslash from escaping.
+                int charsToSkip = escapeText ? 2 : 1;
+                if (position + charsToSkip >= criteria.length())
                 {
-                    comparison = SqlEnum.ILIKE;
+                    charsToSkip = criteria.length() - position - 1;
                 }
-                else if (SqlEnum.NOT_LIKE.equals(comparison))
+                else if (criteria.charAt(position + charsToSkip)
+                            == BACKSLASH
+                        && escapeText)
                 {
-                    comparison = SqlEnum.NOT_ILIKE;
+                    // the escaped backslash is also escaped,
+                    // so we need to skip another character
+                    // but add the escaped backslash to sb
+                    // so that the escaping remains.
+                    sb.append(BACKSLASH);
+                    charsToSkip += 1;
                 }
+                position += charsToSkip;
+                // code below copies escaped character into sb
+                checkWildcard = criteria.charAt(position);
             }
-            else
-            {
-                // no native case insensitive like is offered by the DB,
-                // or the LIKE was replaced with equals.
-                // need to ignore case manually.
-                columnName = db.ignoreCase(columnName);
-            }
+            sb.append(checkWildcard);
+            position++;
         }
-        whereClause.append(columnName);
+        return sb.toString();
+    }
 
+    /**
+     * Adds the value which is bound as prepared statement parameter
+     * for a like pattern to a list, i.e. the pattern with the wildcards
+     * * and ? replaced and, if the like is replaced by an equals, without
+     * escape backslashes.
+     *
+     * @param criteria the like pattern, neither quoted nor escaped.
+     * @param params the list to which the parameter is added.
+     *
+     * @return true if the like is replaced by an equals, false otherwise.
+     */
+    static boolean addLikeParameter(String criteria, List params)
+    {
+        StringBuffer sb = new StringBuffer();
+        boolean replaceWithEquals = replaceWildcards(criteria, false, sb);
         if (replaceWithEquals)
         {
-            if (comparison.equals(Criteria.NOT_LIKE)
-                    || comparison.equals(Criteria.NOT_ILIKE))
-            {
-                whereClause.append(" ").append(Criteria.NOT_EQUAL).append(" ");
-            }
-            else
-            {
-                whereClause.append(" ").append(Criteria.EQUAL).append(" ");
-            }
-
-            // remove escape backslashes from String
-            position = 0;
-            sb = new StringBuffer();
-            while (position < criteria.length())
-            {
-                char checkWildcard = criteria.charAt(position);
-
-                if (checkWildcard == BACKSLASH)
-                {
-                    // if text is escaped, all backslashes are already escaped,
-                    // so the next character after the backslash is the doubled
-                    // backslash from escaping.
-                    int charsToSkip = db.escapeText() ? 2 : 1;
-                    if (position + charsToSkip >= criteria.length())
-                    {
-                        charsToSkip = criteria.length() - position - 1;
-                    }
-                    else if (criteria.charAt(position + charsToSkip)
-                                == BACKSLASH
-                            && db.escapeText())
-                    {
-                        // the escaped backslash is also escaped,
-                        // so we need to skip another character
-                        // but add the escaped backslash to sb
-                        // so that the escaping remains.
-                        sb.append(BACKSLASH);
-                        charsToSkip += 1;
-                    }
-                    position += charsToSkip;
-                    // code below copies escaped character into sb
-                    checkWildcard = criteria.charAt(position);
-                }
-                sb.append(checkWildcard);
-                position++;
-            }
-            criteria = sb.toString();
-       }
-        else
-        {
-            whereClause.append(comparison);
-        }
-
-        // If selection is case insensitive use SQL UPPER() function
-        // on criteria.
-        if (ignoreCase && (!(db.useIlike()) || replaceWithEquals))
-        {
-            criteria = db.ignoreCase(criteria);
+            params.add(removeEscapes(sb.toString(), false));
         }
-        whereClause.append(criteria);
-
-        if (!replaceWithEquals && db.useEscapeClauseForLike())
+        else
         {
-            whereClause.append(SqlEnum.ESCAPE)
-                       .append("'\\'");
+            params.add(sb.toString());
         }
+        return replaceWithEquals;
     }
 
     /**
@@ -0,0 +1,415 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Hashtable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.torque.TorqueException;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.om.ObjectKey;
+
+/**
+ * Some JDBC related code for binding values to prepared statements,
+ * factored out of the BasePeer.
+ *
+ * @version $Id$
+ */
+public final class StatementUtils
+{
+    /** The log. */
+    private static Log log = LogFactory.getLog(StatementUtils.class);
+
+    /**
+     * Private constructor to prevent instantiation.
+     *
+     * Class contains only static method ans should therefore not be
+     * instantiated.
+     */
+    private StatementUtils()
+    {
+    }
+
+    /**
+     * Binds a value to a parameter of a prepared statement.
+     * ObjectKeys are unwrapped, java.util.Dates are bound as Timestamps
+     * and Hashtables are serialized the same way as Village does it.
+     *
+     * @param statement the statement to bind the value to.
+     * @param index the position of the parameter, starting with 1.
+     * @param value the value to bind, may be null.
+     * @param sqlType the sql type from java.sql.Types to use if the value
+     *        is null.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static void setValue(
+            PreparedStatement statement,
+            int index,
+            Object value,
+            int sqlType)
+        throws TorqueException
+    {
+        if (value instanceof ObjectKey)
+        {
+            value = ((ObjectKey) value).getValue();
+        }
+
+        try
+        {
+            if (value == null)
+            {
+                statement.setNull(index, sqlType);
+            }
+            else if (value instanceof String)
+            {
+                statement.setString(index, (String) value);
+            }
+            else if (value instanceof Integer)
+            {
+                statement.setInt(index, ((Integer) value).intValue());
+            }
+            else if (value instanceof Long)
+            {
+                statement.setLong(index, ((Long) value).longValue());
+            }
+            else if (value instanceof BigDecimal)
+            {
+                statement.setBigDecimal(index, (BigDecimal) value);
+            }
+            else if (value instanceof Boolean)
+            {
+                statement.setBoolean(index, ((Boolean) value).booleanValue());
+            }
+            else if (value instanceof Timestamp)
+            {
+                statement.setTimestamp(index, (Timestamp) value);
+            }
+            else if (value instanceof java.sql.Date)
+            {
+                statement.setDate(index, (java.sql.Date) value);
+            }
+            else if (value instanceof java.sql.Time)
+            {
+                statement.setTime(index, (java.sql.Time) value);
+            }
+            else if (value instanceof java.util.Date)
+            {
+                statement.setTimestamp(index,
+                        new Timestamp(((java.util.Date) value).getTime()));
+            }
+            else if (value instanceof Double)
+            {
+                statement.setDouble(index, ((Double) value).doubleValue());
+            }
+            else if (value instanceof Float)
+            {
+                statement.setFloat(index, ((Float) value).floatValue());
+            }
+            else if (value instanceof Short)
+            {
+                statement.setShort(index, ((Short) value).shortValue());
+            }
+            else if (value instanceof Byte)
+            {
+                statement.setByte(index, ((Byte) value).byteValue());
+            }
+            else if (value instanceof byte[])
+            {
+                statement.setBytes(index, (byte[]) value);
+            }
+            else if (value instanceof Hashtable)
+            {
+                statement.setBytes(index,
+                        VillageUtils.hashtableToByteArray((Hashtable) value));
+            }
+            else
+            {
+                statement.setObject(index, value);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new TorqueException(e);
+        }
+        catch (TorqueException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new TorqueException(e);
+        }
+    }
+
+    /**
+     * Reads a value from the current row of a result set.
+     * The java type of the value is determined by the column map,
+     * in the same way as the generated peers convert Village values:
+     * BOOLEANINT and BOOLEANCHAR columns are read as Booleans, and
+     * primitive wrappers are read using the matching getter.
+     * SQL NULL is always returned as null.
+     *
+     * @param resultSet the result set to read from.
+     * @param index the position of the column, starting with 1.
+     * @param columnMap the description of the column, or null to read
+     *        the value using getObject().
+     * @return the value of the column, may be null.
+     * @throws TorqueException Any exceptions caught during processing will be
+     *         rethrown wrapped into a TorqueException.
+     */
+    public static Object getValue(
+            ResultSet resultSet,
+            int index,
+            ColumnMap columnMap)
+        throws TorqueException
+    {
+        try
+        {
+            if (columnMap == null)
+            {
+                return resultSet.getObject(index);
+            }
+
+            String torqueType = columnMap.getTorqueType();
+            Object type = columnMap.getType();
+            Object value;
+            if ("BOOLEANINT".equals(torqueType))
+            {
+                int intValue = resultSet.getInt(index);
+                value = Boolean.valueOf(intValue == 1);
+            }
+            else if ("BOOLEANCHAR".equals(torqueType))
+            {
+                String stringValue = resultSet.getString(index);
+                value = Boolean.valueOf("Y".equalsIgnoreCase(stringValue)
+                        || "1".equals(stringValue)
+                        || "true".equalsIgnoreCase(stringValue));
+            }
+            else if (type instanceof String)
+            {
+                value = resultSet.getString(index);
+            }
+            else if (type instanceof Integer)
+            {
+                value = new Integer(resultSet.getInt(index));
+            }
+            else if (type instanceof Long)
+            {
+                value = new Long(resultSet.getLong(index));
+            }
+            else if (type instanceof BigDecimal)
+            {
+                value = resultSet.getBigDecimal(index);
+            }
+            else if (type instanceof Boolean)
+            {
+                value = Boolean.valueOf(resultSet.getBoolean(index));
+            }
+            else if (type instanceof java.util.Date)
+            {
+                if ("DATE".equals(torqueType))
+                {
+                    value = resultSet.getDate(index);
+                }
+                else if ("TIME".equals(torqueType))
+                {
+                    value = resultSet.getTime(index);
+                }
+                else
+                {
+                    value = resultSet.getTimestamp(index);
+                }
+            }
+            else if (type instanceof Double)
+            {
+                value = new Double(resultSet.getDouble(index));
+            }
+            else if (type instanceof Float)
+            {
+                value = new Float(resultSet.getFloat(index));
+            }
+            else if (type instanceof Short)
+            {
+                value = new Short(resultSet.getShort(index));
+            }
+            else if (type instanceof Byte)
+            {
+                value = new Byte(resultSet.getByte(index));
+            }
+            else if (type instanceof byte[])
+            {
+                value = resultSet.getBytes(index);
+            }
+            else
+            {
+                value = resultSet.getObject(index);
+            }
+
+            if (resultSet.wasNull())
+            {
+                return null;
+            }
+            return value;
+        }
+        catch (SQLException e)
+        {
+            throw new TorqueException(e);
+        }
+    }
+
+    /**
+     * Determines the sql type of a column, as defined in java.sql.Types.
+     * The Torque type of the column is used if it is known,
+     * otherwise the type is derived from the sample type object.
+     *
+     * @param columnMap the column to get the sql type for, may be null.
+     * @return the sql type of the column, or Types.OTHER if it cannot
+     *         be determined.
+     */
+    public static int getSqlType(ColumnMap columnMap)
+    {
+        if (columnMap == null)
+        {
+            return Types.OTHER;
+        }
+
+        String torqueType = columnMap.getTorqueType();
+        if ("BOOLEANINT".equals(torqueType))
+        {
+            return Types.INTEGER;
+        }
+        if ("BOOLEANCHAR".equals(torqueType))
+        {
+            return Types.CHAR;
+        }
+        if (torqueType != null)
+        {
+            try
+            {
+                return Types.class.getField(torqueType).getInt(null);
+            }
+            catch (Exception e)
+            {
+                log.debug("Unknown torque type " + torqueType
+                        + ", using the type sample instead");
+            }
+        }
+
+        Object type = columnMap.getType();
+        if (type instanceof String)
+        {
+            return Types.VARCHAR;
+        }
+        else if (type instanceof Integer)
+        {
+            return Types.INTEGER;
+        }
+        else if (type instanceof Long)
+        {
+            return Types.BIGINT;
+        }
+        else if (type instanceof BigDecimal)
+        {
+            return Types.NUMERIC;
+        }
+        else if (type instanceof Boolean)
+        {
+            return Types.BIT;
+        }
+        else if (type instanceof java.util.Date)
+        {
+            return Types.TIMESTAMP;
+        }
+        else if (type instanceof Double)
+        {
+            return Types.DOUBLE;
+        }
+        else if (type instanceof Float)
+        {
+            return Types.REAL;
+        }
+        else if (type instanceof Short)
+        {
+            return Types.SMALLINT;
+        }
+        else if (type instanceof Byte)
+        {
+            return Types.TINYINT;
+        }
+        else if (type instanceof byte[])
+        {
+            return Types.VARBINARY;
+        }
+        return Types.OTHER;
+    }
+
+    /**
+     * Closes a result set, ignoring null values.
+     *
+     * @param resultSet the result set to close, may be null.
+     * @throws TorqueException if the result set cannot be closed.
+     */
+    public static void close(ResultSet resultSet)
+        throws TorqueException
+    {
+        if (resultSet != null)
+        {
+            try
+            {
+                resultSet.close();
+            }
+            catch (SQLException e)
+            {
+                throw new TorqueException(e);
+            }
+        }
+    }
+
+    /**
+     * Closes a statement, ignoring null values.
+     *
+     * @param statement the statement to close, may be null.
+     * @throws TorqueException if the statement cannot be closed.
+     */
+    public static void close(Statement statement)
+        throws TorqueException
+    {
+        if (statement != null)
+        {
+            try
+            {
+                statement.close();
+            }
+            catch (SQLException e)
+            {
+                throw new TorqueException(e);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.torque.Torque;
 import org.apache.torque.TorqueException;
+import org.apache.torque.manager.TableChangeNotifier;
 
 /**
  * Standard connection and transaction management for Torque.
@@ -91,7 +92,10 @@ public class TransactionManagerImpl implements TransactionManager
     /**
      * Commit a transaction and close the connection.
      * If the connection is in autocommit mode or the database does not support
-     * transactions, only a connection close is performed
+     * transactions, only a connection close is performed.
+     * The changes made in the transaction are published to the
+     * {@link TableChangeNotifier} after the commit; they are dropped
+     * if the commit fails.
      *
      * @param con The Connection for the transaction.
      * @throws TorqueException Any exceptions caught during processing will be
@@ -113,6 +117,7 @@ public class TransactionManagerImpl implements TransactionManager
                 && !con.getAutoCommit())
             {
                 con.commit();
+                TableChangeNotifier.commit(con);
                 // TODO Some coders, even in Torque code, suppose to have autoCommit on when getting connection
                 // from pool, so we activate it for sure in here.
                 // This is not ideal though: we should activate the autoCommit ONLY when it was on when getting
@@ -120,6 +125,10 @@ public class TransactionManagerImpl implements TransactionManager
                 // object for remembering the original autoCommit state first.
                 con.setAutoCommit(true);
             }
+            else
+            {
+                TableChangeNotifier.commit(con);
+            }
         }
         catch (SQLException e)
         {
@@ -127,6 +136,8 @@ public class TransactionManagerImpl implements TransactionManager
         }
         finally
         {
+            // changes which were not published were not committed
+            TableChangeNotifier.rollback(con);
             Torque.closeConnection(con);
         }
     }
@@ -135,6 +146,8 @@ public class TransactionManagerImpl implements TransactionManager
      * Roll back a transaction and release the connection.
      * In databases that do not support transactions or if autocommit is true,
      * no rollback will be performed, but the connection will be closed anyway.
+     * The changes made in the transaction are not published to the
+     * {@link TableChangeNotifier}.
      *
      * @param con The Connection for the transaction.
      *
@@ -171,6 +184,7 @@ public class TransactionManagerImpl implements TransactionManager
             }
             finally
             {
+                TableChangeNotifier.rollback(con);
                 Torque.closeConnection(con);
             }
         }
@@ -33,9 +33,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.torque.om.SimpleKey;
 
+import com.workingdogs.village.DataSetException;
 import com.workingdogs.village.QueryDataSet;
 import com.workingdogs.village.Record;
 import com.workingdogs.village.TableDataSet;
+import com.workingdogs.village.Value;
 
 /**
  * Some Village related code factored out of the BasePeer.
@@ -256,4 +258,77 @@ public final class VillageUtils
             rec.setValue(colName, (byte[]) obj);
         }
     }
+
+    /**
+     * Converts a Village Value into the corresponding java object.
+     *
+     * @param value the Value to convert.
+     * @return the java object, or null if the value is null.
+     * @throws DataSetException if the value cannot be converted.
+     */
+    public static final Object getObject(final Value value)
+            throws DataSetException
+    {
+        if (value == null || value.isNull())
+        {
+            return null;
+        }
+        else if (value.isString())
+        {
+            return value.asString();
+        }
+        else if (value.isBigDecimal())
+        {
+            return value.asBigDecimal();
+        }
+        else if (value.isInt())
+        {
+            return value.asIntegerObj();
+        }
+        else if (value.isLong())
+        {
+            return value.asLongObj();
+        }
+        else if (value.isShort())
+        {
+            return value.asShortObj();
+        }
+        else if (value.isByte())
+        {
+            return value.asByteObj();
+        }
+        else if (value.isDouble())
+        {
+            return value.asDoubleObj();
+        }
+        else if (value.isFloat())
+        {
+            return value.asFloatObj();
+        }
+        else if (value.isBoolean())
+        {
+            return value.asBooleanObj();
+        }
+        else if (value.isTimestamp())
+        {
+            return value.asTimestamp();
+        }
+        else if (value.isDate())
+        {
+            return value.asDate();
+        }
+        else if (value.isTime())
+        {
+            return value.asTime();
+        }
+        else if (value.isUtilDate())
+        {
+            return value.asUtilDate();
+        }
+        else if (value.isBytes())
+        {
+            return value.asBytes();
+        }
+        return value.asString();
+    }
 }
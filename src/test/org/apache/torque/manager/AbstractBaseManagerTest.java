@@ -0,0 +1,648 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.jcs.engine.control.CompositeCacheManager;
+import org.apache.torque.NoRowsException;
+import org.apache.torque.Torque;
+import org.apache.torque.TorqueException;
+import org.apache.torque.om.BaseObject;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+
+/**
+ * Tests the negative caching of the AbstractBaseManager, i.e. that
+ * missing keys are not retrieved again, unless they may have been
+ * inserted meanwhile, the shared and chunked retrieval of getOMs,
+ * the removal of method results if rows change, and the write-through
+ * policy. Uses a manager without database, and a JCS configuration for
+ * memory caches only.
+ *
+ * @version $Id$
+ */
+public class AbstractBaseManagerTest extends TestCase
+{
+    /** The Torque configuration before the test. */
+    private Configuration oldConfiguration;
+
+    /** The manager to test. */
+    private TestManager manager;
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public AbstractBaseManagerTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Enables negative caching and creates the manager.
+     *
+     * @throws Exception if the manager cannot be created
+     */
+    public void setUp() throws Exception
+    {
+        Properties jcsProperties = new Properties();
+        jcsProperties.setProperty("jcs.default", "");
+        jcsProperties.setProperty("jcs.default.cacheattributes",
+                "org.apache.jcs.engine.CompositeCacheAttributes");
+        jcsProperties.setProperty("jcs.default.cacheattributes.MaxObjects",
+                "1000");
+        jcsProperties.setProperty(
+                "jcs.default.cacheattributes.MemoryCacheName",
+                "org.apache.jcs.engine.memory.lru.LRUMemoryCache");
+        CompositeCacheManager.getUnconfiguredInstance()
+                .configure(jcsProperties);
+
+        oldConfiguration = Torque.getConfiguration();
+        Configuration configuration = new BaseConfiguration();
+        configuration.setProperty(Torque.CACHE_KEY, "true");
+        configuration.setProperty(Torque.MANAGER_CACHE_PREFIX
+                + AbstractBaseManager.CACHE_BACKEND,
+                AbstractBaseManager.STRIPED_BACKEND);
+        configuration.setProperty(Torque.MANAGER_CACHE_PREFIX
+                + AbstractBaseManager.NEGATIVE_TIME_TO_LIVE,
+                "60");
+        Torque.setConfiguration(configuration);
+
+        manager = new TestManager();
+        manager.setRegion("negativeTest");
+    }
+
+    /**
+     * Restores the Torque configuration.
+     */
+    public void tearDown()
+    {
+        manager.dispose();
+        Torque.setConfiguration(oldConfiguration);
+    }
+
+    /**
+     * Checks that a missing key is only retrieved once, whether
+     * no row was found or retrieveStoredOM returned null.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testMissingKeyIsRemembered() throws Exception
+    {
+        NumberKey key = new NumberKey(1);
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                manager.getOMInstance(key);
+                fail("no row should be found");
+            }
+            catch (NoRowsException e)
+            {
+                // expected
+            }
+        }
+        assertEquals(1, manager.retrievals);
+
+        manager.nullKeys.add(new NumberKey(2));
+        assertNull(manager.getOMInstance(new NumberKey(2)));
+        assertNull(manager.getOMInstance(new NumberKey(2)));
+        assertEquals(2, manager.retrievals);
+
+        // bypassing the cache also bypasses the negative entries
+        manager.rows.put(key, new TestOM(key));
+        assertNotNull(manager.getOMInstance(key, false));
+        assertEquals(3, manager.retrievals);
+    }
+
+    /**
+     * Checks that saving an object forgets that its key was missing.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPutInstanceForgetsMissingKey() throws Exception
+    {
+        NumberKey key = new NumberKey(1);
+        assertMissing(key);
+
+        TestOM om = new TestOM(key);
+        manager.rows.put(key, om);
+        manager.putInstanceImpl(om);
+        manager.removeInstanceImpl(key);
+
+        assertSame(om, manager.getOMInstance(key));
+        assertEquals(2, manager.retrievals);
+    }
+
+    /**
+     * Checks that a key is not remembered as missing if its object
+     * was saved while the key was looked up.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testInsertDuringLookup() throws Exception
+    {
+        final NumberKey key = new NumberKey(1);
+        manager.duringRetrieval = new Runnable()
+        {
+            public void run()
+            {
+                manager.duringRetrieval = null;
+                TestOM om = new TestOM(key);
+                manager.rows.put(key, om);
+                try
+                {
+                    manager.putInstanceImpl(om);
+                    manager.removeInstanceImpl(key);
+                }
+                catch (TorqueException e)
+                {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        };
+        assertMissing(key);
+
+        assertNotNull(manager.getOMInstance(key));
+        assertEquals(2, manager.retrievals);
+    }
+
+    /**
+     * Checks that getOMs does not retrieve keys again which are
+     * remembered as missing, and leaves them in the list.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGetOMs() throws Exception
+    {
+        NumberKey found = new NumberKey(1);
+        NumberKey missing = new NumberKey(2);
+        TestOM om = new TestOM(found);
+        manager.rows.put(found, om);
+
+        List oms = manager.getOMs(Arrays.asList(
+                new ObjectKey[] {found, missing}));
+        assertSame(om, oms.get(0));
+        assertEquals(missing, oms.get(1));
+        assertEquals(1, manager.retrievals);
+
+        oms = manager.getOMs(Arrays.asList(new ObjectKey[] {missing}));
+        assertEquals(missing, oms.get(0));
+        assertEquals(1, manager.retrievals);
+        assertMissing(missing);
+        assertEquals(1, manager.retrievals);
+
+        // the key may have been inserted by another process
+        manager.tableChanged(null, null, Arrays.asList(
+                new ObjectKey[] {missing}));
+        manager.getOMs(Arrays.asList(new ObjectKey[] {missing}));
+        assertEquals(2, manager.retrievals);
+    }
+
+    /**
+     * Checks that getOMs retrieves each id only once, even if it is
+     * contained several times, and that it passes at most
+     * maxInListSize ids to one call of retrieveStoredOMs.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGetOMsChunks() throws Exception
+    {
+        Torque.getConfiguration().setProperty(Torque.MANAGER_CACHE_PREFIX
+                + AbstractBaseManager.MAX_IN_LIST_SIZE, "2");
+        TestManager chunking = new TestManager();
+        chunking.setRegion("chunkTest");
+        try
+        {
+            ObjectKey[] keys = new ObjectKey[6];
+            for (int i = 0; i < keys.length; i++)
+            {
+                keys[i] = new NumberKey(i);
+                chunking.rows.put(keys[i], new TestOM(keys[i]));
+            }
+            List ids = Arrays.asList(new ObjectKey[] {
+                    keys[1], keys[2], keys[3], keys[1], keys[4], keys[5]});
+
+            List oms = chunking.getOMs(ids);
+            assertEquals(
+                    Arrays.asList(new Object[] {
+                            Arrays.asList(new ObjectKey[] {keys[1], keys[2]}),
+                            Arrays.asList(new ObjectKey[] {keys[3], keys[4]}),
+                            Arrays.asList(new ObjectKey[] {keys[5]})}),
+                    chunking.chunks);
+            assertEquals(6, oms.size());
+            for (int i = 0; i < oms.size(); i++)
+            {
+                assertSame(chunking.rows.get(ids.get(i)), oms.get(i));
+            }
+        }
+        finally
+        {
+            chunking.dispose();
+        }
+    }
+
+    /**
+     * Checks that a thread which requests an om while another thread
+     * retrieves it waits for that retrieval instead of querying the om
+     * again. The waiting thread first retrieves its own ids, so it has
+     * registered its interest in the pending om when it does so.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGetOMsWaitsForPendingLoad() throws Exception
+    {
+        NumberKey shared = new NumberKey(1);
+        NumberKey own = new NumberKey(2);
+        manager.rows.put(shared, new TestOM(shared));
+        manager.rows.put(own, new TestOM(own));
+        manager.blockKey = shared;
+
+        Loader first = new Loader(new ObjectKey[] {shared});
+        first.start();
+        assertTrue(manager.awaitChunks(1));
+        Loader second = new Loader(new ObjectKey[] {shared, own});
+        second.start();
+        assertTrue(manager.awaitChunks(2));
+        manager.open();
+        first.join(5000);
+        second.join(5000);
+
+        assertNull(first.failure);
+        assertNull(second.failure);
+        assertSame(manager.rows.get(shared), first.oms.get(0));
+        assertSame(manager.rows.get(shared), second.oms.get(0));
+        assertSame(manager.rows.get(own), second.oms.get(1));
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        Arrays.asList(new ObjectKey[] {shared}),
+                        Arrays.asList(new ObjectKey[] {own})}),
+                manager.chunks);
+    }
+
+    /**
+     * Checks that a thread waiting for the retrieval of another thread
+     * retrieves the om itself if that retrieval fails.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGetOMsRetriesFailedLoad() throws Exception
+    {
+        NumberKey shared = new NumberKey(1);
+        NumberKey own = new NumberKey(2);
+        manager.rows.put(shared, new TestOM(shared));
+        manager.rows.put(own, new TestOM(own));
+        manager.blockKey = shared;
+        manager.failBlocked = true;
+
+        Loader first = new Loader(new ObjectKey[] {shared});
+        first.start();
+        assertTrue(manager.awaitChunks(1));
+        Loader second = new Loader(new ObjectKey[] {shared, own});
+        second.start();
+        assertTrue(manager.awaitChunks(2));
+        manager.open();
+        first.join(5000);
+        second.join(5000);
+
+        assertNotNull(first.failure);
+        assertNull(second.failure);
+        assertSame(manager.rows.get(shared), second.oms.get(0));
+        assertSame(manager.rows.get(own), second.oms.get(1));
+        assertEquals(3, manager.chunks.size());
+        assertEquals(Arrays.asList(new ObjectKey[] {shared}),
+                manager.chunks.get(2));
+    }
+
+    /**
+     * Checks that saved objects are put into the cache by default, and
+     * removed from it if write-through is disabled.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testWriteThrough() throws Exception
+    {
+        NumberKey key = new NumberKey(1);
+        TestOM om = new TestOM(key);
+        manager.putInstanceImpl(om);
+        assertSame(om, manager.getOMInstance(key));
+        assertEquals(0, manager.retrievals);
+
+        Torque.getConfiguration().setProperty(Torque.MANAGER_CACHE_PREFIX
+                + AbstractBaseManager.CACHE_WRITE_THROUGH, "false");
+        TestManager noWriteThrough = new TestManager();
+        noWriteThrough.setRegion("writeThroughTest");
+        try
+        {
+            TestOM stored = new TestOM(key);
+            noWriteThrough.rows.put(key, stored);
+            assertSame(stored, noWriteThrough.getOMInstance(key));
+
+            noWriteThrough.putInstanceImpl(om);
+            assertSame(stored, noWriteThrough.getOMInstance(key));
+            assertEquals(2, noWriteThrough.retrievals);
+        }
+        finally
+        {
+            noWriteThrough.dispose();
+        }
+    }
+
+    /**
+     * Checks that a change of known rows removes only the method results
+     * for their keys if the methods are declared as keyed, and all
+     * method results otherwise.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testRemoveMethodResults() throws Exception
+    {
+        MethodResultCache mrCache = manager.getMethodResultCache();
+        NumberKey changed = new NumberKey(1);
+        NumberKey unchanged = new NumberKey(2);
+        List changedKeys = Arrays.asList(new ObjectKey[] {changed});
+
+        mrCache.put("x", "Test", "getByKey", changed);
+        mrCache.put("y", "Test", "getAll");
+        manager.tableChanged(null, null, changedKeys);
+        assertNull(mrCache.get("Test", "getAll"));
+
+        manager.addKeyedMethod("Test", "getByKey");
+        mrCache.put("changed", "Test", "getByKey", changed);
+        mrCache.put("unchanged", "Test", "getByKey", unchanged);
+        mrCache.put("all", "Test", "getAll");
+        manager.tableChanged(null, null, changedKeys);
+        assertNull(mrCache.get("Test", "getByKey", changed));
+        assertEquals("unchanged", mrCache.get("Test", "getByKey", unchanged));
+        assertNull(mrCache.get("Test", "getAll"));
+
+        mrCache.put("all", "Test", "getAll");
+        manager.tableChanged(null, null, null);
+        assertNull(mrCache.get("Test", "getByKey", unchanged));
+        assertNull(mrCache.get("Test", "getAll"));
+    }
+
+    /**
+     * Checks that retrieving a key fails with a NoRowsException.
+     *
+     * @param key the key which is expected to be missing.
+     * @throws Exception if the retrieval fails otherwise
+     */
+    private void assertMissing(ObjectKey key) throws Exception
+    {
+        try
+        {
+            manager.getOMInstance(key);
+            fail("no row should be found for " + key);
+        }
+        catch (NoRowsException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * A manager which retrieves its objects from a map.
+     */
+    private static class TestManager extends AbstractBaseManager
+    {
+        /** The stored objects, keyed by primary key. */
+        Map rows = new HashMap();
+
+        /** The keys for which retrieveStoredOM returns null. */
+        List nullKeys = new ArrayList();
+
+        /** The number of calls to the retrieve methods. */
+        int retrievals = 0;
+
+        /** Runs within the next retrieval before it fails, or null. */
+        Runnable duringRetrieval;
+
+        /** The ids passed to retrieveStoredOMs, one List per call. */
+        List chunks = new ArrayList();
+
+        /**
+         * The key whose next retrieval by retrieveStoredOMs blocks
+         * until open() is called, or null.
+         */
+        ObjectKey blockKey;
+
+        /** Whether the blocked retrieval fails after it is released. */
+        boolean failBlocked;
+
+        /** Whether blocked retrievals may finish. */
+        private boolean open = false;
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOM(ObjectKey)
+         */
+        protected Persistent retrieveStoredOM(ObjectKey id)
+            throws TorqueException
+        {
+            retrievals++;
+            if (nullKeys.contains(id))
+            {
+                return null;
+            }
+            Persistent om = (Persistent) rows.get(id);
+            if (om == null)
+            {
+                // simulates an insert after the select has been executed
+                Runnable callback = duringRetrieval;
+                if (callback != null)
+                {
+                    callback.run();
+                }
+                throw new NoRowsException("Failed to select a row.");
+            }
+            return om;
+        }
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOMs(List)
+         */
+        protected synchronized List retrieveStoredOMs(List ids)
+            throws TorqueException
+        {
+            retrievals++;
+            chunks.add(new ArrayList(ids));
+            notifyAll();
+            if (blockKey != null && ids.contains(blockKey))
+            {
+                blockKey = null;
+                while (!open)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new TorqueException(e);
+                    }
+                }
+                if (failBlocked)
+                {
+                    throw new TorqueException("retrieval failed");
+                }
+            }
+            List result = new ArrayList();
+            for (Iterator it = ids.iterator(); it.hasNext();)
+            {
+                Object om = rows.get(it.next());
+                if (om != null)
+                {
+                    result.add(om);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Lets the blocked retrieval finish.
+         */
+        synchronized void open()
+        {
+            open = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until retrieveStoredOMs has been called a number of times.
+         *
+         * @param count the number of calls.
+         * @return whether the calls were made within 5 seconds.
+         * @throws InterruptedException if the thread is interrupted.
+         */
+        synchronized boolean awaitChunks(int count)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (chunks.size() < count)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A thread which gets om's from the manager.
+     */
+    private class Loader extends Thread
+    {
+        /** The ids to get. */
+        private List ids;
+
+        /** The retrieved om's, or null. */
+        volatile List oms;
+
+        /** The exception thrown by getOMs, or null. */
+        volatile TorqueException failure;
+
+        /**
+         * Creates the thread.
+         *
+         * @param ids the ids to get.
+         */
+        Loader(ObjectKey[] ids)
+        {
+            this.ids = Arrays.asList(ids);
+        }
+
+        /**
+         * Gets the om's.
+         */
+        public void run()
+        {
+            try
+            {
+                oms = manager.getOMs(ids);
+            }
+            catch (TorqueException e)
+            {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * An object managed by the TestManager.
+     */
+    private static class TestOM extends BaseObject
+    {
+        /**
+         * Creates an object.
+         *
+         * @param key the primary key.
+         */
+        TestOM(ObjectKey key)
+        {
+            try
+            {
+                setPrimaryKey(key);
+            }
+            catch (TorqueException e)
+            {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+
+        /**
+         * @see BaseObject#save()
+         */
+        public void save()
+        {
+        }
+
+        /**
+         * @see BaseObject#save(String)
+         */
+        public void save(String dbName)
+        {
+        }
+
+        /**
+         * @see BaseObject#save(Connection)
+         */
+        public void save(Connection con)
+        {
+        }
+    }
+}
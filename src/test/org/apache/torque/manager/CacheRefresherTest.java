@@ -0,0 +1,205 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.torque.TorqueException;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+
+/**
+ * Tests the background refreshes of the CacheRefresher.
+ *
+ * @version $Id$
+ */
+public class CacheRefresherTest extends TestCase
+{
+    /** The manager which records the refreshes. */
+    private RefreshingManager manager = new RefreshingManager();
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public CacheRefresherTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Lets pending refreshes finish.
+     */
+    public void tearDown()
+    {
+        manager.open();
+    }
+
+    /**
+     * Checks that requests for an object which is already waiting for
+     * its refresh are ignored, and that the queue is bounded.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testDuplicatesAndBound() throws Exception
+    {
+        manager.close();
+        CacheRefresher.refresh(manager, new NumberKey(0));
+        assertTrue(manager.awaitRefreshes(1));
+
+        // the worker is blocked in the refresh of key 0
+        CacheRefresher.refresh(manager, new NumberKey(1));
+        CacheRefresher.refresh(manager, new NumberKey(1));
+        CacheRefresher.refresh(manager, new NumberKey(2));
+        assertEquals(2, CacheRefresher.getPendingCount());
+
+        for (int i = 3; i < CacheRefresher.MAX_PENDING + 10; i++)
+        {
+            CacheRefresher.refresh(manager, new NumberKey(i));
+        }
+        assertEquals(CacheRefresher.MAX_PENDING,
+                CacheRefresher.getPendingCount());
+
+        manager.open();
+        assertTrue(manager.awaitRefreshes(CacheRefresher.MAX_PENDING + 1));
+        assertEquals(new NumberKey(1), manager.refreshed.get(1));
+        assertEquals(new NumberKey(2), manager.refreshed.get(2));
+    }
+
+    /**
+     * Checks that refreshes are still processed after a refresh has
+     * terminated the refresh thread with an Error.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testErrorDoesNotStopRefreshes() throws Exception
+    {
+        manager.failWithError = new NumberKey(1);
+        CacheRefresher.refresh(manager, new NumberKey(1));
+        assertTrue(manager.awaitRefreshes(1));
+        CacheRefresher.refresh(manager, new NumberKey(2));
+        assertTrue("refresh after the Error was not processed",
+                manager.awaitRefreshes(2));
+    }
+
+    /**
+     * A manager which records the refreshes and can block them.
+     */
+    private static class RefreshingManager extends AbstractBaseManager
+    {
+        /** The refreshed keys, in order. */
+        List refreshed = new ArrayList();
+
+        /** The key whose refresh throws an Error, or null. */
+        volatile ObjectKey failWithError;
+
+        /** Whether refreshes may finish. */
+        private boolean open = true;
+
+        /**
+         * Records the refresh and waits until refreshes may finish.
+         *
+         * @see AbstractBaseManager#refreshInstanceImpl(ObjectKey)
+         */
+        protected synchronized void refreshInstanceImpl(ObjectKey key)
+        {
+            refreshed.add(key);
+            notifyAll();
+            if (key.equals(failWithError))
+            {
+                throw new ThreadDeath();
+            }
+            while (!open)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Blocks the following refreshes.
+         */
+        synchronized void close()
+        {
+            open = false;
+        }
+
+        /**
+         * Lets the refreshes finish.
+         */
+        synchronized void open()
+        {
+            open = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until a number of refreshes has been started.
+         *
+         * @param count the number of refreshes.
+         * @return whether the refreshes were started within 5 seconds.
+         * @throws InterruptedException if the thread is interrupted.
+         */
+        synchronized boolean awaitRefreshes(int count)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (refreshed.size() < count)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOM(ObjectKey)
+         */
+        protected Persistent retrieveStoredOM(ObjectKey id)
+            throws TorqueException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOMs(List)
+         */
+        protected List retrieveStoredOMs(List ids)
+            throws TorqueException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
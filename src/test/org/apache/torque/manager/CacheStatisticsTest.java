@@ -0,0 +1,97 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the CacheStatistics and the eviction counting of the
+ * StripedLRUManagerCache.
+ *
+ * @version $Id$
+ */
+public class CacheStatisticsTest extends TestCase
+{
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public CacheStatisticsTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Checks that lookups and loads are counted and the load times
+     * are sorted into the ranges of the histogram.
+     */
+    public void testCounters()
+    {
+        CacheStatistics statistics = new CacheStatistics("test");
+        statistics.recordLookup(true);
+        statistics.recordLookup(true);
+        statistics.recordLookup(true);
+        statistics.recordLookup(false);
+        statistics.recordLoad(0);
+        statistics.recordLoad(10);
+        statistics.recordLoad(5000);
+
+        assertEquals(3, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(0.75, statistics.getHitRatio(), 0.0001);
+        assertEquals(3, statistics.getLoads());
+        assertEquals(5010, statistics.getTotalLoadTime());
+        assertEquals(1670, statistics.getAverageLoadTime());
+        assertTrue(Arrays.equals(
+                new long[] {1, 0, 1, 0, 1},
+                statistics.getLoadTimeHistogram()));
+
+        statistics.reset();
+        assertEquals(0, statistics.getHits());
+        assertEquals(0, statistics.getLoads());
+        assertEquals(0.0, statistics.getHitRatio(), 0.0001);
+        assertTrue(Arrays.equals(
+                new long[5],
+                statistics.getLoadTimeHistogram()));
+    }
+
+    /**
+     * Checks that objects which do not fit into a striped cache
+     * are counted as evictions.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testStripedEvictions() throws Exception
+    {
+        CacheStatistics statistics = new CacheStatistics("test");
+        StripedLRUManagerCache cache = new StripedLRUManagerCache(4, 1);
+        cache.setStatistics(statistics);
+        for (int i = 0; i < 10; i++)
+        {
+            cache.put(new Integer(i), "value" + i);
+        }
+        assertEquals(4, cache.size());
+        assertEquals(6, statistics.getEvictions());
+    }
+}
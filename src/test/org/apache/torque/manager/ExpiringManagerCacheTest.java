@@ -0,0 +1,216 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.torque.TorqueException;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+
+/**
+ * Tests the expiry and the refresh-ahead of the ExpiringManagerCache.
+ *
+ * @version $Id$
+ */
+public class ExpiringManagerCacheTest extends TestCase
+{
+    /** The time to live used in the tests, in milliseconds. */
+    private static final long TIME_TO_LIVE = 1000;
+
+    /** The refresh-ahead time used in the tests, in milliseconds. */
+    private static final long REFRESH_AHEAD = 400;
+
+    /** The manager which records the refreshes. */
+    private RefreshingManager manager = new RefreshingManager();
+
+    /** The statistics which count the expired entries. */
+    private CacheStatistics statistics = new CacheStatistics("test");
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public ExpiringManagerCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Checks that entries expire after their time to live, and that
+     * expired entries are counted once.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testExpiry() throws Exception
+    {
+        ExpiringManagerCache cache = new ExpiringManagerCache(
+                new StripedLRUManagerCache(), TIME_TO_LIVE, 0, null,
+                statistics);
+        NumberKey key = new NumberKey(1);
+        assertNull(cache.put(key, "a"));
+        assertEquals("a", cache.get(key));
+        assertEquals("a", cache.put(key, "b"));
+        assertEquals("b", cache.remove(key));
+        assertNull(cache.get(key));
+
+        long start = System.currentTimeMillis();
+        cache.put(key, "c");
+        sleepUntil(start + TIME_TO_LIVE + 50);
+        assertNull(cache.get(key));
+        assertNull(cache.get(key));
+        assertEquals(1, statistics.getEvictions());
+        assertEquals(0, manager.refreshed.size());
+    }
+
+    /**
+     * Checks that an entry read shortly before its expiry is refreshed
+     * once, and that a refreshed entry lives for another time to live.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testRefreshAhead() throws Exception
+    {
+        final ExpiringManagerCache cache = new ExpiringManagerCache(
+                new StripedLRUManagerCache(), TIME_TO_LIVE, REFRESH_AHEAD,
+                manager, statistics);
+        final NumberKey key = new NumberKey(1);
+        manager.onRefresh = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    cache.put(key, "refreshed");
+                }
+                catch (TorqueException e)
+                {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        cache.put(key, "a");
+        assertEquals("a", cache.get(key));
+        assertEquals(0, manager.refreshed.size());
+
+        // within the refresh window of the entry
+        sleepUntil(start + TIME_TO_LIVE - REFRESH_AHEAD + 50);
+        assertEquals("a", cache.get(key));
+        // the refresh may have finished already
+        assertNotNull(cache.get(key));
+        assertTrue(manager.awaitRefreshes(1));
+
+        // after the expiry of the original entry, but before the
+        // refresh window of the refreshed entry
+        sleepUntil(start + TIME_TO_LIVE + 100);
+        assertEquals("refreshed", cache.get(key));
+        assertEquals(1, manager.refreshed.size());
+        assertEquals(0, statistics.getEvictions());
+    }
+
+    /**
+     * Sleeps until the given time.
+     *
+     * @param time the time in milliseconds.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private static void sleepUntil(long time) throws InterruptedException
+    {
+        long remaining = time - System.currentTimeMillis();
+        if (remaining > 0)
+        {
+            Thread.sleep(remaining);
+        }
+    }
+
+    /**
+     * A manager which records the refreshes.
+     */
+    private static class RefreshingManager extends AbstractBaseManager
+    {
+        /** The refreshed keys, in order. */
+        List refreshed = new ArrayList();
+
+        /** Runs within each refresh, or null. */
+        Runnable onRefresh;
+
+        /**
+         * Records the refresh.
+         *
+         * @see AbstractBaseManager#refreshInstanceImpl(ObjectKey)
+         */
+        protected synchronized void refreshInstanceImpl(ObjectKey key)
+        {
+            if (onRefresh != null)
+            {
+                onRefresh.run();
+            }
+            refreshed.add(key);
+            notifyAll();
+        }
+
+        /**
+         * Waits until a number of refreshes has been done.
+         *
+         * @param count the number of refreshes.
+         * @return whether the refreshes were done within 5 seconds.
+         * @throws InterruptedException if the thread is interrupted.
+         */
+        synchronized boolean awaitRefreshes(int count)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (refreshed.size() < count)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOM(ObjectKey)
+         */
+        protected Persistent retrieveStoredOM(ObjectKey id)
+            throws TorqueException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @see AbstractBaseManager#retrieveStoredOMs(List)
+         */
+        protected List retrieveStoredOMs(List ids)
+            throws TorqueException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.torque.om.ComboKey;
+import org.apache.torque.om.DateKey;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.SimpleKey;
+import org.apache.torque.om.StringKey;
+
+/**
+ * Tests the InvalidationBus using the loopback transport.
+ *
+ * @version $Id$
+ */
+public class InvalidationBusTest extends TestCase
+{
+    /** The name of the changed table. */
+    private static final String TABLE = "INVALIDATION_TEST";
+
+    /** The bus of the node which changes the table. */
+    private InvalidationBus sender;
+
+    /** The bus of the node which receives the changes. */
+    private InvalidationBus receiver;
+
+    /** Records the changes passed to the table listeners. */
+    private RecordingListener listener;
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public InvalidationBusTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Starts two buses which collect changes until they are flushed.
+     *
+     * @throws Exception if the buses cannot be started.
+     */
+    public void setUp() throws Exception
+    {
+        sender = new InvalidationBus(
+                new LoopbackInvalidationTransport(), 3600000L, 3);
+        sender.start(new BaseConfiguration());
+        receiver = new InvalidationBus(
+                new LoopbackInvalidationTransport(), 3600000L, 3);
+        receiver.start(new BaseConfiguration());
+        listener = new RecordingListener();
+        TableChangeNotifier.addListener(TABLE, listener);
+    }
+
+    /**
+     * Stops the buses.
+     */
+    public void tearDown()
+    {
+        TableChangeNotifier.removeListener(TABLE, listener);
+        sender.stop();
+        receiver.stop();
+    }
+
+    /**
+     * Checks that changes of a table are coalesced into one message,
+     * and that the sending node does not apply its own message.
+     */
+    public void testCoalescing()
+    {
+        sender.tableChanged("db", TABLE, Arrays.asList(
+                new ObjectKey[] {new NumberKey(1), new NumberKey(2)}));
+        sender.tableChanged("db", TABLE, Arrays.asList(
+                new ObjectKey[] {new NumberKey(2), new NumberKey(3)}));
+        assertEquals(0, listener.changes.size());
+
+        sender.flush();
+        assertEquals(1, sender.getSentMessages());
+        assertEquals(1, receiver.getReceivedMessages());
+        assertEquals(1, listener.changes.size());
+        assertEquals(
+                Arrays.asList(new ObjectKey[] {
+                        new NumberKey(1), new NumberKey(2), new NumberKey(3)}),
+                listener.changes.get(0));
+
+        sender.flush();
+        assertEquals(1, sender.getSentMessages());
+    }
+
+    /**
+     * Checks that the whole table is invalidated if more than
+     * the maximum number of keys were changed.
+     */
+    public void testTooManyKeys()
+    {
+        sender.tableChanged("db", TABLE, Arrays.asList(new ObjectKey[] {
+                new NumberKey(1), new NumberKey(2), new NumberKey(3),
+                new NumberKey(4)}));
+        sender.tableChanged("db", TABLE, Arrays.asList(
+                new ObjectKey[] {new NumberKey(5)}));
+        sender.flush();
+
+        assertEquals(1, listener.changes.size());
+        assertNull(listener.changes.get(0));
+    }
+
+    /**
+     * Checks that all supported key types are sent with their values.
+     */
+    public void testKeyTypes()
+    {
+        List keys = Arrays.asList(new ObjectKey[] {
+                new NumberKey("12.50"),
+                new StringKey("a:b"),
+                new DateKey(new Date(1234567890123L)),
+                new ComboKey(new SimpleKey[] {
+                        new NumberKey(1), new StringKey("x:y")})});
+        sender = restart(sender, 3600000L, 10);
+        sender.tableChanged("db", TABLE, keys);
+        sender.flush();
+
+        assertEquals(1, listener.changes.size());
+        assertEquals(keys, listener.changes.get(0));
+    }
+
+    /**
+     * Checks that the whole table is invalidated if keys of
+     * an unsupported type were changed.
+     */
+    public void testUnsupportedKeys()
+    {
+        sender.tableChanged("db", TABLE, Collections.singletonList(
+                new ComboKey(new SimpleKey[] {new NumberKey(1), null})));
+        sender.flush();
+
+        assertEquals(1, listener.changes.size());
+        assertNull(listener.changes.get(0));
+    }
+
+    /**
+     * Checks that messages which are not in the message format,
+     * in particular serialized objects, are rejected.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testForeignMessages() throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(Arrays.asList(new Object[] {"db", TABLE}));
+        out.close();
+        receiver.receive(bytes.toByteArray());
+        receiver.receive(new byte[] {1, 0, 1, 'x', 0, 0, 0, 1, 1, 0, 2,
+                'd', 'b', 1, 0, 0, 0, 0, 0, 1, 'X', 0, 1, '1'});
+        receiver.receive(new byte[] {1, 0, 1, 'x', 0x7f, 0, 0, 0});
+
+        assertEquals(0, receiver.getReceivedMessages());
+        assertEquals(0, listener.changes.size());
+    }
+
+    /**
+     * Checks that changes of several tables are collected for the whole
+     * flush interval and sent in one message.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testFlushInterval() throws Exception
+    {
+        sender = restart(sender, 1000L, 3);
+        sender.tableChanged("db", TABLE, null);
+        Thread.sleep(50);
+        sender.tableChanged("db", "OTHER_TABLE", null);
+        Thread.sleep(50);
+        sender.tableChanged("db", "THIRD_TABLE", null);
+        assertEquals(0, sender.getSentMessages());
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (sender.getSentMessages() == 0
+                && System.currentTimeMillis() < timeout)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(1, sender.getSentMessages());
+        assertEquals(1, receiver.getReceivedMessages());
+    }
+
+    /**
+     * Replaces a bus by a bus with other settings.
+     *
+     * @param bus the bus to stop.
+     * @param flushInterval the flush interval of the new bus.
+     * @param maxKeys the maximum number of keys of the new bus.
+     * @return the started new bus.
+     */
+    private InvalidationBus restart(
+            InvalidationBus bus,
+            long flushInterval,
+            int maxKeys)
+    {
+        bus.stop();
+        InvalidationBus newBus = new InvalidationBus(
+                new LoopbackInvalidationTransport(), flushInterval, maxKeys);
+        try
+        {
+            newBus.start(new BaseConfiguration());
+        }
+        catch (Exception e)
+        {
+            fail("Could not start bus: " + e.getMessage());
+        }
+        return newBus;
+    }
+
+    /**
+     * Records the keys of the changes of a table.
+     */
+    private static class RecordingListener implements TableChangeListener
+    {
+        /** The keys of the received changes, may contain null. */
+        private List changes = new ArrayList();
+
+        /**
+         * @see TableChangeListener#tableChanged(String, String, List)
+         */
+        public void tableChanged(String dbName, String tableName, List keys)
+        {
+            changes.add(keys);
+        }
+    }
+}
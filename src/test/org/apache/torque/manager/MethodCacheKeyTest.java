@@ -0,0 +1,114 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the equality and hash codes of MethodCacheKey.
+ *
+ * @version $Id$
+ */
+public class MethodCacheKeyTest extends TestCase
+{
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public MethodCacheKeyTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Tests that all arguments of keys with more than three arguments
+     * are compared, including the fourth one.
+     */
+    public void testEqualsMoreThanThreeArguments()
+    {
+        MethodCacheKey key = new MethodCacheKey(
+                keys(new Serializable[] {"a", "b", "c", "d", "e"}));
+        MethodCacheKey same = new MethodCacheKey(
+                keys(new Serializable[] {"a", "b", "c", "d", "e"}));
+        MethodCacheKey otherFourth = new MethodCacheKey(
+                keys(new Serializable[] {"a", "b", "c", "x", "e"}));
+        MethodCacheKey otherFifth = new MethodCacheKey(
+                keys(new Serializable[] {"a", "b", "c", "d", "x"}));
+        MethodCacheKey nullFourth = new MethodCacheKey(
+                keys(new Serializable[] {"a", "b", "c", null, "e"}));
+
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+        assertFalse(key.equals(otherFourth));
+        assertFalse(key.equals(otherFifth));
+        assertFalse(key.equals(nullFourth));
+        assertFalse(nullFourth.equals(key));
+        assertEquals("Class::method(a, b, c, d, e)", key.toString());
+    }
+
+    /**
+     * Tests that keys with the same arguments in a different order
+     * are not equal and have different hash codes.
+     */
+    public void testArgumentOrder()
+    {
+        MethodCacheKey key
+                = new MethodCacheKey("Class", "method", "a", "b", "c");
+        MethodCacheKey permuted
+                = new MethodCacheKey("Class", "method", "c", "a", "b");
+
+        assertFalse(key.equals(permuted));
+        assertTrue(key.hashCode() != permuted.hashCode());
+    }
+
+    /**
+     * Tests that keys with a different number of arguments are not equal.
+     */
+    public void testArgumentCount()
+    {
+        MethodCacheKey twoArgs
+                = new MethodCacheKey("Class", "method", "a", null);
+        MethodCacheKey threeArgs
+                = new MethodCacheKey("Class", "method", "a", null, null);
+
+        assertFalse(twoArgs.equals(threeArgs));
+        assertEquals(twoArgs,
+                new MethodCacheKey("Class", "method", "a", null));
+    }
+
+    /**
+     * Creates the key array for a method with the given arguments.
+     *
+     * @param args the method arguments.
+     * @return the key array, containing the class name, the method name
+     *         and the arguments.
+     */
+    private Serializable[] keys(Serializable[] args)
+    {
+        Serializable[] keys = new Serializable[args.length + 2];
+        keys[0] = "Class";
+        keys[1] = "method";
+        System.arraycopy(args, 0, keys, 2, args.length);
+        return keys;
+    }
+}
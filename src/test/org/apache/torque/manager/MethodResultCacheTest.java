@@ -0,0 +1,286 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+
+import org.apache.jcs.access.GroupCacheAccess;
+import org.apache.jcs.access.exception.CacheException;
+import org.apache.jcs.engine.CompositeCacheAttributes;
+import org.apache.jcs.engine.ElementAttributes;
+import org.apache.jcs.engine.control.CompositeCache;
+
+/**
+ * Tests the group index of the MethodResultCache, i.e. the removal
+ * of results by argument prefix and the pruning of evicted keys.
+ * The JCS region is created directly, so no cache configuration
+ * is needed.
+ *
+ * @version $Id$
+ */
+public class MethodResultCacheTest extends TestCase
+{
+    /** The instance used in the cache keys. */
+    private static final String INSTANCE = "org.apache.torque.Test";
+
+    /** The method used in the cache keys. */
+    private static final String METHOD = "getByForeignKey";
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public MethodResultCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Checks that removing by argument prefix removes only the results
+     * whose leading arguments match, including null arguments.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testRemoveByPrefix() throws Exception
+    {
+        MethodResultCache cache
+                = new MethodResultCache(
+                new GroupCacheAccess(createRegion("prefix", 1000)));
+        cache.put("a1", INSTANCE, METHOD, "a", new Integer(1));
+        cache.put("a2", INSTANCE, METHOD, "a", new Integer(2));
+        cache.put("b1", INSTANCE, METHOD, "b", new Integer(1));
+        cache.put("null1", INSTANCE, METHOD, null, new Integer(1));
+        cache.put("a", INSTANCE, METHOD, "a");
+        cache.put("other", INSTANCE, "otherMethod", "a", new Integer(1));
+
+        cache.removeAll(INSTANCE, METHOD, "a");
+        assertNull(cache.get(INSTANCE, METHOD, "a", new Integer(1)));
+        assertNull(cache.get(INSTANCE, METHOD, "a", new Integer(2)));
+        assertNull(cache.get(INSTANCE, METHOD, "a"));
+        assertEquals("b1", cache.get(INSTANCE, METHOD, "b", new Integer(1)));
+        assertEquals("null1",
+                cache.get(INSTANCE, METHOD, null, new Integer(1)));
+        assertEquals("other",
+                cache.get(INSTANCE, "otherMethod", "a", new Integer(1)));
+        assertEquals(3, cache.getStatistics().getInvalidations());
+
+        cache.removeAll(INSTANCE, METHOD,
+                new Serializable[] {null, new Integer(1)});
+        assertNull(cache.get(INSTANCE, METHOD, null, new Integer(1)));
+        assertEquals("b1", cache.get(INSTANCE, METHOD, "b", new Integer(1)));
+
+        // a prefix longer than the arguments matches nothing
+        cache.removeAll(INSTANCE, METHOD,
+                new Serializable[] {"b", new Integer(1), "c"});
+        assertEquals("b1", cache.get(INSTANCE, METHOD, "b", new Integer(1)));
+
+        cache.removeAll(INSTANCE, METHOD);
+        assertNull(cache.get(INSTANCE, METHOD, "b", new Integer(1)));
+        assertEquals("other",
+                cache.get(INSTANCE, "otherMethod", "a", new Integer(1)));
+        assertEquals(1, cache.getStatistics().getSize());
+    }
+
+    /**
+     * Checks that the keys of results evicted by JCS are pruned
+     * from the index once the group has grown.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPruneEvictedKeys() throws Exception
+    {
+        MethodResultCache cache
+                = new MethodResultCache(
+                new GroupCacheAccess(createRegion("prune", 10)));
+        for (int i = 0; i < 63; i++)
+        {
+            cache.put(new Integer(i), INSTANCE, METHOD, new Integer(i));
+        }
+        // nothing is pruned below the minimum size
+        assertEquals(63, cache.getStatistics().getSize());
+        assertEquals(0, cache.getStatistics().getEvictions());
+
+        cache.put(new Integer(63), INSTANCE, METHOD, new Integer(63));
+        int size = cache.getStatistics().getSize();
+        assertTrue("size " + size + " should be at most 10", size <= 10);
+        assertEquals(64 - size, cache.getStatistics().getEvictions());
+        assertEquals(new Integer(63),
+                cache.get(INSTANCE, METHOD, new Integer(63)));
+
+        // the remaining keys are still removed by prefix
+        cache.removeAll(INSTANCE, METHOD, new Integer(63));
+        assertNull(cache.get(INSTANCE, METHOD, new Integer(63)));
+        assertEquals(size - 1, cache.getStatistics().getSize());
+    }
+
+    /**
+     * Checks that pruning does not get the cached results, which would
+     * change their position in the LRU order of JCS.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPruneKeepsRecency() throws Exception
+    {
+        CountingRegion region = new CountingRegion(createRegion("recency", 10));
+        MethodResultCache cache = new MethodResultCache(region);
+        for (int i = 0; i < 63; i++)
+        {
+            cache.put(new Integer(i), INSTANCE, METHOD, new Integer(i));
+        }
+        int gets = region.gets;
+
+        cache.put(new Integer(63), INSTANCE, METHOD, new Integer(63));
+        assertTrue(cache.getStatistics().getSize() <= 10);
+        // only the put itself looks up the previous result
+        assertEquals(gets + 1, region.gets);
+    }
+
+    /**
+     * Checks that a result put while its group is invalidated is
+     * indexed in a new group, so that it can still be removed by prefix.
+     * The group is invalidated while a first put holds its monitor,
+     * and a second put waits for that monitor meanwhile.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPutWhileGroupInvalidated() throws Exception
+    {
+        final BlockingRegion region = new BlockingRegion(
+                createRegion("retry", 1000));
+        final MethodResultCache cache = new MethodResultCache(region);
+        final Thread second = new Thread()
+        {
+            public void run()
+            {
+                cache.put("second", INSTANCE, METHOD, "b");
+            }
+        };
+        region.onPut = new Runnable()
+        {
+            public void run()
+            {
+                region.onPut = null;
+                second.start();
+                try
+                {
+                    // let the second put wait for the group monitor
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                cache.removeAll(INSTANCE, METHOD);
+            }
+        };
+        cache.put("first", INSTANCE, METHOD, "a");
+        second.join(10000);
+        assertFalse(second.isAlive());
+
+        assertEquals("second", cache.get(INSTANCE, METHOD, "b"));
+        assertEquals(1, cache.getStatistics().getSize());
+        cache.removeAll(INSTANCE, METHOD, "b");
+        assertNull(cache.get(INSTANCE, METHOD, "b"));
+    }
+
+    /**
+     * Creates a memory-only JCS region.
+     *
+     * @param name the name of the region.
+     * @param maxObjects the maximum number of objects in memory.
+     * @return the region.
+     */
+    private CompositeCache createRegion(String name, int maxObjects)
+    {
+        CompositeCacheAttributes attributes = new CompositeCacheAttributes();
+        attributes.setCacheName(name);
+        attributes.setMaxObjects(maxObjects);
+        return new CompositeCache(name, attributes, new ElementAttributes());
+    }
+
+    /**
+     * A region which counts the results it is asked for.
+     */
+    private static class CountingRegion extends GroupCacheAccess
+    {
+        /** The number of calls of getFromGroup. */
+        int gets;
+
+        /**
+         * Creates the region.
+         *
+         * @param cache the JCS cache.
+         */
+        CountingRegion(CompositeCache cache)
+        {
+            super(cache);
+        }
+
+        /**
+         * Counts the call and gets the value.
+         *
+         * @see GroupCacheAccess#getFromGroup(Object, String)
+         */
+        public Object getFromGroup(Object key, String group)
+        {
+            gets++;
+            return super.getFromGroup(key, group);
+        }
+    }
+
+    /**
+     * A region which runs a callback within a put, i.e. while the
+     * MethodResultCache holds the monitor of the group.
+     */
+    private static class BlockingRegion extends GroupCacheAccess
+    {
+        /** The callback to run within the next put, or null. */
+        volatile Runnable onPut;
+
+        /**
+         * Creates the region.
+         *
+         * @param cache the JCS cache.
+         */
+        BlockingRegion(CompositeCache cache)
+        {
+            super(cache);
+        }
+
+        /**
+         * Runs the callback, if any, and puts the value.
+         *
+         * @see GroupCacheAccess#putInGroup(Object, String, Object)
+         */
+        public void putInGroup(Object key, String group, Object value)
+            throws CacheException
+        {
+            Runnable callback = onPut;
+            if (callback != null)
+            {
+                callback.run();
+            }
+            super.putInGroup(key, group, value);
+        }
+    }
+}
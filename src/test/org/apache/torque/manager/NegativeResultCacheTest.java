@@ -0,0 +1,147 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import junit.framework.TestCase;
+
+import org.apache.torque.om.NumberKey;
+
+/**
+ * Tests the generation guard and the time to live of the
+ * NegativeResultCache.
+ *
+ * @version $Id$
+ */
+public class NegativeResultCacheTest extends TestCase
+{
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public NegativeResultCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Checks that missing keys are remembered with the kind of result.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPutAndGet() throws Exception
+    {
+        NegativeResultCache cache = new NegativeResultCache(10, 2, 60000);
+        NumberKey noRow = new NumberKey(1);
+        NumberKey nullResult = new NumberKey(2);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(noRow));
+
+        long generation = cache.getGeneration();
+        cache.put(noRow, false, generation);
+        cache.put(nullResult, true, generation);
+        assertEquals(NegativeResultCache.NO_ROW, cache.get(noRow));
+        assertEquals(NegativeResultCache.NULL_RESULT, cache.get(nullResult));
+        assertEquals(NegativeResultCache.UNKNOWN,
+                cache.get(new NumberKey(3)));
+    }
+
+    /**
+     * Checks that a key is not remembered if any key was invalidated
+     * or the cache was cleared while it was looked up.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGenerationGuard() throws Exception
+    {
+        NegativeResultCache cache = new NegativeResultCache(10, 2, 60000);
+        NumberKey key = new NumberKey(1);
+
+        long generation = cache.getGeneration();
+        cache.invalidate(new NumberKey(2));
+        cache.put(key, false, generation);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(key));
+
+        generation = cache.getGeneration();
+        cache.clear();
+        cache.put(key, false, generation);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(key));
+
+        generation = cache.getGeneration();
+        cache.put(key, false, generation);
+        assertEquals(NegativeResultCache.NO_ROW, cache.get(key));
+        cache.invalidate(key);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(key));
+    }
+
+    /**
+     * Checks that removing a found key does not affect lookups
+     * of other keys, unlike invalidating it.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testRemove() throws Exception
+    {
+        NegativeResultCache cache = new NegativeResultCache(10, 2, 60000);
+        NumberKey key = new NumberKey(1);
+        long generation = cache.getGeneration();
+        cache.put(key, false, generation);
+        cache.remove(key);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(key));
+
+        cache.put(new NumberKey(2), false, generation);
+        assertEquals(NegativeResultCache.NO_ROW,
+                cache.get(new NumberKey(2)));
+    }
+
+    /**
+     * Checks that entries are forgotten after their time to live.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testTimeToLive() throws Exception
+    {
+        NegativeResultCache cache = new NegativeResultCache(10, 2, 50);
+        NumberKey key = new NumberKey(1);
+        cache.put(key, false, cache.getGeneration());
+        assertEquals(NegativeResultCache.NO_ROW, cache.get(key));
+
+        Thread.sleep(100);
+        assertEquals(NegativeResultCache.UNKNOWN, cache.get(key));
+    }
+
+    /**
+     * Checks that the least recently used entries are forgotten
+     * if the cache is full.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testMaxSize() throws Exception
+    {
+        NegativeResultCache cache = new NegativeResultCache(2, 1, 60000);
+        long generation = cache.getGeneration();
+        cache.put(new NumberKey(1), false, generation);
+        cache.put(new NumberKey(2), false, generation);
+        cache.put(new NumberKey(3), false, generation);
+        assertEquals(NegativeResultCache.UNKNOWN,
+                cache.get(new NumberKey(1)));
+        assertEquals(NegativeResultCache.NO_ROW,
+                cache.get(new NumberKey(3)));
+    }
+}
@@ -0,0 +1,139 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the StripedLRUManagerCache.
+ *
+ * @version $Id$
+ */
+public class StripedLRUManagerCacheTest extends TestCase
+{
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public StripedLRUManagerCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Checks that objects are stored, replaced and removed
+     * in a cache with several stripes.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPutGetRemove() throws Exception
+    {
+        StripedLRUManagerCache cache = new StripedLRUManagerCache(1000, 16);
+        for (int i = 0; i < 100; i++)
+        {
+            assertNull(cache.put(new Integer(i), "value" + i));
+        }
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("value" + i, cache.get(new Integer(i)));
+        }
+
+        assertEquals("value1", cache.put(new Integer(1), "other"));
+        assertEquals("other", cache.get(new Integer(1)));
+        assertEquals("other", cache.remove(new Integer(1)));
+        assertNull(cache.get(new Integer(1)));
+        assertNull(cache.remove(new Integer(1)));
+        assertEquals(99, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(new Integer(2)));
+    }
+
+    /**
+     * Checks that the least recently used object is evicted,
+     * where reading an object counts as a use.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testLeastRecentlyUsedEviction() throws Exception
+    {
+        StripedLRUManagerCache cache = new StripedLRUManagerCache(3, 1);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+    }
+
+    /**
+     * Checks that the maximum size is distributed over the stripes,
+     * and that there are not more stripes than objects.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testMaxSize() throws Exception
+    {
+        assertEquals(10, new StripedLRUManagerCache(10, 3).getMaxSize());
+        assertEquals(2, new StripedLRUManagerCache(2, 16).getMaxSize());
+        assertEquals(StripedLRUManagerCache.DEFAULT_MAX_SIZE,
+                new StripedLRUManagerCache().getMaxSize());
+
+        StripedLRUManagerCache cache = new StripedLRUManagerCache(10, 3);
+        for (int i = 0; i < 1000; i++)
+        {
+            cache.put(new Integer(i), "value" + i);
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+    /**
+     * Checks that sizes which are not positive are rejected.
+     */
+    public void testIllegalArguments()
+    {
+        try
+        {
+            new StripedLRUManagerCache(0, 1);
+            fail("a maximum size of 0 should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        try
+        {
+            new StripedLRUManagerCache(10, 0);
+            fail("0 stripes should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.apache.torque.manager;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.torque.om.NumberKey;
+
+/**
+ * Tests that the TableChangeNotifier publishes changes made within
+ * a transaction only when the transaction is committed.
+ *
+ * @version $Id$
+ */
+public class TableChangeNotifierTest extends TestCase
+{
+    /** The notifications received, as List { tableName, keys }. */
+    private List received = new ArrayList();
+
+    /** The listener which records the notifications. */
+    private TableChangeListener listener = new TableChangeListener()
+    {
+        public void tableChanged(String dbName, String tableName, List keys)
+        {
+            received.add(Arrays.asList(new Object[] {tableName, keys}));
+        }
+    };
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public TableChangeNotifierTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Registers the listener.
+     */
+    public void setUp()
+    {
+        TableChangeNotifier.addListener("A", listener);
+        TableChangeNotifier.addListener("B", listener);
+    }
+
+    /**
+     * Unregisters the listener.
+     */
+    public void tearDown()
+    {
+        TableChangeNotifier.removeListener("A", listener);
+        TableChangeNotifier.removeListener("B", listener);
+    }
+
+    /**
+     * Checks that changes through autocommit connections are published
+     * immediately.
+     */
+    public void testAutoCommit()
+    {
+        TableChangeNotifier.fireTableChanged(
+                createConnection(true), "db", "A", null);
+        TableChangeNotifier.fireTableChanged(null, "db", "B", null);
+        assertEquals(2, received.size());
+    }
+
+    /**
+     * Checks that changes within a transaction are published, merged
+     * per table, when the transaction is committed.
+     */
+    public void testCommit()
+    {
+        Connection con = createConnection(false);
+        TableChangeNotifier.fireTableChanged(con, "db", "A",
+                Collections.singletonList(new NumberKey(1)));
+        TableChangeNotifier.fireTableChanged(con, "db", "B", null);
+        TableChangeNotifier.fireTableChanged(con, "db", "A",
+                Collections.singletonList(new NumberKey(2)));
+        TableChangeNotifier.fireTableChanged(con, "db", "B",
+                Collections.singletonList(new NumberKey(3)));
+        assertEquals(0, received.size());
+
+        // other connections do not publish the changes
+        TableChangeNotifier.commit(createConnection(false));
+        assertEquals(0, received.size());
+
+        TableChangeNotifier.commit(con);
+        assertEquals(2, received.size());
+        assertEquals(Arrays.asList(new Object[] {
+                    "A",
+                    Arrays.asList(new Object[] {
+                            new NumberKey(1), new NumberKey(2)})}),
+                received.get(0));
+        assertEquals(Arrays.asList(new Object[] {"B", null}),
+                received.get(1));
+
+        // the changes are published only once
+        TableChangeNotifier.commit(con);
+        assertEquals(2, received.size());
+    }
+
+    /**
+     * Checks that changes within a transaction are dropped when the
+     * transaction is rolled back.
+     */
+    public void testRollback()
+    {
+        Connection con = createConnection(false);
+        TableChangeNotifier.fireTableChanged(con, "db", "A", null);
+        TableChangeNotifier.rollback(con);
+        TableChangeNotifier.commit(con);
+        assertEquals(0, received.size());
+    }
+
+    /**
+     * Creates a connection which only knows its autocommit mode.
+     *
+     * @param autoCommit the autocommit mode of the connection.
+     * @return the connection.
+     */
+    private Connection createConnection(final boolean autoCommit)
+    {
+        return (Connection) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class[] {Connection.class},
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy,
+                            Method method,
+                            Object[] args)
+                    {
+                        if ("getAutoCommit".equals(method.getName()))
+                        {
+                            return Boolean.valueOf(autoCommit);
+                        }
+                        if ("hashCode".equals(method.getName()))
+                        {
+                            return new Integer(
+                                    System.identityHashCode(proxy));
+                        }
+                        if ("equals".equals(method.getName()))
+                        {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,162 @@
+package org.apache.torque.oid;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the adjustment of the quantity of ids fetched by the IDBroker.
+ *
+ * @version $Id$
+ */
+public class IDBrokerTest extends TestCase
+{
+    /** The minimum quantity used in the tests. */
+    private static final int MIN_QUANTITY = 10;
+
+    /** The maximum quantity used in the tests. */
+    private static final int MAX_QUANTITY = 10000;
+
+    /** An arbitrary start time. */
+    private static final long START = 1000000L;
+
+    /**
+     * Simple constructor.
+     *
+     * @param name the name of the test to execute
+     */
+    public IDBrokerTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Tests that a burst of ids taken just before a sample does not
+     * raise the quantity to the maximum.
+     */
+    public void testBurstDoesNotMaximizeQuantity()
+    {
+        IDBroker.TableIds tableIds = createTableIds();
+        assertEquals(MIN_QUANTITY, adjust(tableIds, START));
+
+        take(tableIds, 500);
+        // a sample covering 1 ms is not taken
+        assertEquals(MIN_QUANTITY, adjust(tableIds, START + 1));
+
+        int quantity = adjust(tableIds, START + 1000);
+        assertTrue("quantity " + quantity + " should have grown",
+                quantity > MIN_QUANTITY);
+        assertTrue("quantity " + quantity + " should be about the ids "
+                + "taken in the burst",
+                quantity < 1000);
+    }
+
+    /**
+     * Tests that a sustained rate raises the quantity such that the ids
+     * last for the sleep period of the house keeper, independent of
+     * how often the rate is sampled.
+     */
+    public void testSustainedRate()
+    {
+        // 100 ids per second, sampled every second
+        IDBroker.TableIds often = createTableIds();
+        adjust(often, START);
+        int oftenQuantity = 0;
+        for (int second = 1; second <= 300; second++)
+        {
+            take(often, 100);
+            oftenQuantity = adjust(often, START + second * 1000L);
+        }
+
+        // the same rate, sampled every minute
+        IDBroker.TableIds seldom = createTableIds();
+        adjust(seldom, START);
+        int seldomQuantity = 0;
+        for (int minute = 1; minute <= 5; minute++)
+        {
+            take(seldom, 6000);
+            seldomQuantity = adjust(seldom, START + minute * 60000L);
+        }
+
+        // 0.1 ids per ms * 60000 ms * 1.2 safety margin
+        assertTrue("quantity " + oftenQuantity + " should approach 7200",
+                oftenQuantity > 7000 && oftenQuantity <= 7200);
+        assertTrue("quantity " + seldomQuantity + " should approach 7200",
+                seldomQuantity > 7000 && seldomQuantity <= 7200);
+    }
+
+    /**
+     * Tests that the quantity falls back to the minimum if no ids
+     * are taken any more.
+     */
+    public void testIdleRate()
+    {
+        IDBroker.TableIds tableIds = createTableIds();
+        adjust(tableIds, START);
+        take(tableIds, 6000);
+        assertTrue(adjust(tableIds, START + 60000) > MIN_QUANTITY);
+
+        int quantity = 0;
+        for (int minute = 2; minute <= 20; minute++)
+        {
+            quantity = adjust(tableIds, START + minute * 60000L);
+        }
+        assertEquals(MIN_QUANTITY, quantity);
+    }
+
+    /**
+     * Creates table ids with the minimum quantity.
+     *
+     * @return the table ids.
+     */
+    private IDBroker.TableIds createTableIds()
+    {
+        IDBroker.TableIds tableIds = new IDBroker.TableIds();
+        tableIds.setInitialQuantity(MIN_QUANTITY);
+        return tableIds;
+    }
+
+    /**
+     * Takes a number of ids.
+     *
+     * @param tableIds the table ids to take the ids from.
+     * @param count the number of ids to take.
+     */
+    private void take(IDBroker.TableIds tableIds, int count)
+    {
+        tableIds.add(0, count);
+        for (int i = 0; i < count; i++)
+        {
+            tableIds.take();
+        }
+    }
+
+    /**
+     * Adjusts the quantity at the given time.
+     *
+     * @param tableIds the table ids to adjust.
+     * @param now the time of the sample.
+     * @return the new quantity.
+     */
+    private int adjust(IDBroker.TableIds tableIds, long now)
+    {
+        return tableIds.adjustQuantity(now, MIN_QUANTITY, MAX_QUANTITY);
+    }
+}
@@ -0,0 +1,609 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.torque.BaseTestCase;
+import org.apache.torque.Database;
+import org.apache.torque.Torque;
+import org.apache.torque.TorqueException;
+import org.apache.torque.adapter.IDMethod;
+import org.apache.torque.manager.TableChangeListener;
+import org.apache.torque.manager.TableChangeNotifier;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.DatabaseMap;
+import org.apache.torque.map.TableMap;
+import org.apache.torque.oid.IDBroker;
+import org.apache.torque.oid.IdGenerator;
+import org.apache.torque.om.NumberKey;
+
+/**
+ * Tests the JDBC based methods of BasePeer against a mocked connection.
+ *
+ * @version $Id$
+ */
+public class BasePeerTest extends BaseTestCase
+{
+    /** The name of the table used in the tests. */
+    private static final String TABLE = "BP_BOOK";
+
+    /** The table used in the tests. */
+    private TableMap tableMap;
+
+    /** The database used in the tests. */
+    private Database database;
+
+    /** The native id generator before the test. */
+    private IdGenerator oldNativeGenerator;
+
+    /** The id broker before the test. */
+    private IdGenerator oldIdBroker;
+
+    /** The mocked connection. */
+    private MockJdbc jdbc;
+
+    /** The keys published for the table, one List (or null) per event. */
+    private List published = new ArrayList();
+
+    /** Records the changes of the table. */
+    private TableChangeListener listener = new TableChangeListener()
+    {
+        public void tableChanged(String dbName, String tableName, List keys)
+        {
+            published.add(keys);
+        }
+    };
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name the name of the test to run
+     */
+    public BasePeerTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the table map and the mocked connection.
+     */
+    public void setUp()
+    {
+        super.setUp();
+        try
+        {
+            database = Torque.getDatabase(Torque.getDefaultDB());
+            DatabaseMap dbMap = Torque.getDatabaseMap(Torque.getDefaultDB());
+            tableMap = new TableMap(TABLE, dbMap);
+            dbMap.addTable(tableMap);
+            ColumnMap id = new ColumnMap("BOOK_ID", tableMap);
+            id.setType(new Integer(0));
+            id.setPrimaryKey(true);
+            tableMap.addColumn(id);
+            ColumnMap title = new ColumnMap("TITLE", tableMap);
+            title.setType("");
+            tableMap.addColumn(title);
+            ColumnMap published = new ColumnMap("PUBLISHED", tableMap);
+            published.setType(new Date());
+            tableMap.addColumn(published);
+            tableMap.setPrimaryKeyMethod(IDMethod.NO_ID_METHOD);
+        }
+        catch (Exception e)
+        {
+            fail("Could not create the table map: " + e.getMessage());
+        }
+        oldNativeGenerator = database.getIdGenerator(IDMethod.NATIVE);
+        oldIdBroker = database.getIdGenerator(IDMethod.ID_BROKER);
+        jdbc = new MockJdbc();
+        TableChangeNotifier.addListener(TABLE, listener);
+    }
+
+    /**
+     * Restores the id generators and removes the listener.
+     */
+    public void tearDown()
+    {
+        database.addIdGenerator(IDMethod.NATIVE, oldNativeGenerator);
+        database.addIdGenerator(IDMethod.ID_BROKER, oldIdBroker);
+        TableChangeNotifier.removeListener(TABLE, listener);
+    }
+
+    /**
+     * Checks that a batch insert publishes the primary keys contained
+     * in the criteria.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchPublishesCriteriaKeys() throws Exception
+    {
+        BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {book(1, "a"), book(2, "b")}),
+                jdbc.getConnection(),
+                10);
+        assertEquals(1, published.size());
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        new NumberKey(1), new NumberKey(2)}),
+                published.get(0));
+    }
+
+    /**
+     * Checks that a batch insert publishes the generated keys, and that it
+     * publishes unknown keys if the driver does not return them.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchPublishesGeneratedKeys() throws Exception
+    {
+        useGeneratedKeys();
+        jdbc.addGeneratedKeys(new Object[][] {{new Integer(7)}, {new Integer(8)}});
+        Connection con = jdbc.getConnection();
+        List ids = BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {book("a"), book("b")}),
+                con,
+                10);
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        new NumberKey(new BigDecimal(7)),
+                        new NumberKey(new BigDecimal(8))}),
+                ids);
+        assertEquals(ids, published.get(0));
+
+        // no generated keys returned by the driver
+        ids = BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {book("c")}), con, 10);
+        assertEquals(Arrays.asList(new Object[] {null}), ids);
+        assertEquals(2, published.size());
+        assertNull(published.get(1));
+    }
+
+    /**
+     * Checks that a batch insert uses one statement per set of columns,
+     * and binds the values of each row in the order of the columns.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchGroupsByColumns() throws Exception
+    {
+        Criteria dated = book(3, "c");
+        dated.add(TABLE + ".PUBLISHED", new Date(0));
+        BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {
+                        book(1, "a"), dated, book(2, "b")}),
+                jdbc.getConnection(),
+                10);
+
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "prepareStatement(INSERT INTO " + TABLE
+                            + " (BOOK_ID, TITLE) VALUES (?, ?))",
+                        "prepareStatement(INSERT INTO " + TABLE
+                            + " (BOOK_ID, TITLE, PUBLISHED) VALUES (?, ?, ?))"}),
+                jdbc.getCalls("prepareStatement"));
+        assertEquals(2, jdbc.getCalls("executeBatch").size());
+        List calls = jdbc.getCalls();
+        assertTrue(calls.indexOf("setString(2, a)")
+                < calls.indexOf("setString(2, b)"));
+        assertTrue(calls.indexOf("setString(2, b)")
+                < calls.indexOf("setString(2, c)"));
+        assertEquals(2, published.size());
+    }
+
+    /**
+     * Checks that a batch insert executes a batch whenever batchSize
+     * rows have been added, and the remaining rows at the end.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchSplitsBatches() throws Exception
+    {
+        List rows = new ArrayList();
+        for (int i = 1; i <= 5; i++)
+        {
+            rows.add(book(i, "t" + i));
+        }
+        BasePeer.doInsertBatch(rows, jdbc.getConnection(), 2);
+
+        List calls = jdbc.getCalls();
+        calls.removeAll(jdbc.getCalls("set"));
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "prepareStatement(INSERT INTO " + TABLE
+                            + " (BOOK_ID, TITLE) VALUES (?, ?))",
+                        "addBatch()",
+                        "addBatch()",
+                        "executeBatch()",
+                        "addBatch()",
+                        "addBatch()",
+                        "executeBatch()",
+                        "addBatch()",
+                        "executeBatch()",
+                        "close()"}),
+                calls);
+        assertEquals(1, published.size());
+        assertEquals(5, ((List) published.get(0)).size());
+    }
+
+    /**
+     * Checks that the missing ids of a batch insert are requested from
+     * the id broker in bulk, until enough ids are returned.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchIdBrokerBulkIds() throws Exception
+    {
+        // setting the method starts the default id broker, so replace it
+        tableMap.setPrimaryKeyMethod(IDMethod.ID_BROKER);
+        tableMap.setPrimaryKeyMethodInfo(TABLE);
+        BulkIdBroker broker = new BulkIdBroker(database);
+        database.addIdGenerator(IDMethod.ID_BROKER, broker);
+
+        List ids = BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {
+                        book("a"), book(5, "b"), book("c"), book("d")}),
+                jdbc.getConnection(),
+                10);
+
+        // at most two ids are returned per request
+        assertEquals(
+                Arrays.asList(new Object[] {new Integer(3), new Integer(1)}),
+                broker.requests);
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        new NumberKey(100), null,
+                        new NumberKey(101), new NumberKey(102)}),
+                ids);
+        // all rows contain a key now, so they are inserted together
+        assertEquals(1, jdbc.getCalls("prepareStatement").size());
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        new NumberKey(100), new NumberKey(5),
+                        new NumberKey(101), new NumberKey(102)}),
+                published.get(0));
+    }
+
+    /**
+     * Checks that the generated keys of several batches and statements
+     * are mapped back to the positions of the rows in the list.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInsertBatchMapsGeneratedKeys() throws Exception
+    {
+        useGeneratedKeys();
+        Criteria dated = book("b");
+        dated.add(TABLE + ".PUBLISHED", new Date(0));
+        // rows 0, 2 and 3 are inserted in two batches, then row 1
+        jdbc.addGeneratedKeys(new Object[][] {{new Integer(10)}, {new Integer(11)}});
+        jdbc.addGeneratedKeys(new Object[][] {{new Integer(12)}});
+        jdbc.addGeneratedKeys(new Object[][] {{new Integer(13)}});
+
+        List ids = BasePeer.doInsertBatch(
+                Arrays.asList(new Criteria[] {
+                        book("a"), dated, book("c"), book("d")}),
+                jdbc.getConnection(),
+                2);
+
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        new NumberKey(new BigDecimal(10)),
+                        new NumberKey(new BigDecimal(13)),
+                        new NumberKey(new BigDecimal(11)),
+                        new NumberKey(new BigDecimal(12))}),
+                ids);
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "prepareStatement(INSERT INTO " + TABLE
+                            + " (TITLE) VALUES (?), 1)",
+                        "prepareStatement(INSERT INTO " + TABLE
+                            + " (TITLE, PUBLISHED) VALUES (?, ?), 1)"}),
+                jdbc.getCalls("prepareStatement"));
+    }
+
+    /**
+     * Checks that a streaming select uses a forward-only, read-only
+     * statement with the given fetch size, and passes the rows to the
+     * handler one by one until the handler stops the select.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testSelectStreaming() throws Exception
+    {
+        jdbc.addResult(new Object[][] {
+                {new Integer(1), "a"},
+                {new Integer(2), "b"},
+                {new Integer(3), "c"}});
+        Criteria criteria = new Criteria();
+        criteria.addSelectColumn(TABLE + ".BOOK_ID");
+        criteria.addSelectColumn(TABLE + ".TITLE");
+        final List handled = new ArrayList();
+
+        int rowCount = BasePeer.doSelectStreaming(
+                criteria,
+                jdbc.getConnection(),
+                new RowHandler()
+                {
+                    public boolean handleRow(
+                            ResultSet resultSet,
+                            int rowNumber)
+                        throws TorqueException
+                    {
+                        try
+                        {
+                            // the result set is positioned on the row
+                            assertEquals(rowNumber + 1, resultSet.getInt(1));
+                            handled.add(resultSet.getString(2));
+                        }
+                        catch (SQLException e)
+                        {
+                            throw new TorqueException(e);
+                        }
+                        return rowNumber < 1;
+                    }
+                },
+                50);
+
+        assertEquals(2, rowCount);
+        assertEquals(Arrays.asList(new Object[] {"a", "b"}), handled);
+        List calls = jdbc.getCalls();
+        String prepare = (String) calls.get(0);
+        assertTrue(prepare, prepare.startsWith("prepareStatement(SELECT "));
+        assertTrue(prepare, prepare.endsWith(", "
+                + ResultSet.TYPE_FORWARD_ONLY + ", "
+                + ResultSet.CONCUR_READ_ONLY + ")"));
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "setFetchSize(50)", "executeQuery()", "close()",
+                        "close()"}),
+                calls.subList(1, calls.size()));
+    }
+
+    /**
+     * Checks that doSelectRows maps each row, converting the values to
+     * the types of the columns and sql null to null, and that rows of
+     * unknown columns are read as they are.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testSelectRows() throws Exception
+    {
+        Timestamp timestamp = new Timestamp(1000000000000L);
+        Object[][] rows = new Object[][] {
+                {new Integer(1), "a", null},
+                {null, null, timestamp}};
+        jdbc.addResult(rows);
+        jdbc.addResult(rows);
+        Criteria criteria = new Criteria();
+        criteria.addSelectColumn(TABLE + ".BOOK_ID");
+        criteria.addSelectColumn(TABLE + ".TITLE");
+        criteria.addSelectColumn(TABLE + ".PUBLISHED");
+
+        List books = BasePeer.doSelectRows(
+                criteria,
+                new ObjectArrayRowMapper(tableMap),
+                jdbc.getConnection());
+        assertEquals(2, books.size());
+        assertEquals(
+                Arrays.asList(new Object[] {new Integer(1), "a", null}),
+                Arrays.asList((Object[]) books.get(0)));
+        assertEquals(
+                Arrays.asList(new Object[] {null, null, timestamp}),
+                Arrays.asList((Object[]) books.get(1)));
+
+        books = BasePeer.doSelectRows(
+                criteria,
+                new ObjectArrayRowMapper(),
+                jdbc.getConnection());
+        assertEquals(2, books.size());
+        assertEquals(
+                Arrays.asList(rows[1]),
+                Arrays.asList((Object[]) books.get(1)));
+    }
+
+    /**
+     * Checks that a set-based update binds dates as parameters instead
+     * of rendering them as literals, which might drop fractional seconds.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testExecuteUpdateBindsDates() throws Exception
+    {
+        Timestamp timestamp = new Timestamp(1000000000000L);
+        timestamp.setNanos(123456789);
+        Criteria where = new Criteria();
+        where.add(TABLE + ".BOOK_ID", 1);
+        Criteria values = new Criteria();
+        values.add(TABLE + ".TITLE", "x");
+        values.add(TABLE + ".PUBLISHED", timestamp);
+
+        assertEquals(1, BasePeer.executeUpdate(
+                where, values, jdbc.getConnection()));
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "prepareStatement(UPDATE " + TABLE
+                            + " SET TITLE='x', PUBLISHED=? WHERE BOOK_ID=1)",
+                        "setTimestamp(1, " + timestamp + ")",
+                        "executeUpdate()",
+                        "close()"}),
+                jdbc.getCalls());
+        assertEquals(1, published.size());
+    }
+
+    /**
+     * Checks that a set-based update without dates or binary values
+     * and a set-based delete are executed as plain statements.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testExecuteUpdateAndDeleteLiterals() throws Exception
+    {
+        Criteria where = new Criteria();
+        where.add(TABLE + ".BOOK_ID", 1);
+        Criteria values = new Criteria();
+        values.add(TABLE + ".TITLE", "x");
+        Connection con = jdbc.getConnection();
+
+        BasePeer.executeUpdate(where, values, con);
+        BasePeer.executeDelete(where, TABLE, con);
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        "createStatement()",
+                        "executeUpdate(UPDATE " + TABLE
+                            + " SET TITLE='x' WHERE BOOK_ID=1)",
+                        "close()",
+                        "createStatement()",
+                        "executeUpdate(DELETE FROM " + TABLE
+                            + " WHERE BOOK_ID=1)",
+                        "close()"}),
+                jdbc.getCalls());
+        assertEquals(2, published.size());
+    }
+
+    /**
+     * Lets the table use a native id generator which reads the generated
+     * keys after the insert.
+     */
+    private void useGeneratedKeys()
+    {
+        database.addIdGenerator(IDMethod.NATIVE, new PostInsertGenerator());
+        tableMap.setPrimaryKeyMethod(IDMethod.NATIVE);
+    }
+
+    /**
+     * Creates the values of a book with a primary key.
+     *
+     * @param id the primary key.
+     * @param title the title.
+     * @return the criteria containing the values.
+     */
+    private static Criteria book(int id, String title)
+    {
+        Criteria criteria = book(title);
+        criteria.add(TABLE + ".BOOK_ID", id);
+        return criteria;
+    }
+
+    /**
+     * Creates the values of a book without a primary key.
+     *
+     * @param title the title.
+     * @return the criteria containing the values.
+     */
+    private static Criteria book(String title)
+    {
+        Criteria criteria = new Criteria();
+        criteria.add(TABLE + ".TITLE", title);
+        return criteria;
+    }
+
+    /**
+     * An id broker which returns at most two consecutive ids per request
+     * and records the number of ids requested.
+     */
+    private static class BulkIdBroker extends IDBroker
+    {
+        /** The numbers of ids requested, as Integers. */
+        List requests = new ArrayList();
+
+        /** The next id. */
+        private int nextId = 100;
+
+        /**
+         * Creates the id broker.
+         *
+         * @param database the database.
+         */
+        BulkIdBroker(Database database)
+        {
+            super(database);
+        }
+
+        /**
+         * Returns up to two ids.
+         *
+         * @see IDBroker#getNextIds(String, int, Connection)
+         */
+        public BigDecimal[] getNextIds(
+                String tableName,
+                int numOfIdsToReturn,
+                Connection connection)
+        {
+            requests.add(new Integer(numOfIdsToReturn));
+            BigDecimal[] ids = new BigDecimal[Math.min(2, numOfIdsToReturn)];
+            for (int i = 0; i < ids.length; i++)
+            {
+                ids[i] = new BigDecimal(nextId++);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * An id generator whose ids are generated by the database.
+     */
+    private static class PostInsertGenerator implements IdGenerator
+    {
+        public int getIdAsInt(Connection connection, Object keyInfo)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getIdAsLong(Connection connection, Object keyInfo)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public BigDecimal getIdAsBigDecimal(
+                Connection connection,
+                Object keyInfo)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getIdAsString(Connection connection, Object keyInfo)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isPriorToInsert()
+        {
+            return false;
+        }
+
+        public boolean isPostInsert()
+        {
+            return true;
+        }
+
+        public boolean isConnectionRequired()
+        {
+            return true;
+        }
+    }
+}
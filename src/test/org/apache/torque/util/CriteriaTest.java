@@ -19,6 +19,7 @@ package org.apache.torque.util;
  * under the License.
  */
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -490,6 +491,64 @@ public class CriteriaTest extends BaseTestCase
         assertEquals(toStringExpect, cString);
     }
 
+    /**
+     * Checks that prepared statements which only differ in their
+     * values share the cached sql, and that the values are still
+     * collected in the right order.
+     */
+    public void testQueryCache() throws TorqueException
+    {
+        QueryCache.clear();
+
+        Criteria first = new Criteria();
+        first.addSelectColumn("TABLE.COLUMN1");
+        first.add("TABLE.COLUMN1", "abc");
+        first.add("TABLE.COLUMN2", new int[] {1, 2}, Criteria.IN);
+        StringBuffer firstSql = new StringBuffer();
+        List firstParams = new ArrayList();
+        BasePeer.createPreparedStatement(first, firstSql, firstParams);
+
+        Criteria second = new Criteria();
+        second.addSelectColumn("TABLE.COLUMN1");
+        second.add("TABLE.COLUMN1", "def");
+        second.add("TABLE.COLUMN2", new int[] {3, 4}, Criteria.IN);
+        StringBuffer secondSql = new StringBuffer();
+        List secondParams = new ArrayList();
+        BasePeer.createPreparedStatement(second, secondSql, secondParams);
+
+        assertEquals(firstSql.toString(), secondSql.toString());
+        assertEquals(1, QueryCache.getMisses());
+        assertEquals(1, QueryCache.getHits());
+        assertEquals(firstParams.size(), secondParams.size());
+        for (int i = 0; i < firstParams.size(); i++)
+        {
+            Object firstParam = firstParams.get(i);
+            Object secondParam = secondParams.get(i);
+            if ("abc".equals(firstParam))
+            {
+                assertEquals("def", secondParam);
+            }
+            else
+            {
+                assertEquals(
+                        ((Integer) firstParam).intValue() + 2,
+                        ((Integer) secondParam).intValue());
+            }
+        }
+
+        // a different number of IN values changes the sql
+        Criteria third = new Criteria();
+        third.addSelectColumn("TABLE.COLUMN1");
+        third.add("TABLE.COLUMN1", "ghi");
+        third.add("TABLE.COLUMN2", new int[] {5, 6, 7}, Criteria.IN);
+        StringBuffer thirdSql = new StringBuffer();
+        BasePeer.createPreparedStatement(third, thirdSql, new ArrayList());
+
+        assertFalse(firstSql.toString().equals(thirdSql.toString()));
+        assertEquals(2, QueryCache.getMisses());
+        assertEquals(2, QueryCache.getSize());
+    }
+
     /**
      * This test case verifies if the Criteria.LIKE comparison type will
      * get replaced through Criteria.EQUAL if there are no SQL wildcards
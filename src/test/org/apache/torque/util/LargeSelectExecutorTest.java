@@ -0,0 +1,262 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for LargeSelectExecutor
+ *
+ * @version $Id$
+ */
+public class LargeSelectExecutorTest extends TestCase
+{
+    /** The maximum number of threads before the test. */
+    private int oldMaxThreads;
+
+    /** The maximum number of background threads before the test. */
+    private int oldMaxBackgroundThreads;
+
+    /**
+     * Constructor for LargeSelectExecutorTest.
+     * @param name the name of the test.
+     */
+    public LargeSelectExecutorTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Remembers the maximum number of threads.
+     */
+    public void setUp()
+    {
+        oldMaxThreads = LargeSelectExecutor.getMaxThreads();
+        oldMaxBackgroundThreads = LargeSelectExecutor.getMaxBackgroundThreads();
+    }
+
+    /**
+     * Restores the maximum number of threads.
+     */
+    public void tearDown()
+    {
+        LargeSelectExecutor.setMaxThreads(oldMaxThreads);
+        LargeSelectExecutor.setMaxBackgroundThreads(oldMaxBackgroundThreads);
+        LargeSelectExecutor.shutdown();
+    }
+
+    /**
+     * Checks that queries are still executed after a query has
+     * terminated its thread with an Error.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testErrorDoesNotStrandQueue() throws Exception
+    {
+        LargeSelectExecutor.setMaxThreads(1);
+        LargeSelectExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                throw new ThreadDeath();
+            }
+        });
+        for (int i = 0; i < 3; i++)
+        {
+            Query query = new Query();
+            LargeSelectExecutor.execute(query);
+            assertTrue("query " + i + " was not executed",
+                    query.await(5000));
+        }
+    }
+
+    /**
+     * Checks that background tasks cannot occupy the thread reserved for
+     * foreground queries, and that no more background tasks run at the
+     * same time than allowed.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testBackgroundTasksLeaveThreadForQueries() throws Exception
+    {
+        LargeSelectExecutor.setMaxThreads(2);
+        LargeSelectExecutor.setMaxBackgroundThreads(2);
+        Gate first = new Gate();
+        Gate second = new Gate();
+        LargeSelectExecutor.executeBackground(first);
+        LargeSelectExecutor.executeBackground(second);
+        try
+        {
+            assertTrue("background task was not executed",
+                    first.awaitStart(5000));
+            Query query = new Query();
+            LargeSelectExecutor.execute(query);
+            assertTrue("query waited for background tasks",
+                    query.await(5000));
+            assertFalse("too many background tasks were started",
+                    second.awaitStart(200));
+            assertEquals(1, LargeSelectExecutor.getQueueSize());
+        }
+        finally
+        {
+            first.open();
+            second.open();
+        }
+        assertTrue("queued background task was not executed",
+                second.awaitStart(5000));
+    }
+
+    /**
+     * Checks that a background task which has not been started yet can be
+     * removed from its queue.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testRemoveBackgroundTask() throws Exception
+    {
+        LargeSelectExecutor.setMaxThreads(2);
+        LargeSelectExecutor.setMaxBackgroundThreads(1);
+        Gate running = new Gate();
+        Gate queued = new Gate();
+        LargeSelectExecutor.executeBackground(running);
+        LargeSelectExecutor.executeBackground(queued);
+        try
+        {
+            assertTrue(running.awaitStart(5000));
+            assertTrue(LargeSelectExecutor.remove(queued));
+            assertFalse(LargeSelectExecutor.remove(running));
+            assertEquals(0, LargeSelectExecutor.getQueueSize());
+        }
+        finally
+        {
+            running.open();
+            queued.open();
+        }
+    }
+
+    /**
+     * A task which blocks until it is opened.
+     */
+    private static final class Gate implements Runnable
+    {
+        /** Whether the task has started. */
+        private boolean started = false;
+
+        /** Whether the task may finish. */
+        private boolean open = false;
+
+        /**
+         * Waits until the gate is opened.
+         */
+        public synchronized void run()
+        {
+            started = true;
+            notifyAll();
+            while (!open)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Lets the task finish.
+         */
+        public synchronized void open()
+        {
+            open = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the task has started.
+         *
+         * @param timeout the maximum time to wait in milliseconds.
+         *
+         * @return whether the task has started.
+         *
+         * @throws InterruptedException if the thread is interrupted.
+         */
+        public synchronized boolean awaitStart(long timeout)
+                throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!started)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A query which records that it has run.
+     */
+    private static final class Query implements Runnable
+    {
+        /** Whether the query has run. */
+        private boolean done = false;
+
+        /**
+         * Marks the query as done.
+         */
+        public synchronized void run()
+        {
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the query has run.
+         *
+         * @param timeout the maximum time to wait in milliseconds.
+         *
+         * @return whether the query has run.
+         *
+         * @throws InterruptedException if the thread is interrupted.
+         */
+        public synchronized boolean await(long timeout)
+                throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!done)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+}
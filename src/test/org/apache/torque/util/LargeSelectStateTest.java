@@ -0,0 +1,128 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for LargeSelectState
+ *
+ * @version $Id$
+ */
+public class LargeSelectStateTest extends TestCase
+{
+    /**
+     * Constructor for LargeSelectStateTest.
+     * @param name the name of the test.
+     */
+    public LargeSelectStateTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Tests that a state with keyset values survives serialization.
+     */
+    public void testSerialization() throws Exception
+    {
+        LargeSelectState state = new LargeSelectState(
+                "0123456789abcdef0123456789abcdef",
+                "org.example.BookPeer",
+                true,
+                25,
+                5,
+                275,
+                250,
+                1000,
+                false,
+                249,
+                new Object[] {"Moby Dick", new Integer(17)});
+
+        LargeSelectState copy = serializeAndDeserialize(state);
+
+        assertEquals(state.getCriteriaFingerprint(),
+                copy.getCriteriaFingerprint());
+        assertEquals("org.example.BookPeer",
+                copy.getReturnBuilderClassName());
+        assertTrue(copy.isKeysetPagination());
+        assertEquals(25, copy.getPageSize());
+        assertEquals(5, copy.getMemoryPageLimit());
+        assertEquals(275, copy.getPosition());
+        assertEquals(250, copy.getBlockBegin());
+        assertEquals(1000, copy.getTotalRecords());
+        assertFalse(copy.getTotalsFinalized());
+        assertEquals(249, copy.getKeysetAnchor());
+        assertEquals(2, copy.getKeysetAnchorValues().length);
+        assertEquals("Moby Dick", copy.getKeysetAnchorValues()[0]);
+        assertEquals(new Integer(17), copy.getKeysetAnchorValues()[1]);
+    }
+
+    /**
+     * Tests that a state without return builder class and keyset values
+     * survives serialization.
+     */
+    public void testSerializationWithoutOptionalValues() throws Exception
+    {
+        LargeSelectState state = new LargeSelectState(
+                "0123456789abcdef0123456789abcdef",
+                null,
+                false,
+                10,
+                5,
+                0,
+                0,
+                0,
+                true,
+                -1,
+                null);
+
+        LargeSelectState copy = serializeAndDeserialize(state);
+
+        assertNull(copy.getReturnBuilderClassName());
+        assertFalse(copy.isKeysetPagination());
+        assertTrue(copy.getTotalsFinalized());
+        assertEquals(-1, copy.getKeysetAnchor());
+        assertNull(copy.getKeysetAnchorValues());
+    }
+
+    /**
+     * Serializes a state and deserializes the result.
+     *
+     * @param state the state to serialize.
+     * @return the deserialized copy.
+     */
+    private LargeSelectState serializeAndDeserialize(LargeSelectState state)
+        throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(state);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        return (LargeSelectState) in.readObject();
+    }
+}
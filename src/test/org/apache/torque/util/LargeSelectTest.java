@@ -0,0 +1,755 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.torque.BaseTestCase;
+import org.apache.torque.Database;
+import org.apache.torque.Torque;
+import org.apache.torque.TorqueException;
+import org.apache.torque.adapter.DB;
+import org.apache.torque.adapter.DBFactory;
+import org.apache.torque.dsfactory.DataSourceFactory;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.DatabaseMap;
+import org.apache.torque.map.TableMap;
+
+import com.workingdogs.village.DataSetException;
+import com.workingdogs.village.Record;
+
+/**
+ * Tests for LargeSelect which do not need a database.  The queries are
+ * executed on connections of {@link MockJdbc}, by a single query thread,
+ * so that the order of the queries is known.
+ *
+ * @version $Id$
+ */
+public class LargeSelectTest extends BaseTestCase
+{
+    /** How long to wait for other threads, in milliseconds. */
+    private static final long TIMEOUT = 5000L;
+
+    /** Creates the connections of the default database. */
+    private MockJdbc jdbc;
+
+    /** Counts and blocks the queries. */
+    private QueryGate gate;
+
+    /** The default database. */
+    private Database database;
+
+    /** The data source factory of the default database before the test. */
+    private DataSourceFactory oldDataSourceFactory;
+
+    /** The maximum number of query threads before the test. */
+    private int oldMaxThreads;
+
+    /**
+     * Constructor for LargeSelectTest.
+     * @param name the name of the test.
+     */
+    public LargeSelectTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Lets the default database use mock connections and limits the
+     * large select queries to one thread.
+     */
+    public void setUp()
+    {
+        super.setUp();
+        jdbc = new MockJdbc();
+        gate = new QueryGate();
+        jdbc.setBeforeQuery(gate);
+        try
+        {
+            database = Torque.getDatabase(Torque.getDefaultDB());
+        }
+        catch (TorqueException e)
+        {
+            fail("Could not get the default database: " + e.getMessage());
+        }
+        oldDataSourceFactory = database.getDataSourceFactory();
+        database.setDataSourceFactory(
+                new MockDataSourceFactory(jdbc.getDataSource()));
+        oldMaxThreads = LargeSelectExecutor.getMaxThreads();
+        LargeSelectExecutor.setMaxThreads(1);
+    }
+
+    /**
+     * Releases blocked queries and restores the settings.
+     */
+    public void tearDown()
+    {
+        gate.allow(Integer.MAX_VALUE);
+        LargeSelectExecutor.setMaxThreads(oldMaxThreads);
+        LargeSelectExecutor.shutdown();
+        LargeSelect.setPrefetchPageDistance(
+                LargeSelect.DEFAULT_PREFETCH_PAGE_DISTANCE);
+        LargeSelect.setPrefetchBlockLimit(
+                LargeSelect.DEFAULT_PREFETCH_BLOCK_LIMIT);
+        LargeSelect.setCountStrategy(LargeSelect.COUNT_NONE);
+        database.setDataSourceFactory(oldDataSourceFactory);
+    }
+
+    /**
+     * Tests that the seek condition of keyset pagination compares
+     * the keyset columns with placeholders, and that the values are
+     * bound unchanged, so that timestamps keep their fractional seconds.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testSeekCondition() throws Exception
+    {
+        DB db = DBFactory.create("postgresql");
+        Timestamp published = Timestamp.valueOf("2020-02-29 12:34:56.789123");
+        Integer id = new Integer(17);
+        List params = new ArrayList();
+
+        String condition = LargeSelect.buildSeekCondition(
+                new Criteria(),
+                new String[] {"BOOK.PUBLISHED", "BOOK.ID"},
+                new boolean[] {true, false},
+                new Object[] {published, id},
+                db,
+                params);
+
+        assertEquals(
+                "(BOOK.PUBLISHED<? OR (BOOK.PUBLISHED=? AND BOOK.ID>?))",
+                condition);
+        assertEquals(Arrays.asList(new Object[] {published, published, id}),
+                params);
+        assertEquals(789123000, ((Timestamp) params.get(0)).getNanos());
+    }
+
+    /**
+     * Tests that the seek condition ignores the case of strings
+     * if the criteria does.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testSeekConditionIgnoreCase() throws Exception
+    {
+        Criteria criteria = new Criteria();
+        criteria.setIgnoreCase(true);
+        List params = new ArrayList();
+
+        String condition = LargeSelect.buildSeekCondition(
+                criteria,
+                new String[] {"BOOK.TITLE"},
+                new boolean[] {false},
+                new Object[] {"Moby Dick"},
+                DBFactory.create("postgresql"),
+                params);
+
+        assertEquals("UPPER(BOOK.TITLE)>UPPER(?)", condition);
+        assertEquals(Arrays.asList(new Object[] {"Moby Dick"}), params);
+    }
+
+    /**
+     * Checks that a reader waits until the query has retrieved the
+     * requested rows, and is woken when they are available.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGetResultsWaitsForQuery() throws Exception
+    {
+        jdbc.addResult(rows(1, 3));
+        gate.allow(0);
+        LargeSelect largeSelect = newLargeSelect();
+        gate.awaitQueries(1);
+
+        PageLoader loader = new PageLoader(largeSelect, 1);
+        loader.start();
+        loader.join(100);
+        assertTrue("The reader must wait for the query", loader.isAlive());
+
+        gate.allow(1);
+        loader.join(TIMEOUT);
+        assertFalse("The reader must be woken", loader.isAlive());
+        assertNull(loader.failure);
+        assertEquals(ids(1, 2), values(loader.page));
+        awaitExecutor();
+        assertTrue(largeSelect.getTotalsFinalized());
+        assertEquals(3, largeSelect.getTotalRecords());
+    }
+
+    /**
+     * Checks that a query which has not been started yet is removed from
+     * the queue of the executor when another block is requested, rather
+     * than executed.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testStopQueryRemovesQueuedQuery() throws Exception
+    {
+        // occupy the only query thread
+        gate.allow(0);
+        LargeSelectExecutor.execute(gate);
+        gate.awaitQueries(1);
+        jdbc.addResult(rows(19, 23));
+        LargeSelect largeSelect = newLargeSelect();
+        assertEquals(1, LargeSelectExecutor.getQueueSize());
+
+        // stop the queued query and queue the query for page 10, without
+        // waiting for its rows
+        Thread.currentThread().interrupt();
+        try
+        {
+            largeSelect.getPage(10);
+            fail("The wait must be interrupted");
+        }
+        catch (TorqueException e)
+        {
+            // expected
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+        assertEquals(1, LargeSelectExecutor.getQueueSize());
+
+        gate.allow(Integer.MAX_VALUE);
+        assertEquals(ids(19, 20), values(largeSelect.getPage(10)));
+        assertEquals(
+                Arrays.asList(new Object[] {prepareStatement(18)}),
+                jdbc.getCalls("prepareStatement"));
+    }
+
+    /**
+     * Checks that a running query is cancelled when another block is
+     * requested, and that its rows are not returned.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testStopQueryCancelsStatement() throws Exception
+    {
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(rows(19, 23));
+        // the gate blocks the first query until its statement is cancelled
+        gate.allow(0);
+        LargeSelect largeSelect = newLargeSelect();
+        gate.awaitQueries(1);
+
+        assertEquals(ids(19, 20), values(largeSelect.getPage(10)));
+        List calls = jdbc.getCalls();
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        prepareStatement(0), prepareStatement(18)}),
+                jdbc.getCalls("prepareStatement"));
+        assertEquals(1, jdbc.getCalls("cancel").size());
+        assertTrue(calls.indexOf("cancel()")
+                < calls.indexOf(prepareStatement(18)));
+        awaitExecutor();
+        assertEquals(22, largeSelect.getTotalRecords());
+    }
+
+    /**
+     * Checks that prefetched blocks and the previous block are used
+     * instead of querying the rows again.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testSwitchToPrefetchedBlock() throws Exception
+    {
+        LargeSelect.setPrefetchPageDistance(1);
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(rows(5, 8));
+        LargeSelect largeSelect = newLargeSelect();
+        awaitExecutor();
+
+        // the last page of the block prefetches the next block
+        assertEquals(ids(3, 4), values(largeSelect.getPage(2)));
+        awaitExecutor();
+        assertEquals(2, jdbc.getCalls("executeQuery").size());
+
+        assertEquals(ids(5, 6), values(largeSelect.getPage(3)));
+        assertEquals(ids(1, 2), values(largeSelect.getPage(1)));
+        assertEquals(ids(7, 8), values(largeSelect.getPage(4)));
+        awaitExecutor();
+        assertEquals(2, jdbc.getCalls("executeQuery").size());
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        prepareStatement(0), prepareStatement(4)}),
+                jdbc.getCalls("prepareStatement"));
+    }
+
+    /**
+     * Checks that the prefetched block farthest from the requested rows
+     * is discarded if there are more prefetched blocks than allowed,
+     * so that its rows are queried again.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testTrimPrefetchedBlocks() throws Exception
+    {
+        LargeSelect.setPrefetchPageDistance(1);
+        LargeSelect.setPrefetchBlockLimit(1);
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(rows(5, 9));
+        jdbc.addResult(rows(9, 10));
+        jdbc.addResult(rows(1, 5));
+        LargeSelect largeSelect = newLargeSelect();
+        awaitExecutor();
+        largeSelect.getPage(2);
+        awaitExecutor();
+
+        // switches to block 4 and keeps block 0 as prefetched block
+        assertEquals(ids(5, 6), values(largeSelect.getPage(3)));
+        // prefetches block 8, which discards block 0
+        assertEquals(ids(7, 8), values(largeSelect.getPage(4)));
+        awaitExecutor();
+        assertEquals(3, jdbc.getCalls("executeQuery").size());
+
+        assertEquals(ids(1, 2), values(largeSelect.getPage(1)));
+        assertEquals(
+                Arrays.asList(new Object[] {
+                        prepareStatement(0),
+                        prepareStatement(4),
+                        prepareStatement(8),
+                        prepareStatement(0)}),
+                jdbc.getCalls("prepareStatement"));
+    }
+
+    /**
+     * Checks that a count which was started before the result was
+     * invalidated is not published, but a count started afterwards is.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testOutdatedCountIgnored() throws Exception
+    {
+        LargeSelect.setCountStrategy(LargeSelect.COUNT_EXACT);
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(new Object[][] {{new Integer(100)}});
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(new Object[][] {{new Integer(42)}});
+        // block the counts, which run after the queries
+        gate.allow(1);
+        LargeSelect largeSelect = newLargeSelect();
+        gate.awaitQueries(2);
+        assertEquals(4, largeSelect.getTotalRecords());
+
+        largeSelect.invalidateResult();
+        gate.allow(3);
+        assertEquals(ids(1, 2), values(largeSelect.getPage(1)));
+        gate.awaitQueries(4);
+        assertEquals(4, largeSelect.getTotalRecords());
+        assertFalse(largeSelect.getTotalsFinalized());
+
+        gate.allow(4);
+        awaitExecutor();
+        assertEquals(42, largeSelect.getTotalRecords());
+        assertTrue(largeSelect.getTotalsFinalized());
+        assertEquals(2, jdbc.getCalls("prepareStatement").size());
+        assertEquals(2, jdbc.getCalls("createStatement").size());
+    }
+
+    /**
+     * Checks that a LargeSelect resumed from its state rejects a
+     * different criteria, and that it queries only the current block
+     * when the next page is requested, starting after the keyset
+     * values of the row before the block.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testResume() throws Exception
+    {
+        jdbc.addResult(rows(1, 5));
+        jdbc.addResult(rows(5, 9));
+        jdbc.addResult(rows(5, 9));
+        LargeSelect largeSelect = new LargeSelect(
+                newKeysetCriteria(), 2, 2, null, true);
+        largeSelect.getPage(1);
+        largeSelect.getPage(2);
+        assertEquals(ids(5, 6), values(largeSelect.getPage(3)));
+        awaitExecutor();
+        LargeSelectState state
+                = (LargeSelectState) SerializationUtils.clone(
+                        largeSelect.getState());
+        assertEquals(6, state.getPosition());
+        assertEquals(4, state.getBlockBegin());
+        assertEquals(3, state.getKeysetAnchor());
+        assertEquals(Arrays.asList(new Object[] {new Integer(4)}),
+                Arrays.asList(state.getKeysetAnchorValues()));
+
+        Criteria otherCriteria = newKeysetCriteria();
+        otherCriteria.add("LS_BOOK.BOOK_ID", 3, Criteria.GREATER_THAN);
+        try
+        {
+            new LargeSelect(otherCriteria, state);
+            fail("A different criteria must be rejected");
+        }
+        catch (TorqueException e)
+        {
+            // expected
+        }
+
+        int callCount = jdbc.getCalls().size();
+        LargeSelect resumed = new LargeSelect(newKeysetCriteria(), state);
+        assertEquals(callCount, jdbc.getCalls().size());
+        assertEquals(8, resumed.getTotalRecords());
+        assertEquals(3, resumed.getCurrentPageNumber());
+
+        assertEquals(ids(7, 8), values(resumed.getNextResults()));
+        List calls = jdbc.getCalls();
+        calls = calls.subList(callCount, calls.size());
+        assertEquals(
+                "prepareStatement(SELECT LS_BOOK.BOOK_ID FROM LS_BOOK"
+                        + " WHERE LS_BOOK.BOOK_ID>?"
+                        + " ORDER BY LS_BOOK.BOOK_ID ASC LIMIT 5)",
+                calls.get(0));
+        assertEquals("setInt(1, 4)", calls.get(1));
+        awaitExecutor();
+        // only the current block has been queried again
+        assertEquals(3, jdbc.getCalls("executeQuery").size());
+    }
+
+    /**
+     * Creates a LargeSelect with two rows per page and two pages per block.
+     *
+     * @return the LargeSelect, whose first query is started.
+     */
+    private static LargeSelect newLargeSelect()
+    {
+        Criteria criteria = new Criteria();
+        criteria.addSelectColumn("LS_BOOK.BOOK_ID");
+        return new LargeSelect(criteria, 2, 2);
+    }
+
+    /**
+     * Creates a criteria for keyset pagination, and the table map of
+     * the table it selects from.
+     *
+     * @return the criteria.
+     * @throws TorqueException if the database map cannot be accessed.
+     */
+    private static Criteria newKeysetCriteria() throws TorqueException
+    {
+        DatabaseMap dbMap = Torque.getDatabaseMap(Torque.getDefaultDB());
+        if (dbMap.getTable("LS_BOOK") == null)
+        {
+            TableMap tableMap = new TableMap("LS_BOOK", dbMap);
+            dbMap.addTable(tableMap);
+            ColumnMap id = new ColumnMap("BOOK_ID", tableMap);
+            id.setType(new Integer(0));
+            id.setPrimaryKey(true);
+            tableMap.addColumn(id);
+        }
+        Criteria criteria = new Criteria();
+        criteria.addSelectColumn("LS_BOOK.BOOK_ID");
+        return criteria;
+    }
+
+    /**
+     * Returns the recorded call which prepares the query for a block
+     * of a LargeSelect created by <code>newLargeSelect()</code>.
+     *
+     * @param begin the record number of the first row of the block.
+     * @return the description of the call.
+     */
+    private static String prepareStatement(int begin)
+    {
+        return "prepareStatement(SELECT LS_BOOK.BOOK_ID FROM LS_BOOK"
+                + " LIMIT 5" + (begin == 0 ? "" : " OFFSET " + begin) + ")";
+    }
+
+    /**
+     * Waits until the tasks queued so far have been executed by the
+     * query thread, as background tasks are executed in order and only
+     * if no foreground query is waiting.
+     *
+     * @throws InterruptedException if the wait is interrupted.
+     */
+    private static void awaitExecutor() throws InterruptedException
+    {
+        Barrier barrier = new Barrier();
+        LargeSelectExecutor.executeBackground(barrier);
+        barrier.await();
+    }
+
+    /**
+     * Creates rows whose only column contains consecutive numbers.
+     *
+     * @param first the number in the first row.
+     * @param last the number in the last row.
+     * @return the rows.
+     */
+    private static Object[][] rows(int first, int last)
+    {
+        Object[][] rows = new Object[last - first + 1][];
+        for (int i = 0; i < rows.length; i++)
+        {
+            rows[i] = new Object[] {new Integer(first + i)};
+        }
+        return rows;
+    }
+
+    /**
+     * Creates a list of consecutive numbers.
+     *
+     * @param first the first number.
+     * @param last the last number.
+     * @return the numbers as Integers.
+     */
+    private static List ids(int first, int last)
+    {
+        List ids = new ArrayList();
+        for (int i = first; i <= last; i++)
+        {
+            ids.add(new Integer(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the first column of records.
+     *
+     * @param records the Village records.
+     * @return the values as Integers.
+     * @throws DataSetException if a value cannot be read.
+     */
+    private static List values(List records) throws DataSetException
+    {
+        List values = new ArrayList();
+        for (int i = 0; i < records.size(); i++)
+        {
+            Record record = (Record) records.get(i);
+            values.add(new Integer(record.getValue(1).asInt()));
+        }
+        return values;
+    }
+
+    /**
+     * Counts the queries, and blocks the queries beyond the allowed number
+     * until they are allowed or a statement is cancelled.  Also used as a
+     * task which occupies the query thread.
+     */
+    private class QueryGate implements Runnable
+    {
+        /** The number of queries started so far. */
+        private int queries = 0;
+
+        /** The number of queries which are not blocked. */
+        private int allowed = Integer.MAX_VALUE;
+
+        /**
+         * Counts the query and blocks it if necessary.
+         */
+        public synchronized void run()
+        {
+            int query = ++queries;
+            notifyAll();
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (query > allowed && jdbc.getCalls("cancel").isEmpty())
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return;
+                }
+                try
+                {
+                    // cancel() does not notify, so check it regularly
+                    wait(Math.min(remaining, 10));
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sets the number of queries which are not blocked.
+         *
+         * @param allowed the number of queries.
+         */
+        synchronized void allow(int allowed)
+        {
+            this.allowed = allowed;
+            notifyAll();
+        }
+
+        /**
+         * Waits until a number of queries have been started.
+         *
+         * @param count the number of queries.
+         * @throws InterruptedException if the wait is interrupted.
+         */
+        synchronized void awaitQueries(int count)
+                throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (queries < count)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + queries + " queries were started",
+                        remaining > 0);
+                wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * A task which signals that it has been executed.
+     */
+    private static class Barrier implements Runnable
+    {
+        /** Whether the task has been executed. */
+        private boolean executed = false;
+
+        /**
+         * Signals the execution.
+         */
+        public synchronized void run()
+        {
+            executed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the task has been executed.
+         *
+         * @throws InterruptedException if the wait is interrupted.
+         */
+        synchronized void await() throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!executed)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("The task was not executed", remaining > 0);
+                wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Requests a page in a separate thread.
+     */
+    private static class PageLoader extends Thread
+    {
+        /** The LargeSelect to request the page from. */
+        private final LargeSelect largeSelect;
+
+        /** The number of the page. */
+        private final int pageNumber;
+
+        /** The rows of the page, or null. */
+        private volatile List page;
+
+        /** The exception thrown by the request, or null. */
+        private volatile Exception failure;
+
+        /**
+         * Constructor.
+         *
+         * @param largeSelect the LargeSelect to request the page from.
+         * @param pageNumber the number of the page.
+         */
+        PageLoader(LargeSelect largeSelect, int pageNumber)
+        {
+            this.largeSelect = largeSelect;
+            this.pageNumber = pageNumber;
+        }
+
+        /**
+         * Requests the page.
+         */
+        public void run()
+        {
+            try
+            {
+                page = largeSelect.getPage(pageNumber);
+            }
+            catch (Exception e)
+            {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * A data source factory which returns a given data source.
+     */
+    private static class MockDataSourceFactory implements DataSourceFactory
+    {
+        /** The data source. */
+        private final DataSource dataSource;
+
+        /**
+         * Constructor.
+         *
+         * @param dataSource the data source to return.
+         */
+        MockDataSourceFactory(DataSource dataSource)
+        {
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * @see DataSourceFactory#getDataSource()
+         */
+        public DataSource getDataSource()
+        {
+            return dataSource;
+        }
+
+        /**
+         * @see DataSourceFactory#initialize(Configuration)
+         */
+        public void initialize(Configuration configuration)
+        {
+        }
+
+        /**
+         * @see DataSourceFactory#setSchema(String)
+         */
+        public void setSchema(String schema)
+        {
+        }
+
+        /**
+         * @see DataSourceFactory#getSchema()
+         */
+        public String getSchema()
+        {
+            return null;
+        }
+
+        /**
+         * @see DataSourceFactory#close()
+         */
+        public void close()
+        {
+        }
+    }
+}
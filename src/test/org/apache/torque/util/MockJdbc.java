@@ -0,0 +1,555 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Creates JDBC connections, statements and result sets which record the
+ * calls made on them and return prepared results, for testing code which
+ * accesses the database without a database.
+ *
+ * @version $Id$
+ */
+final class MockJdbc
+{
+    /** The calls made on the JDBC objects, e.g. "setInt(1, 5)". */
+    private final List calls = new ArrayList();
+
+    /** The results of the next queries, as Object[][] rows. */
+    private final LinkedList results = new LinkedList();
+
+    /**
+     * The generated keys returned after the next batches or updates,
+     * as Object[][] rows.
+     */
+    private final LinkedList generatedKeys = new LinkedList();
+
+    /** The autocommit mode of the connection. */
+    private volatile boolean autoCommit = true;
+
+    /** Runs before each query is executed, or null. */
+    private volatile Runnable beforeQuery;
+
+    /**
+     * Sets the autocommit mode of the connection.
+     *
+     * @param autoCommit the autocommit mode.
+     */
+    void setAutoCommit(boolean autoCommit)
+    {
+        this.autoCommit = autoCommit;
+    }
+
+    /**
+     * Sets code which runs within executeQuery() before the result
+     * is returned, e.g. to block the query.
+     *
+     * @param beforeQuery the code to run, or null.
+     */
+    void setBeforeQuery(Runnable beforeQuery)
+    {
+        this.beforeQuery = beforeQuery;
+    }
+
+    /**
+     * Adds the result of a later query.
+     *
+     * @param rows the rows of the result.
+     */
+    void addResult(Object[][] rows)
+    {
+        synchronized (results)
+        {
+            results.addLast(rows);
+        }
+    }
+
+    /**
+     * Adds the keys generated by a later batch or update.
+     *
+     * @param rows the rows of the generated keys.
+     */
+    void addGeneratedKeys(Object[][] rows)
+    {
+        synchronized (generatedKeys)
+        {
+            generatedKeys.addLast(rows);
+        }
+    }
+
+    /**
+     * Returns a new connection.
+     *
+     * @return a connection which records all calls, not null.
+     */
+    Connection getConnection()
+    {
+        return (Connection) createProxy(Connection.class, new Handler()
+        {
+            Object invoke(String name, Object[] args)
+            {
+                if ("getAutoCommit".equals(name))
+                {
+                    return Boolean.valueOf(autoCommit);
+                }
+                if ("getMetaData".equals(name))
+                {
+                    // does not support transactions
+                    return createProxy(DatabaseMetaData.class, new Handler()
+                    {
+                        Object invoke(String name, Object[] args)
+                        {
+                            return null;
+                        }
+                    });
+                }
+                if (name.startsWith("prepareStatement")
+                        || name.startsWith("createStatement"))
+                {
+                    return createStatement();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a data source whose connections record their calls
+     * in this object.
+     *
+     * @return the data source, not null.
+     */
+    DataSource getDataSource()
+    {
+        return (DataSource) createProxy(DataSource.class, new Handler()
+        {
+            Object invoke(String name, Object[] args)
+            {
+                if ("getConnection".equals(name))
+                {
+                    return getConnection();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the calls made so far, e.g. "setInt(1, 5)".
+     *
+     * @return a copy of the calls, not null.
+     */
+    List getCalls()
+    {
+        synchronized (calls)
+        {
+            return new ArrayList(calls);
+        }
+    }
+
+    /**
+     * Returns the calls whose description starts with the given prefix.
+     *
+     * @param prefix the prefix, e.g. the method name.
+     * @return the matching calls, not null.
+     */
+    List getCalls(String prefix)
+    {
+        List result = new ArrayList();
+        synchronized (calls)
+        {
+            for (int i = 0; i < calls.size(); i++)
+            {
+                String call = (String) calls.get(i);
+                if (call.startsWith(prefix))
+                {
+                    result.add(call);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a statement.
+     *
+     * @return the statement.
+     */
+    private PreparedStatement createStatement()
+    {
+        return (PreparedStatement) createProxy(
+                PreparedStatement.class,
+                new Handler()
+                {
+                    /** The number of statements in the current batch. */
+                    private int batchSize = 0;
+
+                    Object invoke(String name, Object[] args)
+                    {
+                        if ("addBatch".equals(name))
+                        {
+                            batchSize++;
+                        }
+                        else if ("executeBatch".equals(name))
+                        {
+                            int[] counts = new int[batchSize];
+                            Arrays.fill(counts, 1);
+                            batchSize = 0;
+                            return counts;
+                        }
+                        else if ("executeUpdate".equals(name))
+                        {
+                            return new Integer(1);
+                        }
+                        else if ("executeQuery".equals(name))
+                        {
+                            Runnable hook = beforeQuery;
+                            if (hook != null)
+                            {
+                                hook.run();
+                            }
+                            return createResultSet(next(results));
+                        }
+                        else if ("getGeneratedKeys".equals(name))
+                        {
+                            Object[][] rows = next(generatedKeys);
+                            return (rows == null)
+                                    ? null : createResultSet(rows);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Creates a result set over rows.
+     *
+     * @param rows the rows of the result set, or null for no rows.
+     * @return the result set.
+     */
+    private ResultSet createResultSet(Object[][] rows)
+    {
+        final Object[][] resultRows = (rows == null) ? new Object[0][] : rows;
+        return (ResultSet) createProxy(ResultSet.class, new Handler()
+        {
+            /** The position in the rows. */
+            private int row = -1;
+
+            /** The last value read. */
+            private Object lastValue;
+
+            Object invoke(String name, Object[] args)
+            {
+                if ("next".equals(name))
+                {
+                    row++;
+                    return Boolean.valueOf(row < resultRows.length);
+                }
+                if ("wasNull".equals(name))
+                {
+                    return Boolean.valueOf(lastValue == null);
+                }
+                if ("getMetaData".equals(name))
+                {
+                    return createMetaData(resultRows);
+                }
+                if (!name.startsWith("get") || args == null
+                        || !(args[0] instanceof Integer))
+                {
+                    return null;
+                }
+                lastValue = resultRows[row][((Integer) args[0]).intValue() - 1];
+                return convert(name, lastValue);
+            }
+        });
+    }
+
+    /**
+     * Creates the meta data of a result set.  The type of a column is
+     * INTEGER if the first row contains an Integer, VARCHAR if it contains
+     * a String, and OTHER otherwise.
+     *
+     * @param rows the rows of the result set.
+     * @return the meta data.
+     */
+    private ResultSetMetaData createMetaData(final Object[][] rows)
+    {
+        return (ResultSetMetaData) createProxy(
+                ResultSetMetaData.class,
+                new Handler()
+                {
+                    Object invoke(String name, Object[] args)
+                    {
+                        if ("getColumnCount".equals(name))
+                        {
+                            return new Integer(
+                                    rows.length == 0 ? 0 : rows[0].length);
+                        }
+                        if ("getColumnType".equals(name))
+                        {
+                            int column = ((Integer) args[0]).intValue() - 1;
+                            Object value = rows[0][column];
+                            if (value instanceof Integer)
+                            {
+                                return new Integer(Types.INTEGER);
+                            }
+                            if (value instanceof String)
+                            {
+                                return new Integer(Types.VARCHAR);
+                            }
+                            return new Integer(Types.OTHER);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Creates a proxy which records the calls and delegates to a handler.
+     * Calls to getters of result sets, meta data and data sources,
+     * getAutoCommit() and getMetaData() are not recorded.
+     *
+     * @param type the interface to implement.
+     * @param handler computes the results of the calls.
+     * @return the proxy.
+     */
+    private Object createProxy(final Class type, final Handler handler)
+    {
+        return Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class[] {type},
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy,
+                            Method method,
+                            Object[] args)
+                    {
+                        String name = method.getName();
+                        if ("hashCode".equals(name))
+                        {
+                            return new Integer(System.identityHashCode(proxy));
+                        }
+                        if ("equals".equals(name))
+                        {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        if ("toString".equals(name))
+                        {
+                            return type.getName();
+                        }
+                        boolean query;
+                        if (type == PreparedStatement.class)
+                        {
+                            query = false;
+                        }
+                        else if (type == Connection.class)
+                        {
+                            query = "getAutoCommit".equals(name)
+                                    || "getMetaData".equals(name);
+                        }
+                        else if (type == DatabaseMetaData.class)
+                        {
+                            query = true;
+                        }
+                        else
+                        {
+                            query = name.startsWith("get")
+                                    || "next".equals(name)
+                                    || "wasNull".equals(name);
+                        }
+                        if (!query)
+                        {
+                            synchronized (calls)
+                            {
+                                calls.add(describe(name, args));
+                            }
+                        }
+                        Object result = handler.invoke(name, args);
+                        if (result == null)
+                        {
+                            return defaultValue(method.getReturnType());
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Removes the first element of a list.
+     *
+     * @param list the list.
+     * @return the first element, or null if the list is empty.
+     */
+    private static Object[][] next(LinkedList list)
+    {
+        synchronized (list)
+        {
+            return list.isEmpty() ? null : (Object[][]) list.removeFirst();
+        }
+    }
+
+    /**
+     * Converts a value as the getter of a result set would.
+     *
+     * @param getter the name of the getter, e.g. "getInt".
+     * @param value the value in the row.
+     * @return the converted value.
+     */
+    private static Object convert(String getter, Object value)
+    {
+        if ("getString".equals(getter))
+        {
+            return (value == null) ? null : value.toString();
+        }
+        if ("getBigDecimal".equals(getter))
+        {
+            return (value == null) ? null : new BigDecimal(value.toString());
+        }
+        if ("getBoolean".equals(getter))
+        {
+            return Boolean.valueOf(Boolean.TRUE.equals(value));
+        }
+        if (value instanceof Number)
+        {
+            Number number = (Number) value;
+            if ("getInt".equals(getter))
+            {
+                return new Integer(number.intValue());
+            }
+            if ("getLong".equals(getter))
+            {
+                return new Long(number.longValue());
+            }
+            if ("getDouble".equals(getter))
+            {
+                return new Double(number.doubleValue());
+            }
+            if ("getFloat".equals(getter))
+            {
+                return new Float(number.floatValue());
+            }
+            if ("getShort".equals(getter))
+            {
+                return new Short(number.shortValue());
+            }
+            if ("getByte".equals(getter))
+            {
+                return new Byte(number.byteValue());
+            }
+        }
+        // getObject, getTimestamp, getDate, getTime, getBytes, or null
+        // values which the caller converts to the default value
+        return value;
+    }
+
+    /**
+     * Describes a call, e.g. "setInt(1, 5)".
+     *
+     * @param name the name of the called method.
+     * @param args the arguments, or null.
+     * @return the description.
+     */
+    private static String describe(String name, Object[] args)
+    {
+        StringBuffer result = new StringBuffer(name).append('(');
+        for (int i = 0; args != null && i < args.length; i++)
+        {
+            if (i > 0)
+            {
+                result.append(", ");
+            }
+            result.append(args[i]);
+        }
+        return result.append(')').toString();
+    }
+
+    /**
+     * Returns the default value of a return type.
+     *
+     * @param type the return type.
+     * @return null, or the default value of a primitive type.
+     */
+    private static Object defaultValue(Class type)
+    {
+        if (type == Boolean.TYPE)
+        {
+            return Boolean.FALSE;
+        }
+        if (type == Integer.TYPE)
+        {
+            return new Integer(0);
+        }
+        if (type == Long.TYPE)
+        {
+            return new Long(0);
+        }
+        if (type == Short.TYPE)
+        {
+            return new Short((short) 0);
+        }
+        if (type == Byte.TYPE)
+        {
+            return new Byte((byte) 0);
+        }
+        if (type == Double.TYPE)
+        {
+            return new Double(0);
+        }
+        if (type == Float.TYPE)
+        {
+            return new Float(0);
+        }
+        return null;
+    }
+
+    /**
+     * Computes the results of the calls on a JDBC object.
+     * Like JDBC objects, the handlers are used by one thread at a time,
+     * except for cancel() which may be called concurrently.
+     */
+    private abstract static class Handler
+    {
+        /**
+         * Computes the result of a call.
+         *
+         * @param name the name of the called method.
+         * @param args the arguments of the call, or null.
+         * @return the result, or null for the default value.
+         */
+        abstract Object invoke(String name, Object[] args);
+    }
+}
@@ -0,0 +1,250 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.torque.BaseTestCase;
+import org.apache.torque.Database;
+import org.apache.torque.Torque;
+import org.apache.torque.TorqueException;
+import org.apache.torque.adapter.DB;
+import org.apache.torque.adapter.DBFactory;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.DatabaseMap;
+import org.apache.torque.map.TableMap;
+import org.apache.torque.om.NumberKey;
+
+/**
+ * Tests for QueryCache
+ *
+ * @version $Id$
+ */
+public class QueryCacheTest extends BaseTestCase
+{
+    /** The callback which builds a criterion for a prepared statement. */
+    private static final SQLBuilder.QueryCallback PS_CALLBACK
+            = new SQLBuilder.QueryCallback()
+    {
+        public String process(Criteria.Criterion criterion, List params)
+            throws TorqueException
+        {
+            StringBuffer sb = new StringBuffer();
+            criterion.appendPsTo(sb, params);
+            return sb.toString();
+        }
+    };
+
+    /** The database used in the tests. */
+    private Database database;
+
+    /** The adapter of the database before the test. */
+    private DB oldAdapter;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name the name of the test to run
+     */
+    public QueryCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the table map and empties the cache.
+     */
+    public void setUp()
+    {
+        super.setUp();
+        try
+        {
+            database = Torque.getDatabase(Torque.getDefaultDB());
+            DatabaseMap dbMap = Torque.getDatabaseMap(Torque.getDefaultDB());
+            TableMap tableMap = new TableMap("QC_BOOK", dbMap);
+            dbMap.addTable(tableMap);
+            ColumnMap id = new ColumnMap("BOOK_ID", tableMap);
+            id.setType(new Integer(0));
+            id.setPrimaryKey(true);
+            tableMap.addColumn(id);
+            ColumnMap title = new ColumnMap("TITLE", tableMap);
+            title.setType("");
+            tableMap.addColumn(title);
+            ColumnMap author = new ColumnMap("AUTHOR_ID", tableMap);
+            author.setType(new Integer(0));
+            tableMap.addColumn(author);
+        }
+        catch (Exception e)
+        {
+            fail("Could not create the table map: " + e.getMessage());
+        }
+        oldAdapter = database.getAdapter();
+        QueryCache.clear();
+    }
+
+    /**
+     * Restores the adapter.
+     */
+    public void tearDown()
+    {
+        database.setAdapter(oldAdapter);
+        QueryCache.clear();
+    }
+
+    /**
+     * Checks that a cache hit returns the same sql and parameters as
+     * building the statement without the cache, for like patterns,
+     * in lists containing nulls and keys, subqueries and or-ed criterions.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testHitCollectsParams() throws Exception
+    {
+        List params = new ArrayList();
+        String sql = QueryCache.getSql(
+                books("fo\\%o", "*x?", new Integer(1), "z"),
+                params,
+                PS_CALLBACK);
+        assertEquals(0, QueryCache.getHits());
+        assertEquals(1, QueryCache.getSize());
+
+        Criteria criteria = books("ba\\_r", "y*", new NumberKey(3), "w");
+        List cachedParams = new ArrayList();
+        String cachedSql
+                = QueryCache.getSql(criteria, cachedParams, PS_CALLBACK);
+        assertEquals(1, QueryCache.getHits());
+        assertEquals(sql, cachedSql);
+
+        List uncachedParams = new ArrayList();
+        String uncachedSql = SQLBuilder.buildQueryClause(
+                books("ba\\_r", "y*", new NumberKey(3), "w"),
+                uncachedParams,
+                PS_CALLBACK).toString();
+        assertEquals(uncachedSql, cachedSql);
+        assertEquals(uncachedParams, cachedParams);
+        assertTrue(cachedParams.contains("ba_r"));
+        assertTrue(cachedParams.contains("y%"));
+        assertTrue(cachedParams.contains(new NumberKey(3).getValue()));
+        assertTrue(cachedParams.contains("w"));
+    }
+
+    /**
+     * Checks that in lists with nulls at different positions do not
+     * share a statement, as the nulls are not bound.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testInListNulls() throws Exception
+    {
+        Criteria criteria = new Criteria();
+        criteria.add("QC_BOOK.BOOK_ID",
+                (Object) new Object[] {new Integer(1), null},
+                Criteria.NOT_IN);
+        QueryCache.getSql(criteria, new ArrayList(), PS_CALLBACK);
+
+        criteria = new Criteria();
+        criteria.add("QC_BOOK.BOOK_ID",
+                (Object) new Object[] {new Integer(1), new Integer(2)},
+                Criteria.NOT_IN);
+        List params = new ArrayList();
+        QueryCache.getSql(criteria, params, PS_CALLBACK);
+        assertEquals(0, QueryCache.getHits());
+        assertEquals(2, params.size());
+    }
+
+    /**
+     * Checks that the pages of a query share one statement if the adapter
+     * applies the limits outside the sql, and that they do not if
+     * the limits are rendered into the sql.
+     *
+     * @throws Exception if the test fails.
+     */
+    public void testLimits() throws Exception
+    {
+        database.setAdapter(DBFactory.create("hypersonic"));
+        QueryCache.getSql(page(0), new ArrayList(), PS_CALLBACK);
+        QueryCache.getSql(page(10), new ArrayList(), PS_CALLBACK);
+        assertEquals(1, QueryCache.getSize());
+        assertEquals(1, QueryCache.getHits());
+
+        database.setAdapter(oldAdapter);
+        QueryCache.clear();
+        assertTrue(oldAdapter.supportsNativeLimit());
+        String first = QueryCache.getSql(page(0), new ArrayList(), PS_CALLBACK);
+        String second
+                = QueryCache.getSql(page(10), new ArrayList(), PS_CALLBACK);
+        assertEquals(2, QueryCache.getSize());
+        assertEquals(0, QueryCache.getHits());
+        assertFalse(first.equals(second));
+    }
+
+    /**
+     * Creates a criteria selecting books by title patterns, by an in list
+     * and by a subquery.
+     *
+     * @param equalPattern a like pattern without wildcards.
+     * @param likePattern a like pattern with wildcards.
+     * @param id an id contained in the not in list.
+     * @param subqueryTitle the title used in the subquery.
+     *
+     * @return the criteria.
+     */
+    private Criteria books(
+            String equalPattern,
+            String likePattern,
+            Object id,
+            String subqueryTitle)
+    {
+        Criteria criteria = new Criteria();
+        Criteria.Criterion title = criteria.getNewCriterion(
+                "QC_BOOK.TITLE", equalPattern, Criteria.LIKE);
+        title.or(criteria.getNewCriterion(
+                "QC_BOOK.TITLE", likePattern, Criteria.LIKE));
+        criteria.add(title);
+        criteria.add("QC_BOOK.BOOK_ID",
+                (Object) new Object[] {id, null, new Integer(7)},
+                Criteria.NOT_IN);
+
+        Criteria subquery = new Criteria();
+        subquery.addSelectColumn("QC_BOOK.AUTHOR_ID");
+        subquery.add("QC_BOOK.TITLE", subqueryTitle);
+        criteria.add("QC_BOOK.AUTHOR_ID", (Object) subquery, Criteria.IN);
+        criteria.addSelectColumn("QC_BOOK.BOOK_ID");
+        return criteria;
+    }
+
+    /**
+     * Creates a criteria selecting a page of books.
+     *
+     * @param offset the offset of the page.
+     *
+     * @return the criteria.
+     */
+    private Criteria page(int offset)
+    {
+        Criteria criteria = new Criteria();
+        criteria.addSelectColumn("QC_BOOK.BOOK_ID");
+        criteria.add("QC_BOOK.TITLE", "a");
+        criteria.setOffset(offset);
+        criteria.setLimit(10);
+        return criteria;
+    }
+}
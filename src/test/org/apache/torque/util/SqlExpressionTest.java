@@ -20,11 +20,15 @@ package org.apache.torque.util;
  */
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 
+import org.apache.torque.TorqueException;
 import org.apache.torque.adapter.DB;
 import org.apache.torque.adapter.DBFactory;
+import org.apache.torque.om.NumberKey;
 
 /**
  * Tests for SqlExpression
@@ -136,4 +140,97 @@ public class SqlExpressionTest extends TestCase
                 "COL", "50\\\\%", SqlEnum.LIKE, false, db);
         assertEquals("COL = 50%", result);
     }
+
+    /**
+     * Test whether assignments for SET clauses are built correctly.
+     */
+    public void testBuildAssignment() throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        SqlExpression.buildAssignment("COL", "abc", db, sb);
+        assertEquals("COL='abc'", sb.toString());
+
+        sb = new StringBuffer();
+        SqlExpression.buildAssignment("COL", null, db, sb);
+        assertEquals("COL=NULL", sb.toString());
+
+        sb = new StringBuffer();
+        SqlExpression.buildAssignment("COL", new Integer(5), db, sb);
+        assertEquals("COL=5", sb.toString());
+
+        assertFalse(SqlExpression.isLiteral(new byte[] {1}));
+        assertFalse(SqlExpression.isLiteral(new java.util.Date()));
+        try
+        {
+            SqlExpression.buildAssignment("COL", new byte[] {1}, db, sb);
+            fail("byte arrays should not be rendered as literals");
+        }
+        catch (TorqueException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test whether expressions for prepared statements are built correctly.
+     */
+    public void testBuildPs() throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        List params = new ArrayList();
+        SqlExpression.buildPs("COL", new Integer[] {new Integer(1),
+                new Integer(2)}, SqlEnum.IN, false, db, sb, params);
+        assertEquals("COL IN (?,?)", sb.toString());
+        assertEquals(2, params.size());
+        assertEquals(new Integer(2), params.get(1));
+
+        sb = new StringBuffer();
+        params = new ArrayList();
+        SqlExpression.buildPs("COL", "fre*", SqlEnum.LIKE, false, db,
+                sb, params);
+        assertEquals("COL LIKE ?", sb.toString());
+        assertEquals("fre%", params.get(0));
+
+        sb = new StringBuffer();
+        params = new ArrayList();
+        SqlExpression.buildPs("COL", new NumberKey(),
+                SqlEnum.EQUAL, false, db, sb, params);
+        assertEquals("COL IS NULL ", sb.toString());
+        assertTrue(params.isEmpty());
+
+        sb = new StringBuffer();
+        params = new ArrayList();
+        SqlExpression.buildPs("COL", new Long(5), SqlEnum.GREATER_THAN,
+                false, db, sb, params);
+        assertEquals("COL>?", sb.toString());
+        assertEquals(new Long(5), params.get(0));
+    }
+
+    /**
+     * Test that nulls in IN lists are not bound as parameters.
+     */
+    public void testBuildPsInWithNull() throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        List params = new ArrayList();
+        SqlExpression.buildPs("COL", new Integer[] {new Integer(1), null,
+                new Integer(2)}, SqlEnum.IN, false, db, sb, params);
+        assertEquals("COL IN (?,?)", sb.toString());
+        assertEquals(2, params.size());
+        assertEquals(new Integer(2), params.get(1));
+
+        sb = new StringBuffer();
+        params = new ArrayList();
+        SqlExpression.buildPs("COL", new Integer[] {null},
+                SqlEnum.IN, false, db, sb, params);
+        assertEquals("COL IN (NULL)", sb.toString());
+        assertTrue(params.isEmpty());
+
+        sb = new StringBuffer();
+        params = new ArrayList();
+        SqlExpression.buildPs("COL", new Integer[] {new Integer(1), null},
+                SqlEnum.NOT_IN, false, db, sb, params);
+        assertEquals("COL NOT IN (?,NULL)", sb.toString());
+        assertEquals(1, params.size());
+    }
 }
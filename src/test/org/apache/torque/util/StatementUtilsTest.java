@@ -0,0 +1,175 @@
+package org.apache.torque.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+import junit.framework.TestCase;
+
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.DatabaseMap;
+import org.apache.torque.map.TableMap;
+
+/**
+ * Tests for StatementUtils
+ *
+ * @version $Id$
+ */
+public class StatementUtilsTest extends TestCase
+{
+    /** The table containing the columns used in the tests. */
+    private TableMap tableMap;
+
+    /**
+     * Constructor for StatementUtilsTest.
+     * @param name the name of the test.
+     */
+    public StatementUtilsTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the table map.
+     */
+    public void setUp()
+    {
+        tableMap = new TableMap("SU_TABLE", new DatabaseMap("test"));
+    }
+
+    /**
+     * Tests that values are read using the getter matching the type
+     * of the column.
+     */
+    public void testGetValue() throws Exception
+    {
+        Timestamp timestamp = new Timestamp(1000000000000L);
+        ResultSet resultSet = row(new Object[] {
+                "abc",
+                new Integer(5),
+                new Long(6),
+                new BigDecimal("7.5"),
+                timestamp,
+                new Integer(1),
+                "Y",
+                new Double(2.5),
+                "untyped"});
+
+        assertEquals("abc", StatementUtils.getValue(
+                resultSet, 1, column("STRING", "", null)));
+        assertEquals(new Integer(5), StatementUtils.getValue(
+                resultSet, 2, column("INT", new Integer(0), null)));
+        assertEquals(new Long(6), StatementUtils.getValue(
+                resultSet, 3, column("LONG", new Long(0), null)));
+        assertEquals(new BigDecimal("7.5"), StatementUtils.getValue(
+                resultSet, 4, column("DECIMAL", new BigDecimal(0), null)));
+        assertEquals(timestamp, StatementUtils.getValue(
+                resultSet, 5, column("TIMESTAMP", new java.util.Date(),
+                        "TIMESTAMP")));
+        assertEquals(Boolean.TRUE, StatementUtils.getValue(
+                resultSet, 6, column("BOOLEANINT", new Integer(0),
+                        "BOOLEANINT")));
+        assertEquals(Boolean.TRUE, StatementUtils.getValue(
+                resultSet, 7, column("BOOLEANCHAR", "", "BOOLEANCHAR")));
+        assertEquals(new Double(2.5), StatementUtils.getValue(
+                resultSet, 8, column("DOUBLE", new Double(0), null)));
+        assertEquals("untyped", StatementUtils.getValue(resultSet, 9, null));
+    }
+
+    /**
+     * Tests that sql null is returned as null, also for columns
+     * which are read using a primitive getter.
+     */
+    public void testGetValueNull() throws Exception
+    {
+        ResultSet resultSet = row(new Object[] {
+                null, null, null, null, null, null, null});
+
+        assertNull(StatementUtils.getValue(
+                resultSet, 1, column("STRING", "", null)));
+        assertNull(StatementUtils.getValue(
+                resultSet, 2, column("INT", new Integer(0), null)));
+        assertNull(StatementUtils.getValue(
+                resultSet, 3, column("LONG", new Long(0), null)));
+        assertNull(StatementUtils.getValue(
+                resultSet, 4, column("BOOLEANINT", new Integer(0),
+                        "BOOLEANINT")));
+        assertNull(StatementUtils.getValue(
+                resultSet, 5, column("BOOLEANCHAR", "", "BOOLEANCHAR")));
+        assertNull(StatementUtils.getValue(
+                resultSet, 6, column("BOOLEAN", Boolean.FALSE, null)));
+        assertNull(StatementUtils.getValue(resultSet, 7, null));
+    }
+
+    /**
+     * Tests that a boolean char column is only true for the values
+     * which Torque writes or accepts as true.
+     */
+    public void testGetValueBooleanChar() throws Exception
+    {
+        ResultSet resultSet = row(new Object[] {"N", "1", "true", "x"});
+        ColumnMap column = column("BOOLEANCHAR", "", "BOOLEANCHAR");
+
+        assertEquals(Boolean.FALSE,
+                StatementUtils.getValue(resultSet, 1, column));
+        assertEquals(Boolean.TRUE,
+                StatementUtils.getValue(resultSet, 2, column));
+        assertEquals(Boolean.TRUE,
+                StatementUtils.getValue(resultSet, 3, column));
+        assertEquals(Boolean.FALSE,
+                StatementUtils.getValue(resultSet, 4, column));
+    }
+
+    /**
+     * Creates a column.
+     *
+     * @param name the name of the column.
+     * @param type the sample object of the java type of the column.
+     * @param torqueType the Torque type of the column, or null.
+     * @return the column.
+     */
+    private ColumnMap column(String name, Object type, String torqueType)
+    {
+        ColumnMap column = new ColumnMap(name, tableMap);
+        column.setType(type);
+        column.setTorqueType(torqueType);
+        return column;
+    }
+
+    /**
+     * Creates a result set positioned on a single row.
+     *
+     * @param values the values of the row.
+     * @return the result set.
+     * @throws Exception if the result set cannot be created.
+     */
+    private static ResultSet row(Object[] values) throws Exception
+    {
+        MockJdbc jdbc = new MockJdbc();
+        jdbc.addResult(new Object[][] {values});
+        ResultSet resultSet = jdbc.getConnection()
+                .prepareStatement("SELECT")
+                .executeQuery();
+        assertTrue(resultSet.next());
+        return resultSet;
+    }
+}